@@ -0,0 +1,143 @@
+package com.WebAuthn.LoadTool.Load;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import com.WebAuthn.LoadTool.Load.RelyingPartyClient.CeremonyFailedException;
+import com.WebAuthn.LoadTool.Load.RelyingPartyClient.User;
+
+/**
+ * Drives registration or authentication ceremonies for a given time.
+ * <p>
+ * Closed loop: a fixed number of clients, each starting its next ceremony
+ * when the last one finished, so the rate follows the server.
+ * <p>
+ * Open loop: ceremonies start at the target rate whether or not the earlier
+ * ones finished, up to a limit of ceremonies in flight. Latencies count from
+ * the intended start, so a stalled server shows in the percentiles instead of
+ * slowing down the load (coordinated omission).
+ * <p>
+ * Authentications take users registered beforehand from a pool, one ceremony
+ * per user at a time, as signature counters must arrive in order.
+ */
+public class LoadGenerator {
+
+    public enum Flow {
+        REGISTER, AUTHENTICATE
+    }
+
+    private final RelyingPartyClient client;
+    private final Flow flow;
+    private final String runId = Long.toString(System.currentTimeMillis(), 36);
+    private final AtomicLong registrations = new AtomicLong();
+    private BlockingQueue<User> users;
+
+    public LoadGenerator(RelyingPartyClient client, Flow flow) {
+        this.client = client;
+        this.flow = flow;
+    }
+
+    /**
+     * Registers the users authentications run with, before the measurement.
+     *
+     * @return the number of users registered
+     */
+    public int prepare(int userCount, int threads) throws InterruptedException {
+        if (flow != Flow.AUTHENTICATE) {
+            return 0;
+        }
+        users = new ArrayBlockingQueue<>(userCount);
+        ExecutorService executor = Executors.newFixedThreadPool(threads);
+        for (int i = 0; i < userCount; i++) {
+            executor.execute(() -> {
+                try {
+                    users.add(client.register(nextUsername(), System.nanoTime()));
+                } catch (CeremonyFailedException e) {
+                    // counted in the report
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.HOURS);
+        if (users.isEmpty()) {
+            throw new IllegalStateException("No user could be registered");
+        }
+        return users.size();
+    }
+
+    public void runClosed(int clients, Duration duration) throws InterruptedException {
+        long end = System.nanoTime() + duration.toNanos();
+        List<Thread> threads = new ArrayList<>(clients);
+        for (int i = 0; i < clients; i++) {
+            Thread thread = new Thread(() -> {
+                while (System.nanoTime() < end && !Thread.currentThread().isInterrupted()) {
+                    ceremony(System.nanoTime());
+                }
+            }, "client-" + i);
+            thread.start();
+            threads.add(thread);
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+    }
+
+    public void runOpen(double rate, int maxInFlight, Duration duration) throws InterruptedException {
+        long interval = (long) (TimeUnit.SECONDS.toNanos(1) / rate);
+        long start = System.nanoTime();
+        long end = start + duration.toNanos();
+        Semaphore inFlight = new Semaphore(maxInFlight);
+        ExecutorService executor = Executors.newCachedThreadPool();
+        for (long intended = start; intended < end; intended += interval) {
+            long wait = intended - System.nanoTime();
+            if (wait > 0) {
+                LockSupport.parkNanos(wait);
+            }
+            // when the limit is reached the schedule falls behind, the waiting
+            // still counts into the latency
+            inFlight.acquire();
+            long scheduled = intended;
+            executor.execute(() -> {
+                try {
+                    ceremony(scheduled);
+                } finally {
+                    inFlight.release();
+                }
+            });
+        }
+        executor.shutdown();
+        executor.awaitTermination(1, TimeUnit.HOURS);
+    }
+
+    private void ceremony(long started) {
+        try {
+            if (flow == Flow.REGISTER) {
+                client.register(nextUsername(), started);
+                return;
+            }
+            User user = users.take();
+            try {
+                client.authenticate(user, started);
+            } finally {
+                users.add(user);
+            }
+        } catch (CeremonyFailedException e) {
+            // counted in the report
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private String nextUsername() {
+        return "load-" + runId + "-" + registrations.incrementAndGet();
+    }
+}
@@ -0,0 +1,116 @@
+package com.WebAuthn.LoadTool.Load;
+
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.HdrHistogram.Histogram;
+import org.HdrHistogram.Recorder;
+
+/**
+ * Latencies in HdrHistograms, one per ceremony and one per endpoint, and the
+ * number of errors by endpoint and cause. Latencies are recorded in
+ * microseconds up to one hour.
+ * <p>
+ * The clients record into a {@link Recorder} per operation without waiting
+ * for each other or for a reader. Every read moves what was recorded since
+ * the last one into the operation's total histogram, so it can be read while
+ * the load is still running.
+ */
+public class LoadReport {
+
+    private static final long HIGHEST_MICROS = TimeUnit.HOURS.toMicros(1);
+
+    private final Map<String, Latencies> latencies = new ConcurrentHashMap<>();
+    private final Map<String, LongAdder> errors = new ConcurrentHashMap<>();
+
+    private static final class Latencies {
+        final Recorder recorder = new Recorder(HIGHEST_MICROS, 3);
+        final Histogram total = new Histogram(HIGHEST_MICROS, 3);
+        Histogram interval;
+
+        // the recorder swaps its histograms, the one handed back is reused for the
+        // next interval
+        synchronized Histogram merged() {
+            interval = recorder.getIntervalHistogram(interval);
+            total.add(interval);
+            return total.copy();
+        }
+    }
+
+    public void record(String operation, long nanos) {
+        latencies.computeIfAbsent(operation, key -> new Latencies())
+                .recorder.recordValue(Math.min(HIGHEST_MICROS, TimeUnit.NANOSECONDS.toMicros(nanos)));
+    }
+
+    /**
+     * @return everything recorded for the operation so far, empty if nothing
+     */
+    public Histogram histogram(String operation) {
+        Latencies recorded = latencies.get(operation);
+        return recorded == null ? new Histogram(HIGHEST_MICROS, 3) : recorded.merged();
+    }
+
+    /**
+     * @param cause e.g. the endpoint and the status code
+     */
+    public void error(String cause) {
+        errors.computeIfAbsent(cause, key -> new LongAdder()).increment();
+    }
+
+    public long count(String operation) {
+        return histogram(operation).getTotalCount();
+    }
+
+    public long errorCount() {
+        return errors.values().stream().mapToLong(LongAdder::sum).sum();
+    }
+
+    // e.g. after the users of an authentication run are registered
+    public void reset() {
+        latencies.clear();
+        errors.clear();
+    }
+
+    public void print(PrintStream out, Duration elapsed) {
+        double seconds = elapsed.toNanos() / 1e9;
+        out.printf("%-22s %9s %9s %9s %9s %9s %9s %9s %9s%n", "operation", "count", "per s", "mean ms", "p50 ms",
+                "p90 ms", "p99 ms", "p99.9 ms", "max ms");
+        histograms().forEach((operation, histogram) -> out.printf(
+                "%-22s %9d %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f %9.1f%n", operation, histogram.getTotalCount(),
+                histogram.getTotalCount() / seconds, histogram.getMean() / 1e3,
+                histogram.getValueAtPercentile(50) / 1e3, histogram.getValueAtPercentile(90) / 1e3,
+                histogram.getValueAtPercentile(99) / 1e3, histogram.getValueAtPercentile(99.9) / 1e3,
+                histogram.getMaxValue() / 1e3));
+        out.printf("%nerrors: %d%n", errorCount());
+        new TreeMap<>(errors).forEach((cause, count) -> out.printf("%9d  %s%n", count.sum(), cause));
+    }
+
+    /**
+     * Writes the percentile distribution of every operation into
+     * [operation].hgrm, for the HdrHistogram plotter.
+     */
+    public void writeHistograms(Path dir) throws IOException {
+        Files.createDirectories(dir);
+        for (Map.Entry<String, Histogram> entry : histograms().entrySet()) {
+            try (PrintStream out = new PrintStream(
+                    Files.newOutputStream(dir.resolve(entry.getKey().replaceAll("[^A-Za-z0-9.-]", "_") + ".hgrm")))) {
+                // microseconds reported as milliseconds
+                entry.getValue().outputPercentileDistribution(out, 1000.0);
+            }
+        }
+    }
+
+    private Map<String, Histogram> histograms() {
+        Map<String, Histogram> histograms = new TreeMap<>();
+        latencies.forEach((operation, recorded) -> histograms.put(operation, recorded.merged()));
+        return histograms;
+    }
+}
@@ -0,0 +1,153 @@
+package com.WebAuthn.LoadTool.Load;
+
+import java.io.IOException;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.time.Duration;
+
+import com.WebAuthn.Authenticator.AttestationCertificates;
+import com.WebAuthn.Authenticator.VirtualAuthenticator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+
+/**
+ * Runs registration and authentication ceremonies against the /attestation and
+ * /assertion endpoints of the yubico, Passage or PasswordlessDev module, with
+ * the requests of the Go testTool. Every call and every whole ceremony is
+ * timed into the report; a failed one counts as an error and throws
+ * {@link CeremonyFailedException}.
+ */
+public class RelyingPartyClient {
+
+    // sealed ceremonies of the yubico module carry a token from options to result
+    private static final String TOKEN_HEADER = "Ceremony-Token";
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final HttpClient http;
+    private final String baseUrl;
+    private final String origin;
+    private final String rpId;
+    private final AttestationCertificates attestation;
+    private final LoadReport report;
+
+    /**
+     * @param rpId        used if the options name no relying party id
+     * @param attestation certificates for packed attestation, none attestation
+     *                    if null
+     */
+    public RelyingPartyClient(String baseUrl, String origin, String rpId, AttestationCertificates attestation,
+            Duration timeout, LoadReport report) {
+        this.http = HttpClient.newBuilder().connectTimeout(timeout).build();
+        this.baseUrl = baseUrl;
+        this.origin = origin;
+        this.rpId = rpId;
+        this.attestation = attestation;
+        this.report = report;
+    }
+
+    public record User(String username, VirtualAuthenticator authenticator, String userHandle) {
+    }
+
+    /**
+     * Creates the user and registers a new authenticator for it.
+     *
+     * @param started intended start, the latency of the ceremony counts from here
+     */
+    public User register(String username, long started) {
+        ObjectNode request = mapper.createObjectNode()
+                .put("username", username)
+                .put("displayName", username);
+        request.putObject("authenticatorSelection")
+                .put("requireResidentKey", false)
+                .put("residentKey", "discouraged")
+                .put("userVerification", "discouraged");
+        Exchange options = post("/attestation/options", request.toString(), null);
+        JsonNode rp = options.body().findValue("rp");
+        JsonNode user = options.body().findValue("user");
+        VirtualAuthenticator authenticator = new VirtualAuthenticator(origin, attestation);
+        String response = authenticator.register(rp != null && rp.hasNonNull("id") ? rp.get("id").asText() : rpId,
+                challenge(options));
+        checkStatus("/attestation/result", post("/attestation/result", response, options.token()));
+        report.record("registration", System.nanoTime() - started);
+        return new User(username, authenticator,
+                user != null && user.hasNonNull("id") ? user.get("id").asText() : null);
+    }
+
+    /**
+     * @param started intended start, the latency of the ceremony counts from here
+     */
+    public void authenticate(User user, long started) {
+        String request = mapper.createObjectNode()
+                .put("username", user.username())
+                .put("userVerification", "discouraged")
+                .toString();
+        Exchange options = post("/assertion/options", request, null);
+        String response = user.authenticator().authenticate(challenge(options), user.userHandle());
+        checkStatus("/assertion/result", post("/assertion/result", response, options.token()));
+        report.record("authentication", System.nanoTime() - started);
+    }
+
+    private Exchange post(String path, String body, String token) {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(baseUrl + path))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body));
+        if (token != null) {
+            request.header(TOKEN_HEADER, token);
+        }
+        long started = System.nanoTime();
+        HttpResponse<byte[]> response;
+        try {
+            response = http.send(request.build(), HttpResponse.BodyHandlers.ofByteArray());
+        } catch (IOException e) {
+            throw fail(path + " " + e.getClass().getSimpleName(), e);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new CeremonyFailedException("interrupted", e);
+        }
+        report.record(path, System.nanoTime() - started);
+        if (response.statusCode() < 200 || response.statusCode() >= 300) {
+            throw fail(path + " " + response.statusCode(), null);
+        }
+        try {
+            return new Exchange(mapper.readTree(response.body()),
+                    response.headers().firstValue(TOKEN_HEADER).orElse(null));
+        } catch (IOException e) {
+            throw fail(path + " invalid json", e);
+        }
+    }
+
+    private String challenge(Exchange options) {
+        JsonNode challenge = options.body().findValue("challenge");
+        if (challenge == null) {
+            throw fail("options without challenge", null);
+        }
+        return challenge.asText();
+    }
+
+    // the result endpoints answer 2xx with status failed for some rejections
+    private void checkStatus(String path, Exchange result) {
+        JsonNode status = result.body().get("status");
+        if (status != null && !"ok".equals(status.asText())) {
+            JsonNode message = result.body().get("errorMessage");
+            throw fail(path + " " + status.asText() + (message == null ? "" : ": " + message.asText()), null);
+        }
+    }
+
+    private CeremonyFailedException fail(String cause, Throwable e) {
+        report.error(cause);
+        return new CeremonyFailedException(cause, e);
+    }
+
+    private record Exchange(JsonNode body, String token) {
+    }
+
+    public static class CeremonyFailedException extends RuntimeException {
+
+        public CeremonyFailedException(String message, Throwable cause) {
+            super(message, cause);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.WebAuthn.LoadTool;
+
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+
+import com.WebAuthn.Authenticator.AttestationCertificates;
+import com.WebAuthn.LoadTool.Load.LoadGenerator;
+import com.WebAuthn.LoadTool.Load.LoadGenerator.Flow;
+import com.WebAuthn.LoadTool.Load.LoadReport;
+import com.WebAuthn.LoadTool.Load.RelyingPartyClient;
+
+/**
+ * Load generator for the /attestation and /assertion endpoints of the yubico,
+ * Passage and PasswordlessDev modules. Options, as --name=value:
+ *
+ * <pre>
+ * url            relying party, http://localhost:8080
+ * origin         origin of the client data, http://localhost:8080
+ * rp-id          relying party id if the options name none, localhost
+ * flow           register or authenticate, authenticate
+ * mode           closed (clients back to back) or open (target rate), closed
+ * clients        closed loop clients, 16
+ * rate           open loop ceremonies per second, 100
+ * max-in-flight  open loop limit of ceremonies in flight, 1000
+ * users          users registered before an authentication run, 64
+ * duration       ISO-8601, PT30S
+ * timeout        connect timeout, PT10S
+ * attestation    none or packed, none
+ * root-pem       file the packed attestation root is written to, it has to be
+ *                trusted by the relying party before the run starts
+ * histogram-dir  directory for the .hgrm percentile distributions
+ * </pre>
+ */
+public class LoadToolApplication {
+
+    public static void main(String[] args) throws Exception {
+        Map<String, String> options = parse(args);
+        String url = options.getOrDefault("url", "http://localhost:8080");
+        Flow flow = Flow.valueOf(options.getOrDefault("flow", "authenticate").toUpperCase());
+        boolean open = "open".equals(options.getOrDefault("mode", "closed"));
+        int clients = Integer.parseInt(options.getOrDefault("clients", "16"));
+        Duration duration = Duration.parse(options.getOrDefault("duration", "PT30S"));
+
+        AttestationCertificates attestation = null;
+        if ("packed".equals(options.getOrDefault("attestation", "none"))) {
+            attestation = new AttestationCertificates();
+            if (options.containsKey("root-pem")) {
+                attestation.writeRootPem(Path.of(options.get("root-pem")));
+            }
+        }
+        LoadReport report = new LoadReport();
+        RelyingPartyClient client = new RelyingPartyClient(url,
+                options.getOrDefault("origin", "http://localhost:8080"),
+                options.getOrDefault("rp-id", "localhost"), attestation,
+                Duration.parse(options.getOrDefault("timeout", "PT10S")), report);
+        LoadGenerator generator = new LoadGenerator(client, flow);
+
+        int users = generator.prepare(Integer.parseInt(options.getOrDefault("users", "64")), clients);
+        if (users > 0) {
+            System.out.printf("registered %d users, %d failed%n", users, report.errorCount());
+            report.reset();
+        }
+        System.out.printf("%s %s loop against %s for %s%n", flow.name().toLowerCase(), open ? "open" : "closed",
+                url, duration);
+        long start = System.nanoTime();
+        if (open) {
+            generator.runOpen(Double.parseDouble(options.getOrDefault("rate", "100")),
+                    Integer.parseInt(options.getOrDefault("max-in-flight", "1000")), duration);
+        } else {
+            generator.runClosed(clients, duration);
+        }
+        report.print(System.out, Duration.ofNanos(System.nanoTime() - start));
+        if (options.containsKey("histogram-dir")) {
+            report.writeHistograms(Path.of(options.get("histogram-dir")));
+        }
+    }
+
+    private static Map<String, String> parse(String[] args) {
+        Map<String, String> options = new HashMap<>();
+        for (String arg : args) {
+            int separator = arg.indexOf('=');
+            if (!arg.startsWith("--") || separator < 0) {
+                throw new IllegalArgumentException("Expected --name=value, got " + arg);
+            }
+            options.put(arg.substring(2, separator), arg.substring(separator + 1));
+        }
+        return options;
+    }
+}
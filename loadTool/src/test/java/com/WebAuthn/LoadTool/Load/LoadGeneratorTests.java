@@ -0,0 +1,132 @@
+package com.WebAuthn.LoadTool.Load;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.HdrHistogram.Histogram;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.WebAuthn.LoadTool.Load.LoadGenerator.Flow;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+// against a stub relying party that accepts every response and stalls the
+// first result it is sent after the warm-up
+class LoadGeneratorTests {
+
+    private static final long STALL_MS = 1000;
+    private static final long SLOW_MICROS = TimeUnit.MILLISECONDS.toMicros(500);
+
+    private final LoadReport report = new LoadReport();
+    private final AtomicBoolean stalled = new AtomicBoolean();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger maxInFlight = new AtomicInteger();
+    private HttpServer server;
+    private ExecutorService executor;
+    private RelyingPartyClient client;
+
+    @BeforeEach
+    void start() throws IOException {
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/attestation/options", exchange -> respond(exchange,
+                "{\"rp\":{\"id\":\"localhost\"},\"user\":{\"id\":\"dXNlcg\"},\"challenge\":\"AAAA\"}"));
+        server.createContext("/assertion/options", exchange -> respond(exchange, "{\"challenge\":\"AAAA\"}"));
+        server.createContext("/attestation/result", this::result);
+        server.createContext("/assertion/result", this::result);
+        executor = Executors.newCachedThreadPool();
+        server.setExecutor(executor);
+        server.start();
+        client = new RelyingPartyClient("http://localhost:" + server.getAddress().getPort(), "http://localhost:8080",
+                "localhost", null, Duration.ofSeconds(5), report);
+        // the first ceremonies of a cold JVM are slow by themselves
+        stalled.set(true);
+        for (int i = 0; i < 50; i++) {
+            client.register("warm-up-" + i, System.nanoTime());
+        }
+        report.reset();
+        maxInFlight.set(0);
+        stalled.set(false);
+    }
+
+    @AfterEach
+    void stop() {
+        server.stop(0);
+        executor.shutdownNow();
+    }
+
+    @Test
+    void openLoopCountsTheStallIntoTheCeremoniesScheduledDuringIt() throws Exception {
+        // one ceremony at a time, the ones due during the stall start late
+        new LoadGenerator(client, Flow.REGISTER).runOpen(200, 1, Duration.ofMillis(500));
+
+        Histogram ceremonies = report.histogram("registration");
+        Histogram results = report.histogram("/attestation/result");
+        assertEquals(100, ceremonies.getTotalCount(), 1);
+        assertEquals(0, report.errorCount());
+        // the server was slow once, every ceremony waiting behind it saw that
+        assertEquals(1, results.getCountBetweenValues(SLOW_MICROS, results.getMaxValue()));
+        assertTrue(ceremonies.getCountBetweenValues(SLOW_MICROS, ceremonies.getMaxValue()) >= 50,
+                ceremonies.getCountBetweenValues(SLOW_MICROS, ceremonies.getMaxValue()) + " slow ceremonies");
+        assertTrue(ceremonies.getMaxValue() >= TimeUnit.MILLISECONDS.toMicros(STALL_MS));
+    }
+
+    @Test
+    void closedLoopOnlyCountsTheStallOnce() throws Exception {
+        new LoadGenerator(client, Flow.REGISTER).runClosed(1, Duration.ofSeconds(2));
+
+        Histogram ceremonies = report.histogram("registration");
+        assertTrue(ceremonies.getTotalCount() > 1);
+        assertEquals(1, ceremonies.getCountBetweenValues(SLOW_MICROS, ceremonies.getMaxValue()));
+    }
+
+    @Test
+    void usersAuthenticateOneCeremonyAtATime() throws Exception {
+        LoadGenerator generator = new LoadGenerator(client, Flow.AUTHENTICATE);
+        assertEquals(1, generator.prepare(1, 1));
+        maxInFlight.set(0);
+        report.reset();
+
+        generator.runClosed(4, Duration.ofSeconds(1));
+
+        assertTrue(report.count("authentication") > 1);
+        assertEquals(report.count("authentication"), report.count("/assertion/result"));
+        assertEquals(1, maxInFlight.get());
+    }
+
+    private void result(HttpExchange exchange) throws IOException {
+        maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+        try {
+            if (stalled.compareAndSet(false, true)) {
+                Thread.sleep(STALL_MS);
+            }
+            respond(exchange, "{\"status\":\"ok\",\"errorMessage\":\"\"}");
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } finally {
+            inFlight.decrementAndGet();
+        }
+    }
+
+    private static void respond(HttpExchange exchange, String body) throws IOException {
+        exchange.getRequestBody().readAllBytes();
+        byte[] bytes = body.getBytes(StandardCharsets.UTF_8);
+        exchange.getResponseHeaders().add("Content-Type", "application/json");
+        exchange.sendResponseHeaders(200, bytes.length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(bytes);
+        }
+    }
+}
@@ -0,0 +1,91 @@
+package com.WebAuthn.LoadTool.Load;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import org.HdrHistogram.Histogram;
+import org.junit.jupiter.api.Test;
+
+class LoadReportTests {
+
+    private final LoadReport report = new LoadReport();
+
+    @Test
+    void readsMergeWhatWasRecordedSinceTheLastOne() {
+        report.record("registration", TimeUnit.MILLISECONDS.toNanos(2));
+        assertEquals(1, report.count("registration"));
+
+        report.record("registration", TimeUnit.MILLISECONDS.toNanos(40));
+        report.record("registration", TimeUnit.MILLISECONDS.toNanos(40));
+        Histogram histogram = report.histogram("registration");
+
+        assertEquals(3, histogram.getTotalCount());
+        assertEquals(2000, histogram.getMinValue(), 2);
+        assertEquals(40_000, histogram.getMaxValue(), 40);
+        assertEquals(0, report.count("authentication"));
+    }
+
+    @Test
+    void readingWhileRecordingLosesNothing() throws Exception {
+        int threads = 8;
+        int perThread = 50_000;
+        AtomicBoolean recording = new AtomicBoolean(true);
+        AtomicBoolean shrunk = new AtomicBoolean();
+        Thread reader = new Thread(() -> {
+            long last = 0;
+            while (recording.get()) {
+                long count = report.count("authentication");
+                if (count < last) {
+                    shrunk.set(true);
+                }
+                last = count;
+            }
+        });
+        reader.start();
+        List<Thread> writers = new ArrayList<>();
+        for (int t = 0; t < threads; t++) {
+            Thread writer = new Thread(() -> {
+                for (int i = 1; i <= perThread; i++) {
+                    report.record("authentication", TimeUnit.MICROSECONDS.toNanos(i));
+                }
+            });
+            writer.start();
+            writers.add(writer);
+        }
+        for (Thread writer : writers) {
+            writer.join();
+        }
+        recording.set(false);
+        reader.join();
+
+        assertFalse(shrunk.get());
+        Histogram histogram = report.histogram("authentication");
+        assertEquals((long) threads * perThread, histogram.getTotalCount());
+        assertEquals(perThread, histogram.getMaxValue(), perThread / 1000.0);
+        assertEquals(perThread / 2.0, histogram.getMean(), perThread / 1000.0);
+    }
+
+    @Test
+    void latenciesAreCappedAtOneHour() {
+        report.record("registration", TimeUnit.HOURS.toNanos(2));
+
+        assertEquals(TimeUnit.HOURS.toMicros(1), report.histogram("registration").getMaxValue(),
+                TimeUnit.HOURS.toMicros(1) / 1000.0);
+    }
+
+    @Test
+    void resetDropsLatenciesAndErrors() {
+        report.record("registration", 1000);
+        report.error("/attestation/result 500");
+
+        report.reset();
+
+        assertEquals(0, report.count("registration"));
+        assertEquals(0, report.errorCount());
+    }
+}
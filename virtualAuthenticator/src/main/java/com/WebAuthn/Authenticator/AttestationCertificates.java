@@ -0,0 +1,148 @@
+package com.WebAuthn.Authenticator;
+
+import java.io.IOException;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.SecureRandom;
+import java.security.cert.CertificateEncodingException;
+import java.security.cert.X509Certificate;
+import java.security.spec.ECGenParameterSpec;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Base64;
+import java.util.Date;
+import java.util.List;
+
+import org.bouncycastle.asn1.DEROctetString;
+import org.bouncycastle.asn1.ASN1ObjectIdentifier;
+import org.bouncycastle.asn1.x500.X500Name;
+import org.bouncycastle.asn1.x509.BasicConstraints;
+import org.bouncycastle.asn1.x509.Extension;
+import org.bouncycastle.asn1.x509.KeyUsage;
+import org.bouncycastle.cert.X509v3CertificateBuilder;
+import org.bouncycastle.cert.jcajce.JcaX509CertificateConverter;
+import org.bouncycastle.cert.jcajce.JcaX509ExtensionUtils;
+import org.bouncycastle.cert.jcajce.JcaX509v3CertificateBuilder;
+import org.bouncycastle.operator.OperatorCreationException;
+import org.bouncycastle.operator.jcajce.JcaContentSignerBuilder;
+
+/**
+ * Root, intermediate and batch certificate of a made up authenticator model,
+ * created in-process as certificateCreator does, for packed attestation. The
+ * root has to be trusted by the relying party, see {@link #writeRootPem}.
+ * Shared by the load generator and the tests and benchmarks of the yubico
+ * module.
+ */
+public class AttestationCertificates {
+
+    // id-fido-gen-ce-aaguid
+    private static final ASN1ObjectIdentifier AAGUID_EXTENSION = new ASN1ObjectIdentifier("1.3.6.1.4.1.45724.1.1.4");
+    private static final SecureRandom RANDOM = new SecureRandom();
+
+    private final KeyPair attestationKey = keyPair();
+    private final byte[] aaguid = new byte[16];
+    private final X509Certificate root;
+    private final X509Certificate intermediate;
+    private final X509Certificate attestation;
+
+    public AttestationCertificates() {
+        this(Duration.ofDays(365));
+    }
+
+    /**
+     * @param attestationValidity validity of the batch certificate from now on
+     */
+    public AttestationCertificates(Duration attestationValidity) {
+        RANDOM.nextBytes(aaguid);
+        KeyPair rootKey = keyPair();
+        KeyPair intermediateKey = keyPair();
+        Instant now = Instant.now();
+        X500Name rootName = new X500Name("CN=SuperSafeAuthenticator Root, O=SuperSafeAuthenticators, C=DE");
+        X500Name intermediateName = new X500Name("CN=SuperSafeAuthenticator CA, O=SuperSafeAuthenticators, C=DE");
+        this.root = certificate(rootName, rootName, rootKey, rootKey, now.plus(Duration.ofDays(3650)), true);
+        this.intermediate = certificate(intermediateName, rootName, intermediateKey, rootKey,
+                now.plus(Duration.ofDays(1825)), true);
+        this.attestation = certificate(new X500Name(
+                "CN=SuperSafeAuthenticator, OU=Authenticator Attestation, O=SuperSafeAuthenticators, C=DE"),
+                intermediateName, attestationKey, intermediateKey, now.plus(attestationValidity), false);
+    }
+
+    public byte[] getAaguid() {
+        return aaguid.clone();
+    }
+
+    public KeyPair getAttestationKey() {
+        return attestationKey;
+    }
+
+    public X509Certificate getRoot() {
+        return root;
+    }
+
+    /**
+     * @return batch certificate first, as sent in x5c
+     */
+    public List<X509Certificate> getChain() {
+        return List.of(attestation, intermediate);
+    }
+
+    public String getRootPem() {
+        try {
+            return "-----BEGIN CERTIFICATE-----\n"
+                    + Base64.getMimeEncoder(64, "\n".getBytes(StandardCharsets.US_ASCII))
+                            .encodeToString(root.getEncoded())
+                    + "\n-----END CERTIFICATE-----\n";
+        } catch (CertificateEncodingException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    /**
+     * Writes the root, e.g. into a trust store directory of the yubico module.
+     */
+    public void writeRootPem(Path file) throws IOException {
+        Files.writeString(file, getRootPem());
+    }
+
+    private X509Certificate certificate(X500Name subject, X500Name issuer, KeyPair subjectKey, KeyPair issuerKey,
+            Instant notAfter, boolean ca) {
+        try {
+            JcaX509ExtensionUtils extensions = new JcaX509ExtensionUtils();
+            byte[] serial = new byte[16];
+            RANDOM.nextBytes(serial);
+            X509v3CertificateBuilder builder = new JcaX509v3CertificateBuilder(issuer, new BigInteger(1, serial),
+                    Date.from(Instant.now().minusSeconds(60)), Date.from(notAfter), subject, subjectKey.getPublic())
+                    .addExtension(Extension.basicConstraints, true, new BasicConstraints(ca))
+                    .addExtension(Extension.subjectKeyIdentifier, false,
+                            extensions.createSubjectKeyIdentifier(subjectKey.getPublic()));
+            if (subjectKey != issuerKey) {
+                builder.addExtension(Extension.authorityKeyIdentifier, false,
+                        extensions.createAuthorityKeyIdentifier(issuerKey.getPublic()));
+            }
+            if (ca) {
+                builder.addExtension(Extension.keyUsage, true, new KeyUsage(KeyUsage.keyCertSign | KeyUsage.cRLSign));
+            } else {
+                builder.addExtension(AAGUID_EXTENSION, false, new DEROctetString(aaguid));
+            }
+            return new JcaX509CertificateConverter().getCertificate(
+                    builder.build(new JcaContentSignerBuilder("SHA256withECDSA").build(issuerKey.getPrivate())));
+        } catch (GeneralSecurityException | OperatorCreationException | IOException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static KeyPair keyPair() {
+        try {
+            KeyPairGenerator generator = KeyPairGenerator.getInstance("EC");
+            generator.initialize(new ECGenParameterSpec("secp256r1"));
+            return generator.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
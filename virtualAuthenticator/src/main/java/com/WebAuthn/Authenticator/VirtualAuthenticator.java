@@ -0,0 +1,287 @@
+package com.WebAuthn.Authenticator;
+
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.KeyPair;
+import java.security.KeyPairGenerator;
+import java.security.MessageDigest;
+import java.security.PrivateKey;
+import java.security.SecureRandom;
+import java.security.Signature;
+import java.security.cert.X509Certificate;
+import java.security.interfaces.ECPublicKey;
+import java.security.interfaces.RSAPublicKey;
+import java.security.spec.ECGenParameterSpec;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.upokecenter.cbor.CBORObject;
+
+/**
+ * Software authenticator holding one ES256, RS256 or EdDSA credential. It
+ * answers the options of the relying party with none, self or packed x5c
+ * attestation and with assertions, in the json format of the FIDO conformance
+ * tool that the /attestation/result and /assertion/result endpoints take.
+ * Challenges, ids and user handles are base64url strings, as in the options.
+ * <p>
+ * Shared by the load generator and the tests and benchmarks of the yubico
+ * module.
+ */
+public class VirtualAuthenticator {
+
+    public enum Algorithm {
+        ES256(-7), RS256(-257), EdDSA(-8);
+
+        private final int coseId;
+
+        Algorithm(int coseId) {
+            this.coseId = coseId;
+        }
+
+        public int getCoseId() {
+            return coseId;
+        }
+    }
+
+    private static final ObjectMapper MAPPER = new ObjectMapper();
+    private static final SecureRandom RANDOM = new SecureRandom();
+    private static final Base64.Encoder BASE64URL = Base64.getUrlEncoder().withoutPadding();
+
+    private final String origin;
+    private final Algorithm algorithm;
+    private final AttestationCertificates attestation;
+    private final boolean selfAttestation;
+    private final KeyPair keyPair;
+    private final byte[] credentialId = new byte[16];
+    private final AtomicLong counter = new AtomicLong();
+    private volatile String rpId;
+
+    /**
+     * @param origin      origin the client data is signed for
+     * @param attestation certificates for packed attestation, none attestation
+     *                    if null
+     */
+    public VirtualAuthenticator(String origin, AttestationCertificates attestation) {
+        this(origin, Algorithm.ES256, attestation, false);
+    }
+
+    /**
+     * @param origin          origin the client data is signed for
+     * @param attestation     certificates for packed attestation, may be null
+     * @param selfAttestation packed attestation signed by the credential itself,
+     *                        if there are no certificates
+     */
+    public VirtualAuthenticator(String origin, Algorithm algorithm, AttestationCertificates attestation,
+            boolean selfAttestation) {
+        this.origin = origin;
+        this.algorithm = algorithm;
+        this.attestation = attestation;
+        this.selfAttestation = attestation == null && selfAttestation;
+        try {
+            KeyPairGenerator generator;
+            switch (algorithm) {
+                case RS256:
+                    generator = KeyPairGenerator.getInstance("RSA");
+                    generator.initialize(2048);
+                    break;
+                case EdDSA:
+                    generator = KeyPairGenerator.getInstance("Ed25519");
+                    break;
+                default:
+                    generator = KeyPairGenerator.getInstance("EC");
+                    generator.initialize(new ECGenParameterSpec("secp256r1"));
+                    break;
+            }
+            this.keyPair = generator.generateKeyPair();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        RANDOM.nextBytes(credentialId);
+    }
+
+    public String getCredentialId() {
+        return BASE64URL.encodeToString(credentialId);
+    }
+
+    public byte[] getRawCredentialId() {
+        return credentialId.clone();
+    }
+
+    public byte[] getPublicKeyCose() {
+        return coseKey();
+    }
+
+    /**
+     * Creates the credential for the relying party.
+     *
+     * @return body for /attestation/result
+     */
+    public String register(String rpId, String challenge) {
+        this.rpId = rpId;
+        byte[] clientData = clientData("webauthn.create", challenge);
+        byte[] cose = coseKey();
+        byte[] authData = authDataHeader(0x41, 16 + 2 + credentialId.length + cose.length)
+                .put(attestation == null ? new byte[16] : attestation.getAaguid())
+                .putShort((short) credentialId.length)
+                .put(credentialId)
+                .put(cose)
+                .array();
+        byte[] attestationObject = CBORObject.NewMap()
+                .Add("fmt", attestation == null && !selfAttestation ? "none" : "packed")
+                .Add("attStmt", attestationStatement(authData, clientData))
+                .Add("authData", authData)
+                .EncodeToBytes();
+        ObjectNode response = MAPPER.createObjectNode()
+                .put("clientDataJSON", BASE64URL.encodeToString(clientData))
+                .put("attestationObject", BASE64URL.encodeToString(attestationObject));
+        return credential(response);
+    }
+
+    /**
+     * @param userHandle user handle of the credential, may be null
+     * @return body for /assertion/result
+     */
+    public String authenticate(String challenge, String userHandle) {
+        if (rpId == null) {
+            throw new IllegalStateException("Not registered yet");
+        }
+        byte[] clientData = clientData("webauthn.get", challenge);
+        byte[] authData = authDataHeader(0x01, 0).array();
+        ObjectNode response = MAPPER.createObjectNode()
+                .put("clientDataJSON", BASE64URL.encodeToString(clientData))
+                .put("authenticatorData", BASE64URL.encodeToString(authData))
+                .put("signature", BASE64URL.encodeToString(sign(keyPair.getPrivate(), signatureAlgorithm(),
+                        authData, clientData)))
+                .put("userHandle", userHandle == null ? "" : userHandle);
+        return credential(response);
+    }
+
+    private CBORObject attestationStatement(byte[] authData, byte[] clientData) {
+        if (selfAttestation) {
+            return CBORObject.NewMap()
+                    .Add("alg", algorithm.getCoseId())
+                    .Add("sig", sign(keyPair.getPrivate(), signatureAlgorithm(), authData, clientData));
+        }
+        if (attestation == null) {
+            return CBORObject.NewMap();
+        }
+        CBORObject x5c = CBORObject.NewArray();
+        try {
+            for (X509Certificate certificate : attestation.getChain()) {
+                x5c.Add(certificate.getEncoded());
+            }
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+        return CBORObject.NewMap()
+                .Add("alg", -7)
+                .Add("sig", sign(attestation.getAttestationKey().getPrivate(), "SHA256withECDSA", authData,
+                        clientData))
+                .Add("x5c", x5c);
+    }
+
+    private String credential(ObjectNode response) {
+        ObjectNode credential = MAPPER.createObjectNode()
+                .put("id", getCredentialId())
+                .put("rawId", getCredentialId())
+                .put("type", "public-key");
+        credential.set("response", response);
+        credential.set("clientExtensionResults", MAPPER.createObjectNode());
+        return credential.toString();
+    }
+
+    // rp id hash, user present flag plus the given ones, next signature counter
+    private ByteBuffer authDataHeader(int flags, int attestedLength) {
+        return ByteBuffer.allocate(37 + attestedLength)
+                .put(sha256(rpId.getBytes(StandardCharsets.UTF_8)))
+                .put((byte) flags)
+                .putInt((int) counter.incrementAndGet());
+    }
+
+    private byte[] clientData(String type, String challenge) {
+        return MAPPER.createObjectNode()
+                .put("type", type)
+                .put("challenge", challenge)
+                .put("origin", origin)
+                .put("crossOrigin", false)
+                .toString()
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    private byte[] coseKey() {
+        if (algorithm == Algorithm.RS256) {
+            RSAPublicKey key = (RSAPublicKey) keyPair.getPublic();
+            return CBORObject.NewMap()
+                    .Add(1, 3)
+                    .Add(3, -257)
+                    .Add(-1, unsigned(key.getModulus(), (key.getModulus().bitLength() + 7) / 8))
+                    .Add(-2, key.getPublicExponent().toByteArray())
+                    .EncodeToBytes();
+        }
+        if (algorithm == Algorithm.EdDSA) {
+            // the raw key are the last 32 bytes of the X.509 encoding
+            byte[] encoded = keyPair.getPublic().getEncoded();
+            return CBORObject.NewMap()
+                    .Add(1, 1)
+                    .Add(3, -8)
+                    .Add(-1, 6)
+                    .Add(-2, Arrays.copyOfRange(encoded, encoded.length - 32, encoded.length))
+                    .EncodeToBytes();
+        }
+        ECPublicKey key = (ECPublicKey) keyPair.getPublic();
+        return CBORObject.NewMap()
+                .Add(1, 2)
+                .Add(3, -7)
+                .Add(-1, 1)
+                .Add(-2, unsigned(key.getW().getAffineX(), 32))
+                .Add(-3, unsigned(key.getW().getAffineY(), 32))
+                .EncodeToBytes();
+    }
+
+    private String signatureAlgorithm() {
+        return switch (algorithm) {
+            case RS256 -> "SHA256withRSA";
+            case EdDSA -> "Ed25519";
+            default -> "SHA256withECDSA";
+        };
+    }
+
+    // over authenticator data and client data hash
+    private static byte[] sign(PrivateKey key, String algorithm, byte[] authData, byte[] clientData) {
+        try {
+            Signature signature = Signature.getInstance(algorithm);
+            signature.initSign(key);
+            signature.update(authData);
+            signature.update(sha256(clientData));
+            return signature.sign();
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    // big endian with the given length, without the sign byte or leading zeros
+    // of BigInteger
+    private static byte[] unsigned(BigInteger value, int length) {
+        byte[] bytes = value.toByteArray();
+        if (bytes.length == length) {
+            return bytes;
+        }
+        byte[] fixed = new byte[length];
+        int copy = Math.min(length, bytes.length);
+        System.arraycopy(bytes, bytes.length - copy, fixed, length - copy, copy);
+        return fixed;
+    }
+
+    private static byte[] sha256(byte[] data) {
+        try {
+            return MessageDigest.getInstance("SHA-256").digest(data);
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
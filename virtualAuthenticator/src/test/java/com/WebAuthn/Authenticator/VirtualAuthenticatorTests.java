@@ -0,0 +1,165 @@
+package com.WebAuthn.Authenticator;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.charset.StandardCharsets;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import org.junit.jupiter.api.Test;
+
+import com.yubico.webauthn.AssertionRequest;
+import com.yubico.webauthn.AssertionResult;
+import com.yubico.webauthn.CredentialRepository;
+import com.yubico.webauthn.FinishAssertionOptions;
+import com.yubico.webauthn.FinishRegistrationOptions;
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.RegistrationResult;
+import com.yubico.webauthn.RelyingParty;
+import com.yubico.webauthn.StartAssertionOptions;
+import com.yubico.webauthn.StartRegistrationOptions;
+import com.yubico.webauthn.attestation.AttestationTrustSource;
+import com.yubico.webauthn.data.AttestationType;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.PublicKeyCredential;
+import com.yubico.webauthn.data.PublicKeyCredentialCreationOptions;
+import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
+import com.yubico.webauthn.data.RelyingPartyIdentity;
+import com.yubico.webauthn.data.UserIdentity;
+
+class VirtualAuthenticatorTests {
+
+    private static final String ORIGIN = "http://localhost:8080";
+
+    private final Credentials credentials = new Credentials();
+    private final UserIdentity user = UserIdentity.builder()
+            .name("alice")
+            .displayName("Alice")
+            .id(new ByteArray("alice".getBytes(StandardCharsets.UTF_8)))
+            .build();
+
+    @Test
+    void noneAttestationRegistersAndAuthenticates() throws Exception {
+        RelyingParty rp = relyingParty(null);
+        VirtualAuthenticator authenticator = new VirtualAuthenticator(ORIGIN, null);
+
+        RegistrationResult registration = register(rp, authenticator);
+        assertEquals(AttestationType.NONE, registration.getAttestationType());
+
+        for (int i = 0; i < 2; i++) {
+            AssertionRequest request = rp.startAssertion(StartAssertionOptions.builder().username("alice").build());
+            AssertionResult result = rp.finishAssertion(FinishAssertionOptions.builder()
+                    .request(request)
+                    .response(PublicKeyCredential.parseAssertionResponseJson(authenticator.authenticate(
+                            request.getPublicKeyCredentialRequestOptions().getChallenge().getBase64Url(),
+                            user.getId().getBase64Url())))
+                    .build());
+            assertTrue(result.isSuccess());
+            credentials.add(result.getCredential().toBuilder().signatureCount(result.getSignatureCount()).build());
+        }
+    }
+
+    @Test
+    void everyAlgorithmRegistersWithSelfAttestation() throws Exception {
+        RelyingParty rp = relyingParty(null);
+        for (VirtualAuthenticator.Algorithm algorithm : VirtualAuthenticator.Algorithm.values()) {
+            VirtualAuthenticator authenticator = new VirtualAuthenticator(ORIGIN, algorithm, null, true);
+
+            RegistrationResult registration = register(rp, authenticator);
+
+            assertEquals(AttestationType.SELF_ATTESTATION, registration.getAttestationType());
+            assertEquals(new ByteArray(authenticator.getPublicKeyCose()), registration.getPublicKeyCose());
+            assertEquals(authenticator.getCredentialId(), registration.getKeyId().getId().getBase64Url());
+        }
+    }
+
+    @Test
+    void packedAttestationIsTrustedWithTheRoot() throws Exception {
+        AttestationCertificates certificates = new AttestationCertificates();
+        RelyingParty rp = relyingParty(certificates.getRoot());
+
+        RegistrationResult registration = register(rp, new VirtualAuthenticator(ORIGIN, certificates));
+
+        assertEquals(AttestationType.BASIC, registration.getAttestationType());
+        assertTrue(registration.isAttestationTrusted());
+        assertEquals(new ByteArray(certificates.getAaguid()), registration.getAaguid());
+    }
+
+    private RegistrationResult register(RelyingParty rp, VirtualAuthenticator authenticator) throws Exception {
+        PublicKeyCredentialCreationOptions options = rp.startRegistration(StartRegistrationOptions.builder()
+                .user(user)
+                .build());
+        RegistrationResult result = rp.finishRegistration(FinishRegistrationOptions.builder()
+                .request(options)
+                .response(PublicKeyCredential.parseRegistrationResponseJson(authenticator.register(
+                        options.getRp().getId(), options.getChallenge().getBase64Url())))
+                .build());
+        credentials.add(RegisteredCredential.builder()
+                .credentialId(result.getKeyId().getId())
+                .userHandle(user.getId())
+                .publicKeyCose(result.getPublicKeyCose())
+                .signatureCount(result.getSignatureCount())
+                .build());
+        return result;
+    }
+
+    private RelyingParty relyingParty(X509Certificate root) {
+        RelyingParty.RelyingPartyBuilder builder = RelyingParty.builder()
+                .identity(RelyingPartyIdentity.builder().id("localhost").name("localhost").build())
+                .credentialRepository(credentials)
+                .origins(Collections.singleton(ORIGIN));
+        if (root != null) {
+            builder.attestationTrustSource(new AttestationTrustSource() {
+                @Override
+                public TrustRootsResult findTrustRoots(List<X509Certificate> chain, Optional<ByteArray> aaguid) {
+                    return TrustRootsResult.builder().trustRoots(Set.of(root)).enableRevocationChecking(false).build();
+                }
+            });
+        }
+        return builder.build();
+    }
+
+    // one user, alice
+    private class Credentials implements CredentialRepository {
+
+        private final Map<ByteArray, RegisteredCredential> stored = new HashMap<>();
+
+        void add(RegisteredCredential credential) {
+            stored.put(credential.getCredentialId(), credential);
+        }
+
+        @Override
+        public Set<PublicKeyCredentialDescriptor> getCredentialIdsForUsername(String username) {
+            return stored.keySet().stream()
+                    .map(id -> PublicKeyCredentialDescriptor.builder().id(id).build())
+                    .collect(Collectors.toSet());
+        }
+
+        @Override
+        public Optional<ByteArray> getUserHandleForUsername(String username) {
+            return Optional.of(user.getId());
+        }
+
+        @Override
+        public Optional<String> getUsernameForUserHandle(ByteArray userHandle) {
+            return Optional.of(user.getName());
+        }
+
+        @Override
+        public Optional<RegisteredCredential> lookup(ByteArray credentialId, ByteArray userHandle) {
+            return Optional.ofNullable(stored.get(credentialId));
+        }
+
+        @Override
+        public Set<RegisteredCredential> lookupAll(ByteArray credentialId) {
+            return stored.containsKey(credentialId) ? Set.of(stored.get(credentialId)) : Set.of();
+        }
+    }
+}
@@ -0,0 +1,58 @@
+package com.WebAuthn.Yubico.Controller;
+
+import java.io.IOException;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.stereotype.Component;
+import org.springframework.web.filter.OncePerRequestFilter;
+
+import com.WebAuthn.Yubico.Service.AdmissionService;
+
+import jakarta.servlet.FilterChain;
+import jakarta.servlet.ServletException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Rejects ceremony requests of clients over their rate before the body is
+ * read. The client address is the remote address, behind a proxy set
+ * server.forward-headers-strategy so it is taken from the forwarded headers.
+ */
+@Component
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+public class AdmissionFilter extends OncePerRequestFilter {
+
+    private final AdmissionService admission;
+
+    @Autowired
+    public AdmissionFilter(AdmissionService admission) {
+        this.admission = admission;
+    }
+
+    @Override
+    protected boolean shouldNotFilter(HttpServletRequest request) {
+        String path = request.getRequestURI();
+        return !admission.isEnabled() || !(path.startsWith("/attestation/") || path.startsWith("/assertion/"));
+    }
+
+    @Override
+    protected void doFilterInternal(HttpServletRequest request, HttpServletResponse response, FilterChain chain)
+            throws ServletException, IOException {
+        if (admission.admitAddress(request.getRemoteAddr())) {
+            chain.doFilter(request, response);
+            return;
+        }
+        writeThrottled(response);
+    }
+
+    private static void writeThrottled(HttpServletResponse response) throws IOException {
+        response.setStatus(HttpStatus.TOO_MANY_REQUESTS.value());
+        response.setHeader("Retry-After", "1");
+        response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+        response.setContentLength(AdmissionService.THROTTLED_BODY.length);
+        response.getOutputStream().write(AdmissionService.THROTTLED_BODY);
+    }
+}
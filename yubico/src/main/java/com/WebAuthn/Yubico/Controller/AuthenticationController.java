@@ -1,10 +1,15 @@
 package com.WebAuthn.Yubico.Controller;
 
-import com.WebAuthn.Yubico.Model.AuthenticatorModel;
-import com.WebAuthn.Yubico.Model.ServerAuthenticatorAssertionResponse;
 import com.WebAuthn.Yubico.Model.ServerPublicKeyCredentialGetOptionsRequest;
 import com.WebAuthn.Yubico.Model.UserModel;
+import com.WebAuthn.Yubico.Service.AdmissionService;
+import com.WebAuthn.Yubico.Service.CeremonyMetrics;
+import com.WebAuthn.Yubico.Service.CeremonyService;
 import com.WebAuthn.Yubico.Service.CredentialAccessService;
+import com.WebAuthn.Yubico.Service.RelyingPartyRegistry;
+import com.WebAuthn.Yubico.Service.SignatureCounterUpdater;
+import com.WebAuthn.Yubico.Utility.CeremonyOptions;
+import com.WebAuthn.Yubico.Utility.PublicKeyCredentialDecoder;
 import com.fasterxml.jackson.core.JsonProcessingException;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
@@ -15,59 +20,99 @@ import com.yubico.webauthn.data.ClientAssertionExtensionOutputs;
 import com.yubico.webauthn.data.PublicKeyCredential;
 import com.yubico.webauthn.data.UserVerificationRequirement;
 import com.yubico.webauthn.exception.AssertionFailedException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
 import org.springframework.http.HttpStatus;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.server.ResponseStatusException;
 
 import java.io.IOException;
-import java.util.Optional;
 
 @RestController
 @RequestMapping("/assertion")
-@CrossOrigin
+@CrossOrigin(exposedHeaders = CeremonyService.TOKEN_HEADER)
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
 public class AuthenticationController {
 
     private CredentialAccessService accessService;
-    private RelyingParty rp;
-    private AssertionRequest assertionRequest;
+    private RelyingPartyRegistry registry;
+    private CeremonyOptions ceremonyOptions;
+    private CeremonyService ceremonyService;
+    private PublicKeyCredentialDecoder credentialDecoder;
+    private ObjectMapper mapper;
+    private SignatureCounterUpdater counterUpdater;
+    private CeremonyMetrics metrics;
+    private AdmissionService admission;
 
     @Autowired
-    public AuthenticationController(CredentialAccessService accessService, RelyingParty rp) {
+    public AuthenticationController(CredentialAccessService accessService, RelyingPartyRegistry registry,
+            CeremonyOptions ceremonyOptions, CeremonyService ceremonyService,
+            PublicKeyCredentialDecoder credentialDecoder, ObjectMapper mapper, SignatureCounterUpdater counterUpdater,
+            CeremonyMetrics metrics, AdmissionService admission) {
         this.accessService = accessService;
-        this.rp = rp;
-        this.assertionRequest = null;
+        this.registry = registry;
+        this.ceremonyOptions = ceremonyOptions;
+        this.ceremonyService = ceremonyService;
+        this.credentialDecoder = credentialDecoder;
+        this.mapper = mapper;
+        this.counterUpdater = counterUpdater;
+        this.metrics = metrics;
+        this.admission = admission;
     }
 
     /**
      * Builds and returns assertion options
      * 
-     * @param req get options request
+     * @param req      get options request
+     * @param request  its host selects the relying party
+     * @param response used to return the ceremony token in sealed mode
      * @return
      */
     @ResponseStatus(HttpStatus.OK)
     @PostMapping(value = "/options", produces = "application/json")
     public String startAuthentication(
-            @RequestBody ServerPublicKeyCredentialGetOptionsRequest req) {
+            @RequestBody ServerPublicKeyCredentialGetOptionsRequest req, HttpServletRequest request,
+            HttpServletResponse response) {
+        try (CeremonyMetrics.Ceremony ceremony = metrics.start("authentication.start")) {
+            return assertionOptions(req, registry.forHost(request.getServerName()), response, ceremony);
+        }
+    }
 
+    private String assertionOptions(ServerPublicKeyCredentialGetOptionsRequest req,
+            RelyingPartyRegistry.Tenant tenant, HttpServletResponse response, CeremonyMetrics.Ceremony ceremony) {
+        admission.admitUsername(req.getUsername());
         UserModel user = new UserModel(req.getUsername());
-        UserModel existingUser = accessService.getUserRepo().findByUsername(user.getUsername());
+        UserModel existingUser = accessService.getUserRepo().findByTenantAndUsername(tenant.partition(),
+                user.getUsername());
+        ceremony.phase(CeremonyMetrics.USER_LOOKUP);
         AssertionRequest request;
         StartAssertionOptionsBuilder optionsBuilder = StartAssertionOptions.builder();
         if (req.getUserVerification().equals("required"))
             optionsBuilder.userVerification(UserVerificationRequirement.REQUIRED);
         if (existingUser != null) {
-            request = rp.startAssertion(optionsBuilder
+            request = ceremonyOptions.startAssertion(tenant.relyingParty(), optionsBuilder
                     .username(existingUser.getUsername())
                     .build());
+            ceremony.phase(CeremonyMetrics.OPTIONS);
         } else {
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
                     "Authentication failed, user does not exist. For sign in with discoverable, set username to an empty string.");
         }
         try {
-            this.assertionRequest = request;
-            return request.toCredentialsGetJson();
+            String ceremonyToken = ceremonyService.saveAssertion(request);
+            if (ceremonyToken != null) {
+                response.setHeader(CeremonyService.TOKEN_HEADER, ceremonyToken);
+            }
+            ceremony.phase(CeremonyMetrics.PENDING_CEREMONY);
+            String json = request.toCredentialsGetJson();
+            ceremony.phase(CeremonyMetrics.RENDER);
+            ceremony.succeeded();
+            return json;
+        } catch (IllegalStateException e) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, e.getMessage(), e);
         } catch (JsonProcessingException e) {
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
         }
@@ -76,45 +121,62 @@ public class AuthenticationController {
     /**
      * Finishes authentication
      * 
-     * @param resp assertion response
+     * @param body          assertion response
+     * @param ceremonyToken token returned with the options, only used in sealed
+     *                      mode
+     * @param httpRequest   its host selects the relying party
      * @return
      */
     @PostMapping(value = "/result", produces = "application/json")
     public ResponseEntity finishAuthentication(
-            @RequestBody ServerAuthenticatorAssertionResponse resp) {
-        try {
-            AssertionRequest request = this.assertionRequest;
-            ObjectMapper mapper = new ObjectMapper();
+            @RequestBody byte[] body,
+            @RequestHeader(value = CeremonyService.TOKEN_HEADER, required = false) String ceremonyToken,
+            HttpServletRequest httpRequest) {
+        try (CeremonyMetrics.Ceremony ceremony = metrics.start("authentication.finish")) {
+            PublicKeyCredential<AuthenticatorAssertionResponse, ClientAssertionExtensionOutputs> pkc;
+            pkc = credentialDecoder.decodeAssertion(body);
+            ceremony.phase(CeremonyMetrics.DECODE);
+            // find the pending ceremony by the challenge the authenticator signed
+            AssertionRequest request = ceremonyService
+                    .takeAssertion(pkc.getResponse().getClientData().getChallenge(), ceremonyToken)
+                    .orElse(null);
+            ceremony.phase(CeremonyMetrics.PENDING_CEREMONY);
             if (request != null) {
-                String respJson = mapper.writeValueAsString(resp);
-                PublicKeyCredential<AuthenticatorAssertionResponse, ClientAssertionExtensionOutputs> pkc;
-                pkc = PublicKeyCredential.parseAssertionResponseJson(respJson);
+                // the credential is looked up as part of the verification
+                RelyingParty rp = registry.forHost(httpRequest.getServerName()).relyingParty();
                 AssertionResult result = rp.finishAssertion(FinishAssertionOptions.builder()
                         .request(request)
                         .response(pkc)
                         .build());
+                ceremony.phase(CeremonyMetrics.VERIFICATION);
+                // update usage count, a counter that did not advance means another
+                // login with the same counter got there first
+                boolean counted = result.isSuccess() && counterUpdater.record(result.getCredential().getCredentialId(),
+                        result.getSignatureCount());
+                ceremony.phase(CeremonyMetrics.PERSISTENCE);
+                if (result.isSuccess() && !counted) {
+                    ObjectNode responseBody = mapper.createObjectNode();
+                    responseBody.put("status", "failed");
+                    responseBody.put("errorMessage", "Signature counter did not advance, possible cloned authenticator");
+                    return new ResponseEntity<>(responseBody.toString(), HttpStatus.CREATED);
+                }
                 if (result.isSuccess()) {
-                    // update usage count
-                    Optional<AuthenticatorModel> currentAuth = accessService.getAuthRepo()
-                            .findByCredentialId(result.getCredential().getCredentialId());
-                    if (currentAuth.isPresent()) {
-                        AuthenticatorModel auth = currentAuth.get();
-                        auth.setUsageCount(result.getSignatureCount());
-                        accessService.getAuthRepo().save(auth);
-                    }
-                    ObjectNode responseBody = new ObjectMapper().createObjectNode();
+                    ObjectNode responseBody = mapper.createObjectNode();
                     responseBody.put("status", "ok");
                     responseBody.put("errorMessage", "");
-                    return new ResponseEntity<>(responseBody.toString(), HttpStatus.CREATED);
+                    String json = responseBody.toString();
+                    ceremony.phase(CeremonyMetrics.RENDER);
+                    ceremony.succeeded();
+                    return new ResponseEntity<>(json, HttpStatus.CREATED);
                 } else {
-                    ObjectNode responseBody = new ObjectMapper().createObjectNode();
+                    ObjectNode responseBody = mapper.createObjectNode();
                     responseBody.put("status", "failed");
                     responseBody.put("errorMessage", "No Success");
                     return new ResponseEntity<>(responseBody.toString(), HttpStatus.CREATED);
                 }
             } else {
                 throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR,
-                        "Authentication failed, AssertionRequest is null");
+                        "Authentication failed, no pending AssertionRequest for this challenge");
             }
         } catch (IOException e) {
             throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, e.getMessage(), e);
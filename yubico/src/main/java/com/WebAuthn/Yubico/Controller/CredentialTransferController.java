@@ -0,0 +1,116 @@
+package com.WebAuthn.Yubico.Controller;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpStatus;
+import org.springframework.web.bind.annotation.GetMapping;
+import org.springframework.web.bind.annotation.PostMapping;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestParam;
+import org.springframework.web.bind.annotation.RestController;
+import org.springframework.web.server.ResponseStatusException;
+
+import com.WebAuthn.Yubico.Model.UserModel;
+import com.WebAuthn.Yubico.Service.CredentialExportService;
+import com.WebAuthn.Yubico.Service.CredentialImportService;
+import com.WebAuthn.Yubico.Utility.CredentialRecordCodec;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+
+/**
+ * Bulk transfer of users and credentials, for migrations. Off unless
+ * credentials.transfer.enabled is set, as the endpoints are not protected.
+ */
+@RestController
+@RequestMapping("/credentials")
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
+@ConditionalOnProperty(name = "credentials.transfer.enabled", havingValue = "true")
+public class CredentialTransferController {
+
+    private final CredentialImportService importService;
+    private final CredentialExportService exportService;
+    private final ObjectMapper mapper;
+
+    @Autowired
+    public CredentialTransferController(CredentialImportService importService,
+            CredentialExportService exportService, ObjectMapper mapper) {
+        this.importService = importService;
+        this.exportService = exportService;
+        this.mapper = mapper;
+    }
+
+    /**
+     * Imports the records of the request body. The progress is streamed back
+     * as one JSON line per committed batch, its records are the checkpoint to
+     * resume from with skip.
+     *
+     * @param format ndjson or cbor
+     * @param skip   records at the start of the body already imported
+     */
+    @PostMapping("/import")
+    public void importCredentials(@RequestParam(defaultValue = "ndjson") String format,
+            @RequestParam(defaultValue = "0") long skip, HttpServletRequest request, HttpServletResponse response)
+            throws IOException {
+        CredentialRecordCodec.Format recordFormat = formatOf(format);
+        response.setContentType(CredentialRecordCodec.NDJSON_MEDIA_TYPE);
+        OutputStream out = response.getOutputStream();
+        try (InputStream in = request.getInputStream();
+                CredentialRecordCodec.Reader reader = CredentialRecordCodec.reader(in, recordFormat)) {
+            CredentialImportService.Progress progress = importService.importRecords(reader, skip, committed -> {
+                writeLine(out, committed);
+                out.flush();
+            });
+            writeLine(out, progress);
+        } catch (JsonParseException e) {
+            // the committed batches stay, the last progress line is the checkpoint
+            out.write(("{\"status\":\"failed\",\"errorMessage\":" + mapper.writeValueAsString(e.getOriginalMessage())
+                    + "}\n").getBytes(StandardCharsets.UTF_8));
+        }
+    }
+
+    /**
+     * Streams all users and credentials of a tenant in the format the import
+     * reads. A cut off response ends in the middle of a record, the import
+     * then fails on it.
+     *
+     * @param format ndjson or cbor
+     * @param tenant partition of the users, see TenantConfig
+     */
+    @GetMapping("/export")
+    public void exportCredentials(@RequestParam(defaultValue = "ndjson") String format,
+            @RequestParam(defaultValue = UserModel.DEFAULT_TENANT) String tenant, HttpServletResponse response)
+            throws IOException {
+        CredentialRecordCodec.Format recordFormat = formatOf(format);
+        response.setContentType(recordFormat.mediaType());
+        CredentialRecordCodec.Writer writer = CredentialRecordCodec.writer(response.getOutputStream(), recordFormat);
+        try {
+            exportService.export(tenant, writer);
+        } catch (IllegalStateException e) {
+            // nothing written yet, closing the writer would commit the response
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, e.getMessage());
+        }
+        writer.close();
+    }
+
+    private static CredentialRecordCodec.Format formatOf(String format) {
+        try {
+            return CredentialRecordCodec.Format.of(format);
+        } catch (IllegalArgumentException e) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Unknown format " + format);
+        }
+    }
+
+    private void writeLine(OutputStream out, Object value) throws IOException {
+        out.write(mapper.writeValueAsBytes(value));
+        out.write('\n');
+    }
+}
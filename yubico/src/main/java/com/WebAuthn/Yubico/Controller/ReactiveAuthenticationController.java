@@ -0,0 +1,178 @@
+package com.WebAuthn.Yubico.Controller;
+
+import com.WebAuthn.Yubico.Model.ServerPublicKeyCredentialGetOptionsRequest;
+import com.WebAuthn.Yubico.Service.CeremonyService;
+import com.WebAuthn.Yubico.Service.ReactiveCredentialAccessService;
+import com.WebAuthn.Yubico.Service.RelyingPartyRegistry;
+import com.WebAuthn.Yubico.Service.SignatureCounterUpdater;
+import com.WebAuthn.Yubico.Utility.CeremonyOptions;
+import com.WebAuthn.Yubico.Utility.PublicKeyCredentialDecoder;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.yubico.webauthn.AssertionRequest;
+import com.yubico.webauthn.AssertionResult;
+import com.yubico.webauthn.FinishAssertionOptions;
+import com.yubico.webauthn.StartAssertionOptions;
+import com.yubico.webauthn.StartAssertionOptions.StartAssertionOptionsBuilder;
+import com.yubico.webauthn.data.*;
+import com.yubico.webauthn.exception.AssertionFailedException;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+
+import java.io.IOException;
+import java.util.Optional;
+
+/**
+ * Non-blocking counterpart of {@link AuthenticationController}, active with
+ * {@code spring.main.web-application-type=reactive}.
+ */
+@RestController
+@RequestMapping("/assertion")
+@CrossOrigin(exposedHeaders = CeremonyService.TOKEN_HEADER)
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveAuthenticationController {
+
+    private ReactiveCredentialAccessService accessService;
+    private RelyingPartyRegistry registry;
+    private CeremonyOptions ceremonyOptions;
+    private CeremonyService ceremonyService;
+    private PublicKeyCredentialDecoder credentialDecoder;
+    private ObjectMapper mapper;
+    private SignatureCounterUpdater counterUpdater;
+    private Scheduler ceremonyScheduler;
+
+    @Autowired
+    public ReactiveAuthenticationController(ReactiveCredentialAccessService accessService,
+            RelyingPartyRegistry registry, CeremonyOptions ceremonyOptions, CeremonyService ceremonyService,
+            PublicKeyCredentialDecoder credentialDecoder, ObjectMapper mapper, SignatureCounterUpdater counterUpdater,
+            @Qualifier("ceremonyScheduler") Scheduler ceremonyScheduler) {
+        this.accessService = accessService;
+        this.registry = registry;
+        this.ceremonyOptions = ceremonyOptions;
+        this.ceremonyService = ceremonyService;
+        this.credentialDecoder = credentialDecoder;
+        this.mapper = mapper;
+        this.counterUpdater = counterUpdater;
+        this.ceremonyScheduler = ceremonyScheduler;
+    }
+
+    /**
+     * Builds and returns assertion options
+     *
+     * @param req         get options request
+     * @param httpRequest its host selects the relying party
+     * @return the options, with the ceremony token header in sealed mode
+     */
+    @PostMapping(value = "/options", produces = "application/json")
+    public Mono<ResponseEntity<String>> startAuthentication(
+            @RequestBody ServerPublicKeyCredentialGetOptionsRequest req, ServerHttpRequest httpRequest) {
+        RelyingPartyRegistry.Tenant tenant = registry.forHost(httpRequest.getURI().getHost());
+        StartAssertionOptionsBuilder optionsBuilder = StartAssertionOptions.builder();
+        if ("required".equals(req.getUserVerification()))
+            optionsBuilder.userVerification(UserVerificationRequirement.REQUIRED);
+        return accessService.getStore().findUserByUsername(tenant.partition(), req.getUsername())
+                .switchIfEmpty(Mono.error(() -> new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                        "Authentication failed, user does not exist. For sign in with discoverable, set username to an empty string.")))
+                .flatMap(accessService::forUser)
+                .map(credentials -> {
+                    AssertionRequest request = accessService.withCredentials(credentials,
+                            () -> ceremonyOptions.startAssertion(tenant.reactiveRelyingParty(), optionsBuilder
+                                    .username(req.getUsername())
+                                    .build()));
+                    try {
+                        String ceremonyToken = ceremonyService.saveAssertion(request);
+                        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                                .contentType(MediaType.APPLICATION_JSON);
+                        if (ceremonyToken != null) {
+                            response.header(CeremonyService.TOKEN_HEADER, ceremonyToken);
+                        }
+                        return response.body(request.toCredentialsGetJson());
+                    } catch (IllegalStateException e) {
+                        throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, e.getMessage(), e);
+                    } catch (JsonProcessingException e) {
+                        throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage());
+                    }
+                });
+    }
+
+    /**
+     * Finishes authentication
+     *
+     * @param body          assertion response
+     * @param ceremonyToken token returned with the options, only used in sealed
+     *                      mode
+     * @param httpRequest   its host selects the relying party
+     */
+    @PostMapping(value = "/result", produces = "application/json")
+    public Mono<ResponseEntity<String>> finishAuthentication(
+            @RequestBody byte[] body,
+            @RequestHeader(value = CeremonyService.TOKEN_HEADER, required = false) String ceremonyToken,
+            ServerHttpRequest httpRequest) {
+        PublicKeyCredential<AuthenticatorAssertionResponse, ClientAssertionExtensionOutputs> pkc;
+        try {
+            pkc = credentialDecoder.decodeAssertion(body);
+        } catch (IOException e) {
+            return Mono.error(new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, e.getMessage(), e));
+        }
+        // find the pending ceremony by the challenge the authenticator signed
+        Optional<AssertionRequest> pending = ceremonyService
+                .takeAssertion(pkc.getResponse().getClientData().getChallenge(), ceremonyToken);
+        if (pending.isEmpty()) {
+            return Mono.error(new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR,
+                    "Authentication failed, no pending AssertionRequest for this challenge"));
+        }
+        AssertionRequest request = pending.get();
+        RelyingPartyRegistry.Tenant tenant = registry.forHost(httpRequest.getURI().getHost());
+        return accessService.forCredential(tenant.partition(), pkc.getId(), request.getUsername(),
+                pkc.getResponse().getUserHandle())
+                // signature check off the event loop
+                .publishOn(ceremonyScheduler)
+                .map(credentials -> {
+                    try {
+                        return accessService.withCredentials(credentials,
+                                () -> tenant.reactiveRelyingParty().finishAssertion(FinishAssertionOptions.builder()
+                                        .request(request)
+                                        .response(pkc)
+                                        .build()));
+                    } catch (AssertionFailedException e) {
+                        throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, e.getMessage(), e);
+                    }
+                })
+                .flatMap(result -> {
+                    if (!result.isSuccess()) {
+                        return Mono.just(response("failed", "No Success"));
+                    }
+                    // update usage count, a counter that did not advance means another
+                    // login with the same counter got there first
+                    return recordCounter(result).map(advanced -> advanced ? response("ok", "")
+                            : response("failed", "Signature counter did not advance, possible cloned authenticator"));
+                });
+    }
+
+    private Mono<Boolean> recordCounter(AssertionResult result) {
+        ByteArray credentialId = result.getCredential().getCredentialId();
+        if (counterUpdater.isDirect() && result.getSignatureCount() != 0) {
+            return accessService.getStore().advanceUsageCount(credentialId, result.getSignatureCount());
+        }
+        // write-behind only touches memory
+        return Mono.just(counterUpdater.record(credentialId, result.getSignatureCount()));
+    }
+
+    private ResponseEntity<String> response(String status, String errorMessage) {
+        ObjectNode responseBody = mapper.createObjectNode();
+        responseBody.put("status", status);
+        responseBody.put("errorMessage", errorMessage);
+        return new ResponseEntity<>(responseBody.toString(), HttpStatus.CREATED);
+    }
+}
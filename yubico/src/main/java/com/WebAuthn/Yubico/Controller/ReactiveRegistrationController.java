@@ -0,0 +1,204 @@
+package com.WebAuthn.Yubico.Controller;
+
+import com.WebAuthn.Yubico.Model.ServerPublicKeyCredentialCreationOptionsRequest;
+import com.WebAuthn.Yubico.Model.UserModel;
+import com.WebAuthn.Yubico.Service.CeremonyService;
+import com.WebAuthn.Yubico.Service.MetadataService;
+import com.WebAuthn.Yubico.Service.ReactiveCredentialAccessService;
+import com.WebAuthn.Yubico.Service.RelyingPartyRegistry;
+import com.WebAuthn.Yubico.Utility.CeremonyOptions;
+import com.WebAuthn.Yubico.Utility.CreationOptionsTemplate;
+import com.WebAuthn.Yubico.Utility.PublicKeyCredentialDecoder;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.yubico.webauthn.FinishRegistrationOptions;
+import com.yubico.webauthn.RegistrationResult;
+import com.yubico.webauthn.StartRegistrationOptions;
+import com.yubico.webauthn.data.*;
+import com.yubico.webauthn.data.AuthenticatorSelectionCriteria.AuthenticatorSelectionCriteriaBuilder;
+import com.yubico.webauthn.exception.RegistrationFailedException;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Qualifier;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.server.reactive.ServerHttpRequest;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.*;
+import org.springframework.web.server.ResponseStatusException;
+
+import reactor.core.publisher.Mono;
+import reactor.core.scheduler.Scheduler;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.Optional;
+
+/**
+ * Non-blocking counterpart of {@link RegistrationController}, active with
+ * {@code spring.main.web-application-type=reactive}. The database is read
+ * through R2DBC and the signature checks run on the ceremony scheduler.
+ */
+@RestController
+@RequestMapping("/attestation")
+@CrossOrigin(exposedHeaders = CeremonyService.TOKEN_HEADER)
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveRegistrationController {
+
+    private ReactiveCredentialAccessService accessService;
+    private RelyingPartyRegistry registry;
+    private CeremonyOptions ceremonyOptions;
+    private CeremonyService ceremonyService;
+    private CreationOptionsTemplate optionsTemplate;
+    private PublicKeyCredentialDecoder credentialDecoder;
+    private ObjectMapper mapper;
+    private ObjectProvider<MetadataService> metadata;
+    private Scheduler ceremonyScheduler;
+
+    @Autowired
+    public ReactiveRegistrationController(ReactiveCredentialAccessService accessService, RelyingPartyRegistry registry,
+            CeremonyOptions ceremonyOptions, CeremonyService ceremonyService, CreationOptionsTemplate optionsTemplate,
+            PublicKeyCredentialDecoder credentialDecoder, ObjectMapper mapper,
+            ObjectProvider<MetadataService> metadata, @Qualifier("ceremonyScheduler") Scheduler ceremonyScheduler) {
+        this.accessService = accessService;
+        this.registry = registry;
+        this.ceremonyOptions = ceremonyOptions;
+        this.ceremonyService = ceremonyService;
+        this.optionsTemplate = optionsTemplate;
+        this.credentialDecoder = credentialDecoder;
+        this.mapper = mapper;
+        this.metadata = metadata;
+        this.ceremonyScheduler = ceremonyScheduler;
+    }
+
+    /**
+     * Creates new user, builds and returns registration options
+     *
+     * @param req     registration request
+     * @param request its host selects the relying party
+     * @return the options, with the ceremony token header in sealed mode
+     */
+    @PostMapping(value = "/options", produces = "application/json")
+    public Mono<ResponseEntity<byte[]>> startRegisterNewAuthenticator(
+            @RequestBody ServerPublicKeyCredentialCreationOptionsRequest req, ServerHttpRequest request) {
+        // if username is empty, return error
+        if (req.getUsername() == null || req.getUsername().isEmpty()) {
+            return Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, "Username cannot be empty."));
+        }
+        if (!UserModel.isValidHandle(req.getUserId())) {
+            return Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, UserModel.INVALID_HANDLE));
+        }
+        // set up authenticator selection criteria
+        AuthenticatorSelectionCriteriaBuilder authSelectionBuilder = AuthenticatorSelectionCriteria.builder();
+        try {
+            authSelectionBuilder
+                    .userVerification(UserVerificationRequirement.valueOf(req.getUserVerification().toUpperCase()));
+            authSelectionBuilder.residentKey(ResidentKeyRequirement.valueOf(req.getRkOption().toUpperCase()));
+        } catch (Exception e) {
+        }
+        RelyingPartyRegistry.Tenant tenant = registry.forHost(request.getURI().getHost());
+        // create the user if it does not exist yet
+        return accessService.getStore()
+                .findOrInsertUser(tenant.partition(), req.getUsername(), req.getDisplayName(), req.getUserId())
+                .flatMap(user -> accessService.forUser(user).map(credentials -> {
+                    PublicKeyCredentialCreationOptions registration = accessService.withCredentials(credentials,
+                            () -> ceremonyOptions.startRegistration(tenant.reactiveRelyingParty(),
+                                    StartRegistrationOptions.builder()
+                                            .user(UserIdentity.builder()
+                                                    .name(user.username())
+                                                    .displayName(user.displayName() == null ? "" : user.displayName())
+                                                    .id(user.handle())
+                                                    .build())
+                                            .authenticatorSelection(authSelectionBuilder.build())
+                                            .build()));
+                    try {
+                        String ceremonyToken = ceremonyService.saveRegistration(registration);
+                        // write the options with requireResidentKey set as requested
+                        ByteArrayOutputStream body = new ByteArrayOutputStream(1024);
+                        optionsTemplate.write(registration, req.isDiscoverable(), body);
+                        ResponseEntity.BodyBuilder response = ResponseEntity.ok()
+                                .contentType(MediaType.APPLICATION_JSON);
+                        if (ceremonyToken != null) {
+                            response.header(CeremonyService.TOKEN_HEADER, ceremonyToken);
+                        }
+                        return response.body(body.toByteArray());
+                    } catch (IllegalStateException e) {
+                        throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, e.getMessage(), e);
+                    } catch (IOException e) {
+                        throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR,
+                                "Error processing JSON.", e);
+                    }
+                }));
+    }
+
+    /**
+     * Finishes registration process and saves new authenticator
+     *
+     * @param body          registration response
+     * @param ceremonyToken token returned with the options, only used in sealed
+     *                      mode
+     * @param request       its host selects the relying party
+     */
+    @PostMapping(value = "/result", produces = "application/json")
+    public Mono<ResponseEntity<String>> finishRegisterNewAuthenticator(
+            @RequestBody byte[] body,
+            @RequestHeader(value = CeremonyService.TOKEN_HEADER, required = false) String ceremonyToken,
+            ServerHttpRequest request) {
+        PublicKeyCredential<AuthenticatorAttestationResponse, ClientRegistrationExtensionOutputs> pkc;
+        try {
+            pkc = credentialDecoder.decodeRegistration(body);
+        } catch (IOException e) {
+            return Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e));
+        }
+        // find the pending ceremony by the challenge the authenticator signed
+        Optional<PublicKeyCredentialCreationOptions> pending = ceremonyService
+                .takeRegistration(pkc.getResponse().getClientData().getChallenge(), ceremonyToken);
+        if (pending.isEmpty()) {
+            return Mono.error(new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR,
+                    "Cached request expired. Try to register again!"));
+        }
+        PublicKeyCredentialCreationOptions requestOptions = pending.get();
+        String username = requestOptions.getUser().getName();
+        RelyingPartyRegistry.Tenant tenant = registry.forHost(request.getURI().getHost());
+        return accessService.forCredential(tenant.partition(), pkc.getId(), Optional.of(username), Optional.empty())
+                // attestation and signature checks off the event loop
+                .publishOn(ceremonyScheduler)
+                .map(credentials -> {
+                    try {
+                        return accessService.withCredentials(credentials,
+                                () -> tenant.reactiveRelyingParty().finishRegistration(FinishRegistrationOptions.builder()
+                                        .request(requestOptions)
+                                        .response(pkc)
+                                        .build()));
+                    } catch (RegistrationFailedException e) {
+                        throw new ResponseStatusException(HttpStatus.BAD_REQUEST, e.getMessage(), e);
+                    }
+                })
+                .flatMap(result -> {
+                    // check for trust if not none or self type
+                    if (result.getAttestationType() != AttestationType.NONE
+                            && result.getAttestationType() != AttestationType.SELF_ATTESTATION
+                            && !result.isAttestationTrusted()) {
+                        return Mono.error(new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                                "Attestation not trusted. Try to register again!"));
+                    }
+                    return accessService.getStore().findUserByUsername(tenant.partition(), username)
+                            .flatMap(owningUser -> accessService.getStore()
+                                    .insertAuthenticator(name(result), owningUser.id(), result))
+                            .then(Mono.fromCallable(() -> {
+                                ObjectNode responseBody = mapper.createObjectNode();
+                                responseBody.put("status", "ok");
+                                responseBody.put("errorMessage", "");
+                                return new ResponseEntity<>(responseBody.toString(), HttpStatus.CREATED);
+                            }));
+                });
+    }
+
+    // named after the authenticator model if the metadata knows it
+    private String name(RegistrationResult result) {
+        MetadataService metadataService = metadata.getIfAvailable();
+        return metadataService == null ? "Testname"
+                : metadataService.description(result.getAaguid()).orElse("Testname");
+    }
+}
@@ -1,21 +1,31 @@
 package com.WebAuthn.Yubico.Controller;
 
 import com.WebAuthn.Yubico.Model.*;
+import com.WebAuthn.Yubico.Service.AdmissionService;
+import com.WebAuthn.Yubico.Service.CeremonyMetrics;
+import com.WebAuthn.Yubico.Service.CeremonyService;
 import com.WebAuthn.Yubico.Service.CredentialAccessService;
-import com.fasterxml.jackson.core.JsonProcessingException;
-import com.fasterxml.jackson.databind.JsonNode;
+import com.WebAuthn.Yubico.Service.MetadataService;
+import com.WebAuthn.Yubico.Service.RelyingPartyRegistry;
+import com.WebAuthn.Yubico.Utility.CeremonyOptions;
+import com.WebAuthn.Yubico.Utility.CreationOptionsTemplate;
+import com.WebAuthn.Yubico.Utility.PublicKeyCredentialDecoder;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 import com.yubico.webauthn.FinishRegistrationOptions;
 import com.yubico.webauthn.RegistrationResult;
-import com.yubico.webauthn.RelyingParty;
 import com.yubico.webauthn.StartRegistrationOptions;
 import com.yubico.webauthn.data.*;
 import com.yubico.webauthn.data.AttestationType;
 import com.yubico.webauthn.data.AuthenticatorSelectionCriteria.AuthenticatorSelectionCriteriaBuilder;
 import com.yubico.webauthn.exception.RegistrationFailedException;
+import jakarta.servlet.http.HttpServletRequest;
+import jakarta.servlet.http.HttpServletResponse;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
 import org.springframework.web.bind.annotation.*;
 import org.springframework.web.server.ResponseStatusException;
@@ -24,39 +34,75 @@ import java.io.IOException;
 
 @RestController
 @RequestMapping("/attestation")
-@CrossOrigin
+@CrossOrigin(exposedHeaders = CeremonyService.TOKEN_HEADER)
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.SERVLET)
 public class RegistrationController {
 
     private CredentialAccessService accessService;
-    private RelyingParty rp;
-    private PublicKeyCredentialCreationOptions tempPKOptions;
+    private RelyingPartyRegistry registry;
+    private CeremonyOptions ceremonyOptions;
+    private CeremonyService ceremonyService;
+    private CreationOptionsTemplate optionsTemplate;
+    private PublicKeyCredentialDecoder credentialDecoder;
+    private ObjectMapper mapper;
+    private ObjectProvider<MetadataService> metadata;
+    private CeremonyMetrics metrics;
+    private AdmissionService admission;
 
     @Autowired
-    public RegistrationController(CredentialAccessService accessService, RelyingParty rp) {
+    public RegistrationController(CredentialAccessService accessService, RelyingPartyRegistry registry,
+            CeremonyOptions ceremonyOptions, CeremonyService ceremonyService, CreationOptionsTemplate optionsTemplate,
+            PublicKeyCredentialDecoder credentialDecoder, ObjectMapper mapper,
+            ObjectProvider<MetadataService> metadata, CeremonyMetrics metrics, AdmissionService admission) {
         this.accessService = accessService;
-        this.rp = rp;
-        this.tempPKOptions = null;
+        this.registry = registry;
+        this.ceremonyOptions = ceremonyOptions;
+        this.ceremonyService = ceremonyService;
+        this.optionsTemplate = optionsTemplate;
+        this.credentialDecoder = credentialDecoder;
+        this.mapper = mapper;
+        this.metadata = metadata;
+        this.metrics = metrics;
+        this.admission = admission;
     }
 
     /**
      * Creates new user, builds and returns registration options
      * 
-     * @param req registration request
-     * @return
+     * @param req      registration request
+     * @param request  its host selects the relying party
+     * @param response written with the options, carries the ceremony token in
+     *                 sealed mode
      */
     @ResponseStatus(HttpStatus.OK)
     @PostMapping(value = "/options", produces = "application/json")
-    public String startRegisterNewAuthenticator(
-            @RequestBody ServerPublicKeyCredentialCreationOptionsRequest req) {
+    public void startRegisterNewAuthenticator(
+            @RequestBody ServerPublicKeyCredentialCreationOptionsRequest req, HttpServletRequest request,
+            HttpServletResponse response) {
+        try (CeremonyMetrics.Ceremony ceremony = metrics.start("registration.start")) {
+            writeRegistrationOptions(req, registry.forHost(request.getServerName()), response, ceremony);
+        }
+    }
+
+    private void writeRegistrationOptions(ServerPublicKeyCredentialCreationOptionsRequest req,
+            RelyingPartyRegistry.Tenant tenant, HttpServletResponse response, CeremonyMetrics.Ceremony ceremony) {
         // if username is empty, return error
         if (req.getUsername().isEmpty()) {
             throw new ResponseStatusException(HttpStatus.BAD_REQUEST, "Username cannot be empty.");
         }
+        if (!UserModel.isValidHandle(req.getUserId())) {
+            throw new ResponseStatusException(HttpStatus.BAD_REQUEST, UserModel.INVALID_HANDLE);
+        }
+        admission.admitUsername(req.getUsername());
         // check if user exists, if not, create new user
-        UserModel user = new UserModel(req.getUsername(), req.getDisplayName(), req.getUserId());
-        UserModel existingUser = accessService.getUserRepo().findByUsername(user.getUsername());
-        if (existingUser == null) {
-            accessService.getUserRepo().save(user);
+        UserModel user = new UserModel(tenant.partition(), req.getUsername(), req.getDisplayName(), req.getUserId());
+        // only the id is read, not the whole row
+        boolean exists = accessService.getUserRepo().existsByTenantAndUsername(tenant.partition(),
+                user.getUsername());
+        ceremony.phase(CeremonyMetrics.USER_LOOKUP);
+        if (!exists) {
+            accessService.addUser(user);
+            ceremony.phase(CeremonyMetrics.PERSISTENCE);
         }
         UserIdentity userIdentity = user.toUserIdentity();
         // set up authenticator selection criteria
@@ -72,24 +118,23 @@ public class RegistrationController {
                 .user(userIdentity)
                 .authenticatorSelection(authSelectionBuilder.build())
                 .build();
-        PublicKeyCredentialCreationOptions registration = rp.startRegistration(registrationOptions);
-        this.tempPKOptions = registration;
+        PublicKeyCredentialCreationOptions registration = ceremonyOptions.startRegistration(tenant.relyingParty(),
+                registrationOptions);
+        ceremony.phase(CeremonyMetrics.OPTIONS);
         try {
-            ObjectMapper mapper = new ObjectMapper();
-            JsonNode jsonNode = mapper.readTree(registration.toCredentialsCreateJson());
-            JsonNode publicKeyJson = jsonNode.get("publicKey");
-            // Convert JsonNode to ObjectNode
-            ObjectNode objectNode = (ObjectNode) publicKeyJson;
-            objectNode.put("errorMessage", "");
-            objectNode.put("status", "ok");
-            ObjectNode authSelection = (ObjectNode) objectNode.get("authenticatorSelection");
-            // set requireResidentKey
-            try {
-                authSelection.put("requireResidentKey", req.isDiscoverable());
-            } catch (Exception e) {
+            String ceremonyToken = ceremonyService.saveRegistration(registration);
+            if (ceremonyToken != null) {
+                response.setHeader(CeremonyService.TOKEN_HEADER, ceremonyToken);
             }
-            return mapper.writeValueAsString(objectNode);
-        } catch (JsonProcessingException e) {
+            ceremony.phase(CeremonyMetrics.PENDING_CEREMONY);
+            // write the options with requireResidentKey set as requested
+            response.setContentType(MediaType.APPLICATION_JSON_VALUE);
+            optionsTemplate.write(registration, req.isDiscoverable(), response.getOutputStream());
+            ceremony.phase(CeremonyMetrics.RENDER);
+            ceremony.succeeded();
+        } catch (IllegalStateException e) {
+            throw new ResponseStatusException(HttpStatus.SERVICE_UNAVAILABLE, e.getMessage(), e);
+        } catch (IOException e) {
             throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR, "Error processing JSON.", e);
         }
     }
@@ -97,25 +142,36 @@ public class RegistrationController {
     /**
      * Finishes registration process and saves new authenticator
      * 
-     * @param resp registration response
+     * @param body          registration response
+     * @param ceremonyToken token returned with the options, only used in sealed
+     *                      mode
+     * @param request       its host selects the relying party
      * @return
      */
     @ResponseStatus(HttpStatus.CREATED)
     @PostMapping(value = "/result", produces = "application/json")
     public ResponseEntity finishRegisterNewAuthenticator(
-            @RequestBody ServerAuthenticatorAttestationResponse resp) {
-        try {
-            ObjectMapper mapper = new ObjectMapper();
-            PublicKeyCredentialCreationOptions requestOptions = this.tempPKOptions;
+            @RequestBody byte[] body,
+            @RequestHeader(value = CeremonyService.TOKEN_HEADER, required = false) String ceremonyToken,
+            HttpServletRequest request) {
+        try (CeremonyMetrics.Ceremony ceremony = metrics.start("registration.finish")) {
+            RelyingPartyRegistry.Tenant tenant = registry.forHost(request.getServerName());
+            PublicKeyCredential<AuthenticatorAttestationResponse, ClientRegistrationExtensionOutputs> pkc = credentialDecoder
+                    .decodeRegistration(body);
+            ceremony.phase(CeremonyMetrics.DECODE);
+            // find the pending ceremony by the challenge the authenticator signed
+            PublicKeyCredentialCreationOptions requestOptions = ceremonyService
+                    .takeRegistration(pkc.getResponse().getClientData().getChallenge(), ceremonyToken)
+                    .orElse(null);
+            ceremony.phase(CeremonyMetrics.PENDING_CEREMONY);
             if (requestOptions != null) {
-                String respJson = mapper.writeValueAsString(resp);
-                PublicKeyCredential<AuthenticatorAttestationResponse, ClientRegistrationExtensionOutputs> pkc = PublicKeyCredential
-                        .parseRegistrationResponseJson(respJson);
                 FinishRegistrationOptions options = FinishRegistrationOptions.builder()
                         .request(requestOptions)
                         .response(pkc)
                         .build();
-                RegistrationResult result = rp.finishRegistration(options);
+                RegistrationResult result = tenant.relyingParty().finishRegistration(options);
+                ceremony.phase(CeremonyMetrics.VERIFICATION);
+                ceremony.attestation(result.getAttestationType());
                 // check for trust if not none or self type
                 if (result.getAttestationType() != AttestationType.NONE
                         && result.getAttestationType() != AttestationType.SELF_ATTESTATION) {
@@ -124,15 +180,24 @@ public class RegistrationController {
                                 "Attestation not trusted. Try to register again!");
                     }
                 }
-                UserModel owningUser = accessService.getUserRepo().findByUsername(requestOptions.getUser().getName());
-                AuthenticatorModel savedAuth = new AuthenticatorModel("Testname",
-                        owningUser,
-                        result);
-                accessService.getAuthRepo().save(savedAuth);
-                ObjectNode responseBody = new ObjectMapper().createObjectNode();
+                // named after the authenticator model if the metadata knows it
+                MetadataService metadataService = metadata.getIfAvailable();
+                String name = metadataService == null ? "Testname"
+                        : metadataService.description(result.getAaguid()).orElse("Testname");
+                // the user lookup is part of the persistence phase, one transaction
+                if (accessService.addAuthenticator(tenant.partition(), requestOptions.getUser().getName(), name,
+                        result).isEmpty()) {
+                    throw new ResponseStatusException(HttpStatus.BAD_REQUEST,
+                            "User no longer exists. Try to register again!");
+                }
+                ceremony.phase(CeremonyMetrics.PERSISTENCE);
+                ObjectNode responseBody = mapper.createObjectNode();
                 responseBody.put("status", "ok");
                 responseBody.put("errorMessage", "");
-                return new ResponseEntity<>(responseBody.toString(), HttpStatus.CREATED);
+                String json = responseBody.toString();
+                ceremony.phase(CeremonyMetrics.RENDER);
+                ceremony.succeeded();
+                return new ResponseEntity<>(json, HttpStatus.CREATED);
             } else {
                 throw new ResponseStatusException(HttpStatus.INTERNAL_SERVER_ERROR,
                         "Cached request expired. Try to register again!");
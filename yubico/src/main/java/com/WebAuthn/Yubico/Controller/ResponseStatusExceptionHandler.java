@@ -1,11 +1,15 @@
 package com.WebAuthn.Yubico.Controller;
 
+import org.springframework.beans.factory.annotation.Autowired;
 import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
 import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Component;
 import org.springframework.web.bind.annotation.ControllerAdvice;
 import org.springframework.web.bind.annotation.ExceptionHandler;
 import org.springframework.web.server.ResponseStatusException;
 
+import com.WebAuthn.Yubico.Service.AdmissionService;
 import com.fasterxml.jackson.databind.ObjectMapper;
 import com.fasterxml.jackson.databind.node.ObjectNode;
 
@@ -16,12 +20,21 @@ import com.fasterxml.jackson.databind.node.ObjectNode;
  * FIDO conformance test tool
  */
 @ControllerAdvice
+// own bean name, webflux registers a responseStatusExceptionHandler bean itself
+@Component("conformanceExceptionHandler")
 public class ResponseStatusExceptionHandler {
 
+    private final ObjectMapper mapper;
+
+    @Autowired
+    public ResponseStatusExceptionHandler(ObjectMapper mapper) {
+        this.mapper = mapper;
+    }
+
     @ExceptionHandler(ResponseStatusException.class)
     public ResponseEntity<String> handleResponseStatusException(ResponseStatusException ex) {
         // Create a JSON object to send as the response body
-        ObjectNode responseBody = new ObjectMapper().createObjectNode();
+        ObjectNode responseBody = mapper.createObjectNode();
         responseBody.put("status", "error");
         responseBody.put("errorMessage", ex.getMessage());
 
@@ -29,4 +42,12 @@ public class ResponseStatusExceptionHandler {
         // the body
         return new ResponseEntity<>(responseBody.toString(), HttpStatus.INTERNAL_SERVER_ERROR);
     }
+
+    @ExceptionHandler(AdmissionService.ThrottledException.class)
+    public ResponseEntity<byte[]> handleThrottledException(AdmissionService.ThrottledException ex) {
+        return ResponseEntity.status(HttpStatus.TOO_MANY_REQUESTS)
+                .header("Retry-After", "1")
+                .contentType(MediaType.APPLICATION_JSON)
+                .body(AdmissionService.THROTTLED_BODY);
+    }
 }
@@ -0,0 +1,123 @@
+package com.WebAuthn.Yubico;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.ApplicationArguments;
+import org.springframework.boot.ApplicationRunner;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.stereotype.Component;
+
+import com.WebAuthn.Yubico.Model.UserModel;
+import com.WebAuthn.Yubico.Service.CredentialExportService;
+import com.WebAuthn.Yubico.Service.CredentialImportService;
+import com.WebAuthn.Yubico.Utility.CredentialRecordCodec;
+
+/**
+ * Imports a file of credential records into the configured database, or
+ * exports the database to one, at startup without the web server:
+ *
+ * <pre>
+ * mvn spring-boot:run -Dspring-boot.run.arguments="--spring.main.web-application-type=none
+ *     --spring.datasource.url=... --credentials.import.file=users.ndjson"
+ * </pre>
+ *
+ * The format follows the file extension, .cbor or else NDJSON. After every
+ * committed batch of an import the number of records read is written to
+ * [file].checkpoint, a later run resumes from there. The checkpoint is
+ * removed once the file is imported. An export is written next to the file
+ * and moved in place when complete, it holds the users of
+ * credentials.export.tenant. With both files set the import runs first.
+ */
+@Component
+@ConditionalOnExpression("'${credentials.import.file:}' != '' or '${credentials.export.file:}' != ''")
+public class CredentialTransferCommand implements ApplicationRunner {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CredentialTransferCommand.class);
+
+    private final CredentialImportService importService;
+    private final CredentialExportService exportService;
+    private final String importFile;
+    private final String exportFile;
+    private final String exportTenant;
+
+    @Autowired
+    public CredentialTransferCommand(CredentialImportService importService, CredentialExportService exportService,
+            @Value("${credentials.import.file:}") String importFile,
+            @Value("${credentials.export.file:}") String exportFile,
+            @Value("${credentials.export.tenant:" + UserModel.DEFAULT_TENANT + "}") String exportTenant) {
+        this.importService = importService;
+        this.exportService = exportService;
+        this.importFile = importFile;
+        this.exportFile = exportFile;
+        this.exportTenant = exportTenant;
+    }
+
+    @Override
+    public void run(ApplicationArguments args) throws IOException {
+        if (!importFile.isEmpty()) {
+            importFile(Path.of(importFile));
+        }
+        if (!exportFile.isEmpty()) {
+            exportFile(Path.of(exportFile));
+        }
+    }
+
+    private void importFile(Path importFile) throws IOException {
+        Path checkpoint = importFile.resolveSibling(importFile.getFileName() + ".checkpoint");
+        long skip = Files.exists(checkpoint) ? Long.parseLong(Files.readString(checkpoint).trim()) : 0;
+        if (skip > 0) {
+            LOG.info("Resuming the import of {} after record {}.", importFile, skip);
+        }
+        long start = System.nanoTime();
+        try (InputStream in = Files.newInputStream(importFile);
+                CredentialRecordCodec.Reader reader = CredentialRecordCodec.reader(in, formatOf(importFile))) {
+            CredentialImportService.Progress progress = importService.importRecords(reader, skip, committed -> {
+                writeCheckpoint(checkpoint, committed.records());
+                LOG.info("Imported {} records, {} users, {} credentials, {} existing, {} invalid, {}/s.",
+                        committed.records(), committed.users(), committed.credentials(), committed.existing(),
+                        committed.invalid(), (long) ((committed.records() - skip) / seconds(start)));
+            });
+            Files.deleteIfExists(checkpoint);
+            LOG.info("Import of {} done in {} s: {}.", importFile, (long) seconds(start), progress);
+        }
+    }
+
+    private void exportFile(Path exportFile) throws IOException {
+        Path written = exportFile.resolveSibling(exportFile.getFileName() + ".tmp");
+        long start = System.nanoTime();
+        long records;
+        try (OutputStream out = Files.newOutputStream(written);
+                CredentialRecordCodec.Writer writer = CredentialRecordCodec.writer(out, formatOf(exportFile))) {
+            records = exportService.export(exportTenant, writer);
+        }
+        Files.move(written, exportFile, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOG.info("Exported {} records to {} in {} s, {}/s.", records, exportFile, (long) seconds(start),
+                (long) (records / seconds(start)));
+    }
+
+    private static CredentialRecordCodec.Format formatOf(Path file) {
+        return file.getFileName().toString().endsWith(".cbor") ? CredentialRecordCodec.Format.CBOR
+                : CredentialRecordCodec.Format.NDJSON;
+    }
+
+    // replaced as a whole, so a crash never leaves half a number
+    private static void writeCheckpoint(Path checkpoint, long records) throws IOException {
+        Path written = checkpoint.resolveSibling(checkpoint.getFileName() + ".tmp");
+        Files.writeString(written, Long.toString(records), StandardCharsets.US_ASCII);
+        Files.move(written, checkpoint, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    private static double seconds(long startNanos) {
+        return Math.max(1e-9, (System.nanoTime() - startNanos) / 1e9);
+    }
+}
@@ -1,26 +1,39 @@
 package com.WebAuthn.Yubico.Model;
 
+import com.WebAuthn.Yubico.Service.CredentialCacheListener;
 import com.yubico.webauthn.RegistrationResult;
 import com.yubico.webauthn.data.ByteArray;
 import jakarta.persistence.*;
 
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
 @Entity
+@EntityListeners(CredentialCacheListener.class)
+@Table(indexes = @Index(name = "ux_authenticator_credential_id_digest", columnList = "credentialIdDigest", unique = true))
 public class AuthenticatorModel {
 
+    // credential ids are at most 1023 bytes, cose keys stay well below 2048
+    public static final int MAX_CREDENTIAL_ID_LENGTH = 1023;
+    public static final int MAX_PUBLIC_KEY_LENGTH = 2048;
+
+    // pooled like the ids of UserModel
     @Id
-    @GeneratedValue(strategy = GenerationType.AUTO)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "authenticator_model_seq")
+    @SequenceGenerator(name = "authenticator_model_seq", sequenceName = "authenticator_model_seq", allocationSize = 50)
     private Long id;
     @Column
     private String name;
-    @Lob
-    @Column(nullable = false, columnDefinition = "BLOB")
+    @Column(nullable = false, columnDefinition = "VARBINARY(" + MAX_PUBLIC_KEY_LENGTH + ")")
     private ByteArray publicKey;
-    @Lob
-    @Column(nullable = false, columnDefinition = "BLOB")
+    @Column(nullable = false, columnDefinition = "VARBINARY(" + MAX_CREDENTIAL_ID_LENGTH + ")")
     private ByteArray credentialId;
+    // sha-256 of the credential id, fixed width so lookups can use the index
+    @Column(nullable = false, columnDefinition = "BINARY(32)")
+    private ByteArray credentialIdDigest;
     @Column(nullable = false)
     private Long usageCount;
-    @ManyToOne
+    @ManyToOne(fetch = FetchType.LAZY)
     private UserModel user;
 
     public Long getId() {
@@ -39,6 +52,10 @@ public class AuthenticatorModel {
         return credentialId;
     }
 
+    public ByteArray getCredentialIdDigest() {
+        return credentialIdDigest;
+    }
+
     public Long getUsageCount() {
         return usageCount;
     }
@@ -56,9 +73,18 @@ public class AuthenticatorModel {
         this.user = user;
         this.publicKey = result.getPublicKeyCose();
         this.credentialId = result.getKeyId().getId();
+        this.credentialIdDigest = digestOf(credentialId);
         this.usageCount = result.getSignatureCount();
     }
 
     public AuthenticatorModel() {
     }
+
+    public static ByteArray digestOf(ByteArray credentialId) {
+        try {
+            return new ByteArray(MessageDigest.getInstance("SHA-256").digest(credentialId.getBytes()));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
 }
@@ -0,0 +1,20 @@
+package com.WebAuthn.Yubico.Model;
+
+import com.yubico.webauthn.data.ByteArray;
+
+/**
+ * A user and one of its credentials, the unit of the credential import and
+ * export. A user without credentials is one record without credential id;
+ * the records of a user follow each other.
+ *
+ * @param publicKey      COSE encoded, null without credential
+ * @param signatureCount counter of the credential, 0 without credential
+ * @param name           name of the authenticator, may be null
+ */
+public record CredentialRecord(String username, String displayName, ByteArray handle, ByteArray credentialId,
+        ByteArray publicKey, long signatureCount, String name) {
+
+    public boolean hasCredential() {
+        return credentialId != null;
+    }
+}
@@ -1,22 +1,49 @@
 package com.WebAuthn.Yubico.Model;
 
+import com.WebAuthn.Yubico.Service.CredentialCacheListener;
 import com.WebAuthn.Yubico.Utility.UUIDGenerator;
 import com.yubico.webauthn.data.ByteArray;
 import com.yubico.webauthn.data.UserIdentity;
 import jakarta.persistence.*;
 
 @Entity
+@EntityListeners(CredentialCacheListener.class)
+@Table(uniqueConstraints = @UniqueConstraint(name = "ux_user_tenant_username", columnNames = { "tenant", "username" }))
 public class UserModel {
+
+    // partition of the users that are not registered through a tenant of the
+    // RelyingPartyRegistry, the default of the column for plain inserts
+    public static final String DEFAULT_TENANT = "default";
+    public static final int MAX_TENANT_LENGTH = 64;
+    // the limit WebAuthn sets for a user handle
+    public static final int MAX_HANDLE_LENGTH = 64;
+    public static final String INVALID_HANDLE = "User id must be 1 to " + MAX_HANDLE_LENGTH + " bytes.";
+
+    // ids are handed out in blocks of 50 per sequence call, the bulk import
+    // and the reactive store take theirs from the same sequence
     @Id
-    @GeneratedValue(strategy = GenerationType.AUTO)
+    @GeneratedValue(strategy = GenerationType.SEQUENCE, generator = "user_model_seq")
+    @SequenceGenerator(name = "user_model_seq", sequenceName = "user_model_seq", allocationSize = 50)
     private long id;
-    @Column(nullable = false, unique = true)
+    // usernames are unique per tenant, the index is led by the tenant
+    @Column(nullable = false, columnDefinition = "VARCHAR(" + MAX_TENANT_LENGTH + ") DEFAULT '" + DEFAULT_TENANT + "'")
+    private String tenant = DEFAULT_TENANT;
+    @Column(nullable = false)
     private String username;
+    // a blob has no length, the handles are checked with isValidHandle before
+    // they are stored
     @Lob
-    @Column(nullable = false, columnDefinition = "BLOB", length = 64)
+    @Column(nullable = false, columnDefinition = "BLOB")
     private ByteArray handle;
     private String displayName;
 
+    public UserModel(String tenant, String username, String displayName, ByteArray handle) {
+        this.tenant = tenant;
+        this.username = username;
+        this.handle = handle;
+        this.displayName = displayName;
+    }
+
     public UserModel(String username, String displayName, ByteArray handle) {
         this.username = username;
         this.handle = handle;
@@ -31,6 +58,10 @@ public class UserModel {
     public UserModel() {
     };
 
+    public String getTenant() {
+        return tenant;
+    }
+
     public String getUsername() {
         return username;
     }
@@ -55,6 +86,13 @@ public class UserModel {
         this.displayName = displayName;
     }
 
+    /**
+     * @return whether the handle can be stored, the client may set its own
+     */
+    public static boolean isValidHandle(ByteArray handle) {
+        return handle != null && !handle.isEmpty() && handle.size() <= MAX_HANDLE_LENGTH;
+    }
+
     public UserIdentity toUserIdentity() {
         return UserIdentity.builder()
                 .name(getUsername())
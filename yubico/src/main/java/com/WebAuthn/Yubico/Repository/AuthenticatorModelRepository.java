@@ -3,8 +3,11 @@ package com.WebAuthn.Yubico.Repository;
 import com.WebAuthn.Yubico.Model.AuthenticatorModel;
 import com.WebAuthn.Yubico.Model.UserModel;
 import com.yubico.webauthn.data.ByteArray;
+import org.springframework.data.jpa.repository.Modifying;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
 import java.util.List;
 import java.util.Optional;
@@ -12,9 +15,69 @@ import java.util.Optional;
 @Repository
 public interface AuthenticatorModelRepository extends CrudRepository<AuthenticatorModel, Long> {
 
+    /**
+     * Columns of an authenticator needed for a RegisteredCredential, including
+     * the handle and tenant of its user.
+     */
+    interface RegisteredCredentialView {
+        ByteArray getCredentialId();
+
+        ByteArray getPublicKey();
+
+        Long getUsageCount();
+
+        ByteArray getUserHandle();
+
+        String getTenant();
+    }
+
     List<AuthenticatorModel> findAllByUser(UserModel user);
 
-    Optional<AuthenticatorModel> findByCredentialId(ByteArray credentialId);
+    @Query("select a.credentialId from AuthenticatorModel a join a.user u"
+            + " where u.tenant = :tenant and u.username = :username")
+    List<ByteArray> findCredentialIdsByTenantAndUsername(String tenant, String username);
+
+    default List<ByteArray> findCredentialIdsByUsername(String username) {
+        return findCredentialIdsByTenantAndUsername(UserModel.DEFAULT_TENANT, username);
+    }
+
+    @Query("select a.credentialId as credentialId, a.publicKey as publicKey, a.usageCount as usageCount,"
+            + " u.handle as userHandle, u.tenant as tenant from AuthenticatorModel a join a.user u"
+            + " where a.credentialIdDigest = :credentialIdDigest")
+    Optional<RegisteredCredentialView> findRegisteredCredentialByDigest(ByteArray credentialIdDigest);
+
+    /**
+     * Raises the usage count in one statement, never lowers it.
+     *
+     * @return 1 if the count advanced, 0 if the stored one was already as high
+     *         or the credential does not exist
+     */
+    @Transactional
+    @Modifying
+    @Query("update AuthenticatorModel a set a.usageCount = :usageCount"
+            + " where a.credentialIdDigest = :credentialIdDigest and a.usageCount < :usageCount")
+    int advanceUsageCount(ByteArray credentialIdDigest, long usageCount);
+
+    default Optional<RegisteredCredentialView> findRegisteredCredential(ByteArray credentialId) {
+        return findRegisteredCredentialByDigest(AuthenticatorModel.digestOf(credentialId))
+                .filter(credential -> credential.getCredentialId().equals(credentialId));
+    }
+
+    // the digest index is unique across tenants, the tenant is only compared
+    default Optional<RegisteredCredentialView> findRegisteredCredential(String tenant, ByteArray credentialId) {
+        return findRegisteredCredential(credentialId).filter(credential -> credential.getTenant().equals(tenant));
+    }
+
+    Optional<AuthenticatorModel> findByCredentialIdDigest(ByteArray credentialIdDigest);
+
+    // looked up by the indexed digest, the id comparison only guards against a
+    // digest collision
+    default Optional<AuthenticatorModel> findByCredentialId(ByteArray credentialId) {
+        return findByCredentialIdDigest(AuthenticatorModel.digestOf(credentialId))
+                .filter(authenticator -> authenticator.getCredentialId().equals(credentialId));
+    }
 
-    List<AuthenticatorModel> findAllByCredentialId(ByteArray credentialId);
+    default List<AuthenticatorModel> findAllByCredentialId(ByteArray credentialId) {
+        return findByCredentialId(credentialId).map(List::of).orElseGet(List::of);
+    }
 }
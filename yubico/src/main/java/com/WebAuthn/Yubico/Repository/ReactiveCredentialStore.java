@@ -0,0 +1,163 @@
+package com.WebAuthn.Yubico.Repository;
+
+import com.WebAuthn.Yubico.Model.AuthenticatorModel;
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.RegistrationResult;
+import com.yubico.webauthn.data.ByteArray;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.r2dbc.core.DatabaseClient;
+import org.springframework.stereotype.Repository;
+
+import io.r2dbc.pool.ConnectionPool;
+import io.r2dbc.pool.ConnectionPoolConfiguration;
+import io.r2dbc.spi.ConnectionFactories;
+import io.r2dbc.spi.ConnectionFactoryOptions;
+import io.r2dbc.spi.Readable;
+import reactor.core.publisher.Flux;
+import reactor.core.publisher.Mono;
+
+/**
+ * Non-blocking access to the tables of {@link UserModelRepository} and
+ * {@link AuthenticatorModelRepository} for the reactive endpoints. The schema
+ * and the sequences stay with Hibernate. The connection pool is private to
+ * the store, as a ConnectionFactory bean would turn off the JPA DataSource.
+ */
+@Repository
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveCredentialStore implements DisposableBean {
+
+    // the handle is a BLOB, read it as VARBINARY to get it in one piece
+    private static final String USER_COLUMNS = "select id, tenant, username, display_name,"
+            + " cast(handle as varbinary) as handle from user_model";
+
+    private final ConnectionPool pool;
+    private final DatabaseClient client;
+
+    public record UserRow(long id, String tenant, String username, String displayName, ByteArray handle) {
+    }
+
+    public ReactiveCredentialStore(@Value("${reactive.r2dbc.url}") String url,
+            @Value("${reactive.r2dbc.username:}") String username,
+            @Value("${reactive.r2dbc.password:}") String password) {
+        ConnectionFactoryOptions options = ConnectionFactoryOptions.parse(url).mutate()
+                .option(ConnectionFactoryOptions.USER, username)
+                .option(ConnectionFactoryOptions.PASSWORD, password)
+                .build();
+        this.pool = new ConnectionPool(ConnectionPoolConfiguration.builder(ConnectionFactories.get(options))
+                .build());
+        this.client = DatabaseClient.create(pool);
+    }
+
+    @Override
+    public void destroy() {
+        pool.dispose();
+    }
+
+    public Mono<UserRow> findUserByUsername(String tenant, String username) {
+        return client.sql(USER_COLUMNS + " where tenant = :tenant and username = :username")
+                .bind("tenant", tenant)
+                .bind("username", username)
+                .map(ReactiveCredentialStore::user)
+                .one();
+    }
+
+    public Mono<UserRow> findUserByHandle(String tenant, ByteArray handle) {
+        return client.sql(USER_COLUMNS + " where tenant = :tenant and handle = :handle")
+                .bind("tenant", tenant)
+                .bind("handle", handle.getBytes())
+                .map(ReactiveCredentialStore::user)
+                .one();
+    }
+
+    /**
+     * @return the user, inserted if the username is new
+     */
+    public Mono<UserRow> findOrInsertUser(String tenant, String username, String displayName, ByteArray handle) {
+        // a concurrent insert of the same username wins the unique constraint
+        return findUserByUsername(tenant, username)
+                .switchIfEmpty(bindNullable(client.sql("insert into user_model"
+                        + " (id, tenant, username, display_name, handle)"
+                        + " values (next value for user_model_seq, :tenant, :username, :displayName, :handle)")
+                        .bind("tenant", tenant)
+                        .bind("username", username)
+                        .bind("handle", handle.getBytes()), "displayName", displayName, String.class)
+                        .fetch()
+                        .rowsUpdated()
+                        .onErrorResume(DataIntegrityViolationException.class, e -> Mono.just(0L))
+                        .then(findUserByUsername(tenant, username)));
+    }
+
+    public Flux<ByteArray> findCredentialIdsByUsername(String tenant, String username) {
+        return client.sql("select a.credential_id from authenticator_model a join user_model u on a.user_id = u.id"
+                + " where u.tenant = :tenant and u.username = :username")
+                .bind("tenant", tenant)
+                .bind("username", username)
+                .map(row -> new ByteArray(row.get("credential_id", byte[].class)))
+                .all();
+    }
+
+    public Mono<RegisteredCredential> findRegisteredCredential(String tenant, ByteArray credentialId) {
+        return client.sql("select a.credential_id, a.public_key, a.usage_count, cast(u.handle as varbinary) as handle"
+                + " from authenticator_model a join user_model u on a.user_id = u.id"
+                + " where a.credential_id_digest = :digest and u.tenant = :tenant")
+                .bind("digest", AuthenticatorModel.digestOf(credentialId).getBytes())
+                .bind("tenant", tenant)
+                .map(row -> RegisteredCredential.builder()
+                        .credentialId(new ByteArray(row.get("credential_id", byte[].class)))
+                        .userHandle(new ByteArray(row.get("handle", byte[].class)))
+                        .publicKeyCose(new ByteArray(row.get("public_key", byte[].class)))
+                        .signatureCount(row.get("usage_count", Long.class))
+                        .build())
+                .all()
+                // the digest only narrows the search
+                .filter(credential -> credential.getCredentialId().equals(credentialId))
+                .next();
+    }
+
+    public Mono<Void> insertAuthenticator(String name, long userId, RegistrationResult result) {
+        ByteArray credentialId = result.getKeyId().getId();
+        return client.sql("insert into authenticator_model"
+                + " (id, name, public_key, credential_id, credential_id_digest, usage_count, user_id)"
+                + " values (next value for authenticator_model_seq, :name, :publicKey, :credentialId, :digest,"
+                + " :usageCount, :userId)")
+                .bind("name", name)
+                .bind("publicKey", result.getPublicKeyCose().getBytes())
+                .bind("credentialId", credentialId.getBytes())
+                .bind("digest", AuthenticatorModel.digestOf(credentialId).getBytes())
+                .bind("usageCount", result.getSignatureCount())
+                .bind("userId", userId)
+                .fetch()
+                .rowsUpdated()
+                .then();
+    }
+
+    /**
+     * Same conditional update as
+     * {@link AuthenticatorModelRepository#advanceUsageCount}.
+     *
+     * @return false if the stored counter is already as high
+     */
+    public Mono<Boolean> advanceUsageCount(ByteArray credentialId, long usageCount) {
+        return client.sql("update authenticator_model set usage_count = :usageCount"
+                + " where credential_id_digest = :digest and usage_count < :usageCount")
+                .bind("usageCount", usageCount)
+                .bind("digest", AuthenticatorModel.digestOf(credentialId).getBytes())
+                .fetch()
+                .rowsUpdated()
+                .map(updated -> updated == 1);
+    }
+
+    private static DatabaseClient.GenericExecuteSpec bindNullable(DatabaseClient.GenericExecuteSpec spec,
+            String name, Object value, Class<?> type) {
+        return value == null ? spec.bindNull(name, type) : spec.bind(name, value);
+    }
+
+    private static UserRow user(Readable row) {
+        return new UserRow(row.get("id", Long.class), row.get("tenant", String.class),
+                row.get("username", String.class), row.get("display_name", String.class),
+                new ByteArray(row.get("handle", byte[].class)));
+    }
+}
@@ -2,14 +2,41 @@ package com.WebAuthn.Yubico.Repository;
 
 import com.WebAuthn.Yubico.Model.UserModel;
 import com.yubico.webauthn.data.ByteArray;
+import org.springframework.data.jpa.repository.Query;
 import org.springframework.data.repository.CrudRepository;
 import org.springframework.stereotype.Repository;
 
+import java.util.Optional;
+
 @Repository
 public interface UserModelRepository extends CrudRepository<UserModel, Long> {
 
-    UserModel findByUsername(String username);
+    UserModel findByTenantAndUsername(String tenant, String username);
+
+    boolean existsByTenantAndUsername(String tenant, String username);
+
+    @Query("select u.handle from UserModel u where u.tenant = :tenant and u.username = :username")
+    Optional<ByteArray> findHandleByTenantAndUsername(String tenant, String username);
+
+    @Query("select u.username from UserModel u where u.tenant = :tenant and u.handle = :handle")
+    Optional<String> findUsernameByTenantAndHandle(String tenant, ByteArray handle);
+
+    // the users of the default tenant
+
+    default UserModel findByUsername(String username) {
+        return findByTenantAndUsername(UserModel.DEFAULT_TENANT, username);
+    }
+
+    default boolean existsByUsername(String username) {
+        return existsByTenantAndUsername(UserModel.DEFAULT_TENANT, username);
+    }
+
+    default Optional<ByteArray> findHandleByUsername(String username) {
+        return findHandleByTenantAndUsername(UserModel.DEFAULT_TENANT, username);
+    }
 
-    UserModel findByHandle(ByteArray handle);
+    default Optional<String> findUsernameByHandle(ByteArray handle) {
+        return findUsernameByTenantAndHandle(UserModel.DEFAULT_TENANT, handle);
+    }
 
 }
@@ -0,0 +1,103 @@
+package com.WebAuthn.Yubico.Service;
+
+import java.nio.charset.StandardCharsets;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.WebAuthn.Yubico.Utility.TokenBuckets;
+import com.github.benmanes.caffeine.cache.Ticker;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Admits ceremony requests by token buckets per client address and per
+ * username, so a burst of options calls cannot create users in bulk and a
+ * flood of results cannot keep the signature checks busy. Throttled requests
+ * are counted in {@code admission.throttled}.
+ */
+@Service
+public class AdmissionService implements MeterBinder {
+
+    /**
+     * Body of a throttled request, in the form the FIDO conformance tool
+     * expects, serialized once.
+     */
+    public static final byte[] THROTTLED_BODY = "{\"status\":\"failed\",\"errorMessage\":\"Too many requests.\"}"
+            .getBytes(StandardCharsets.UTF_8);
+
+    private final boolean enabled;
+    private final TokenBuckets addresses;
+    private final TokenBuckets usernames;
+    private volatile Counter addressesThrottled;
+    private volatile Counter usernamesThrottled;
+
+    /**
+     * Thrown when a username is throttled, without a stack trace.
+     */
+    public static class ThrottledException extends RuntimeException {
+        public ThrottledException() {
+            super("Too many requests.", null, false, false);
+        }
+    }
+
+    @Autowired
+    public AdmissionService(@Value("${admission.enabled:true}") boolean enabled,
+            @Value("${admission.address.rate:200}") double addressRate,
+            @Value("${admission.address.burst:400}") int addressBurst,
+            @Value("${admission.username.rate:5}") double usernameRate,
+            @Value("${admission.username.burst:10}") int usernameBurst,
+            @Value("${admission.max-keys:100000}") long maxKeys) {
+        this.enabled = enabled;
+        this.addresses = new TokenBuckets(addressRate, addressBurst, maxKeys, Ticker.systemTicker());
+        this.usernames = new TokenBuckets(usernameRate, usernameBurst, maxKeys, Ticker.systemTicker());
+    }
+
+    public boolean isEnabled() {
+        return enabled;
+    }
+
+    /**
+     * @return false if the client sent too many ceremony requests
+     */
+    public boolean admitAddress(String address) {
+        if (!enabled || addresses.tryAcquire(address)) {
+            return true;
+        }
+        Counter counter = addressesThrottled;
+        if (counter != null) {
+            counter.increment();
+        }
+        return false;
+    }
+
+    /**
+     * @throws ThrottledException if too many ceremonies were started for the
+     *                            username
+     */
+    public void admitUsername(String username) {
+        if (!enabled || username == null || usernames.tryAcquire(username)) {
+            return;
+        }
+        Counter counter = usernamesThrottled;
+        if (counter != null) {
+            counter.increment();
+        }
+        throw new ThrottledException();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        addressesThrottled = Counter.builder("admission.throttled")
+                .tag("key", "address")
+                .description("Ceremony requests rejected by the rate limit")
+                .register(registry);
+        usernamesThrottled = Counter.builder("admission.throttled")
+                .tag("key", "username")
+                .description("Ceremony requests rejected by the rate limit")
+                .register(registry);
+    }
+}
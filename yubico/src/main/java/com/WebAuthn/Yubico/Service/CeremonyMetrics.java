@@ -0,0 +1,202 @@
+package com.WebAuthn.Yubico.Service;
+
+import java.security.cert.X509Certificate;
+import java.time.Duration;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.springframework.stereotype.Service;
+
+import com.yubico.webauthn.attestation.AttestationTrustSource;
+import com.yubico.webauthn.data.AttestationType;
+import com.yubico.webauthn.data.ByteArray;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Time spent in the phases of a ceremony, in {@code webauthn.ceremony.phase}
+ * by ceremony and phase, and the whole call in {@code webauthn.ceremony}.
+ * Both are tagged with the outcome and the attestation type and publish
+ * percentile histograms, e.g. for /actuator/prometheus.
+ * <p>
+ * A ceremony only takes timestamps while it runs, the timers are looked up and
+ * recorded once it is closed, when outcome and attestation type are known.
+ * Trust chain validation runs inside the signature verification of the
+ * library and is taken out of that phase by {@link #timed}.
+ */
+@Service
+public class CeremonyMetrics implements MeterBinder {
+
+    public static final String DECODE = "decode";
+    public static final String USER_LOOKUP = "user-lookup";
+    public static final String OPTIONS = "options";
+    public static final String PENDING_CEREMONY = "pending-ceremony";
+    public static final String RENDER = "render";
+    public static final String VERIFICATION = "verification";
+    public static final String TRUST_CHAIN = "trust-chain";
+    public static final String PERSISTENCE = "persistence";
+
+    public static final String SUCCESS = "success";
+    public static final String FAILURE = "failure";
+
+    // nothing measured yet, or no attestation in this ceremony
+    private static final String NO_ATTESTATION = "n/a";
+
+    private static final Duration MIN_EXPECTED = Duration.ofNanos(1_000);
+    private static final Duration MAX_EXPECTED = Duration.ofSeconds(10);
+
+    // the ceremony of the request on this thread, for the nested trust chain
+    // validation
+    private static final ThreadLocal<Ceremony> CURRENT = new ThreadLocal<>();
+
+    private final Map<Key, Timer> timers = new ConcurrentHashMap<>();
+    private volatile MeterRegistry registry;
+
+    private record Key(String name, String ceremony, String phase, String outcome, String attestation) {
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        this.registry = registry;
+    }
+
+    /**
+     * Starts timing a ceremony on this thread, close it when the call ends.
+     *
+     * @param name e.g. registration.finish
+     */
+    public Ceremony start(String name) {
+        Ceremony ceremony = new Ceremony(name, CURRENT.get());
+        CURRENT.set(ceremony);
+        return ceremony;
+    }
+
+    /**
+     * @return the trust source, adding its time to the ceremony of the calling
+     *         thread as trust chain validation
+     */
+    public AttestationTrustSource timed(AttestationTrustSource trustSource) {
+        return new AttestationTrustSource() {
+            @Override
+            public TrustRootsResult findTrustRoots(List<X509Certificate> attestationCertificateChain,
+                    Optional<ByteArray> aaguid) {
+                long start = System.nanoTime();
+                try {
+                    return trustSource.findTrustRoots(attestationCertificateChain, aaguid);
+                } finally {
+                    Ceremony ceremony = CURRENT.get();
+                    if (ceremony != null) {
+                        ceremony.nested(TRUST_CHAIN, System.nanoTime() - start);
+                    }
+                }
+            }
+        };
+    }
+
+    private void record(Ceremony ceremony) {
+        MeterRegistry current = registry;
+        if (current == null) {
+            return;
+        }
+        for (int i = 0; i < ceremony.count; i++) {
+            timer(current, new Key("webauthn.ceremony.phase", ceremony.name, ceremony.phases[i], ceremony.outcome,
+                    ceremony.attestation)).record(ceremony.nanos[i], TimeUnit.NANOSECONDS);
+        }
+        timer(current, new Key("webauthn.ceremony", ceremony.name, null, ceremony.outcome, ceremony.attestation))
+                .record(System.nanoTime() - ceremony.started, TimeUnit.NANOSECONDS);
+    }
+
+    private Timer timer(MeterRegistry current, Key key) {
+        return timers.computeIfAbsent(key, k -> {
+            Timer.Builder builder = Timer.builder(k.name())
+                    .tag("ceremony", k.ceremony())
+                    .tag("outcome", k.outcome())
+                    .tag("attestation", k.attestation())
+                    .publishPercentileHistogram()
+                    .minimumExpectedValue(MIN_EXPECTED)
+                    .maximumExpectedValue(MAX_EXPECTED);
+            if (k.phase() != null) {
+                builder.tag("phase", k.phase()).description("Time spent in a phase of a ceremony");
+            } else {
+                builder.description("Time spent in a ceremony call");
+            }
+            return builder.register(current);
+        });
+    }
+
+    /**
+     * Timestamps of one ceremony call, used by the request thread only.
+     */
+    public final class Ceremony implements AutoCloseable {
+
+        private static final int MAX_PHASES = 8;
+
+        private final String name;
+        private final Ceremony outer;
+        private final long started;
+        private final String[] phases = new String[MAX_PHASES];
+        private final long[] nanos = new long[MAX_PHASES];
+        private int count;
+        private long last;
+        private long nestedNanos;
+        private String outcome = FAILURE;
+        private String attestation = NO_ATTESTATION;
+
+        private Ceremony(String name, Ceremony outer) {
+            this.name = name;
+            this.outer = outer;
+            this.started = System.nanoTime();
+            this.last = started;
+        }
+
+        /**
+         * Ends a phase, it took the time since the start or the end of the
+         * last phase.
+         */
+        public void phase(String phase) {
+            long now = System.nanoTime();
+            add(phase, now - last - nestedNanos);
+            last = now;
+            nestedNanos = 0;
+        }
+
+        // a phase inside the current one, taken out of it
+        private void nested(String phase, long elapsed) {
+            add(phase, elapsed);
+            nestedNanos += elapsed;
+        }
+
+        private void add(String phase, long elapsed) {
+            if (count < MAX_PHASES) {
+                phases[count] = phase;
+                nanos[count++] = elapsed;
+            }
+        }
+
+        public void succeeded() {
+            outcome = SUCCESS;
+        }
+
+        public void attestation(AttestationType type) {
+            attestation = type.name().toLowerCase();
+        }
+
+        /**
+         * Records the phases, a failure unless {@link #succeeded()} was called.
+         */
+        @Override
+        public void close() {
+            if (outer == null) {
+                CURRENT.remove();
+            } else {
+                CURRENT.set(outer);
+            }
+            record(this);
+        }
+    }
+}
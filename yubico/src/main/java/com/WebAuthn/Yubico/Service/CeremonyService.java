@@ -0,0 +1,155 @@
+package com.WebAuthn.Yubico.Service;
+
+import com.WebAuthn.Yubico.Utility.CeremonySealer;
+import com.WebAuthn.Yubico.Utility.CeremonyStore;
+import com.WebAuthn.Yubico.Utility.SeenChallengeSet;
+import com.fasterxml.jackson.core.JsonProcessingException;
+import com.yubico.webauthn.AssertionRequest;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.PublicKeyCredentialCreationOptions;
+import jakarta.annotation.PreDestroy;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import java.time.Duration;
+import java.util.Base64;
+import java.util.Optional;
+
+/**
+ * Keeps the pending registration and assertion ceremonies between the options
+ * and the result call.
+ * In store mode they are kept in memory, keyed by their challenge. In sealed
+ * mode nothing is kept: the request is sealed into a token that the client
+ * sends back with the result, so any node with the same key can finish it.
+ * <p>
+ * Replay protection in sealed mode only holds per node: the used challenges
+ * are remembered in a {@link SeenChallengeSet} of this node, so a token and
+ * its result can be replayed once on every other node until the token
+ * expires. The signature counter does not catch this for authenticators that
+ * always report 0. Deploy sealed mode with sticky routing of a client to one
+ * node, or keep ceremony.ttl short.
+ */
+@Service
+public class CeremonyService {
+
+    public static final String TOKEN_HEADER = "Ceremony-Token";
+
+    private static final String REGISTRATION = "registration";
+    private static final String ASSERTION = "assertion";
+
+    private final long ttlMs;
+    private final CeremonyStore<PublicKeyCredentialCreationOptions> registrations;
+    private final CeremonyStore<AssertionRequest> assertions;
+    private final CeremonySealer sealer;
+    private final SeenChallengeSet seenChallenges;
+
+    @Autowired
+    public CeremonyService(@Value("${ceremony.ttl:PT5M}") Duration ttl,
+            @Value("${ceremony.max-pending:100000}") int maxPending,
+            @Value("${ceremony.mode:store}") String mode,
+            @Value("${ceremony.sealing-key:}") String sealingKey) {
+        this.ttlMs = ttl.toMillis();
+        if ("sealed".equalsIgnoreCase(mode)) {
+            if (sealingKey.isEmpty()) {
+                throw new IllegalStateException("ceremony.sealing-key must be set in sealed mode.");
+            }
+            this.sealer = new CeremonySealer(Base64.getDecoder().decode(sealingKey));
+            this.seenChallenges = new SeenChallengeSet(ttl);
+            this.registrations = null;
+            this.assertions = null;
+        } else {
+            this.sealer = null;
+            this.seenChallenges = null;
+            this.registrations = new CeremonyStore<>("registration-ceremony-expiry", ttl, maxPending);
+            this.assertions = new CeremonyStore<>("assertion-ceremony-expiry", ttl, maxPending);
+        }
+    }
+
+    public boolean isSealed() {
+        return sealer != null;
+    }
+
+    /**
+     * @return the ceremony token in sealed mode, otherwise null
+     */
+    public String saveRegistration(PublicKeyCredentialCreationOptions options) throws JsonProcessingException {
+        if (isSealed()) {
+            return sealer.seal(REGISTRATION, System.currentTimeMillis() + ttlMs, options.toJson());
+        }
+        registrations.put(options.getChallenge(), options);
+        return null;
+    }
+
+    /**
+     * @param challenge challenge from the client data of the response
+     * @param token     ceremony token sent by the client, only used in sealed mode
+     */
+    public Optional<PublicKeyCredentialCreationOptions> takeRegistration(ByteArray challenge, String token) {
+        if (!isSealed()) {
+            return registrations.take(challenge);
+        }
+        try {
+            Optional<String> json = unseal(REGISTRATION, token);
+            if (json.isEmpty()) {
+                return Optional.empty();
+            }
+            PublicKeyCredentialCreationOptions options = PublicKeyCredentialCreationOptions.fromJson(json.get());
+            return accept(challenge, options.getChallenge()) ? Optional.of(options) : Optional.empty();
+        } catch (JsonProcessingException e) {
+            return Optional.empty();
+        }
+    }
+
+    /**
+     * @return the ceremony token in sealed mode, otherwise null
+     */
+    public String saveAssertion(AssertionRequest request) throws JsonProcessingException {
+        if (isSealed()) {
+            return sealer.seal(ASSERTION, System.currentTimeMillis() + ttlMs, request.toJson());
+        }
+        assertions.put(request.getPublicKeyCredentialRequestOptions().getChallenge(), request);
+        return null;
+    }
+
+    /**
+     * @param challenge challenge from the client data of the response
+     * @param token     ceremony token sent by the client, only used in sealed mode
+     */
+    public Optional<AssertionRequest> takeAssertion(ByteArray challenge, String token) {
+        if (!isSealed()) {
+            return assertions.take(challenge);
+        }
+        try {
+            Optional<String> json = unseal(ASSERTION, token);
+            if (json.isEmpty()) {
+                return Optional.empty();
+            }
+            AssertionRequest request = AssertionRequest.fromJson(json.get());
+            ByteArray sealedChallenge = request.getPublicKeyCredentialRequestOptions().getChallenge();
+            return accept(challenge, sealedChallenge) ? Optional.of(request) : Optional.empty();
+        } catch (JsonProcessingException e) {
+            return Optional.empty();
+        }
+    }
+
+    private Optional<String> unseal(String type, String token) {
+        if (token == null || token.isEmpty()) {
+            return Optional.empty();
+        }
+        return sealer.unseal(type, token, System.currentTimeMillis());
+    }
+
+    // the token must belong to this response and may only be used once
+    private boolean accept(ByteArray challenge, ByteArray sealedChallenge) {
+        return sealedChallenge.equals(challenge) && seenChallenges.add(challenge, System.currentTimeMillis());
+    }
+
+    @PreDestroy
+    public void close() {
+        if (!isSealed()) {
+            registrations.close();
+            assertions.close();
+        }
+    }
+}
@@ -6,14 +6,19 @@ import com.WebAuthn.Yubico.Repository.AuthenticatorModelRepository;
 import com.WebAuthn.Yubico.Repository.UserModelRepository;
 import com.yubico.webauthn.CredentialRepository;
 import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.RegistrationResult;
 import com.yubico.webauthn.data.ByteArray;
 import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
+import org.springframework.beans.factory.ObjectProvider;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.dao.DataIntegrityViolationException;
 import org.springframework.stereotype.Repository;
+import org.springframework.transaction.annotation.Transactional;
 
-import java.util.List;
 import java.util.Optional;
+import java.util.OptionalLong;
 import java.util.Set;
+import java.util.function.Supplier;
 import java.util.stream.Collectors;
 
 @Repository
@@ -21,11 +26,21 @@ public class CredentialAccessService implements CredentialRepository {
 
     private AuthenticatorModelRepository authRepo;
     private UserModelRepository userRepo;
+    private CredentialCache cache;
+    private SignatureCounterUpdater counterUpdater;
+    private ObjectProvider<CredentialSnapshotService> snapshot;
+    private ObjectProvider<CredentialIndexService> index;
 
     @Autowired
-    public CredentialAccessService(AuthenticatorModelRepository authRepo, UserModelRepository userRepo) {
+    public CredentialAccessService(AuthenticatorModelRepository authRepo, UserModelRepository userRepo,
+            CredentialCache cache, SignatureCounterUpdater counterUpdater,
+            ObjectProvider<CredentialSnapshotService> snapshot, ObjectProvider<CredentialIndexService> index) {
         this.authRepo = authRepo;
         this.userRepo = userRepo;
+        this.cache = cache;
+        this.counterUpdater = counterUpdater;
+        this.snapshot = snapshot;
+        this.index = index;
     }
 
     public AuthenticatorModelRepository getAuthRepo() {
@@ -36,60 +51,157 @@ public class CredentialAccessService implements CredentialRepository {
         return userRepo;
     }
 
+    /**
+     * Inserts a user whose username was not found.
+     *
+     * @return false if a concurrent registration inserted the username first
+     */
+    public boolean addUser(UserModel user) {
+        try {
+            userRepo.save(user);
+            return true;
+        } catch (DataIntegrityViolationException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Stores the credential of a finished registration. The user is read and
+     * the credential inserted in one transaction with a single commit.
+     *
+     * @return the stored credential, empty if the user does not exist
+     */
+    public Optional<AuthenticatorModel> addAuthenticator(String username, String name, RegistrationResult result) {
+        return addAuthenticator(UserModel.DEFAULT_TENANT, username, name, result);
+    }
+
+    @Transactional
+    public Optional<AuthenticatorModel> addAuthenticator(String tenant, String username, String name,
+            RegistrationResult result) {
+        UserModel user = userRepo.findByTenantAndUsername(tenant, username);
+        if (user == null) {
+            return Optional.empty();
+        }
+        return Optional.of(authRepo.save(new AuthenticatorModel(name, user, result)));
+    }
+
+    /**
+     * @return the repository of the users of the tenant, for the relying party
+     *         of the tenant; this one serves the default tenant
+     */
+    public CredentialRepository forTenant(String tenant) {
+        return UserModel.DEFAULT_TENANT.equals(tenant) ? this : new TenantCredentials(tenant);
+    }
+
     // The following methods are required by the CredentialRepository interface of
-    // the yubico library.
+    // the yubico library. They read through the credential cache.
     @Override
     public Set<PublicKeyCredentialDescriptor> getCredentialIdsForUsername(String username) {
-        UserModel user = userRepo.findByUsername(username);
-        List<AuthenticatorModel> auth = authRepo.findAllByUser(user);
-        return auth.stream()
-                .map(
-                        authenticator -> PublicKeyCredentialDescriptor.builder()
-                                .id(authenticator.getCredentialId())
-                                .build())
-                .collect(Collectors.toSet());
+        return credentialIds(UserModel.DEFAULT_TENANT, username);
     }
 
     @Override
     public Optional<String> getUsernameForUserHandle(ByteArray userHandle) {
-        UserModel user = userRepo.findByHandle(userHandle);
-        if (user == null) {
-            return Optional.empty();
-        }
-        return Optional.of(user.getUsername());
+        return username(UserModel.DEFAULT_TENANT, userHandle);
     }
 
     @Override
-
     public Optional<ByteArray> getUserHandleForUsername(String username) {
-        UserModel user = userRepo.findByUsername(username);
-        return Optional.of(user.getHandle());
+        return handle(UserModel.DEFAULT_TENANT, username);
+    }
+
+    private Set<PublicKeyCredentialDescriptor> credentialIds(String tenant, String username) {
+        return cache.descriptors(tenant, username, () -> authRepo.findCredentialIdsByTenantAndUsername(tenant, username)
+                .stream()
+                .map(
+                        credentialId -> PublicKeyCredentialDescriptor.builder()
+                                .id(credentialId)
+                                .build())
+                .collect(Collectors.toSet()));
+    }
+
+    private Optional<String> username(String tenant, ByteArray userHandle) {
+        return cache.username(tenant, userHandle, () -> userRepo.findUsernameByTenantAndHandle(tenant, userHandle));
     }
 
+    private Optional<ByteArray> handle(String tenant, String username) {
+        return cache.handle(tenant, username, () -> userRepo.findHandleByTenantAndUsername(tenant, username));
+    }
+
+    // a counter that is not yet written to the database wins over the stored one;
+    // after a start the credential snapshot answers before the database, with
+    // the off-heap index enabled the credentials are kept there, not in the cache
     @Override
     public Optional<RegisteredCredential> lookup(ByteArray credentialId, ByteArray userHandle) {
-        Optional<AuthenticatorModel> auth = authRepo.findByCredentialId(credentialId);
-        return auth.map(
-                authenticator -> RegisteredCredential.builder()
-                        .credentialId(authenticator.getCredentialId())
-                        .userHandle(authenticator.getUser().getHandle())
-                        .publicKeyCose(authenticator.getPublicKey())
-                        .signatureCount(authenticator.getUsageCount())
-                        .build());
+        return lookup(UserModel.DEFAULT_TENANT, credentialId);
+    }
+
+    private Optional<RegisteredCredential> lookup(String tenant, ByteArray credentialId) {
+        Supplier<Optional<RegisteredCredential>> loader = () -> fromSnapshot(tenant, credentialId)
+                .or(() -> authRepo.findRegisteredCredential(tenant, credentialId)
+                        .map(
+                                credential -> RegisteredCredential.builder()
+                                        .credentialId(credential.getCredentialId())
+                                        .userHandle(credential.getUserHandle())
+                                        .publicKeyCose(credential.getPublicKey())
+                                        .signatureCount(credential.getUsageCount())
+                                        .build()));
+        CredentialIndexService credentialIndex = index.getIfAvailable();
+        Optional<RegisteredCredential> stored = credentialIndex != null
+                ? credentialIndex.lookup(tenant, credentialId, loader)
+                : cache.credential(tenant, credentialId, loader);
+        OptionalLong pending = counterUpdater.pendingCount(credentialId);
+        if (stored.isEmpty() || pending.isEmpty() || pending.getAsLong() <= stored.get().getSignatureCount()) {
+            return stored;
+        }
+        return Optional.of(stored.get().toBuilder().signatureCount(pending.getAsLong()).build());
+    }
+
+    private Optional<RegisteredCredential> fromSnapshot(String tenant, ByteArray credentialId) {
+        CredentialSnapshotService credentialSnapshot = snapshot.getIfAvailable();
+        return credentialSnapshot == null ? Optional.empty() : credentialSnapshot.lookup(tenant, credentialId);
     }
 
+    // credential ids are unique, see the digest index of AuthenticatorModel
     @Override
     public Set<RegisteredCredential> lookupAll(ByteArray credentialId) {
-        List<AuthenticatorModel> auth = authRepo.findAllByCredentialId(credentialId);
-        return auth.stream()
-                .map(
-                        authenticator -> RegisteredCredential.builder()
-                                .credentialId(authenticator.getCredentialId())
-                                .userHandle(authenticator.getUser().getHandle())
-                                .publicKeyCose(authenticator.getPublicKey())
-                                .signatureCount(authenticator.getUsageCount())
-                                .build())
-                .collect(Collectors.toSet());
+        return lookup(credentialId, null).map(Set::of).orElseGet(Set::of);
+    }
+
+    // usernames, handles and credentials are all resolved within the tenant,
+    // cached and indexed apart from the other tenants
+    private final class TenantCredentials implements CredentialRepository {
+
+        private final String tenant;
+
+        TenantCredentials(String tenant) {
+            this.tenant = tenant;
+        }
+
+        @Override
+        public Set<PublicKeyCredentialDescriptor> getCredentialIdsForUsername(String username) {
+            return credentialIds(tenant, username);
+        }
+
+        @Override
+        public Optional<String> getUsernameForUserHandle(ByteArray userHandle) {
+            return username(tenant, userHandle);
+        }
+
+        @Override
+        public Optional<ByteArray> getUserHandleForUsername(String username) {
+            return handle(tenant, username);
+        }
+
+        @Override
+        public Optional<RegisteredCredential> lookup(ByteArray credentialId, ByteArray userHandle) {
+            return CredentialAccessService.this.lookup(tenant, credentialId);
+        }
+
+        @Override
+        public Set<RegisteredCredential> lookupAll(ByteArray credentialId) {
+            return CredentialAccessService.this.lookup(tenant, credentialId).map(Set::of).orElseGet(Set::of);
+        }
     }
 
 }
@@ -0,0 +1,261 @@
+package com.WebAuthn.Yubico.Service;
+
+import java.time.Duration;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Supplier;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+import org.springframework.transaction.support.TransactionSynchronization;
+import org.springframework.transaction.support.TransactionSynchronizationManager;
+import org.springframework.util.unit.DataSize;
+
+import com.WebAuthn.Yubico.Model.AuthenticatorModel;
+import com.WebAuthn.Yubico.Model.UserModel;
+import com.github.benmanes.caffeine.cache.AsyncCache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import io.micrometer.core.instrument.binder.cache.CaffeineCacheMetrics;
+
+/**
+ * Read-through cache for the lookups of {@link CredentialAccessService}. The
+ * entries of all tenants, keyed by the tenant as well, share one estimated
+ * memory budget and are evicted by Caffeine's W-TinyLFU policy or after the
+ * ttl, so the heap taken does not grow with the tenants; a busy tenant's
+ * rarely used entries go first. {@link CredentialCacheListener} drops the
+ * entries of an authenticator or user whenever its row changes.
+ * A lookup is loaded outside of the cache's locks, so a virtual thread waiting
+ * for the database or for another thread's load is never pinned. Evicted
+ * credentials are no longer served from the {@link CredentialSnapshotService}
+ * either. With a {@link CredentialIndexService} the credentials are kept there
+ * instead and the evictions reach it as well.
+ */
+@Component
+public class CredentialCache implements MeterBinder {
+
+    private enum Kind {
+        CREDENTIAL, DESCRIPTORS, HANDLE, USERNAME
+    }
+
+    private record Key(Kind kind, String tenant, Object id) {
+    }
+
+    private final AsyncCache<Key, Object> cache;
+    // the tenants looked up so far, for evictions that do not know the tenant
+    private final Set<String> tenants = ConcurrentHashMap.newKeySet();
+    // a max-size of 0 reads every lookup from the database
+    private final boolean enabled;
+    private final ObjectProvider<CredentialSnapshotService> snapshot;
+    private final ObjectProvider<CredentialIndexService> index;
+
+    /**
+     * @param maxSize budget of all tenants together
+     */
+    @Autowired
+    public CredentialCache(@Value("${credential-cache.max-size:64MB}") DataSize maxSize,
+            @Value("${credential-cache.ttl:PT10M}") Duration ttl,
+            ObjectProvider<CredentialSnapshotService> snapshot, ObjectProvider<CredentialIndexService> index) {
+        this.cache = Caffeine.newBuilder()
+                .maximumWeight(maxSize.toBytes())
+                .weigher(CredentialCache::weigh)
+                .expireAfterWrite(ttl)
+                .recordStats()
+                .buildAsync();
+        this.enabled = maxSize.toBytes() > 0;
+        this.snapshot = snapshot;
+        this.index = index;
+        tenants.add(UserModel.DEFAULT_TENANT);
+    }
+
+    @SuppressWarnings("unchecked")
+    public Optional<RegisteredCredential> credential(String tenant, ByteArray credentialId,
+            Supplier<Optional<RegisteredCredential>> loader) {
+        return (Optional<RegisteredCredential>) get(new Key(Kind.CREDENTIAL, tenant, credentialId), loader);
+    }
+
+    @SuppressWarnings("unchecked")
+    public Set<PublicKeyCredentialDescriptor> descriptors(String tenant, String username,
+            Supplier<Set<PublicKeyCredentialDescriptor>> loader) {
+        return (Set<PublicKeyCredentialDescriptor>) get(new Key(Kind.DESCRIPTORS, tenant, username),
+                () -> Collections.unmodifiableSet(loader.get()));
+    }
+
+    @SuppressWarnings("unchecked")
+    public Optional<ByteArray> handle(String tenant, String username, Supplier<Optional<ByteArray>> loader) {
+        return (Optional<ByteArray>) get(new Key(Kind.HANDLE, tenant, username), loader);
+    }
+
+    @SuppressWarnings("unchecked")
+    public Optional<String> username(String tenant, ByteArray handle, Supplier<Optional<String>> loader) {
+        return (Optional<String>) get(new Key(Kind.USERNAME, tenant, handle), loader);
+    }
+
+    // Cache.get would run the loader inside a synchronized block of the map;
+    // here one thread loads while the others wait on its future instead
+    private Object get(Key key, Supplier<?> loader) {
+        if (!enabled) {
+            return loader.get();
+        }
+        tenants.add(key.tenant());
+        CompletableFuture<Object> cached = cache.getIfPresent(key);
+        if (cached == null) {
+            CompletableFuture<Object> loading = new CompletableFuture<>();
+            cached = cache.asMap().putIfAbsent(key, loading);
+            if (cached == null) {
+                try {
+                    Object value = loader.get();
+                    loading.complete(value);
+                    return value;
+                } catch (RuntimeException e) {
+                    cache.asMap().remove(key, loading);
+                    loading.completeExceptionally(e);
+                    throw e;
+                }
+            }
+        }
+        try {
+            return cached.join();
+        } catch (CompletionException e) {
+            throw e.getCause() instanceof RuntimeException cause ? cause : e;
+        }
+    }
+
+    /**
+     * Drops the entries of the authenticator now and again after the current
+     * transaction, so a lookup in between cannot keep the uncommitted state.
+     *
+     * @param addedOrRemoved only then the credential ids of its user change and
+     *                       the lazy user is read
+     */
+    public void evict(AuthenticatorModel authenticator, boolean addedOrRemoved) {
+        ByteArray credentialId = authenticator.getCredentialId();
+        UserModel user = addedOrRemoved ? authenticator.getUser() : null;
+        String tenant = user != null ? user.getTenant() : null;
+        String username = user != null ? user.getUsername() : null;
+        invalidateSnapshot(credentialId);
+        CredentialIndexService credentialIndex = index.getIfAvailable();
+        evictNowAndAfterTransaction(() -> {
+            invalidateEverywhere(Kind.CREDENTIAL, credentialId);
+            if (credentialIndex != null) {
+                credentialIndex.remove(credentialId);
+            }
+            if (username != null) {
+                invalidate(new Key(Kind.DESCRIPTORS, tenant, username));
+            }
+        });
+    }
+
+    public void evictCredential(ByteArray credentialId) {
+        invalidateSnapshot(credentialId);
+        invalidateEverywhere(Kind.CREDENTIAL, credentialId);
+        CredentialIndexService credentialIndex = index.getIfAvailable();
+        if (credentialIndex != null) {
+            // only the counter changed, it is read again in place
+            credentialIndex.expire(credentialId);
+        }
+    }
+
+    private void invalidateSnapshot(ByteArray credentialId) {
+        CredentialSnapshotService credentialSnapshot = snapshot.getIfAvailable();
+        if (credentialSnapshot != null) {
+            credentialSnapshot.invalidate(credentialId);
+        }
+    }
+
+    public void evict(UserModel user) {
+        String tenant = user.getTenant();
+        ByteArray handle = user.getHandle();
+        String username = user.getUsername();
+        evictNowAndAfterTransaction(() -> {
+            // after a rename the cached username of the handle is the old one
+            CompletableFuture<Object> previous = cache.asMap().get(new Key(Kind.USERNAME, tenant, handle));
+            if (previous != null && !previous.isCompletedExceptionally()
+                    && previous.getNow(null) instanceof Optional<?> cached && cached.isPresent()) {
+                invalidate(new Key(Kind.HANDLE, tenant, cached.get()));
+                invalidate(new Key(Kind.DESCRIPTORS, tenant, cached.get()));
+            }
+            invalidate(new Key(Kind.USERNAME, tenant, handle));
+            invalidate(new Key(Kind.HANDLE, tenant, username));
+            invalidate(new Key(Kind.DESCRIPTORS, tenant, username));
+        });
+    }
+
+    /**
+     * @return the entries of all tenants
+     */
+    public long size() {
+        cache.synchronous().cleanUp();
+        return cache.synchronous().estimatedSize();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        CaffeineCacheMetrics.monitor(registry, cache, "credentials");
+    }
+
+    // a load in progress is dropped as well, its caller still gets the value
+    private void invalidate(Key key) {
+        cache.asMap().remove(key);
+    }
+
+    // the counter updater does not know the tenant, the few tenants are all
+    // visited
+    private void invalidateEverywhere(Kind kind, Object id) {
+        for (String tenant : tenants) {
+            invalidate(new Key(kind, tenant, id));
+        }
+    }
+
+    private static void evictNowAndAfterTransaction(Runnable eviction) {
+        eviction.run();
+        if (TransactionSynchronizationManager.isSynchronizationActive()) {
+            TransactionSynchronizationManager.registerSynchronization(new TransactionSynchronization() {
+                @Override
+                public void afterCompletion(int status) {
+                    eviction.run();
+                }
+            });
+        }
+    }
+
+    // rough heap footprint of an entry in bytes
+    private static int weigh(Key key, Object value) {
+        int weight = 64 + sizeOf(key.id());
+        if (value instanceof Optional<?> optional) {
+            weight += 16 + optional.map(CredentialCache::sizeOf).orElse(0);
+        } else if (value instanceof Set<?> descriptors) {
+            weight += 48;
+            for (Object descriptor : descriptors) {
+                weight += 64 + ((PublicKeyCredentialDescriptor) descriptor).getId().size();
+            }
+        }
+        return weight;
+    }
+
+    private static int sizeOf(Object value) {
+        if (value instanceof ByteArray bytes) {
+            // the library keeps the bytes and their base64url string
+            return 48 + bytes.size() * 3;
+        }
+        if (value instanceof String string) {
+            return 40 + string.length();
+        }
+        if (value instanceof RegisteredCredential credential) {
+            return 48 + sizeOf(credential.getCredentialId()) + sizeOf(credential.getUserHandle())
+                    + sizeOf(credential.getPublicKeyCose());
+        }
+        return 16;
+    }
+}
@@ -0,0 +1,50 @@
+package com.WebAuthn.Yubico.Service;
+
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+
+import com.WebAuthn.Yubico.Model.AuthenticatorModel;
+import com.WebAuthn.Yubico.Model.UserModel;
+
+import jakarta.persistence.PostPersist;
+import jakarta.persistence.PostRemove;
+import jakarta.persistence.PostUpdate;
+
+/**
+ * Entity listener of {@link AuthenticatorModel} and {@link UserModel} that
+ * evicts the changed rows from the {@link CredentialCache}. Hibernate obtains
+ * it from the Spring context, the cache is optional so that JPA slices work
+ * without it.
+ */
+public class CredentialCacheListener {
+
+    private final ObjectProvider<CredentialCache> cache;
+
+    @Autowired
+    public CredentialCacheListener(ObjectProvider<CredentialCache> cache) {
+        this.cache = cache;
+    }
+
+    @PostPersist
+    @PostRemove
+    public void addedOrRemoved(Object entity) {
+        changed(entity, true);
+    }
+
+    @PostUpdate
+    public void updated(Object entity) {
+        changed(entity, false);
+    }
+
+    private void changed(Object entity, boolean addedOrRemoved) {
+        CredentialCache credentialCache = cache.getIfAvailable();
+        if (credentialCache == null) {
+            return;
+        }
+        if (entity instanceof AuthenticatorModel authenticator) {
+            credentialCache.evict(authenticator, addedOrRemoved);
+        } else if (entity instanceof UserModel user) {
+            credentialCache.evict(user);
+        }
+    }
+}
@@ -0,0 +1,140 @@
+package com.WebAuthn.Yubico.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.OptionalLong;
+import java.util.concurrent.Semaphore;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.TransactionDefinition;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.WebAuthn.Yubico.Model.CredentialRecord;
+import com.WebAuthn.Yubico.Model.UserModel;
+import com.WebAuthn.Yubico.Utility.CredentialRecordCodec;
+import com.yubico.webauthn.data.ByteArray;
+
+/**
+ * Exports all users and credentials as {@link CredentialRecord}s, in the
+ * formats the import reads. The rows come from one forward only cursor with a
+ * fixed fetch size and go to the writer one at a time, so the memory used does
+ * not grow with the table. The query runs in a read only transaction, which
+ * takes no locks; registrations and sign-ins go on while it runs.
+ * <p>
+ * Signature counters still pending in the {@link SignatureCounterUpdater} are
+ * flushed before the cursor opens, and those recorded while it runs are taken
+ * over into the rows, so an export followed by an import never moves a
+ * counter back.
+ * <p>
+ * An export covers the users of one tenant. The import writes to the default
+ * tenant, so the records of another tenant are moved into it by a round trip.
+ * An export holds a database connection until it is done, the number of
+ * exports at a time is limited to keep the pool for the ceremonies.
+ */
+@Service
+public class CredentialExportService {
+
+    // users without a credential come once with the credential columns null,
+    // the records of a user follow each other
+    private static final String SELECT_RECORDS = "select u.username, u.display_name,"
+            + " cast(u.handle as varbinary) as handle, a.credential_id, a.public_key, a.usage_count, a.name"
+            + " from user_model u left join authenticator_model a on a.user_id = u.id"
+            + " where u.tenant = ? order by u.id, a.id";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final SignatureCounterUpdater counterUpdater;
+    private final TransactionTemplate transactionTemplate;
+    private final int fetchSize;
+    private final Semaphore exports;
+
+    @Autowired
+    public CredentialExportService(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager,
+            SignatureCounterUpdater counterUpdater,
+            @Value("${credentials.export.fetch-size:1000}") int fetchSize,
+            @Value("${credentials.export.concurrency:1}") int concurrency) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.counterUpdater = counterUpdater;
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.transactionTemplate.setReadOnly(true);
+        this.transactionTemplate.setIsolationLevel(TransactionDefinition.ISOLATION_READ_COMMITTED);
+        this.fetchSize = fetchSize;
+        this.exports = new Semaphore(concurrency);
+    }
+
+    /**
+     * Writes every user and credential of the default tenant, the writer is
+     * left open.
+     *
+     * @return the number of records written
+     * @throws IllegalStateException if the maximum number of exports is
+     *                               already running
+     */
+    public long export(CredentialRecordCodec.Writer writer) throws IOException {
+        return export(UserModel.DEFAULT_TENANT, writer);
+    }
+
+    /**
+     * Writes every user and credential of the tenant, the writer is left open.
+     *
+     * @return the number of records written
+     * @throws IllegalStateException if the maximum number of exports is
+     *                               already running
+     */
+    public long export(String tenant, CredentialRecordCodec.Writer writer) throws IOException {
+        if (!exports.tryAcquire()) {
+            throw new IllegalStateException("Too many exports running");
+        }
+        try {
+            counterUpdater.flush();
+            transactionTemplate.executeWithoutResult(status -> jdbcTemplate.query(con -> {
+                PreparedStatement statement = con.prepareStatement(SELECT_RECORDS, ResultSet.TYPE_FORWARD_ONLY,
+                        ResultSet.CONCUR_READ_ONLY);
+                statement.setFetchSize(fetchSize);
+                statement.setString(1, tenant);
+                return statement;
+            }, row -> {
+                try {
+                    writer.write(withPendingCount(recordOf(row)));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            }));
+        } catch (UncheckedIOException e) {
+            // the client went away or the disk is full
+            throw e.getCause();
+        } finally {
+            exports.release();
+        }
+        return writer.count();
+    }
+
+    // a counter recorded after the flush is higher than the one in the row
+    private CredentialRecord withPendingCount(CredentialRecord record) {
+        if (!record.hasCredential()) {
+            return record;
+        }
+        OptionalLong pending = counterUpdater.pendingCount(record.credentialId());
+        if (pending.isEmpty() || pending.getAsLong() <= record.signatureCount()) {
+            return record;
+        }
+        return new CredentialRecord(record.username(), record.displayName(), record.handle(), record.credentialId(),
+                record.publicKey(), pending.getAsLong(), record.name());
+    }
+
+    private static CredentialRecord recordOf(ResultSet row) throws SQLException {
+        byte[] credentialId = row.getBytes("credential_id");
+        byte[] publicKey = row.getBytes("public_key");
+        return new CredentialRecord(row.getString("username"), row.getString("display_name"),
+                new ByteArray(row.getBytes("handle")),
+                credentialId == null ? null : new ByteArray(credentialId),
+                publicKey == null ? null : new ByteArray(publicKey),
+                row.getLong("usage_count"), row.getString("name"));
+    }
+}
@@ -0,0 +1,423 @@
+package com.WebAuthn.Yubico.Service;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.dao.DataIntegrityViolationException;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.namedparam.NamedParameterJdbcTemplate;
+import org.springframework.stereotype.Service;
+import org.springframework.transaction.PlatformTransactionManager;
+import org.springframework.transaction.support.TransactionTemplate;
+
+import com.WebAuthn.Yubico.Model.AuthenticatorModel;
+import com.WebAuthn.Yubico.Model.CredentialRecord;
+import com.WebAuthn.Yubico.Model.UserModel;
+import com.WebAuthn.Yubico.Utility.CredentialRecordCodec;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.COSEAlgorithmIdentifier;
+
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Imports users and credentials from a stream of {@link CredentialRecord}s.
+ * Records are read in batches; while one batch is written the next one is
+ * read and validated on the import threads. A batch is written in one
+ * transaction with JDBC batch inserts, the ids are taken from the entity
+ * sequences in blocks of their increment, the same pooled allocation
+ * Hibernate uses, so both never hand out the same id.
+ * <p>
+ * Users and credentials that already exist are skipped, so an import can be
+ * repeated or resumed from any checkpoint: the number of records read when a
+ * batch was committed, passed as skip to the next run. Invalid records are
+ * counted and logged, the import goes on without them.
+ */
+@Service
+public class CredentialImportService {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CredentialImportService.class);
+
+    // invalid records logged per import, the rest is only counted
+    private static final int LOGGED_INVALID = 100;
+
+    // into the default tenant, the tenant column defaults to it
+    private static final String INSERT_USER = "insert into user_model (id, username, display_name, handle)"
+            + " values (?, ?, ?, ?)";
+    private static final String INSERT_AUTHENTICATOR = "insert into authenticator_model"
+            + " (id, name, public_key, credential_id, credential_id_digest, usage_count, user_id)"
+            + " values (?, ?, ?, ?, ?, ?, ?)";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final NamedParameterJdbcTemplate namedJdbcTemplate;
+    private final TransactionTemplate transactionTemplate;
+    private final ObjectProvider<CredentialCache> cache;
+    private final int batchSize;
+    private final int threads;
+    private final ExecutorService validators;
+    private final IdBlocks userIds;
+    private final IdBlocks authenticatorIds;
+
+    /**
+     * Counts of an import so far.
+     *
+     * @param records     records read, including skipped ones, the checkpoint
+     *                    after a committed batch
+     * @param users       users inserted
+     * @param credentials credentials inserted
+     * @param existing    users and credentials already present
+     * @param invalid     records rejected by the validation
+     */
+    public record Progress(long records, long users, long credentials, long existing, long invalid) {
+    }
+
+    @FunctionalInterface
+    public interface ProgressListener {
+        /**
+         * Called after every committed batch.
+         */
+        void committed(Progress progress) throws IOException;
+    }
+
+    // a record with its number in the stream, the credential id digest if it
+    // is valid and the reason otherwise
+    private record Checked(CredentialRecord record, long number, ByteArray digest, String error) {
+    }
+
+    private record ExistingUser(long id, ByteArray handle) {
+    }
+
+    // a committed batch, with the records whose user or credential is new
+    private record Written(int users, int credentials, int existing, List<Checked> conflicts,
+            List<CredentialRecord> inserted) {
+    }
+
+    @Autowired
+    public CredentialImportService(JdbcTemplate jdbcTemplate, PlatformTransactionManager transactionManager,
+            ObjectProvider<CredentialCache> cache,
+            @Value("${credentials.import.batch-size:1000}") int batchSize,
+            @Value("${credentials.import.threads:0}") int threads) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.namedJdbcTemplate = new NamedParameterJdbcTemplate(jdbcTemplate);
+        this.transactionTemplate = new TransactionTemplate(transactionManager);
+        this.cache = cache;
+        this.batchSize = batchSize;
+        this.threads = threads > 0 ? threads : Runtime.getRuntime().availableProcessors();
+        AtomicInteger count = new AtomicInteger();
+        this.validators = Executors.newFixedThreadPool(this.threads, runnable -> {
+            Thread thread = new Thread(runnable, "credential-import-" + count.incrementAndGet());
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.userIds = new IdBlocks(jdbcTemplate, "user_model_seq");
+        this.authenticatorIds = new IdBlocks(jdbcTemplate, "authenticator_model_seq");
+    }
+
+    /**
+     * @param skip records at the start of the stream that were already
+     *             imported, e.g. the last checkpoint
+     */
+    public Progress importRecords(CredentialRecordCodec.Reader reader, long skip, ProgressListener listener)
+            throws IOException {
+        while (reader.count() < skip && reader.next() != null) {
+            // already imported
+        }
+        Counts counts = new Counts();
+        CompletableFuture<List<Checked>> pending = validate(readBatch(reader));
+        while (true) {
+            List<Checked> batch = join(pending);
+            if (batch.isEmpty()) {
+                break;
+            }
+            long records = reader.count();
+            // the next batch is read and validated while this one is written
+            pending = validate(readBatch(reader));
+            write(batch, counts);
+            Progress progress = counts.progress(records);
+            if (listener != null) {
+                listener.committed(progress);
+            }
+        }
+        return counts.progress(reader.count());
+    }
+
+    private List<Checked> readBatch(CredentialRecordCodec.Reader reader) throws IOException {
+        List<Checked> batch = new ArrayList<>(batchSize);
+        CredentialRecord record;
+        while (batch.size() < batchSize && (record = reader.next()) != null) {
+            batch.add(new Checked(record, reader.count(), null, null));
+        }
+        return batch;
+    }
+
+    // checks the records in slices on the import threads
+    private CompletableFuture<List<Checked>> validate(List<Checked> batch) {
+        if (batch.isEmpty()) {
+            return CompletableFuture.completedFuture(batch);
+        }
+        int sliceSize = (batch.size() + threads - 1) / threads;
+        List<CompletableFuture<List<Checked>>> slices = new ArrayList<>();
+        for (int from = 0; from < batch.size(); from += sliceSize) {
+            List<Checked> slice = batch.subList(from, Math.min(batch.size(), from + sliceSize));
+            slices.add(CompletableFuture.supplyAsync(() -> slice.stream().map(CredentialImportService::check).toList(),
+                    validators));
+        }
+        return CompletableFuture.allOf(slices.toArray(CompletableFuture[]::new))
+                .thenApply(done -> {
+                    List<Checked> checked = new ArrayList<>(batch.size());
+                    slices.forEach(slice -> checked.addAll(slice.join()));
+                    return checked;
+                });
+    }
+
+    private static Checked check(Checked checked) {
+        String error = validate(checked.record());
+        if (error != null) {
+            return new Checked(checked.record(), checked.number(), null, error);
+        }
+        ByteArray digest = checked.record().hasCredential()
+                ? AuthenticatorModel.digestOf(checked.record().credentialId())
+                : null;
+        return new Checked(checked.record(), checked.number(), digest, null);
+    }
+
+    /**
+     * @return why the record cannot be imported, null if it can
+     */
+    static String validate(CredentialRecord record) {
+        if (record.username() == null || record.username().isBlank()) {
+            return "username missing";
+        }
+        if (record.username().length() > 255) {
+            return "username longer than 255 characters";
+        }
+        if (record.handle() == null || record.handle().isEmpty()) {
+            return "handle missing";
+        }
+        if (record.handle().size() > UserModel.MAX_HANDLE_LENGTH) {
+            return "handle longer than " + UserModel.MAX_HANDLE_LENGTH + " bytes";
+        }
+        if (!record.hasCredential()) {
+            return record.publicKey() == null ? null : "public key without credential id";
+        }
+        if (record.credentialId().isEmpty() || record.credentialId().size() > AuthenticatorModel.MAX_CREDENTIAL_ID_LENGTH) {
+            return "credential id empty or longer than " + AuthenticatorModel.MAX_CREDENTIAL_ID_LENGTH + " bytes";
+        }
+        if (record.publicKey() == null || record.publicKey().size() > AuthenticatorModel.MAX_PUBLIC_KEY_LENGTH) {
+            return "public key missing or longer than " + AuthenticatorModel.MAX_PUBLIC_KEY_LENGTH + " bytes";
+        }
+        if (record.signatureCount() < 0 || record.signatureCount() > 0xffffffffL) {
+            return "signature count out of range";
+        }
+        try {
+            if (COSEAlgorithmIdentifier.fromPublicKey(record.publicKey()).isEmpty()) {
+                return "public key with unsupported algorithm";
+            }
+        } catch (RuntimeException e) {
+            return "public key is no COSE key";
+        }
+        return null;
+    }
+
+    private void write(List<Checked> batch, Counts counts) {
+        List<Checked> valid = new ArrayList<>(batch.size());
+        for (Checked checked : batch) {
+            if (checked.error() == null) {
+                valid.add(checked);
+            } else {
+                counts.invalid(checked);
+            }
+        }
+        if (valid.isEmpty()) {
+            return;
+        }
+        Written written;
+        try {
+            written = transactionTemplate.execute(status -> insert(valid));
+        } catch (DataIntegrityViolationException e) {
+            // a registration of the same user or credential got there first,
+            // the rows it wrote are skipped now
+            LOG.debug("Retrying an import batch after a concurrent insert.", e);
+            written = transactionTemplate.execute(status -> insert(valid));
+        }
+        counts.add(written);
+        evict(written.inserted());
+    }
+
+    /**
+     * Inserts the users and credentials of the batch that do not exist yet.
+     */
+    private Written insert(List<Checked> batch) {
+        Map<String, ExistingUser> users = existingUsers(batch);
+        Set<ByteArray> credentials = existingCredentials(batch);
+        List<Object[]> newUsers = new ArrayList<>();
+        List<Object[]> newCredentials = new ArrayList<>();
+        List<CredentialRecord> inserted = new ArrayList<>();
+        List<Checked> conflicts = new ArrayList<>();
+        int existing = 0;
+        for (Checked checked : batch) {
+            CredentialRecord record = checked.record();
+            ExistingUser user = users.get(record.username());
+            if (user == null) {
+                user = new ExistingUser(userIds.next(), record.handle());
+                users.put(record.username(), user);
+                newUsers.add(new Object[] { user.id(), record.username(), record.displayName(),
+                        record.handle().getBytes() });
+                inserted.add(record);
+            } else if (!user.handle().equals(record.handle())) {
+                conflicts.add(new Checked(record, checked.number(), null, "username taken by another handle"));
+                continue;
+            } else if (!record.hasCredential()) {
+                existing++;
+            }
+            if (!record.hasCredential()) {
+                continue;
+            }
+            if (!credentials.add(checked.digest())) {
+                existing++;
+                continue;
+            }
+            newCredentials.add(new Object[] { authenticatorIds.next(), record.name(), record.publicKey().getBytes(),
+                    record.credentialId().getBytes(), checked.digest().getBytes(), record.signatureCount(),
+                    user.id() });
+            inserted.add(record);
+        }
+        jdbcTemplate.batchUpdate(INSERT_USER, newUsers);
+        jdbcTemplate.batchUpdate(INSERT_AUTHENTICATOR, newCredentials);
+        return new Written(newUsers.size(), newCredentials.size(), existing, conflicts, inserted);
+    }
+
+    private Map<String, ExistingUser> existingUsers(List<Checked> batch) {
+        Set<String> usernames = new HashSet<>();
+        batch.forEach(checked -> usernames.add(checked.record().username()));
+        Map<String, ExistingUser> users = new HashMap<>();
+        namedJdbcTemplate.query("select id, username, cast(handle as varbinary) as handle from user_model"
+                + " where tenant = :tenant and username in (:usernames)",
+                Map.of("tenant", UserModel.DEFAULT_TENANT, "usernames", usernames),
+                row -> {
+                    users.put(row.getString("username"),
+                            new ExistingUser(row.getLong("id"), new ByteArray(row.getBytes("handle"))));
+                });
+        return users;
+    }
+
+    private Set<ByteArray> existingCredentials(List<Checked> batch) {
+        List<byte[]> digests = new ArrayList<>();
+        batch.stream()
+                .filter(checked -> checked.digest() != null)
+                .forEach(checked -> digests.add(checked.digest().getBytes()));
+        Set<ByteArray> existing = new HashSet<>();
+        if (!digests.isEmpty()) {
+            namedJdbcTemplate.query("select credential_id_digest from authenticator_model"
+                    + " where credential_id_digest in (:digests)", Map.of("digests", digests),
+                    row -> {
+                        existing.add(new ByteArray(row.getBytes(1)));
+                    });
+        }
+        return existing;
+    }
+
+    // a lookup before the import may have cached that they do not exist
+    private void evict(List<CredentialRecord> inserted) {
+        CredentialCache credentialCache = cache.getIfAvailable();
+        if (credentialCache == null) {
+            return;
+        }
+        Map<String, CredentialRecord> users = new LinkedHashMap<>();
+        for (CredentialRecord record : inserted) {
+            users.putIfAbsent(record.username(), record);
+            if (record.hasCredential()) {
+                credentialCache.evictCredential(record.credentialId());
+            }
+        }
+        users.values().forEach(record -> credentialCache
+                .evict(new UserModel(record.username(), record.displayName(), record.handle())));
+    }
+
+    private static List<Checked> join(CompletableFuture<List<Checked>> future) throws IOException {
+        try {
+            return future.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException("Import interrupted", e);
+        } catch (ExecutionException e) {
+            throw new IllegalStateException("Validating an import batch failed", e.getCause());
+        }
+    }
+
+    @PreDestroy
+    public void close() {
+        validators.shutdownNow();
+    }
+
+    // counters of one import, kept by the thread writing the batches
+    private static final class Counts {
+
+        private long users;
+        private long credentials;
+        private long existing;
+        private long invalid;
+
+        void invalid(Checked checked) {
+            if (invalid++ < LOGGED_INVALID) {
+                LOG.warn("Record {} not imported: {}", checked.number(), checked.error());
+            }
+        }
+
+        void add(Written written) {
+            users += written.users();
+            credentials += written.credentials();
+            existing += written.existing();
+            written.conflicts().forEach(this::invalid);
+        }
+
+        Progress progress(long records) {
+            return new Progress(records, users, credentials, existing, invalid);
+        }
+    }
+
+    /**
+     * Ids of an entity sequence, fetched a block at a time. A sequence value is
+     * the highest id of its block, like Hibernate's pooled optimizer reads it.
+     */
+    private static final class IdBlocks {
+
+        private final JdbcTemplate jdbcTemplate;
+        private final String sequence;
+        private long increment;
+        private long next = 1;
+        private long high = 0;
+
+        IdBlocks(JdbcTemplate jdbcTemplate, String sequence) {
+            this.jdbcTemplate = jdbcTemplate;
+            this.sequence = sequence;
+        }
+
+        synchronized long next() {
+            if (next > high) {
+                if (increment == 0) {
+                    increment = jdbcTemplate.queryForObject("select increment from information_schema.sequences"
+                            + " where lower(sequence_name) = ?", Long.class, sequence);
+                }
+                high = jdbcTemplate.queryForObject("select next value for " + sequence, Long.class);
+                next = Math.max(1, high - increment + 1);
+            }
+            return next++;
+        }
+    }
+}
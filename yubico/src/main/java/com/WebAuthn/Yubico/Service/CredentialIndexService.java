@@ -0,0 +1,218 @@
+package com.WebAuthn.Yubico.Service;
+
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.Supplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Service;
+import org.springframework.util.unit.DataSize;
+
+import com.WebAuthn.Yubico.Model.UserModel;
+import com.WebAuthn.Yubico.Utility.OffHeapCredentialIndex;
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.data.ByteArray;
+
+import io.micrometer.core.instrument.FunctionCounter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+
+/**
+ * Keeps looked up credentials in an {@link OffHeapCredentialIndex} instead of
+ * the {@link CredentialCache}, for nodes with many millions of credentials
+ * whose cache entries would fill the heap. An entry is read again after the
+ * ttl of the cache or after {@link #expire}, so counters written by other
+ * nodes are seen after the same delay; the counter is then raised in place.
+ * A credential that does not fit into the index is read from the database
+ * every time.
+ * <p>
+ * The credentials of all tenants share one index, allocated at startup, so
+ * the memory taken does not grow with the tenants. They are keyed by the
+ * digest of the tenant and the credential id, a tenant never sees the
+ * credentials of another.
+ * <p>
+ * Removed credentials keep their slot and record. Once they take a quarter of
+ * either, or puts are refused while there are any, the index is replaced by
+ * an empty one and its credentials are read again as they are looked up.
+ * Until the old index is collected both take direct memory. A full index
+ * without removed credentials is logged and counted in
+ * credential.index.refused.
+ */
+@Service
+@ConditionalOnProperty(name = "credential-index.enabled", havingValue = "true")
+public class CredentialIndexService implements MeterBinder {
+
+    // stamp of an entry that is read again on its next lookup
+    private static final long EXPIRED = 0;
+
+    private static final Logger LOG = LoggerFactory.getLogger(CredentialIndexService.class);
+
+    private final AtomicReference<OffHeapCredentialIndex> index;
+    // the tenants looked up so far, for evictions that do not know the tenant
+    private final Set<String> tenants = ConcurrentHashMap.newKeySet();
+    private final long capacity;
+    private final long maxBytes;
+    private final long ttlMillis;
+    // puts refused by the indexes replaced so far
+    private final AtomicLong refusedBefore = new AtomicLong();
+    private final AtomicBoolean rebuilding = new AtomicBoolean();
+    // each index is logged as full once and replaced at most once
+    private volatile OffHeapCredentialIndex loggedFull;
+    private volatile OffHeapCredentialIndex notReplaced;
+
+    /**
+     * @param capacity credentials of all tenants
+     * @param maxSize  bound of the records of all tenants
+     */
+    @Autowired
+    public CredentialIndexService(@Value("${credential-index.capacity:1000000}") long capacity,
+            @Value("${credential-index.max-size:256MB}") DataSize maxSize,
+            @Value("${credential-cache.ttl:PT10M}") Duration ttl) {
+        this.capacity = capacity;
+        this.maxBytes = maxSize.toBytes();
+        // fails on startup rather than on the first lookup
+        this.index = new AtomicReference<>(new OffHeapCredentialIndex(capacity, maxBytes));
+        this.ttlMillis = ttl.toMillis();
+        tenants.add(UserModel.DEFAULT_TENANT);
+    }
+
+    /**
+     * @param loader reads the credential of the tenant when it is not in the
+     *               index or expired
+     */
+    public Optional<RegisteredCredential> lookup(String tenant, ByteArray credentialId,
+            Supplier<Optional<RegisteredCredential>> loader) {
+        tenants.add(tenant);
+        OffHeapCredentialIndex index = this.index.get();
+        ByteArray digest = digestOf(tenant, credentialId);
+        long now = System.currentTimeMillis();
+        Optional<OffHeapCredentialIndex.Entry> entry = index.get(digest);
+        if (entry.isPresent() && entry.get().stamp() != EXPIRED && now - entry.get().stamp() < ttlMillis) {
+            OffHeapCredentialIndex.Entry found = entry.get();
+            return Optional.of(RegisteredCredential.builder()
+                    .credentialId(credentialId)
+                    .userHandle(found.userHandle())
+                    .publicKeyCose(found.publicKeyCose())
+                    .signatureCount(found.signatureCount())
+                    .build());
+        }
+        Optional<RegisteredCredential> loaded = loader.get();
+        if (loaded.isEmpty()) {
+            if (index.remove(digest)) {
+                reclaim(index);
+            }
+        } else if (entry.isPresent()) {
+            // keys and handles never change, only counters
+            index.advance(digest, loaded.get().getSignatureCount());
+            index.stamp(digest, now);
+        } else {
+            RegisteredCredential credential = loaded.get();
+            if (!index.put(digest, credential.getUserHandle(), credential.getPublicKeyCose(),
+                    credential.getSignatureCount(), now)) {
+                reclaim(index);
+            }
+        }
+        return loaded;
+    }
+
+    /**
+     * Reads the credential again on its next lookup, in whichever tenant it
+     * is.
+     */
+    public void expire(ByteArray credentialId) {
+        OffHeapCredentialIndex index = this.index.get();
+        for (String tenant : tenants) {
+            index.stamp(digestOf(tenant, credentialId), EXPIRED);
+        }
+    }
+
+    /**
+     * Drops the credential, its row was added or removed.
+     */
+    public void remove(ByteArray credentialId) {
+        OffHeapCredentialIndex index = this.index.get();
+        for (String tenant : tenants) {
+            index.remove(digestOf(tenant, credentialId));
+        }
+        reclaim(index);
+    }
+
+    /**
+     * @return whether the credential is in the index for the tenant
+     */
+    public boolean contains(String tenant, ByteArray credentialId) {
+        return index.get().get(digestOf(tenant, credentialId)).isPresent();
+    }
+
+    /**
+     * @return the credentials in the index
+     */
+    public long size() {
+        return index.get().size();
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("credential.index.size", this, CredentialIndexService::size)
+                .description("Credentials in the off-heap index")
+                .register(registry);
+        Gauge.builder("credential.index.memory", this, service -> service.index.get().bytesAllocated())
+                .description("Bytes allocated outside of the heap for the credential index")
+                .baseUnit("bytes")
+                .register(registry);
+        FunctionCounter.builder("credential.index.refused", this,
+                service -> service.refusedBefore.get() + service.index.get().refused())
+                .description("Credentials not added as the off-heap index was full")
+                .register(registry);
+    }
+
+    // one caller builds the new index, the others keep using the current one
+    private void reclaim(OffHeapCredentialIndex current) {
+        if (!current.wasteful()) {
+            if (current.refused() > 0 && loggedFull != current) {
+                loggedFull = current;
+                LOG.warn("Credential index full with {} credentials, further ones are read from the database.",
+                        current.size());
+            }
+            return;
+        }
+        if (current == notReplaced || !rebuilding.compareAndSet(false, true)) {
+            return;
+        }
+        try {
+            if (index.get() == current) {
+                index.set(new OffHeapCredentialIndex(capacity, maxBytes));
+                refusedBefore.addAndGet(current.refused());
+            }
+        } catch (OutOfMemoryError e) {
+            notReplaced = current;
+            LOG.warn("Replacing the credential index failed, removed credentials are not reclaimed.", e);
+        } finally {
+            rebuilding.set(false);
+        }
+    }
+
+    private static ByteArray digestOf(String tenant, ByteArray credentialId) {
+        try {
+            MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+            sha256.update(tenant.getBytes(StandardCharsets.UTF_8));
+            sha256.update((byte) 0);
+            return new ByteArray(sha256.digest(credentialId.getBytes()));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+}
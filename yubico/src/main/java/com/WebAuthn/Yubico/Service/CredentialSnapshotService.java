@@ -0,0 +1,338 @@
+package com.WebAuthn.Yubico.Service;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Optional;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.core.RowCallbackHandler;
+import org.springframework.stereotype.Service;
+
+import com.WebAuthn.Yubico.Model.AuthenticatorModel;
+import com.WebAuthn.Yubico.Utility.CredentialSnapshot;
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.data.ByteArray;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Warm start for {@link CredentialAccessService#lookup}: the node writes a
+ * {@link CredentialSnapshot} of all credentials every interval and maps the
+ * last one when it starts, so lookups are served from the file instead of
+ * the database while the cache is cold.
+ * <p>
+ * The snapshot is up to an interval older than the database. Right after
+ * mapping it, the rows are streamed once in the background: a credential
+ * whose row still matches is confirmed, one whose counter moved on is marked
+ * stale, and one that is gone is never confirmed. Only confirmed credentials
+ * are served, everything else is looked up in the database, so a credential
+ * removed since the snapshot was written never authenticates from it.
+ * Credentials added since are not in the snapshot anyway. Counters this node
+ * writes later mark theirs stale through the {@link CredentialCache}
+ * evictions. A credential is only served to a lookup of its own tenant.
+ * The snapshot serves for serve-for after startup, about as long as a cached
+ * entry lives, so writes of other nodes are seen after the same delay.
+ */
+@Service
+@ConditionalOnExpression("'${credential-snapshot.file:}' != ''")
+public class CredentialSnapshotService implements MeterBinder {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CredentialSnapshotService.class);
+
+    private static final String SELECT_CREDENTIALS = "select a.credential_id, a.credential_id_digest, a.public_key,"
+            + " a.usage_count, u.tenant, cast(u.handle as varbinary) as handle"
+            + " from authenticator_model a join user_model u on a.user_id = u.id";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final Path file;
+    private final int fetchSize;
+    private final ScheduledExecutorService worker;
+    private volatile Mapped mapped;
+    private volatile boolean closed;
+    private volatile Counter hits;
+    private volatile Counter misses;
+
+    // a mapped snapshot with a confirmed and a stale bit per slot, a slot is
+    // served while it is confirmed and not stale
+    private static final class Mapped {
+
+        final CredentialSnapshot snapshot;
+        final AtomicLongArray confirmed;
+        final AtomicLongArray stale;
+        final long servingUntil;
+
+        Mapped(CredentialSnapshot snapshot, Duration serveFor) {
+            this.snapshot = snapshot;
+            this.confirmed = new AtomicLongArray((int) ((snapshot.slots() + 63) / 64));
+            this.stale = new AtomicLongArray((int) ((snapshot.slots() + 63) / 64));
+            this.servingUntil = System.nanoTime() + serveFor.toNanos();
+        }
+
+        boolean isServed(long slot) {
+            long bit = 1L << slot;
+            int word = (int) (slot >>> 6);
+            return (confirmed.get(word) & bit) != 0 && (stale.get(word) & bit) == 0;
+        }
+
+        boolean isConfirmed(long slot) {
+            return (confirmed.get((int) (slot >>> 6)) & (1L << slot)) != 0;
+        }
+
+        void markConfirmed(long slot) {
+            confirmed.getAndUpdate((int) (slot >>> 6), bits -> bits | (1L << slot));
+        }
+
+        void markStale(long slot) {
+            stale.getAndUpdate((int) (slot >>> 6), bits -> bits | (1L << slot));
+        }
+    }
+
+    @Autowired
+    public CredentialSnapshotService(JdbcTemplate jdbcTemplate,
+            @Value("${credential-snapshot.file}") Path file,
+            @Value("${credential-snapshot.interval:PT1H}") Duration interval,
+            @Value("${credential-snapshot.serve-for:PT10M}") Duration serveFor,
+            @Value("${credential-snapshot.fetch-size:1000}") int fetchSize) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.file = file;
+        this.fetchSize = fetchSize;
+        this.worker = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "credential-snapshot");
+            thread.setDaemon(true);
+            return thread;
+        });
+        this.mapped = map(file, serveFor);
+        if (mapped != null) {
+            worker.execute(this::replayQuietly);
+        }
+        // without a snapshot to start from, the first one is written right away
+        worker.scheduleWithFixedDelay(this::writeQuietly, mapped == null ? 0 : interval.toMillis(),
+                interval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    private static Mapped map(Path file, Duration serveFor) {
+        if (!Files.exists(file)) {
+            return null;
+        }
+        try {
+            CredentialSnapshot snapshot = CredentialSnapshot.open(file);
+            LOG.info("Mapped the credential snapshot {} of {} with {} credentials.", file,
+                    Instant.ofEpochMilli(snapshot.created()), snapshot.records());
+            return new Mapped(snapshot, serveFor);
+        } catch (IOException e) {
+            LOG.warn("Credential snapshot {} not used: {}", file, e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * @param tenant tenant of the relying party looking the credential up
+     * @return the credential as of the snapshot, empty if it has to be looked up
+     *         in the database
+     */
+    public Optional<RegisteredCredential> lookup(String tenant, ByteArray credentialId) {
+        Mapped current = serving();
+        if (current == null) {
+            return Optional.empty();
+        }
+        long slot = current.snapshot.slotOf(AuthenticatorModel.digestOf(credentialId));
+        if (slot < 0 || !current.isServed(slot)) {
+            count(misses);
+            return Optional.empty();
+        }
+        CredentialSnapshot.Entry entry = current.snapshot.entry(slot);
+        if (!entry.tenant().equals(tenant)) {
+            count(misses);
+            return Optional.empty();
+        }
+        count(hits);
+        return Optional.of(RegisteredCredential.builder()
+                .credentialId(credentialId)
+                .userHandle(entry.userHandle())
+                .publicKeyCose(entry.publicKeyCose())
+                .signatureCount(entry.signatureCount())
+                .build());
+    }
+
+    /**
+     * Stops serving the credential from the snapshot, its row changed.
+     */
+    public void invalidate(ByteArray credentialId) {
+        Mapped current = serving();
+        if (current != null) {
+            long slot = current.snapshot.slotOf(AuthenticatorModel.digestOf(credentialId));
+            if (slot >= 0) {
+                current.markStale(slot);
+            }
+        }
+    }
+
+    /**
+     * @return true while a snapshot serves lookups
+     */
+    public boolean isServing() {
+        return serving() != null;
+    }
+
+    private Mapped serving() {
+        Mapped current = mapped;
+        if (current != null && System.nanoTime() - current.servingUntil > 0) {
+            // the mapping is released with the last reference to it
+            mapped = null;
+            LOG.info("Credential snapshot no longer served.");
+            return null;
+        }
+        return current;
+    }
+
+    /**
+     * Confirms every credential whose row matches the snapshot and marks the
+     * ones whose counter moved on as stale.
+     */
+    void replay() {
+        Mapped current = mapped;
+        if (current == null) {
+            return;
+        }
+        long start = System.nanoTime();
+        CredentialSnapshot snapshot = current.snapshot;
+        long[] changed = new long[1];
+        stream(row -> {
+            long slot = snapshot.slotOf(new ByteArray(row.getBytes("credential_id_digest")));
+            if (slot >= 0) {
+                // keys, handles and tenants never change, only counters
+                if (snapshot.signatureCount(slot) == row.getLong("usage_count")) {
+                    current.markConfirmed(slot);
+                } else {
+                    current.markStale(slot);
+                    changed[0]++;
+                }
+            }
+        });
+        // never confirmed, so never served
+        long removed = 0;
+        for (long slot = 0; slot < snapshot.slots(); slot++) {
+            if (snapshot.isOccupied(slot) && !current.isConfirmed(slot)) {
+                removed++;
+            }
+        }
+        LOG.info("Replayed the database over the credential snapshot in {} ms: {} changed, {} removed.",
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start), changed[0], removed);
+    }
+
+    /**
+     * Writes a new snapshot next to the file and moves it in place, a mapped
+     * one stays valid.
+     */
+    synchronized void write() throws IOException {
+        long start = System.nanoTime();
+        Long expected = jdbcTemplate.queryForObject("select count(*) from authenticator_model", Long.class);
+        Path written = file.resolveSibling(file.getFileName() + ".tmp");
+        long records;
+        long skipped;
+        try (CredentialSnapshot.Writer writer = CredentialSnapshot.writer(written, expected)) {
+            long[] rows = new long[1];
+            stream(row -> {
+                rows[0]++;
+                try {
+                    writer.add(new ByteArray(row.getBytes("credential_id_digest")), row.getString("tenant"),
+                            new ByteArray(row.getBytes("handle")), new ByteArray(row.getBytes("public_key")),
+                            row.getLong("usage_count"));
+                } catch (IOException e) {
+                    throw new UncheckedIOException(e);
+                }
+            });
+            records = writer.count();
+            skipped = rows[0] - records;
+        } catch (UncheckedIOException e) {
+            throw e.getCause();
+        }
+        Files.move(written, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        LOG.info("Wrote the credential snapshot {} with {} credentials in {} ms{}.", file, records,
+                TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start),
+                skipped == 0 ? "" : ", " + skipped + " left to the database");
+    }
+
+    // one forward only cursor, like the export
+    private void stream(RowCallbackHandler handler) {
+        jdbcTemplate.query(con -> {
+            PreparedStatement statement = con.prepareStatement(SELECT_CREDENTIALS, ResultSet.TYPE_FORWARD_ONLY,
+                    ResultSet.CONCUR_READ_ONLY);
+            statement.setFetchSize(fetchSize);
+            return statement;
+        }, row -> {
+            if (closed) {
+                throw new CancellationException("Credential snapshot closed");
+            }
+            handler.processRow(row);
+        });
+    }
+
+    private void replayQuietly() {
+        try {
+            replay();
+        } catch (CancellationException e) {
+            mapped = null;
+        } catch (RuntimeException e) {
+            // nothing is known to be current, stop serving
+            mapped = null;
+            LOG.warn("Replaying the database over the credential snapshot failed.", e);
+        }
+    }
+
+    private void writeQuietly() {
+        try {
+            write();
+        } catch (CancellationException e) {
+            // the next start writes one
+        } catch (IOException | RuntimeException e) {
+            // the previous snapshot stays, the next interval tries again
+            LOG.warn("Writing the credential snapshot failed.", e);
+        }
+    }
+
+    private static void count(Counter counter) {
+        if (counter != null) {
+            counter.increment();
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        hits = Counter.builder("credential.snapshot.lookups").tag("result", "hit")
+                .description("Credential lookups served from the snapshot")
+                .register(registry);
+        misses = Counter.builder("credential.snapshot.lookups").tag("result", "miss")
+                .description("Credential lookups the snapshot left to the database")
+                .register(registry);
+    }
+
+    @PreDestroy
+    public void close() throws InterruptedException {
+        // no interrupt, it would close the file channel of an embedded
+        // database under the running query
+        closed = true;
+        worker.shutdown();
+        worker.awaitTermination(10, TimeUnit.SECONDS);
+    }
+}
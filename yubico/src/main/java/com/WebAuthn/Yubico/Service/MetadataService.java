@@ -1,45 +1,173 @@
 package com.WebAuthn.Yubico.Service;
 
+import com.yubico.fido.metadata.AAGUID;
 import com.yubico.fido.metadata.FidoMetadataDownloader;
 import com.yubico.fido.metadata.FidoMetadataService;
+import com.yubico.fido.metadata.MetadataBLOBPayload;
+import com.yubico.fido.metadata.MetadataBLOBPayloadEntry;
+import com.yubico.fido.metadata.MetadataStatement;
+import com.yubico.webauthn.data.ByteArray;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.annotation.PreDestroy;
 
 import java.io.File;
-import java.security.*;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
 import org.springframework.stereotype.Service;
 
-//@Service
-public class MetadataService {
+/**
+ * FIDO metadata of authenticator models, indexed by AAGUID.
+ * The service is usable right away and knows no authenticator until the blob
+ * file is loaded on a background thread. The file is checked again every
+ * refresh interval and a changed blob is swapped in as a new index, lookups
+ * never wait for a load.
+ */
+@Service
+@ConditionalOnProperty(name = "metadata.enabled", havingValue = "true")
+public class MetadataService implements MeterBinder {
+
+    private static final Logger LOG = LoggerFactory.getLogger(MetadataService.class);
 
-    FidoMetadataDownloader downloader;
-    FidoMetadataService mds;
+    private static final String LEGAL_HEADER = "Retrieval and use of this BLOB indicates acceptance of the appropriate agreement located at https://fidoalliance.org/metadata/metadata-legal-terms/";
+
+    private final File blobFile;
+    private final File trustRootFile;
+    private final ScheduledExecutorService loader;
+    private volatile Index index = new Index(Map.of(), null, -1, -1);
+    private volatile Timer loadTimer;
+
+    // immutable, replaced as a whole
+    private record Index(Map<AAGUID, MetadataBLOBPayloadEntry> byAaguid, FidoMetadataService mds,
+            long blobSize, long blobModified) {
+    }
 
     @Autowired
-    public MetadataService() throws NoSuchAlgorithmException, InvalidAlgorithmParameterException,
-            SignatureException, InvalidKeyException {
+    public MetadataService(@Value("${metadata.blob-file:./fido-mds-blob}") File blobFile,
+            @Value("${metadata.trust-root-file:./fido-mds-trust-root}") File trustRootFile,
+            @Value("${metadata.refresh-interval:PT1H}") Duration refreshInterval) {
+        this.blobFile = blobFile;
+        this.trustRootFile = trustRootFile;
+        this.loader = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "metadata-load");
+            thread.setDaemon(true);
+            return thread;
+        });
+        loader.scheduleWithFixedDelay(this::refreshQuietly, 0, refreshInterval.toMillis(), TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * @return the metadata of the authenticator model, empty while the blob is
+     *         not loaded yet
+     */
+    public Optional<MetadataBLOBPayloadEntry> find(ByteArray aaguid) {
+        return Optional.ofNullable(index.byAaguid().get(new AAGUID(aaguid)));
+    }
+
+    public Optional<String> description(ByteArray aaguid) {
+        return find(aaguid)
+                .flatMap(MetadataBLOBPayloadEntry::getMetadataStatement)
+                .flatMap(MetadataStatement::getDescription);
+    }
+
+    /**
+     * @return the service for the full metadata checks, empty while the blob
+     *         is not loaded yet
+     */
+    public Optional<FidoMetadataService> getMds() {
+        return Optional.ofNullable(index.mds());
+    }
+
+    public boolean isLoaded() {
+        return index.mds() != null;
+    }
+
+    public int size() {
+        return index.byAaguid().size();
+    }
+
+    /**
+     * Loads the blob file if it changed since the last load.
+     *
+     * @return true if a new index was published
+     */
+    public boolean refresh() throws Exception {
+        long size = blobFile.length();
+        long modified = blobFile.lastModified();
+        Index current = index;
+        if (!blobFile.isFile() || (size == current.blobSize() && modified == current.blobModified())) {
+            return false;
+        }
+        long start = System.nanoTime();
+        String blob = Files.readString(blobFile.toPath(), StandardCharsets.US_ASCII).trim();
+        FidoMetadataDownloader downloader = FidoMetadataDownloader.builder()
+                .expectLegalHeader(LEGAL_HEADER)
+                .useDefaultTrustRoot()
+                .useTrustRootCacheFile(trustRootFile)
+                .useBlob(blob)
+                .verifyDownloadsOnly(true) // Recommended, otherwise cache may expire if BLOB certificate expires
+                // See: https://github.com/Yubico/java-webauthn-server/issues/294
+                .build();
+        publish(downloader.loadCachedBlob().getPayload(), size, modified);
+        long elapsed = System.nanoTime() - start;
+        Timer timer = loadTimer;
+        if (timer != null) {
+            timer.record(elapsed, TimeUnit.NANOSECONDS);
+        }
+        LOG.info("Loaded {} authenticator models from {} in {} ms.", index.byAaguid().size(), blobFile,
+                TimeUnit.NANOSECONDS.toMillis(elapsed));
+        return true;
+    }
+
+    void publish(MetadataBLOBPayload payload, long blobSize, long blobModified) throws Exception {
+        Map<AAGUID, MetadataBLOBPayloadEntry> byAaguid = new HashMap<>();
+        for (MetadataBLOBPayloadEntry entry : payload.getEntries()) {
+            entry.getAaguid().ifPresent(aaguid -> byAaguid.put(aaguid, entry));
+        }
+        FidoMetadataService mds = FidoMetadataService.builder()
+                .useBlob(payload)
+                .build();
+        index = new Index(Map.copyOf(byAaguid), mds, blobSize, blobModified);
+    }
+
+    private void refreshQuietly() {
         try {
-            downloader = FidoMetadataDownloader.builder()
-                    .expectLegalHeader(
-                            "Retrieval and use of this BLOB indicates acceptance of the appropriate agreement located at https://fidoalliance.org/metadata/metadata-legal-terms/")
-                    .useDefaultTrustRoot()
-                    .useTrustRootCacheFile(new File("./fido-mds-trust-root"))
-                    .useDefaultBlob()
-                    .useBlobCacheFile(new File("./fido-mds-blob"))
-                    .verifyDownloadsOnly(true) // Recommended, otherwise cache may expire if BLOB certificate expires
-                    // See: https://github.com/Yubico/java-webauthn-server/issues/294
-                    .build();
-
-            mds = FidoMetadataService.builder()
-                    .useBlob(downloader.loadCachedBlob())
-                    .build();
-            System.out.println("done");
+            refresh();
         } catch (Exception e) {
-            throw new RuntimeException("Metadataservice can not be build.");
+            // the current index stays in use until the next refresh
+            LOG.warn("Loading the metadata blob {} failed.", blobFile, e);
         }
     }
 
-    public FidoMetadataService getMds() {
-        return this.mds;
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("metadata.entries", this, MetadataService::size)
+                .description("Authenticator models in the metadata index")
+                .register(registry);
+        loadTimer = Timer.builder("metadata.load")
+                .description("Time to verify and index the metadata blob")
+                .register(registry);
+    }
+
+    @PreDestroy
+    public void close() {
+        loader.shutdownNow();
     }
-}
\ No newline at end of file
+}
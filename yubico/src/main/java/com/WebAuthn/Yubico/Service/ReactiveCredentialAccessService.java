@@ -0,0 +1,224 @@
+package com.WebAuthn.Yubico.Service;
+
+import com.WebAuthn.Yubico.Repository.ReactiveCredentialStore;
+import com.WebAuthn.Yubico.Repository.ReactiveCredentialStore.UserRow;
+import com.yubico.webauthn.CredentialRepository;
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.stereotype.Service;
+
+import reactor.core.publisher.Mono;
+
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.OptionalLong;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+/**
+ * Reactive adapter for the {@link CredentialRepository} contract of the yubico
+ * library, which is called synchronously inside the ceremony steps. Before a
+ * step runs, everything it may look up is loaded without blocking into an
+ * immutable repository, so the step itself never touches the database.
+ * <p>
+ * The relying parties of the tenants are built once, on {@link #stepRepository()}.
+ * A step runs through {@link #withCredentials}, which makes the loaded
+ * repository the one that stepRepository() answers from on the running thread
+ * until the step returns.
+ */
+@Service
+@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+public class ReactiveCredentialAccessService {
+
+    /**
+     * A ceremony step of the yubico library.
+     */
+    @FunctionalInterface
+    public interface Step<T, E extends Exception> {
+        T run() throws E;
+    }
+
+    // the repository loaded for the step running on this thread
+    private static final ThreadLocal<CredentialRepository> STEP_CREDENTIALS = new ThreadLocal<>();
+
+    private final ReactiveCredentialStore store;
+    private final SignatureCounterUpdater counterUpdater;
+    private final CredentialRepository stepRepository = new StepRepository();
+
+    @Autowired
+    public ReactiveCredentialAccessService(ReactiveCredentialStore store, SignatureCounterUpdater counterUpdater) {
+        this.store = store;
+        this.counterUpdater = counterUpdater;
+    }
+
+    public ReactiveCredentialStore getStore() {
+        return store;
+    }
+
+    /**
+     * @return the repository for the relying parties of the reactive endpoints,
+     *         it answers from the credentials of the step running on the
+     *         calling thread
+     */
+    public CredentialRepository stepRepository() {
+        return stepRepository;
+    }
+
+    /**
+     * Runs a step of a relying party built on {@link #stepRepository()} with
+     * the credentials loaded for it. The step runs synchronously on the calling
+     * thread.
+     */
+    public <T, E extends Exception> T withCredentials(CredentialRepository credentials, Step<T, E> step) throws E {
+        STEP_CREDENTIALS.set(credentials);
+        try {
+            return step.run();
+        } finally {
+            STEP_CREDENTIALS.remove();
+        }
+    }
+
+    /**
+     * @return the user and the ids of their credentials, as needed by
+     *         startRegistration and startAssertion
+     */
+    public Mono<CredentialRepository> forUser(UserRow user) {
+        return store.findCredentialIdsByUsername(user.tenant(), user.username())
+                .collectList()
+                .map(credentialIds -> {
+                    Prefetched repository = new Prefetched();
+                    repository.add(user);
+                    repository.descriptors.put(user.username(), descriptors(credentialIds));
+                    return repository;
+                });
+    }
+
+    /**
+     * @return the credential and the users of the tenant it may belong to, as
+     *         needed by finishRegistration and finishAssertion
+     * @param username   username of the request, if any
+     * @param userHandle user handle of the response, if any, only used without
+     *                   a username
+     */
+    public Mono<CredentialRepository> forCredential(String tenant, ByteArray credentialId, Optional<String> username,
+            Optional<ByteArray> userHandle) {
+        Mono<Optional<UserRow>> byUsername = username.map(name -> store.findUserByUsername(tenant, name))
+                .orElse(Mono.empty())
+                .map(Optional::of).defaultIfEmpty(Optional.empty());
+        // the library resolves the user handle only if the request has no username
+        Mono<Optional<UserRow>> byHandle = userHandle.filter(handle -> username.isEmpty())
+                .map(handle -> store.findUserByHandle(tenant, handle)).orElse(Mono.empty())
+                .map(Optional::of).defaultIfEmpty(Optional.empty());
+        Mono<Optional<RegisteredCredential>> credential = store.findRegisteredCredential(tenant, credentialId)
+                .map(Optional::of).defaultIfEmpty(Optional.empty());
+        return Mono.zip(byUsername, byHandle, credential)
+                .map(loaded -> {
+                    Prefetched repository = new Prefetched();
+                    loaded.getT1().ifPresent(repository::add);
+                    loaded.getT2().ifPresent(repository::add);
+                    loaded.getT3().map(this::withPendingCount)
+                            .ifPresent(found -> repository.credentials.put(credentialId, found));
+                    return repository;
+                });
+    }
+
+    // a counter that is not yet written to the database wins over the stored one,
+    // as in CredentialAccessService
+    private RegisteredCredential withPendingCount(RegisteredCredential stored) {
+        OptionalLong pending = counterUpdater.pendingCount(stored.getCredentialId());
+        if (pending.isEmpty() || pending.getAsLong() <= stored.getSignatureCount()) {
+            return stored;
+        }
+        return stored.toBuilder().signatureCount(pending.getAsLong()).build();
+    }
+
+    private static Set<PublicKeyCredentialDescriptor> descriptors(List<ByteArray> credentialIds) {
+        return credentialIds.stream()
+                .map(credentialId -> PublicKeyCredentialDescriptor.builder()
+                        .id(credentialId)
+                        .build())
+                .collect(Collectors.toUnmodifiableSet());
+    }
+
+    private static final class StepRepository implements CredentialRepository {
+
+        private static CredentialRepository current() {
+            CredentialRepository credentials = STEP_CREDENTIALS.get();
+            if (credentials == null) {
+                throw new IllegalStateException("No ceremony step running on this thread");
+            }
+            return credentials;
+        }
+
+        @Override
+        public Set<PublicKeyCredentialDescriptor> getCredentialIdsForUsername(String username) {
+            return current().getCredentialIdsForUsername(username);
+        }
+
+        @Override
+        public Optional<ByteArray> getUserHandleForUsername(String username) {
+            return current().getUserHandleForUsername(username);
+        }
+
+        @Override
+        public Optional<String> getUsernameForUserHandle(ByteArray userHandle) {
+            return current().getUsernameForUserHandle(userHandle);
+        }
+
+        @Override
+        public Optional<RegisteredCredential> lookup(ByteArray credentialId, ByteArray userHandle) {
+            return current().lookup(credentialId, userHandle);
+        }
+
+        @Override
+        public Set<RegisteredCredential> lookupAll(ByteArray credentialId) {
+            return current().lookupAll(credentialId);
+        }
+    }
+
+    // answers only what was loaded for one ceremony step, nothing else exists
+    private static final class Prefetched implements CredentialRepository {
+
+        private final Map<String, ByteArray> handles = new HashMap<>();
+        private final Map<ByteArray, String> usernames = new HashMap<>();
+        private final Map<String, Set<PublicKeyCredentialDescriptor>> descriptors = new HashMap<>();
+        private final Map<ByteArray, RegisteredCredential> credentials = new HashMap<>();
+
+        private void add(UserRow user) {
+            handles.put(user.username(), user.handle());
+            usernames.put(user.handle(), user.username());
+        }
+
+        @Override
+        public Set<PublicKeyCredentialDescriptor> getCredentialIdsForUsername(String username) {
+            return descriptors.getOrDefault(username, Set.of());
+        }
+
+        @Override
+        public Optional<ByteArray> getUserHandleForUsername(String username) {
+            return Optional.ofNullable(handles.get(username));
+        }
+
+        @Override
+        public Optional<String> getUsernameForUserHandle(ByteArray userHandle) {
+            return Optional.ofNullable(usernames.get(userHandle));
+        }
+
+        @Override
+        public Optional<RegisteredCredential> lookup(ByteArray credentialId, ByteArray userHandle) {
+            return Optional.ofNullable(credentials.get(credentialId))
+                    .filter(credential -> credential.getUserHandle().equals(userHandle));
+        }
+
+        @Override
+        public Set<RegisteredCredential> lookupAll(ByteArray credentialId) {
+            RegisteredCredential credential = credentials.get(credentialId);
+            return credential == null ? Set.of() : Set.of(credential);
+        }
+    }
+}
@@ -0,0 +1,253 @@
+package com.WebAuthn.Yubico.Service;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.DisposableBean;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import com.WebAuthn.Yubico.Model.UserModel;
+import com.WebAuthn.Yubico.Utility.CustomAttestationTrustSource;
+import com.WebAuthn.Yubico.Utility.TenantConfig;
+import com.yubico.webauthn.RelyingParty;
+import com.yubico.webauthn.data.RelyingPartyIdentity;
+
+/**
+ * The relying party of every host. A host with a {@link TenantConfig} file in
+ * the tenant directory gets its own immutable RelyingParty, built on its
+ * first request and kept by the host; every other host is served by the
+ * default relying party. A tenant's relying party is a copy of the default
+ * one with the identity, origins, users and, if it has its own, trust store
+ * of its config, so every other setting of the default bean applies to the
+ * tenants as well. The directory is polled: new files are picked up,
+ * changed ones replace the relying party of their host and removed ones drop
+ * it, the trust stores of the tenants are reloaded as well.
+ * <p>
+ * With WebFlux every tenant also keeps a relying party for the reactive
+ * endpoints, built once on the step repository of
+ * {@link ReactiveCredentialAccessService}, as building one looks up the
+ * providers of every key algorithm.
+ */
+@Service
+public class RelyingPartyRegistry implements DisposableBean {
+
+    private static final Logger LOG = LoggerFactory.getLogger(RelyingPartyRegistry.class);
+
+    private static final String SUFFIX = ".properties";
+
+    /**
+     * @param partition    tenant of the users, see {@link UserModel#getTenant()}
+     * @param relyingParty relying party of the host, reading the users of the
+     *                     partition
+     * @param reactiveRelyingParty the same on the credentials loaded for a step
+     *                     of the reactive endpoints, null without WebFlux
+     */
+    public record Tenant(String partition, RelyingParty relyingParty, RelyingParty reactiveRelyingParty) {
+    }
+
+    // the trust source only if the tenant has its own
+    private record Loaded(Tenant tenant, TenantConfig config, CustomAttestationTrustSource trustSource) {
+    }
+
+    private final Tenant defaultTenant;
+    private final CredentialAccessService accessService;
+    private final ReactiveCredentialAccessService reactiveAccess;
+    private final CeremonyMetrics metrics;
+    private final long maxCachedChains;
+    private final Path directory;
+    private final ScheduledExecutorService poller;
+    // the config files by host as last listed, and the tenants built from them
+    private volatile Map<String, Path> configs = Map.of();
+    private final ConcurrentMap<String, Loaded> loaded = new ConcurrentHashMap<>();
+
+    @Autowired
+    public RelyingPartyRegistry(RelyingParty relyingParty, CredentialAccessService accessService,
+            ObjectProvider<ReactiveCredentialAccessService> reactiveAccess, CeremonyMetrics metrics,
+            @Value("${tenants.dir:}") String directory,
+            @Value("${tenants.poll-interval:PT30S}") Duration pollInterval,
+            @Value("${attestation.chain-cache.max-size:10000}") long maxCachedChains) throws IOException {
+        this.accessService = accessService;
+        this.reactiveAccess = reactiveAccess.getIfAvailable();
+        this.defaultTenant = tenant(UserModel.DEFAULT_TENANT, relyingParty);
+        this.metrics = metrics;
+        this.maxCachedChains = maxCachedChains;
+        this.directory = directory.isBlank() ? null : Path.of(directory);
+        if (this.directory == null) {
+            this.poller = null;
+            return;
+        }
+        this.configs = list(this.directory);
+        LOG.info("Found {} tenants in {}.", configs.size(), directory);
+        if (pollInterval.isZero()) {
+            this.poller = null;
+        } else {
+            this.poller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "tenant-reload");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long intervalMs = pollInterval.toMillis();
+            poller.scheduleWithFixedDelay(this::reloadQuietly, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    /**
+     * @param host host of the request, without the port
+     * @throws IllegalStateException if the config of the host cannot be read
+     */
+    public Tenant forHost(String host) {
+        if (host == null || configs.isEmpty()) {
+            return defaultTenant;
+        }
+        String key = host.toLowerCase(Locale.ROOT);
+        Loaded current = loaded.get(key);
+        if (current != null) {
+            return current.tenant();
+        }
+        Path file = configs.get(key);
+        return file == null ? defaultTenant : load(key, file).tenant();
+    }
+
+    public Tenant defaultTenant() {
+        return defaultTenant;
+    }
+
+    /**
+     * Lists the tenant directory again and rebuilds the relying parties whose
+     * config changed. A tenant that fails to load keeps its relying party.
+     */
+    public void reload() throws IOException {
+        if (directory == null) {
+            return;
+        }
+        Map<String, Path> listed = list(directory);
+        configs = listed;
+        for (Map.Entry<String, Loaded> entry : loaded.entrySet()) {
+            String host = entry.getKey();
+            Loaded current = entry.getValue();
+            Path file = listed.get(host);
+            if (file == null) {
+                if (loaded.remove(host, current)) {
+                    close(current);
+                    LOG.info("Dropped the relying party of {}.", host);
+                }
+                continue;
+            }
+            try {
+                TenantConfig config = TenantConfig.load(host, file);
+                if (config.equals(current.config())) {
+                    if (current.trustSource() != null) {
+                        current.trustSource().reload();
+                    }
+                    continue;
+                }
+                Loaded fresh = build(config);
+                if (loaded.replace(host, current, fresh)) {
+                    close(current);
+                    LOG.info("Reloaded the relying party {} of {}.", config.rpId(), host);
+                } else {
+                    close(fresh);
+                }
+            } catch (IOException | RuntimeException e) {
+                LOG.warn("Reloading the relying party of {} failed.", host, e);
+            }
+        }
+    }
+
+    public int loadedTenants() {
+        return loaded.size();
+    }
+
+    @Override
+    public void destroy() {
+        if (poller != null) {
+            poller.shutdownNow();
+        }
+        loaded.values().forEach(RelyingPartyRegistry::close);
+    }
+
+    // built outside of the map's locks, a concurrent load of the same host is
+    // dropped again
+    private Loaded load(String host, Path file) {
+        Loaded fresh;
+        try {
+            fresh = build(TenantConfig.load(host, file));
+        } catch (IOException | RuntimeException e) {
+            throw new IllegalStateException("Cannot load the relying party of " + host, e);
+        }
+        Loaded raced = loaded.putIfAbsent(host, fresh);
+        if (raced != null) {
+            close(fresh);
+            return raced;
+        }
+        LOG.info("Loaded the relying party {} of {}.", fresh.config().rpId(), host);
+        return fresh;
+    }
+
+    private Loaded build(TenantConfig config) {
+        // reloaded with the tenant directory, not by a poller of its own
+        CustomAttestationTrustSource own = config.trustStoreDir() == null ? null
+                : new CustomAttestationTrustSource(config.trustStoreDir(), Duration.ZERO, maxCachedChains);
+        RelyingParty.RelyingPartyBuilder builder = defaultTenant.relyingParty().toBuilder()
+                .identity(RelyingPartyIdentity.builder()
+                        .id(config.rpId())
+                        .name(config.rpName())
+                        .build())
+                .credentialRepository(accessService.forTenant(config.partition()))
+                .origins(config.origins());
+        if (own != null) {
+            builder.attestationTrustSource(metrics.timed(own));
+        }
+        return new Loaded(tenant(config.partition(), builder.build()), config, own);
+    }
+
+    private Tenant tenant(String partition, RelyingParty relyingParty) {
+        return new Tenant(partition, relyingParty, reactiveAccess == null ? null
+                : relyingParty.toBuilder().credentialRepository(reactiveAccess.stepRepository()).build());
+    }
+
+    private static void close(Loaded tenant) {
+        if (tenant.trustSource() != null) {
+            tenant.trustSource().close();
+        }
+    }
+
+    private static Map<String, Path> list(Path directory) throws IOException {
+        Map<String, Path> configs = new HashMap<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(Files::isRegularFile)
+                    .filter(file -> file.getFileName().toString().endsWith(SUFFIX))
+                    .forEach(file -> {
+                        String name = file.getFileName().toString();
+                        configs.put(name.substring(0, name.length() - SUFFIX.length()).toLowerCase(Locale.ROOT),
+                                file);
+                    });
+        }
+        return Map.copyOf(configs);
+    }
+
+    private void reloadQuietly() {
+        try {
+            reload();
+        } catch (IOException | RuntimeException e) {
+            // the current tenants stay in use until the next poll
+            LOG.warn("Listing the tenants in {} failed.", directory, e);
+        }
+    }
+}
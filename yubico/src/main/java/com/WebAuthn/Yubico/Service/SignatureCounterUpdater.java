@@ -0,0 +1,202 @@
+package com.WebAuthn.Yubico.Service;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.OptionalLong;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.stereotype.Service;
+
+import com.WebAuthn.Yubico.Model.AuthenticatorModel;
+import com.WebAuthn.Yubico.Repository.AuthenticatorModelRepository;
+import com.yubico.webauthn.data.ByteArray;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.annotation.PreDestroy;
+
+/**
+ * Updates the signature counters after successful assertions.
+ * In write-behind mode a new counter is visible to
+ * {@link CredentialAccessService#lookup} right away, so clone detection sees
+ * it, while the database is updated in JDBC batches every flush interval or as
+ * soon as a batch is full. Repeated updates of one credential are coalesced to
+ * the highest counter. Pending counters are flushed on shutdown.
+ * In direct mode every counter is written at once with one conditional update.
+ */
+@Service
+public class SignatureCounterUpdater implements MeterBinder {
+
+    private static final Logger LOG = LoggerFactory.getLogger(SignatureCounterUpdater.class);
+
+    // never lowers a counter, e.g. when another node already wrote a higher one
+    private static final String UPDATE = "update authenticator_model set usage_count = ?"
+            + " where credential_id_digest = ? and usage_count < ?";
+
+    private final JdbcTemplate jdbcTemplate;
+    private final AuthenticatorModelRepository authRepo;
+    private final CredentialCache cache;
+    private final boolean direct;
+    private final int batchSize;
+    private final Map<ByteArray, Long> pending = new ConcurrentHashMap<>();
+    private final ScheduledExecutorService flusher;
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+    private final ReentrantLock flushLock = new ReentrantLock();
+    private volatile Timer flushTimer;
+
+    @Autowired
+    public SignatureCounterUpdater(JdbcTemplate jdbcTemplate, AuthenticatorModelRepository authRepo,
+            CredentialCache cache,
+            @Value("${signature-counter.mode:write-behind}") String mode,
+            @Value("${signature-counter.flush-interval:PT1S}") Duration flushInterval,
+            @Value("${signature-counter.batch-size:500}") int batchSize) {
+        this.jdbcTemplate = jdbcTemplate;
+        this.authRepo = authRepo;
+        this.cache = cache;
+        this.direct = "direct".equalsIgnoreCase(mode);
+        this.batchSize = batchSize;
+        this.flusher = Executors.newSingleThreadScheduledExecutor(runnable -> {
+            Thread thread = new Thread(runnable, "signature-counter-flush");
+            thread.setDaemon(true);
+            return thread;
+        });
+        long intervalMs = flushInterval.toMillis();
+        flusher.scheduleWithFixedDelay(this::flushQuietly, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Records the counter of a successful assertion.
+     *
+     * @return false if the counter did not advance past the last recorded one,
+     *         e.g. a concurrent login with the same counter, which hints at a
+     *         cloned authenticator
+     */
+    public boolean record(ByteArray credentialId, long signatureCount) {
+        if (signatureCount == 0) {
+            // the authenticator does not count, nothing to store
+            return true;
+        }
+        if (direct) {
+            boolean advanced = authRepo.advanceUsageCount(AuthenticatorModel.digestOf(credentialId),
+                    signatureCount) == 1;
+            cache.evictCredential(credentialId);
+            return advanced;
+        }
+        long[] previous = new long[1];
+        pending.compute(credentialId, (id, current) -> {
+            previous[0] = current == null ? 0 : current;
+            return current == null ? signatureCount : Math.max(current, signatureCount);
+        });
+        if (pending.size() >= batchSize && flushRequested.compareAndSet(false, true)) {
+            flusher.execute(this::flushQuietly);
+        }
+        return signatureCount > previous[0];
+    }
+
+    /**
+     * @return the counter that is not yet written to the database, if any
+     */
+    public OptionalLong pendingCount(ByteArray credentialId) {
+        Long count = pending.get(credentialId);
+        return count == null ? OptionalLong.empty() : OptionalLong.of(count);
+    }
+
+    /**
+     * @return true if every counter is written at once, false in write-behind
+     *         mode
+     */
+    public boolean isDirect() {
+        return direct;
+    }
+
+    public int pendingSize() {
+        return pending.size();
+    }
+
+    /**
+     * Writes all pending counters to the database.
+     */
+    public void flush() {
+        flushLock.lock();
+        try {
+            flushRequested.set(false);
+            if (pending.isEmpty()) {
+                return;
+            }
+            long start = System.nanoTime();
+            List<Map.Entry<ByteArray, Long>> batch = new ArrayList<>(Math.min(pending.size(), batchSize));
+            for (Map.Entry<ByteArray, Long> entry : pending.entrySet()) {
+                batch.add(Map.entry(entry.getKey(), entry.getValue()));
+                if (batch.size() == batchSize) {
+                    write(batch);
+                    batch.clear();
+                }
+            }
+            write(batch);
+            Timer timer = flushTimer;
+            if (timer != null) {
+                timer.record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+            }
+        } finally {
+            flushLock.unlock();
+        }
+    }
+
+    private void write(List<Map.Entry<ByteArray, Long>> batch) {
+        if (batch.isEmpty()) {
+            return;
+        }
+        List<Object[]> arguments = new ArrayList<>(batch.size());
+        for (Map.Entry<ByteArray, Long> entry : batch) {
+            arguments.add(new Object[] { entry.getValue(),
+                    AuthenticatorModel.digestOf(entry.getKey()).getBytes(), entry.getValue() });
+        }
+        jdbcTemplate.batchUpdate(UPDATE, arguments);
+        for (Map.Entry<ByteArray, Long> entry : batch) {
+            // the cached credential still has the old counter, drop it before the
+            // pending one, so lookups never fall back to a stale counter
+            cache.evictCredential(entry.getKey());
+            pending.remove(entry.getKey(), entry.getValue());
+        }
+    }
+
+    private void flushQuietly() {
+        try {
+            flush();
+        } catch (RuntimeException e) {
+            // the counters stay pending and are written with the next flush
+            LOG.warn("Flushing signature counters failed.", e);
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        Gauge.builder("signature.counter.pending", pending, Map::size)
+                .description("Signature counters not yet written to the database")
+                .register(registry);
+        flushTimer = Timer.builder("signature.counter.flush")
+                .description("Time to write the pending signature counters")
+                .register(registry);
+    }
+
+    @PreDestroy
+    public void close() throws InterruptedException {
+        flusher.shutdown();
+        flusher.awaitTermination(10, TimeUnit.SECONDS);
+        flush();
+    }
+}
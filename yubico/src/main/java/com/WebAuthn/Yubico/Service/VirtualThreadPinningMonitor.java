@@ -0,0 +1,81 @@
+package com.WebAuthn.Yubico.Service;
+
+import java.time.Duration;
+import java.util.List;
+import java.util.stream.Collectors;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.stereotype.Component;
+
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.binder.MeterBinder;
+import jakarta.annotation.PreDestroy;
+import jdk.jfr.consumer.RecordedEvent;
+import jdk.jfr.consumer.RecordedFrame;
+import jdk.jfr.consumer.RecordingStream;
+
+/**
+ * Reports virtual threads that block while pinned to their carrier, e.g.
+ * inside a synchronized block of the JDBC driver or a cache. Every pinning
+ * longer than the threshold is logged with the frames leading to it and
+ * counted in {@code threads.virtual.pinned}.
+ */
+@Component
+@ConditionalOnProperty(name = "spring.threads.virtual.enabled", havingValue = "true")
+public class VirtualThreadPinningMonitor implements MeterBinder {
+
+    private static final Logger LOG = LoggerFactory.getLogger(VirtualThreadPinningMonitor.class);
+
+    private static final int LOGGED_FRAMES = 12;
+
+    private final RecordingStream recording;
+    private volatile Counter pinnedCounter;
+    private volatile Timer pinnedTimer;
+
+    @Autowired
+    public VirtualThreadPinningMonitor(@Value("${threads.pinned-threshold:20ms}") Duration threshold) {
+        this.recording = new RecordingStream();
+        recording.enable("jdk.VirtualThreadPinned").withThreshold(threshold).withStackTrace();
+        recording.onEvent("jdk.VirtualThreadPinned", this::pinned);
+        recording.startAsync();
+    }
+
+    private void pinned(RecordedEvent event) {
+        Counter counter = pinnedCounter;
+        if (counter != null) {
+            counter.increment();
+            pinnedTimer.record(event.getDuration());
+        }
+        if (LOG.isWarnEnabled()) {
+            List<RecordedFrame> frames = event.getStackTrace() == null ? List.of()
+                    : event.getStackTrace().getFrames();
+            LOG.warn("Virtual thread pinned for {} ms:\n\tat {}", event.getDuration().toMillis(),
+                    frames.stream()
+                            .limit(LOGGED_FRAMES)
+                            .map(frame -> frame.getMethod().getType().getName() + "."
+                                    + frame.getMethod().getName() + ":" + frame.getLineNumber())
+                            .collect(Collectors.joining("\n\tat ")));
+        }
+    }
+
+    @Override
+    public void bindTo(MeterRegistry registry) {
+        pinnedTimer = Timer.builder("threads.virtual.pinned.duration")
+                .description("Time virtual threads blocked while pinned to their carrier")
+                .register(registry);
+        pinnedCounter = Counter.builder("threads.virtual.pinned")
+                .description("Virtual threads that blocked while pinned to their carrier")
+                .register(registry);
+    }
+
+    @PreDestroy
+    public void close() {
+        recording.close();
+    }
+}
@@ -0,0 +1,224 @@
+package com.WebAuthn.Yubico.Utility;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.cert.Certificate;
+import java.security.cert.CertificateException;
+import java.security.cert.CertificateFactory;
+import java.security.cert.X509Certificate;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.HexFormat;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.regex.Pattern;
+import java.util.stream.Stream;
+
+import javax.security.auth.x500.X500Principal;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.yubico.webauthn.data.ByteArray;
+
+/**
+ * Immutable snapshot of the trusted attestation roots.
+ * Roots directly in the trust directory are trusted for every authenticator
+ * and found by the subject key identifier, or else the subject, of the issuer
+ * of the chain. Roots in a subdirectory named after an AAGUID, e.g.
+ * {@code trust/cb69481e-8ff7-4039-93ec-0a2729a154a8/}, are trusted only for
+ * that authenticator model and take precedence for it.
+ */
+public final class AttestationTrustStore {
+
+    private static final Logger LOG = LoggerFactory.getLogger(AttestationTrustStore.class);
+
+    private static final String SUBJECT_KEY_IDENTIFIER = "2.5.29.14";
+    private static final String AUTHORITY_KEY_IDENTIFIER = "2.5.29.35";
+    private static final Pattern AAGUID = Pattern.compile("\\p{XDigit}{8}-?(\\p{XDigit}{4}-?){3}\\p{XDigit}{12}");
+
+    private final Map<ByteArray, Set<X509Certificate>> byAaguid;
+    private final Map<ByteArray, X509Certificate> bySubjectKeyId;
+    private final Map<X500Principal, Set<X509Certificate>> bySubject;
+    private final String stamp;
+
+    private AttestationTrustStore(Collection<X509Certificate> roots, Map<ByteArray, Set<X509Certificate>> byAaguid,
+            String stamp) {
+        Map<ByteArray, X509Certificate> bySubjectKeyId = new HashMap<>();
+        Map<X500Principal, Set<X509Certificate>> bySubject = new HashMap<>();
+        for (X509Certificate root : roots) {
+            ByteArray keyId = keyIdentifier(root, SUBJECT_KEY_IDENTIFIER);
+            if (keyId != null) {
+                bySubjectKeyId.put(keyId, root);
+            }
+            bySubject.computeIfAbsent(root.getSubjectX500Principal(), subject -> new HashSet<>()).add(root);
+        }
+        this.byAaguid = Map.copyOf(byAaguid);
+        this.bySubjectKeyId = Map.copyOf(bySubjectKeyId);
+        bySubject.replaceAll((subject, certificates) -> Set.copyOf(certificates));
+        this.bySubject = Map.copyOf(bySubject);
+        this.stamp = stamp;
+    }
+
+    /**
+     * @return a store trusting the roots for every authenticator
+     */
+    public static AttestationTrustStore of(Collection<X509Certificate> roots) {
+        return new AttestationTrustStore(roots, Map.of(), "");
+    }
+
+    /**
+     * Reads every certificate file of the directory and its AAGUID
+     * subdirectories. Files that cannot be parsed are skipped.
+     */
+    public static AttestationTrustStore load(Path directory) throws IOException {
+        CertificateFactory cf;
+        try {
+            cf = CertificateFactory.getInstance("X.509");
+        } catch (CertificateException e) {
+            throw new IllegalStateException(e);
+        }
+        List<X509Certificate> roots = new ArrayList<>();
+        Map<ByteArray, Set<X509Certificate>> byAaguid = new HashMap<>();
+        try (Stream<Path> entries = Files.list(directory)) {
+            for (Path entry : entries.sorted().toList()) {
+                if (Files.isRegularFile(entry)) {
+                    roots.addAll(read(cf, entry));
+                } else if (Files.isDirectory(entry)) {
+                    String name = entry.getFileName().toString();
+                    if (!AAGUID.matcher(name).matches()) {
+                        LOG.warn("Skipping {}, the name is not an AAGUID.", entry);
+                        continue;
+                    }
+                    ByteArray aaguid = new ByteArray(HexFormat.of().parseHex(name.replace("-", "")));
+                    Set<X509Certificate> certificates = new HashSet<>();
+                    try (Stream<Path> files = Files.list(entry)) {
+                        for (Path file : files.filter(Files::isRegularFile).sorted().toList()) {
+                            certificates.addAll(read(cf, file));
+                        }
+                    }
+                    byAaguid.put(aaguid, Set.copyOf(certificates));
+                }
+            }
+        }
+        return new AttestationTrustStore(roots, byAaguid, stamp(directory));
+    }
+
+    /**
+     * @return the names, sizes and modification times of the files below the
+     *         directory, changes whenever a file is added, removed or replaced
+     */
+    public static String stamp(Path directory) throws IOException {
+        StringBuilder stamp = new StringBuilder();
+        try (Stream<Path> files = Files.walk(directory, 2)) {
+            for (Path file : files.sorted().toList()) {
+                BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+                stamp.append(directory.relativize(file)).append(':').append(attributes.size()).append(':')
+                        .append(attributes.lastModifiedTime().toMillis()).append('\n');
+            }
+        }
+        return stamp.toString();
+    }
+
+    public String getStamp() {
+        return stamp;
+    }
+
+    /**
+     * @return the roots the chain may end in, without trying every root
+     */
+    public Set<X509Certificate> candidates(List<X509Certificate> chain, Optional<ByteArray> aaguid) {
+        if (aaguid.isPresent()) {
+            Set<X509Certificate> roots = byAaguid.get(aaguid.get());
+            if (roots != null) {
+                return roots;
+            }
+        }
+        if (chain.isEmpty()) {
+            return Collections.emptySet();
+        }
+        X509Certificate last = chain.get(chain.size() - 1);
+        ByteArray issuerKeyId = keyIdentifier(last, AUTHORITY_KEY_IDENTIFIER);
+        if (issuerKeyId != null) {
+            X509Certificate root = bySubjectKeyId.get(issuerKeyId);
+            if (root != null) {
+                return Collections.singleton(root);
+            }
+        }
+        return bySubject.getOrDefault(last.getIssuerX500Principal(), Collections.emptySet());
+    }
+
+    public int size() {
+        Set<X509Certificate> roots = new HashSet<>();
+        bySubject.values().forEach(roots::addAll);
+        byAaguid.values().forEach(roots::addAll);
+        return roots.size();
+    }
+
+    private static List<X509Certificate> read(CertificateFactory cf, Path file) {
+        // PEM or DER, a PEM file may hold several certificates
+        try (InputStream in = Files.newInputStream(file)) {
+            List<X509Certificate> certificates = new ArrayList<>();
+            for (Certificate certificate : cf.generateCertificates(in)) {
+                certificates.add((X509Certificate) certificate);
+            }
+            return certificates;
+        } catch (IOException | CertificateException e) {
+            LOG.warn("Skipping {}, it is not a certificate file.", file, e);
+            return Collections.emptyList();
+        }
+    }
+
+    // the key identifier of a subject (OCTET STRING) or authority key identifier
+    // (SEQUENCE starting with [0] keyIdentifier) extension, null if absent
+    static ByteArray keyIdentifier(X509Certificate certificate, String oid) {
+        byte[] value = certificate.getExtensionValue(oid);
+        if (value == null) {
+            return null;
+        }
+        try {
+            ByteBuffer der = ByteBuffer.wrap(value);
+            header(der, 0x04);
+            int length;
+            if (AUTHORITY_KEY_IDENTIFIER.equals(oid)) {
+                header(der, 0x30);
+                length = header(der, 0x80);
+            } else {
+                length = header(der, 0x04);
+            }
+            byte[] keyId = new byte[length];
+            der.get(keyId);
+            return new ByteArray(keyId);
+        } catch (RuntimeException e) {
+            return null;
+        }
+    }
+
+    private static int header(ByteBuffer der, int tag) {
+        if ((der.get() & 0xff) != tag) {
+            throw new IllegalArgumentException("Unexpected tag");
+        }
+        int length = der.get() & 0xff;
+        if (length < 0x80) {
+            return length;
+        }
+        int octets = length & 0x7f;
+        if (octets > 3) {
+            throw new IllegalArgumentException("Unexpected length");
+        }
+        length = 0;
+        for (int i = 0; i < octets; i++) {
+            length = (length << 8) | (der.get() & 0xff);
+        }
+        return length;
+    }
+}
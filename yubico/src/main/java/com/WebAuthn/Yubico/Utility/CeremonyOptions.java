@@ -0,0 +1,73 @@
+package com.WebAuthn.Yubico.Utility;
+
+import java.util.ArrayList;
+import java.util.Optional;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.yubico.webauthn.AssertionRequest;
+import com.yubico.webauthn.RelyingParty;
+import com.yubico.webauthn.StartAssertionOptions;
+import com.yubico.webauthn.StartRegistrationOptions;
+import com.yubico.webauthn.data.PublicKeyCredentialCreationOptions;
+import com.yubico.webauthn.data.PublicKeyCredentialRequestOptions;
+import com.yubico.webauthn.data.RegistrationExtensionInputs;
+
+/**
+ * Starts ceremonies like {@link RelyingParty#startRegistration} and
+ * {@link RelyingParty#startAssertion}, but with challenges from the
+ * {@link ChallengeSupplier}. The relying party draws every challenge from a
+ * single static SecureRandom and offers no way to replace it, so the options
+ * are built here from its settings, field for field as the library does.
+ */
+@Component
+public class CeremonyOptions {
+
+    private final ChallengeSupplier challenges;
+
+    @Autowired
+    public CeremonyOptions(ChallengeSupplier challenges) {
+        this.challenges = challenges;
+    }
+
+    public PublicKeyCredentialCreationOptions startRegistration(RelyingParty rp, StartRegistrationOptions options) {
+        PublicKeyCredentialCreationOptions.PublicKeyCredentialCreationOptionsBuilder builder =
+                PublicKeyCredentialCreationOptions.builder()
+                        .rp(rp.getIdentity())
+                        .user(options.getUser())
+                        .challenge(challenges.get())
+                        .pubKeyCredParams(rp.getPreferredPubkeyParams())
+                        .excludeCredentials(rp.getCredentialRepository()
+                                .getCredentialIdsForUsername(options.getUser().getName()))
+                        .authenticatorSelection(options.getAuthenticatorSelection())
+                        .extensions(options.getExtensions().merge(RegistrationExtensionInputs.builder()
+                                .appidExclude(rp.getAppId())
+                                .credProps()
+                                .build()))
+                        .timeout(options.getTimeout());
+        rp.getAttestationConveyancePreference().ifPresent(builder::attestation);
+        return builder.build();
+    }
+
+    public AssertionRequest startAssertion(RelyingParty rp, StartAssertionOptions options) {
+        Optional<String> username = options.getUsername().isPresent() ? options.getUsername()
+                : options.getUserHandle().flatMap(rp.getCredentialRepository()::getUsernameForUserHandle);
+        PublicKeyCredentialRequestOptions.PublicKeyCredentialRequestOptionsBuilder builder =
+                PublicKeyCredentialRequestOptions.builder()
+                        .challenge(challenges.get())
+                        .rpId(rp.getIdentity().getId())
+                        .allowCredentials(username.map(name -> new ArrayList<>(
+                                rp.getCredentialRepository().getCredentialIdsForUsername(name))))
+                        .extensions(options.getExtensions().merge(options.getExtensions().toBuilder()
+                                .appid(rp.getAppId())
+                                .build()))
+                        .timeout(options.getTimeout());
+        options.getUserVerification().ifPresent(builder::userVerification);
+        return AssertionRequest.builder()
+                .publicKeyCredentialRequestOptions(builder.build())
+                .username(options.getUsername())
+                .userHandle(options.getUserHandle())
+                .build();
+    }
+}
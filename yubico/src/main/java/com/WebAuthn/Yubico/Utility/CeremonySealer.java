@@ -0,0 +1,99 @@
+package com.WebAuthn.Yubico.Utility;
+
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.GeneralSecurityException;
+import java.security.SecureRandom;
+import java.util.Base64;
+import java.util.Optional;
+
+import javax.crypto.Cipher;
+import javax.crypto.spec.GCMParameterSpec;
+import javax.crypto.spec.SecretKeySpec;
+
+/**
+ * Seals ceremony requests into tokens that are handed to the client, so any
+ * node holding the same key can finish the ceremony without server side state.
+ * A token is the AES-GCM encryption of the expiry time and the serialized
+ * request; the ceremony type is bound to it as associated data.
+ */
+public class CeremonySealer {
+
+    private static final byte VERSION = 1;
+    private static final int NONCE_LENGTH = 12;
+    private static final int TAG_BITS = 128;
+
+    private final SecretKeySpec key;
+    private final SecureRandom random = new SecureRandom();
+
+    /**
+     * @param key AES key with 16, 24 or 32 bytes
+     */
+    public CeremonySealer(byte[] key) {
+        if (key.length != 16 && key.length != 24 && key.length != 32) {
+            throw new IllegalArgumentException("Sealing key must have 128, 192 or 256 bits.");
+        }
+        this.key = new SecretKeySpec(key, "AES");
+    }
+
+    /**
+     * Seals the payload until the given expiry.
+     *
+     * @param type        ceremony type the token is bound to
+     * @param expiresAtMs expiry in epoch milliseconds
+     * @param payload     serialized request
+     * @return base64url encoded token
+     */
+    public String seal(String type, long expiresAtMs, String payload) {
+        byte[] nonce = new byte[NONCE_LENGTH];
+        random.nextBytes(nonce);
+        byte[] body = payload.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer plain = ByteBuffer.allocate(Long.BYTES + body.length).putLong(expiresAtMs).put(body).flip();
+        try {
+            Cipher cipher = cipher(Cipher.ENCRYPT_MODE, nonce, 0, type);
+            ByteBuffer token = ByteBuffer.allocate(1 + NONCE_LENGTH + cipher.getOutputSize(plain.remaining()));
+            token.put(VERSION).put(nonce);
+            cipher.doFinal(plain, token);
+            return Base64.getUrlEncoder().withoutPadding().encodeToString(token.array());
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException("Ceremony could not be sealed.", e);
+        }
+    }
+
+    /**
+     * Opens a token that was sealed for the given type.
+     *
+     * @return the payload, or empty if the token is malformed, forged, bound to
+     *         another type or expired
+     */
+    public Optional<String> unseal(String type, String token, long nowMs) {
+        byte[] raw;
+        try {
+            raw = Base64.getUrlDecoder().decode(token);
+        } catch (IllegalArgumentException e) {
+            return Optional.empty();
+        }
+        if (raw.length < 1 + NONCE_LENGTH + Long.BYTES + TAG_BITS / 8 || raw[0] != VERSION) {
+            return Optional.empty();
+        }
+        try {
+            Cipher cipher = cipher(Cipher.DECRYPT_MODE, raw, 1, type);
+            byte[] plain = cipher.doFinal(raw, 1 + NONCE_LENGTH, raw.length - 1 - NONCE_LENGTH);
+            long expiresAtMs = ByteBuffer.wrap(plain).getLong();
+            if (expiresAtMs <= nowMs) {
+                return Optional.empty();
+            }
+            return Optional.of(new String(plain, Long.BYTES, plain.length - Long.BYTES, StandardCharsets.UTF_8));
+        } catch (GeneralSecurityException e) {
+            return Optional.empty();
+        }
+    }
+
+    private Cipher cipher(int mode, byte[] nonce, int offset, String type) throws GeneralSecurityException {
+        Cipher cipher = Cipher.getInstance("AES/GCM/NoPadding");
+        cipher.init(mode, key, new GCMParameterSpec(TAG_BITS, nonce, offset, NONCE_LENGTH));
+        cipher.updateAAD(new byte[] { VERSION });
+        cipher.updateAAD(type.getBytes(StandardCharsets.UTF_8));
+        return cipher;
+    }
+}
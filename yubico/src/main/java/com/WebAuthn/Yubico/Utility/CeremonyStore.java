@@ -0,0 +1,180 @@
+package com.WebAuthn.Yubico.Utility;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Optional;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.yubico.webauthn.data.ByteArray;
+
+/**
+ * Concurrent store for pending ceremonies, keyed by the challenge that was
+ * handed out with the options.
+ * The entries are spread over independently locked shards, and every shard
+ * owns a timer wheel, so put, take and expiry are O(1) and only contend on
+ * a single shard.
+ */
+public class CeremonyStore<T> implements AutoCloseable {
+
+    private static final int WHEEL_SLOTS = 64;
+
+    private final Shard<T>[] shards;
+    private final long ttlNanos;
+    private final long tickNanos;
+    private final int maxEntries;
+    private final AtomicInteger size = new AtomicInteger();
+    private final ScheduledExecutorService ticker;
+    private long drainedTick;
+
+    /**
+     * @param name       thread name of the expiry ticker
+     * @param ttl        time a ceremony may stay pending
+     * @param maxEntries upper bound of pending ceremonies
+     */
+    @SuppressWarnings("unchecked")
+    public CeremonyStore(String name, Duration ttl, int maxEntries) {
+        this.ttlNanos = ttl.toNanos();
+        // the wheel spans twice the ttl, so a new entry never lands in a slot that
+        // is about to be drained
+        this.tickNanos = Math.max(1, ttlNanos * 2 / WHEEL_SLOTS);
+        this.maxEntries = maxEntries;
+        int shardCount = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) << 1;
+        this.shards = new Shard[shardCount];
+        for (int i = 0; i < shards.length; i++) {
+            shards[i] = new Shard<>();
+        }
+        this.drainedTick = Math.floorDiv(System.nanoTime(), tickNanos);
+        this.ticker = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, name);
+            t.setDaemon(true);
+            return t;
+        });
+        this.ticker.scheduleAtFixedRate(this::expire, tickNanos, tickNanos, TimeUnit.NANOSECONDS);
+    }
+
+    /**
+     * Stores a pending ceremony under its challenge.
+     *
+     * @throws IllegalStateException if the store is full or the challenge is
+     *                               already pending
+     */
+    public void put(ByteArray challenge, T request) {
+        if (size.incrementAndGet() > maxEntries) {
+            size.decrementAndGet();
+            throw new IllegalStateException("Too many pending ceremonies.");
+        }
+        long now = System.nanoTime();
+        Entry<T> entry = new Entry<>(challenge, request, now + ttlNanos);
+        Shard<T> shard = shardFor(challenge);
+        shard.lock.lock();
+        try {
+            if (shard.entries.putIfAbsent(challenge, entry) != null) {
+                size.decrementAndGet();
+                throw new IllegalStateException("Challenge is already pending.");
+            }
+            shard.slot(Math.floorDiv(entry.deadline, tickNanos)).add(entry);
+        } finally {
+            shard.lock.unlock();
+        }
+    }
+
+    /**
+     * Removes and returns the pending ceremony of the given challenge. Each
+     * ceremony can be taken exactly once.
+     */
+    public Optional<T> take(ByteArray challenge) {
+        Shard<T> shard = shardFor(challenge);
+        Entry<T> entry;
+        shard.lock.lock();
+        try {
+            entry = shard.entries.remove(challenge);
+        } finally {
+            shard.lock.unlock();
+        }
+        if (entry == null) {
+            return Optional.empty();
+        }
+        size.decrementAndGet();
+        // the entry stays in its wheel slot until that slot is drained
+        if (entry.deadline - System.nanoTime() <= 0) {
+            return Optional.empty();
+        }
+        return Optional.of(entry.request);
+    }
+
+    public int size() {
+        return size.get();
+    }
+
+    /**
+     * Drains the wheel slots of all ticks that passed since the last run. Only
+     * called from the ticker thread.
+     */
+    void expire() {
+        long now = System.nanoTime();
+        long lastTick = Math.floorDiv(now, tickNanos) - 1;
+        long first = Math.max(drainedTick + 1, lastTick - WHEEL_SLOTS + 1);
+        for (Shard<T> shard : shards) {
+            shard.lock.lock();
+            try {
+                for (long tick = first; tick <= lastTick; tick++) {
+                    ArrayDeque<Entry<T>> slot = shard.slot(tick);
+                    for (int i = slot.size(); i > 0; i--) {
+                        Entry<T> entry = slot.poll();
+                        if (entry.deadline - now > 0) {
+                            slot.add(entry);
+                        } else if (shard.entries.remove(entry.challenge, entry)) {
+                            size.decrementAndGet();
+                        }
+                    }
+                }
+            } finally {
+                shard.lock.unlock();
+            }
+        }
+        drainedTick = Math.max(drainedTick, lastTick);
+    }
+
+    @Override
+    public void close() {
+        ticker.shutdownNow();
+    }
+
+    private Shard<T> shardFor(ByteArray challenge) {
+        int h = challenge.hashCode();
+        return shards[(h ^ (h >>> 16)) & (shards.length - 1)];
+    }
+
+    private static final class Shard<T> {
+        final ReentrantLock lock = new ReentrantLock();
+        final Map<ByteArray, Entry<T>> entries = new HashMap<>();
+        @SuppressWarnings("unchecked")
+        final ArrayDeque<Entry<T>>[] wheel = new ArrayDeque[WHEEL_SLOTS];
+
+        ArrayDeque<Entry<T>> slot(long tick) {
+            int i = (int) (tick & (WHEEL_SLOTS - 1));
+            if (wheel[i] == null) {
+                wheel[i] = new ArrayDeque<>();
+            }
+            return wheel[i];
+        }
+    }
+
+    private static final class Entry<T> {
+        final ByteArray challenge;
+        final T request;
+        final long deadline;
+
+        Entry(ByteArray challenge, T request, long deadline) {
+            this.challenge = challenge;
+            this.request = request;
+            this.deadline = deadline;
+        }
+    }
+}
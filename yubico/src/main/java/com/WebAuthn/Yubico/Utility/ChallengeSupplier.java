@@ -0,0 +1,130 @@
+package com.WebAuthn.Yubico.Utility;
+
+import java.security.DrbgParameters;
+import java.security.NoSuchAlgorithmException;
+import java.security.SecureRandom;
+import java.util.Arrays;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.locks.LockSupport;
+import java.util.function.Supplier;
+
+import com.yubico.webauthn.data.ByteArray;
+
+/**
+ * Challenges of 32 bytes from a DRBG, drawn in blocks instead of one at a
+ * time. Every stripe hands out the challenges of its current block by an
+ * atomic index, so no challenge is handed out twice and callers never lock.
+ * An exhausted block is replaced by one a background thread filled in
+ * advance; only when none is ready the caller fills one itself.
+ * <p>
+ * The DRBG is a 256 bit Hash_DRBG that reseeds from the system's entropy
+ * source, as the default SecureRandom of the JDK does, and is only called
+ * for whole blocks.
+ */
+public class ChallengeSupplier implements Supplier<ByteArray>, AutoCloseable {
+
+    public static final int CHALLENGE_LENGTH = 32;
+
+    private static final long REFILL_PAUSE = TimeUnit.MILLISECONDS.toNanos(100);
+
+    private final SecureRandom random;
+    private final int challengesPerBlock;
+    private final AtomicReference<Block>[] stripes;
+    private final ConcurrentLinkedQueue<Block> ready = new ConcurrentLinkedQueue<>();
+    private final AtomicInteger readyCount = new AtomicInteger();
+    private final AtomicInteger filledByCallers = new AtomicInteger();
+    private final Thread refiller;
+    private volatile boolean closed;
+
+    private static final class Block {
+
+        final byte[] bytes;
+        final AtomicInteger next = new AtomicInteger();
+
+        Block(byte[] bytes) {
+            this.bytes = bytes;
+        }
+    }
+
+    /**
+     * @param challengesPerBlock challenges drawn from the DRBG at once
+     */
+    @SuppressWarnings("unchecked")
+    public ChallengeSupplier(int challengesPerBlock) {
+        try {
+            this.random = SecureRandom.getInstance("DRBG",
+                    DrbgParameters.instantiation(256, DrbgParameters.Capability.RESEED_ONLY, null));
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        this.challengesPerBlock = challengesPerBlock;
+        int count = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) << 1;
+        this.stripes = new AtomicReference[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new AtomicReference<>(fill());
+        }
+        this.refiller = new Thread(this::refill, "challenge-refill");
+        refiller.setDaemon(true);
+        refiller.start();
+    }
+
+    @Override
+    public ByteArray get() {
+        AtomicReference<Block> stripe = stripes[(int) Thread.currentThread().getId() & (stripes.length - 1)];
+        while (true) {
+            Block block = stripe.get();
+            int index = block.next.getAndIncrement();
+            if (index < challengesPerBlock) {
+                return new ByteArray(Arrays.copyOfRange(block.bytes, index * CHALLENGE_LENGTH,
+                        (index + 1) * CHALLENGE_LENGTH));
+            }
+            Block fresh = ready.poll();
+            if (fresh != null) {
+                readyCount.decrementAndGet();
+            } else {
+                fresh = fill();
+                filledByCallers.incrementAndGet();
+            }
+            LockSupport.unpark(refiller);
+            if (!stripe.compareAndSet(block, fresh)) {
+                // another caller replaced the block first, this one is still unused
+                ready.offer(fresh);
+                readyCount.incrementAndGet();
+            }
+        }
+    }
+
+    /**
+     * @return blocks the callers had to fill because none was ready
+     */
+    public int filledByCallers() {
+        return filledByCallers.get();
+    }
+
+    // one spare block per stripe
+    private void refill() {
+        while (!closed) {
+            while (readyCount.get() < stripes.length && !closed) {
+                ready.offer(fill());
+                readyCount.incrementAndGet();
+            }
+            LockSupport.parkNanos(this, REFILL_PAUSE);
+        }
+    }
+
+    private Block fill() {
+        byte[] bytes = new byte[challengesPerBlock * CHALLENGE_LENGTH];
+        random.nextBytes(bytes);
+        return new Block(bytes);
+    }
+
+    @Override
+    public void close() throws InterruptedException {
+        closed = true;
+        LockSupport.unpark(refiller);
+        refiller.join(TimeUnit.SECONDS.toMillis(10));
+    }
+}
@@ -0,0 +1,221 @@
+package com.WebAuthn.Yubico.Utility;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.core.JsonEncoding;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.yubico.webauthn.data.AttestationConveyancePreference;
+import com.yubico.webauthn.data.AuthenticatorSelectionCriteria;
+import com.yubico.webauthn.data.AuthenticatorTransport;
+import com.yubico.webauthn.data.PublicKeyCredentialCreationOptions;
+import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
+import com.yubico.webauthn.data.PublicKeyCredentialParameters;
+import com.yubico.webauthn.data.RegistrationExtensionInputs;
+import com.yubico.webauthn.data.RelyingPartyIdentity;
+import com.yubico.webauthn.data.UserIdentity;
+
+/**
+ * Renders registration options in the form the FIDO conformance tool expects.
+ * The parts that only depend on the relying party (rp, pubKeyCredParams,
+ * attestation, extensions) and the few possible authenticator selections are
+ * rendered once with the library's own encoding and cached, per relying party
+ * so tenants do not evict each other's parts. Per request only
+ * the user, challenge and excludeCredentials are written, in a single pass
+ * straight to the output.
+ */
+@Component
+public class CreationOptionsTemplate {
+
+    private final ObjectMapper mapper;
+    private final ConcurrentMap<PartsKey, StaticParts> staticParts = new ConcurrentHashMap<>();
+    private final ConcurrentMap<SelectionKey, String> selections = new ConcurrentHashMap<>();
+
+    @Autowired
+    public CreationOptionsTemplate(ObjectMapper mapper) {
+        this.mapper = mapper;
+    }
+
+    /**
+     * @param options            options returned by the relying party
+     * @param requireResidentKey value of authenticatorSelection.requireResidentKey
+     * @param out                stream the json is written to
+     */
+    public void write(PublicKeyCredentialCreationOptions options, boolean requireResidentKey, OutputStream out)
+            throws IOException {
+        StaticParts parts = staticParts(options);
+        String selection = selection(options, requireResidentKey);
+        try (JsonGenerator gen = mapper.getFactory().createGenerator(out, JsonEncoding.UTF8)) {
+            gen.disable(JsonGenerator.Feature.AUTO_CLOSE_TARGET);
+            gen.writeStartObject();
+            gen.writeFieldName("rp");
+            gen.writeRawValue(parts.rp);
+            writeUser(gen, options.getUser());
+            gen.writeStringField("challenge", options.getChallenge().getBase64Url());
+            gen.writeFieldName("pubKeyCredParams");
+            gen.writeRawValue(parts.pubKeyCredParams);
+            if (options.getTimeout().isPresent()) {
+                gen.writeNumberField("timeout", options.getTimeout().get());
+            }
+            if (options.getExcludeCredentials().isPresent()) {
+                gen.writeArrayFieldStart("excludeCredentials");
+                for (PublicKeyCredentialDescriptor descriptor : options.getExcludeCredentials().get()) {
+                    writeDescriptor(gen, descriptor);
+                }
+                gen.writeEndArray();
+            }
+            if (selection != null) {
+                gen.writeFieldName("authenticatorSelection");
+                gen.writeRawValue(selection);
+            }
+            if (parts.attestation != null) {
+                gen.writeFieldName("attestation");
+                gen.writeRawValue(parts.attestation);
+            }
+            if (parts.extensions != null) {
+                gen.writeFieldName("extensions");
+                gen.writeRawValue(parts.extensions);
+            }
+            gen.writeStringField("errorMessage", "");
+            gen.writeStringField("status", "ok");
+            gen.writeEndObject();
+        }
+    }
+
+    private static void writeUser(JsonGenerator gen, UserIdentity user) throws IOException {
+        gen.writeObjectFieldStart("user");
+        gen.writeStringField("name", user.getName());
+        gen.writeStringField("displayName", user.getDisplayName());
+        gen.writeStringField("id", user.getId().getBase64Url());
+        gen.writeEndObject();
+    }
+
+    private static void writeDescriptor(JsonGenerator gen, PublicKeyCredentialDescriptor descriptor)
+            throws IOException {
+        gen.writeStartObject();
+        gen.writeStringField("type", descriptor.getType().getId());
+        gen.writeStringField("id", descriptor.getId().getBase64Url());
+        if (descriptor.getTransports().isPresent()) {
+            gen.writeArrayFieldStart("transports");
+            for (AuthenticatorTransport transport : descriptor.getTransports().get()) {
+                gen.writeString(transport.getId());
+            }
+            gen.writeEndArray();
+        }
+        gen.writeEndObject();
+    }
+
+    private StaticParts staticParts(PublicKeyCredentialCreationOptions options) throws IOException {
+        PartsKey key = new PartsKey(options);
+        StaticParts parts = staticParts.get(key);
+        if (parts == null) {
+            JsonNode publicKey = render(options);
+            parts = new StaticParts(
+                    raw(publicKey, "rp"),
+                    raw(publicKey, "pubKeyCredParams"),
+                    raw(publicKey, "attestation"),
+                    raw(publicKey, "extensions"));
+            staticParts.putIfAbsent(key, parts);
+        }
+        return parts;
+    }
+
+    private String selection(PublicKeyCredentialCreationOptions options, boolean requireResidentKey)
+            throws IOException {
+        if (options.getAuthenticatorSelection().isEmpty()) {
+            return null;
+        }
+        SelectionKey key = new SelectionKey(options.getAuthenticatorSelection().get(), requireResidentKey);
+        String selection = selections.get(key);
+        if (selection == null) {
+            ObjectNode node = (ObjectNode) render(options).get("authenticatorSelection");
+            node.put("requireResidentKey", requireResidentKey);
+            selection = mapper.writeValueAsString(node);
+            selections.putIfAbsent(key, selection);
+        }
+        return selection;
+    }
+
+    private String raw(JsonNode node, String field) throws IOException {
+        return node.has(field) ? mapper.writeValueAsString(node.get(field)) : null;
+    }
+
+    // the slow path, only taken while filling the caches
+    private JsonNode render(PublicKeyCredentialCreationOptions options) throws IOException {
+        return mapper.readTree(options.toCredentialsCreateJson()).get("publicKey");
+    }
+
+    private static final class StaticParts {
+        final String rp;
+        final String pubKeyCredParams;
+        final String attestation;
+        final String extensions;
+
+        StaticParts(String rp, String pubKeyCredParams, String attestation, String extensions) {
+            this.rp = rp;
+            this.pubKeyCredParams = pubKeyCredParams;
+            this.attestation = attestation;
+            this.extensions = extensions;
+        }
+    }
+
+    private static final class PartsKey {
+        final RelyingPartyIdentity rp;
+        final List<PublicKeyCredentialParameters> pubKeyCredParams;
+        final AttestationConveyancePreference attestation;
+        final RegistrationExtensionInputs extensions;
+
+        PartsKey(PublicKeyCredentialCreationOptions options) {
+            this.rp = options.getRp();
+            this.pubKeyCredParams = options.getPubKeyCredParams();
+            this.attestation = options.getAttestation();
+            this.extensions = options.getExtensions();
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof PartsKey other
+                    && rp.equals(other.rp)
+                    && pubKeyCredParams.equals(other.pubKeyCredParams)
+                    && attestation == other.attestation
+                    && extensions.equals(other.extensions);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(rp, pubKeyCredParams, attestation, extensions);
+        }
+    }
+
+    private static final class SelectionKey {
+        final AuthenticatorSelectionCriteria criteria;
+        final boolean requireResidentKey;
+
+        SelectionKey(AuthenticatorSelectionCriteria criteria, boolean requireResidentKey) {
+            this.criteria = criteria;
+            this.requireResidentKey = requireResidentKey;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            return o instanceof SelectionKey other
+                    && criteria.equals(other.criteria)
+                    && requireResidentKey == other.requireResidentKey;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(criteria, requireResidentKey);
+        }
+    }
+}
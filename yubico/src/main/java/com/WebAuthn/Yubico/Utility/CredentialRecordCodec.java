@@ -0,0 +1,286 @@
+package com.WebAuthn.Yubico.Utility;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+import com.WebAuthn.Yubico.Model.CredentialRecord;
+import com.fasterxml.jackson.core.Base64Variant;
+import com.fasterxml.jackson.core.Base64Variants;
+import com.fasterxml.jackson.core.JsonFactory;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.yubico.webauthn.data.ByteArray;
+
+/**
+ * Streams {@link CredentialRecord}s in one of two formats:
+ * <ul>
+ * <li>NDJSON, one object per line, binary values base64url encoded</li>
+ * <li>CBOR, every record a map prefixed with its length as a 4 byte big endian
+ * integer, binary values as byte strings</li>
+ * </ul>
+ * Field names are those of the record, null values are left out. Only one
+ * record is held at a time, output goes through a buffer of fixed size.
+ */
+public final class CredentialRecordCodec {
+
+    public static final String NDJSON_MEDIA_TYPE = "application/x-ndjson";
+    public static final String CBOR_MEDIA_TYPE = "application/cbor";
+
+    // a record holds at most a 1023 byte id and a 2048 byte key
+    private static final int MAX_CBOR_RECORD = 64 * 1024;
+    private static final int BUFFER_SIZE = 64 * 1024;
+
+    private static final Base64Variant BASE64URL = Base64Variants.MODIFIED_FOR_URL;
+    private static final JsonFactory JSON = new JsonFactory();
+    private static final CBORFactory CBOR = new CBORFactory();
+
+    public enum Format {
+        NDJSON, CBOR;
+
+        public static Format of(String name) {
+            return valueOf(name.toUpperCase());
+        }
+
+        public String mediaType() {
+            return this == NDJSON ? NDJSON_MEDIA_TYPE : CBOR_MEDIA_TYPE;
+        }
+    }
+
+    private CredentialRecordCodec() {
+    }
+
+    public static Reader reader(InputStream in, Format format) throws IOException {
+        return format == Format.NDJSON ? new JsonReader(in) : new CborReader(in);
+    }
+
+    public static Writer writer(OutputStream out, Format format) throws IOException {
+        return format == Format.NDJSON ? new JsonWriter(out) : new CborWriter(out);
+    }
+
+    /**
+     * Reads records one after the other.
+     */
+    public abstract static class Reader implements AutoCloseable {
+
+        private long count;
+
+        /**
+         * @return the next record, null at the end of the stream
+         * @throws JsonParseException if the stream is malformed, nothing after
+         *                            it can be read
+         */
+        public CredentialRecord next() throws IOException {
+            CredentialRecord record = read();
+            if (record != null) {
+                count++;
+            }
+            return record;
+        }
+
+        /**
+         * @return the number of records read so far
+         */
+        public long count() {
+            return count;
+        }
+
+        protected abstract CredentialRecord read() throws IOException;
+
+        @Override
+        public abstract void close() throws IOException;
+    }
+
+    /**
+     * Writes records one after the other, close to flush the buffer.
+     */
+    public abstract static class Writer implements AutoCloseable {
+
+        private long count;
+
+        public void write(CredentialRecord record) throws IOException {
+            append(record);
+            count++;
+        }
+
+        /**
+         * @return the number of records written so far
+         */
+        public long count() {
+            return count;
+        }
+
+        protected abstract void append(CredentialRecord record) throws IOException;
+
+        @Override
+        public abstract void close() throws IOException;
+    }
+
+    private static final class JsonReader extends Reader {
+
+        private final JsonParser parser;
+
+        JsonReader(InputStream in) throws IOException {
+            this.parser = JSON.createParser(in);
+        }
+
+        @Override
+        protected CredentialRecord read() throws IOException {
+            JsonToken token = parser.nextToken();
+            return token == null ? null : readRecord(parser, token);
+        }
+
+        @Override
+        public void close() throws IOException {
+            parser.close();
+        }
+    }
+
+    private static final class CborReader extends Reader {
+
+        private final DataInputStream in;
+        private byte[] buffer = new byte[1024];
+
+        CborReader(InputStream in) {
+            this.in = new DataInputStream(new BufferedInputStream(in, 64 * 1024));
+        }
+
+        @Override
+        protected CredentialRecord read() throws IOException {
+            int length;
+            try {
+                length = in.readInt();
+            } catch (EOFException e) {
+                return null;
+            }
+            if (length < 0 || length > MAX_CBOR_RECORD) {
+                throw new JsonParseException(null, "Record length " + length + " out of range");
+            }
+            if (buffer.length < length) {
+                buffer = new byte[Math.max(length, buffer.length * 2)];
+            }
+            in.readFully(buffer, 0, length);
+            try (JsonParser parser = CBOR.createParser(buffer, 0, length)) {
+                return readRecord(parser, parser.nextToken());
+            }
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    private static final class JsonWriter extends Writer {
+
+        private final JsonGenerator generator;
+
+        JsonWriter(OutputStream out) throws IOException {
+            this.generator = JSON.createGenerator(new BufferedOutputStream(out, BUFFER_SIZE));
+        }
+
+        @Override
+        protected void append(CredentialRecord record) throws IOException {
+            writeRecord(generator, record);
+            generator.writeRaw('\n');
+        }
+
+        @Override
+        public void close() throws IOException {
+            generator.close();
+        }
+    }
+
+    private static final class CborWriter extends Writer {
+
+        private final DataOutputStream out;
+        // holds one record, its length goes first
+        private final ByteArrayOutputStream record = new ByteArrayOutputStream(1024);
+        private final JsonGenerator generator;
+
+        CborWriter(OutputStream out) throws IOException {
+            this.out = new DataOutputStream(new BufferedOutputStream(out, BUFFER_SIZE));
+            this.generator = CBOR.createGenerator(record);
+        }
+
+        @Override
+        protected void append(CredentialRecord credential) throws IOException {
+            writeRecord(generator, credential);
+            generator.flush();
+            out.writeInt(record.size());
+            record.writeTo(out);
+            record.reset();
+        }
+
+        @Override
+        public void close() throws IOException {
+            generator.close();
+            out.close();
+        }
+    }
+
+    private static void writeRecord(JsonGenerator generator, CredentialRecord record) throws IOException {
+        generator.writeStartObject();
+        generator.writeStringField("username", record.username());
+        if (record.displayName() != null) {
+            generator.writeStringField("displayName", record.displayName());
+        }
+        writeBinary(generator, "handle", record.handle());
+        writeBinary(generator, "credentialId", record.credentialId());
+        writeBinary(generator, "publicKey", record.publicKey());
+        if (record.hasCredential()) {
+            generator.writeNumberField("signatureCount", record.signatureCount());
+        }
+        if (record.name() != null) {
+            generator.writeStringField("name", record.name());
+        }
+        generator.writeEndObject();
+    }
+
+    private static void writeBinary(JsonGenerator generator, String field, ByteArray value) throws IOException {
+        if (value != null) {
+            generator.writeFieldName(field);
+            byte[] bytes = value.getBytes();
+            generator.writeBinary(BASE64URL, bytes, 0, bytes.length);
+        }
+    }
+
+    private static CredentialRecord readRecord(JsonParser parser, JsonToken token) throws IOException {
+        if (token != JsonToken.START_OBJECT) {
+            throw new JsonParseException(parser, "Expected a record object");
+        }
+        String username = null;
+        String displayName = null;
+        ByteArray handle = null;
+        ByteArray credentialId = null;
+        ByteArray publicKey = null;
+        long signatureCount = 0;
+        String name = null;
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String field = parser.getCurrentName();
+            if (parser.nextToken() == JsonToken.VALUE_NULL) {
+                continue;
+            }
+            switch (field) {
+            case "username" -> username = parser.getText();
+            case "displayName" -> displayName = parser.getText();
+            case "handle" -> handle = new ByteArray(parser.getBinaryValue(BASE64URL));
+            case "credentialId" -> credentialId = new ByteArray(parser.getBinaryValue(BASE64URL));
+            case "publicKey" -> publicKey = new ByteArray(parser.getBinaryValue(BASE64URL));
+            case "signatureCount" -> signatureCount = parser.getLongValue();
+            case "name" -> name = parser.getText();
+            default -> parser.skipChildren();
+            }
+        }
+        return new CredentialRecord(username, displayName, handle, credentialId, publicKey, signatureCount, name);
+    }
+}
@@ -0,0 +1,308 @@
+package com.WebAuthn.Yubico.Utility;
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import com.WebAuthn.Yubico.Model.AuthenticatorModel;
+import com.WebAuthn.Yubico.Model.UserModel;
+import com.yubico.webauthn.data.ByteArray;
+
+/**
+ * A read only copy of all credentials for lookups by credential id, kept in a
+ * file that is memory mapped rather than read, so it serves as soon as it is
+ * opened and only the pages that are looked at take memory.
+ * <p>
+ * Layout, big endian, version 2:
+ * <ul>
+ * <li>header of 64 bytes: magic "WACS", version, creation time in epoch
+ * milliseconds, number of records, number of slots, offset and length of the
+ * records, which end with the file</li>
+ * <li>slots of 16 bytes, a power of two of them, at most half in use: the
+ * first 8 bytes of the credential id digest and the offset of the record plus
+ * one, 0 for a free slot; a digest starts at the slot of its first bytes and
+ * probes the next ones</li>
+ * <li>records: the 32 byte digest, the signature counter as 8 bytes, the
+ * tenant of the user in UTF-8 and the user handle with a one byte length each,
+ * the COSE key with a two byte length</li>
+ * </ul>
+ * The credential id itself is not stored, the lookup has it and the SHA-256
+ * digest identifies it. Handles and keys are capped at the lengths the schema
+ * allows. Files larger than 1GB are mapped in chunks that overlap by the
+ * largest record, so a slot or record never spans two of them.
+ */
+public final class CredentialSnapshot {
+
+    public static final int VERSION = 2;
+
+    private static final int MAGIC = 0x57414353;
+    private static final int HEADER = 64;
+    private static final int SLOT = 16;
+    private static final int DIGEST = 32;
+    private static final long CHUNK = 1L << 30;
+    private static final int MAX_TENANT = 255;
+    private static final int MAX_HANDLE = UserModel.MAX_HANDLE_LENGTH;
+    private static final int MAX_KEY = AuthenticatorModel.MAX_PUBLIC_KEY_LENGTH;
+    private static final int OVERLAP = DIGEST + 8 + 1 + MAX_TENANT + 1 + MAX_HANDLE + 2 + MAX_KEY;
+
+    private final List<ByteBuffer> chunks;
+    private final long created;
+    private final long records;
+    private final long slots;
+    private final long dataOffset;
+
+    /**
+     * A credential of the snapshot.
+     */
+    public record Entry(String tenant, ByteArray userHandle, ByteArray publicKeyCose, long signatureCount) {
+    }
+
+    private CredentialSnapshot(List<ByteBuffer> chunks, long size) throws IOException {
+        this.chunks = chunks;
+        ByteBuffer header = chunks.get(0);
+        if (header.limit() < HEADER || header.getInt(0) != MAGIC) {
+            throw new IOException("Not a credential snapshot");
+        }
+        if (header.getInt(4) != VERSION) {
+            throw new IOException("Credential snapshot version " + header.getInt(4) + ", expected " + VERSION);
+        }
+        this.created = header.getLong(8);
+        this.records = header.getLong(16);
+        this.slots = header.getLong(24);
+        this.dataOffset = header.getLong(32);
+        long dataLength = header.getLong(40);
+        if (Long.bitCount(slots) != 1 || records < 0 || records > slots / 2 || dataOffset != HEADER + slots * SLOT
+                || dataLength < records * (DIGEST + 8 + 1 + 1 + 2) || dataOffset + dataLength != size) {
+            throw new IOException("Corrupt credential snapshot header");
+        }
+    }
+
+    /**
+     * Maps the file, nothing of it is read but the header.
+     *
+     * @throws IOException if it is no snapshot of this version
+     */
+    public static CredentialSnapshot open(Path file) throws IOException {
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+            long size = channel.size();
+            List<ByteBuffer> chunks = new ArrayList<>();
+            for (long start = 0; start < size; start += CHUNK) {
+                chunks.add(channel.map(FileChannel.MapMode.READ_ONLY, start, Math.min(size - start, CHUNK + OVERLAP)));
+            }
+            if (chunks.isEmpty()) {
+                throw new IOException("Empty credential snapshot");
+            }
+            // the mapping stays valid after the channel is closed
+            return new CredentialSnapshot(chunks, size);
+        }
+    }
+
+    /**
+     * @param expectedRecords sizes the slots, the writer takes up to 1.5 times
+     *                        as many records
+     */
+    public static Writer writer(Path file, long expectedRecords) throws IOException {
+        return new Writer(file, expectedRecords);
+    }
+
+    public long created() {
+        return created;
+    }
+
+    public long records() {
+        return records;
+    }
+
+    public long slots() {
+        return slots;
+    }
+
+    /**
+     * @return the slot of the digest, -1 if the snapshot does not hold it
+     */
+    public long slotOf(ByteArray digest) {
+        byte[] bytes = digest.getBytes();
+        long prefix = prefix(bytes);
+        long mask = slots - 1;
+        for (long slot = prefix & mask;; slot = (slot + 1) & mask) {
+            long position = HEADER + slot * SLOT;
+            ByteBuffer chunk = chunk(position);
+            int index = index(position);
+            long record = chunk.getLong(index + 8);
+            if (record == 0) {
+                return -1;
+            }
+            if (chunk.getLong(index) == prefix && digestEquals(dataOffset + record - 1, bytes)) {
+                return slot;
+            }
+        }
+    }
+
+    /**
+     * @param slot a slot returned by {@link #slotOf}
+     */
+    public Entry entry(long slot) {
+        long slotPosition = HEADER + slot * SLOT;
+        long position = dataOffset + chunk(slotPosition).getLong(index(slotPosition) + 8) - 1;
+        ByteBuffer chunk = chunk(position);
+        int index = index(position) + DIGEST;
+        long signatureCount = chunk.getLong(index);
+        index += 8;
+        byte[] tenant = new byte[chunk.get(index) & 0xff];
+        chunk.get(index + 1, tenant);
+        index += 1 + tenant.length;
+        byte[] handle = new byte[chunk.get(index) & 0xff];
+        chunk.get(index + 1, handle);
+        index += 1 + handle.length;
+        byte[] key = new byte[chunk.getShort(index) & 0xffff];
+        chunk.get(index + 2, key);
+        return new Entry(new String(tenant, StandardCharsets.UTF_8), new ByteArray(handle), new ByteArray(key),
+                signatureCount);
+    }
+
+    /**
+     * @return the counter of the record in the slot, without reading the rest
+     */
+    public long signatureCount(long slot) {
+        long slotPosition = HEADER + slot * SLOT;
+        long position = dataOffset + chunk(slotPosition).getLong(index(slotPosition) + 8) - 1 + DIGEST;
+        return chunk(position).getLong(index(position));
+    }
+
+    public boolean isOccupied(long slot) {
+        long position = HEADER + slot * SLOT;
+        return chunk(position).getLong(index(position) + 8) != 0;
+    }
+
+    public Optional<Entry> find(ByteArray digest) {
+        long slot = slotOf(digest);
+        return slot < 0 ? Optional.empty() : Optional.of(entry(slot));
+    }
+
+    private boolean digestEquals(long position, byte[] digest) {
+        ByteBuffer chunk = chunk(position);
+        int index = index(position);
+        for (int i = 0; i < DIGEST; i++) {
+            if (chunk.get(index + i) != digest[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private ByteBuffer chunk(long position) {
+        return chunks.get((int) (position / CHUNK));
+    }
+
+    private static int index(long position) {
+        return (int) (position % CHUNK);
+    }
+
+    private static long prefix(byte[] digest) {
+        return ByteBuffer.wrap(digest, 0, 8).getLong();
+    }
+
+    /**
+     * Writes a snapshot record by record, the slots are filled in a mapping of
+     * the file so neither part is held on the heap. Close to write the header;
+     * a file that is not closed is no valid snapshot.
+     */
+    public static final class Writer implements AutoCloseable {
+
+        private final FileChannel channel;
+        private final List<MappedByteBuffer> slotChunks = new ArrayList<>();
+        private final DataOutputStream data;
+        private final long slots;
+        private final long capacity;
+        private long records;
+        private long written;
+
+        private Writer(Path file, long expectedRecords) throws IOException {
+            this.slots = Long.highestOneBit(Math.max(16, expectedRecords * 3) - 1) << 1;
+            this.capacity = slots / 2;
+            this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+            long slotBytes = slots * SLOT;
+            for (long start = 0; start < slotBytes; start += CHUNK) {
+                slotChunks.add(channel.map(FileChannel.MapMode.READ_WRITE, HEADER + start,
+                        Math.min(slotBytes - start, CHUNK)));
+            }
+            channel.position(HEADER + slotBytes);
+            this.data = new DataOutputStream(new BufferedOutputStream(Channels.newOutputStream(channel), 64 * 1024));
+        }
+
+        /**
+         * @return false if the snapshot is full or the credential too large, it
+         *         is then looked up in the database
+         */
+        public boolean add(ByteArray digest, String tenant, ByteArray userHandle, ByteArray publicKeyCose,
+                long signatureCount) throws IOException {
+            byte[] tenantBytes = tenant.getBytes(StandardCharsets.UTF_8);
+            if (records == capacity || tenantBytes.length > MAX_TENANT || userHandle.size() > MAX_HANDLE
+                    || publicKeyCose.size() > MAX_KEY) {
+                return false;
+            }
+            byte[] bytes = digest.getBytes();
+            long prefix = prefix(bytes);
+            long mask = slots - 1;
+            long slot = prefix & mask;
+            while (slotChunk(slot).getLong(slotIndex(slot) + 8) != 0) {
+                // an equal prefix is no duplicate, digests are unique
+                slot = (slot + 1) & mask;
+            }
+            slotChunk(slot).putLong(slotIndex(slot), prefix);
+            slotChunk(slot).putLong(slotIndex(slot) + 8, written + 1);
+            data.write(bytes);
+            data.writeLong(signatureCount);
+            data.writeByte(tenantBytes.length);
+            data.write(tenantBytes);
+            data.writeByte(userHandle.size());
+            data.write(userHandle.getBytes());
+            data.writeShort(publicKeyCose.size());
+            data.write(publicKeyCose.getBytes());
+            written += DIGEST + 8 + 1 + tenantBytes.length + 1 + userHandle.size() + 2 + publicKeyCose.size();
+            records++;
+            return true;
+        }
+
+        public long count() {
+            return records;
+        }
+
+        @Override
+        public void close() throws IOException {
+            try {
+                data.flush();
+                for (MappedByteBuffer chunk : slotChunks) {
+                    chunk.force();
+                }
+                ByteBuffer header = ByteBuffer.allocate(HEADER);
+                header.putInt(MAGIC).putInt(VERSION).putLong(System.currentTimeMillis()).putLong(records)
+                        .putLong(slots).putLong(HEADER + slots * SLOT).putLong(written);
+                header.clear();
+                channel.write(header, 0);
+                channel.force(true);
+            } finally {
+                channel.close();
+            }
+        }
+
+        private ByteBuffer slotChunk(long slot) {
+            return slotChunks.get((int) (slot * SLOT / CHUNK));
+        }
+
+        private static int slotIndex(long slot) {
+            return (int) (slot * SLOT % CHUNK);
+        }
+    }
+}
@@ -2,64 +2,275 @@ package com.WebAuthn.Yubico.Utility;
 
 import java.io.IOException;
 import java.io.InputStream;
-import java.security.InvalidAlgorithmParameterException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.security.GeneralSecurityException;
+import java.security.MessageDigest;
 import java.security.cert.CertPath;
 import java.security.cert.CertPathValidator;
 import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
+import java.security.cert.PKIXCertPathValidatorResult;
 import java.security.cert.PKIXParameters;
 import java.security.cert.TrustAnchor;
 import java.security.cert.X509Certificate;
+import java.time.Duration;
 import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
 
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Expiry;
+import com.github.benmanes.caffeine.cache.Ticker;
 import com.yubico.webauthn.attestation.AttestationTrustSource;
 import com.yubico.webauthn.data.ByteArray;
 
-public class CustomAttestationTrustSource implements AttestationTrustSource {
+/**
+ * Trust source backed by an {@link AttestationTrustStore}. With a trust
+ * directory the directory is polled and a changed store is swapped in
+ * together with an empty verdict cache, registrations never wait for a reload.
+ */
+public class CustomAttestationTrustSource implements AttestationTrustSource, AutoCloseable {
+
+    private static final Logger LOG = LoggerFactory.getLogger(CustomAttestationTrustSource.class);
+
+    // a failed validation is retried after this at the latest
+    private static final Duration NEGATIVE_TTL = Duration.ofMinutes(10);
+
+    private final long maxCachedChains;
+    private final Ticker ticker;
+    // wall clock minus the ticker, so expiry and notAfter are compared on the ticker's time
+    private final long epochOffsetNanos;
+    private final Path directory;
+    private final ScheduledExecutorService poller;
+    private volatile Trust trust;
+
+    // the roots and the validation results by the sha-256 fingerprints of the
+    // chain and the aaguid, replaced as a whole
+    private record Trust(AttestationTrustStore store, Cache<ByteArray, Verdict> verdicts) {
+    }
+
+    private record Verdict(Set<X509Certificate> trustRoots, long expiresAtMs) {
+    }
 
-    private X509Certificate certificate;
-    private CertificateFactory cf;
-    private PKIXParameters params;
+    private record Validator(CertPathValidator validator, CertificateFactory cf) {
+    }
 
     public CustomAttestationTrustSource() {
+        this(10_000);
+    }
+
+    public CustomAttestationTrustSource(long maxCachedChains) {
+        this(loadRootCertificate(), maxCachedChains, Ticker.systemTicker());
+    }
+
+    public CustomAttestationTrustSource(X509Certificate rootCertificate, long maxCachedChains, Ticker ticker) {
+        this(AttestationTrustStore.of(Collections.singleton(rootCertificate)), maxCachedChains, ticker);
+    }
+
+    public CustomAttestationTrustSource(AttestationTrustStore store, long maxCachedChains, Ticker ticker) {
+        this.maxCachedChains = maxCachedChains;
+        this.ticker = ticker;
+        this.epochOffsetNanos = epochOffsetNanos(ticker);
+        this.directory = null;
+        this.poller = null;
+        this.trust = new Trust(store, newVerdicts());
+    }
+
+    /**
+     * Trusts the roots in the directory and reloads them when files change.
+     *
+     * @param pollInterval zero to reload only on {@link #reload()}
+     */
+    public CustomAttestationTrustSource(Path directory, Duration pollInterval, long maxCachedChains) {
+        this.maxCachedChains = maxCachedChains;
+        this.ticker = Ticker.systemTicker();
+        this.epochOffsetNanos = epochOffsetNanos(ticker);
+        this.directory = directory;
+        try {
+            this.trust = new Trust(AttestationTrustStore.load(directory), newVerdicts());
+        } catch (IOException e) {
+            throw new UncheckedIOException("Cannot read the trust directory " + directory, e);
+        }
+        LOG.info("Loaded {} attestation roots from {}.", trust.store().size(), directory);
+        if (pollInterval.isZero()) {
+            this.poller = null;
+        } else {
+            this.poller = Executors.newSingleThreadScheduledExecutor(runnable -> {
+                Thread thread = new Thread(runnable, "attestation-trust-reload");
+                thread.setDaemon(true);
+                return thread;
+            });
+            long intervalMs = pollInterval.toMillis();
+            poller.scheduleWithFixedDelay(this::reloadQuietly, intervalMs, intervalMs, TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private static X509Certificate loadRootCertificate() {
         // Load the root certificate
-        try (InputStream inStream = getClass().getResourceAsStream("/trustedCert.pem")) {
-            this.cf = CertificateFactory.getInstance("X.509");
-            this.certificate = (X509Certificate) cf.generateCertificate(inStream);
+        try (InputStream inStream = CustomAttestationTrustSource.class.getResourceAsStream("/trustedCert.pem")) {
+            return (X509Certificate) CertificateFactory.getInstance("X.509").generateCertificate(inStream);
         } catch (IOException | CertificateException e) {
-            e.printStackTrace();
-        }
-        // Set the trust anchor and parameters
-        try {
-            TrustAnchor anchor = new TrustAnchor(this.certificate, null);
-            this.params = new PKIXParameters(Collections.singleton(anchor));
-            params.setRevocationEnabled(false); // Disable CRL checks (this is optional)
-        } catch (InvalidAlgorithmParameterException e) {
-            e.printStackTrace();
+            throw new IllegalStateException("Cannot read the trusted root certificate", e);
         }
     }
 
     @Override
     public TrustRootsResult findTrustRoots(List<X509Certificate> attestationCertificateChain,
             Optional<ByteArray> aaguid) {
-        // Create the validator and validate the certificate chain
+        Trust current = trust;
+        Verdict verdict;
         try {
-            CertPathValidator validator = CertPathValidator.getInstance(CertPathValidator.getDefaultType());
-            CertPath certPath = this.cf.generateCertPath(attestationCertificateChain);
-            validator.validate(certPath, params);
-            // If the chain is invalid, return an empty set
-        } catch (Exception e) {
+            verdict = current.verdicts().get(key(attestationCertificateChain, aaguid),
+                    chain -> validate(current.store(), attestationCertificateChain, aaguid));
+        } catch (GeneralSecurityException e) {
+            verdict = new Verdict(Collections.emptySet(), 0);
+        }
+        // If the chain is invalid, return an empty set
+        if (verdict.trustRoots().isEmpty()) {
             return TrustRootsResult.builder()
                     .trustRoots(new HashSet<>())
                     .build();
         }
         return TrustRootsResult.builder()
-                .trustRoots(new HashSet<>(Collections.singletonList(this.certificate)))
+                .trustRoots(new HashSet<>(verdict.trustRoots()))
                 .enableRevocationChecking(false)
                 .build();
     }
 
+    /**
+     * Loads the trust directory again if any file changed since the last load.
+     *
+     * @return true if a new store was swapped in
+     */
+    public boolean reload() throws IOException {
+        if (directory == null || AttestationTrustStore.stamp(directory).equals(trust.store().getStamp())) {
+            return false;
+        }
+        AttestationTrustStore store = AttestationTrustStore.load(directory);
+        trust = new Trust(store, newVerdicts());
+        LOG.info("Reloaded {} attestation roots from {}.", store.size(), directory);
+        return true;
+    }
+
+    public long cachedChains() {
+        Cache<ByteArray, Verdict> verdicts = trust.verdicts();
+        verdicts.cleanUp();
+        return verdicts.estimatedSize();
+    }
+
+    @Override
+    public void close() {
+        if (poller != null) {
+            poller.shutdownNow();
+        }
+    }
+
+    private void reloadQuietly() {
+        try {
+            reload();
+        } catch (IOException | RuntimeException e) {
+            // the current roots stay in use until the next poll
+            LOG.warn("Reloading the attestation roots from {} failed.", directory, e);
+        }
+    }
+
+    private Cache<ByteArray, Verdict> newVerdicts() {
+        return Caffeine.newBuilder()
+                .maximumSize(maxCachedChains)
+                .expireAfter(new Expiry<ByteArray, Verdict>() {
+                    @Override
+                    public long expireAfterCreate(ByteArray chain, Verdict verdict, long currentTime) {
+                        // saturates for certificates valid until the far future
+                        return TimeUnit.MILLISECONDS.toNanos(
+                                Math.max(0, verdict.expiresAtMs() - epochMillis(currentTime)));
+                    }
+
+                    @Override
+                    public long expireAfterUpdate(ByteArray chain, Verdict verdict, long currentTime,
+                            long currentDuration) {
+                        return currentDuration;
+                    }
+
+                    @Override
+                    public long expireAfterRead(ByteArray chain, Verdict verdict, long currentTime,
+                            long currentDuration) {
+                        return currentDuration;
+                    }
+                })
+                .ticker(ticker)
+                .build();
+    }
+
+    private Verdict validate(AttestationTrustStore store, List<X509Certificate> chain, Optional<ByteArray> aaguid) {
+        // a result holds until the first certificate of the chain expires
+        long expiresAtMs = Long.MAX_VALUE;
+        for (X509Certificate cert : chain) {
+            expiresAtMs = Math.min(expiresAtMs, cert.getNotAfter().getTime());
+        }
+        long negativeExpiresAtMs = Math.min(expiresAtMs, epochMillis(ticker.read()) + NEGATIVE_TTL.toMillis());
+        Set<X509Certificate> candidates = store.candidates(chain, aaguid);
+        if (candidates.isEmpty()) {
+            return new Verdict(Collections.emptySet(), negativeExpiresAtMs);
+        }
+        // Validate the certificate chain. CertPathValidator and CertificateFactory
+        // are not thread safe; a validation only runs when the verdict is not
+        // cached, so a new pair per call costs less than keeping one per thread,
+        // which with virtual threads means one per request anyway
+        try {
+            Set<TrustAnchor> anchors = new HashSet<>();
+            for (X509Certificate root : candidates) {
+                anchors.add(new TrustAnchor(root, null));
+            }
+            PKIXParameters params = new PKIXParameters(anchors);
+            params.setRevocationEnabled(false); // Disable CRL checks (this is optional)
+            Validator validator = newValidator();
+            CertPath certPath = validator.cf().generateCertPath(chain);
+            X509Certificate root = ((PKIXCertPathValidatorResult) validator.validator().validate(certPath, params))
+                    .getTrustAnchor().getTrustedCert();
+            return new Verdict(Collections.singleton(root), Math.min(expiresAtMs, root.getNotAfter().getTime()));
+        } catch (Exception e) {
+            return new Verdict(Collections.emptySet(), negativeExpiresAtMs);
+        }
+    }
+
+    private static long epochOffsetNanos(Ticker ticker) {
+        return TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis()) - ticker.read();
+    }
+
+    private long epochMillis(long tickerNanos) {
+        return TimeUnit.NANOSECONDS.toMillis(tickerNanos + epochOffsetNanos);
+    }
+
+    private static Validator newValidator() {
+        try {
+            return new Validator(CertPathValidator.getInstance(CertPathValidator.getDefaultType()),
+                    CertificateFactory.getInstance("X.509"));
+        } catch (GeneralSecurityException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private static ByteArray key(List<X509Certificate> chain, Optional<ByteArray> aaguid)
+            throws GeneralSecurityException {
+        MessageDigest sha256 = MessageDigest.getInstance("SHA-256");
+        int aaguidLength = aaguid.map(ByteArray::size).orElse(0);
+        byte[] key = new byte[chain.size() * 32 + aaguidLength];
+        for (int i = 0; i < chain.size(); i++) {
+            sha256.update(chain.get(i).getEncoded());
+            sha256.digest(key, i * 32, 32);
+        }
+        aaguid.ifPresent(bytes -> System.arraycopy(bytes.getBytes(), 0, key, chain.size() * 32, aaguidLength));
+        return new ByteArray(key);
+    }
+
 }
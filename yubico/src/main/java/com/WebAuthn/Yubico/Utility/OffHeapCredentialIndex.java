@@ -0,0 +1,369 @@
+package com.WebAuthn.Yubico.Utility;
+
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.VarHandle;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.Optional;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+import com.WebAuthn.Yubico.Model.AuthenticatorModel;
+import com.WebAuthn.Yubico.Model.UserModel;
+import com.yubico.webauthn.data.ByteArray;
+
+/**
+ * Credentials by the SHA-256 digest of their id, kept in direct buffers so
+ * that millions of them neither take heap nor add to the work of the garbage
+ * collector. Readers and writers take no locks.
+ * <p>
+ * The slots are one long each: 24 bits of the digest as a tag and the offset
+ * of the record, 0 for a free slot. A digest starts at the slot of its first
+ * 8 bytes and probes the next ones; at most half of the slots are used.
+ * Records are written before their slot is set with a compare and set, so a
+ * reader that sees the slot sees the whole record. Records are appended to
+ * chunks of 64MB that are allocated as they are needed:
+ * <ul>
+ * <li>the signature counter and a stamp of the caller, 8 bytes each, both
+ * updated atomically in place</li>
+ * <li>the 32 byte digest</li>
+ * <li>the user handle with a one byte length, the COSE key with a two byte
+ * length, padded to 8 bytes</li>
+ * </ul>
+ * A removed credential leaves its slot as a tombstone and its record unused,
+ * neither is reused. Once the slots or the chunks are used up, nothing more
+ * is added; {@link #wasteful()} tells when a new index would reclaim enough of
+ * them to be worth building.
+ */
+public final class OffHeapCredentialIndex {
+
+    // atomic access to the longs of a direct buffer at 8 byte aligned offsets
+    private static final VarHandle LONGS = MethodHandles.byteBufferViewVarHandle(long[].class,
+            ByteOrder.nativeOrder());
+
+    private static final int DIGEST = 32;
+    private static final int HEAD = 16 + DIGEST;
+    private static final int CHUNK = 64 * 1024 * 1024;
+    private static final int SLOTS_PER_CHUNK = 1 << 27;
+    private static final long REF_MASK = (1L << 40) - 1;
+    private static final long TOMBSTONE = -1L;
+    // the limits of the schema, larger credentials cannot exist
+    private static final int MAX_HANDLE = UserModel.MAX_HANDLE_LENGTH;
+    private static final int MAX_KEY = AuthenticatorModel.MAX_PUBLIC_KEY_LENGTH;
+
+    private final ByteBuffer[] slotChunks;
+    private final long slots;
+    private final long capacity;
+    private final long maxBytes;
+    private final AtomicReferenceArray<ByteBuffer> chunks;
+    private final AtomicLong used = new AtomicLong();
+    private final AtomicLong live = new AtomicLong();
+    private final AtomicLong removedBytes = new AtomicLong();
+    private final AtomicLong refused = new AtomicLong();
+    private final AtomicLong next = new AtomicLong();
+    private final AtomicLong allocated = new AtomicLong();
+
+    /**
+     * A credential of the index.
+     *
+     * @param stamp the last one set for the credential
+     */
+    public record Entry(ByteArray userHandle, ByteArray publicKeyCose, long signatureCount, long stamp) {
+    }
+
+    /**
+     * @param capacity credentials that fit into the slots, they are allocated
+     *                 right away
+     * @param maxBytes bound of the records, allocated as they are added
+     */
+    public OffHeapCredentialIndex(long capacity, long maxBytes) {
+        if (capacity < 1 || maxBytes < 1 || maxBytes >= (REF_MASK - 1) * 8) {
+            throw new IllegalArgumentException("capacity " + capacity + ", max bytes " + maxBytes);
+        }
+        this.slots = Long.highestOneBit(Math.max(16, capacity * 2) - 1) << 1;
+        this.capacity = slots / 2;
+        this.maxBytes = maxBytes;
+        this.slotChunks = new ByteBuffer[(int) ((slots + SLOTS_PER_CHUNK - 1) / SLOTS_PER_CHUNK)];
+        for (int i = 0; i < slotChunks.length; i++) {
+            slotChunks[i] = allocateDirect((int) Math.min(slots - (long) i * SLOTS_PER_CHUNK, SLOTS_PER_CHUNK) * 8);
+        }
+        this.chunks = new AtomicReferenceArray<>((int) ((maxBytes + CHUNK - 1) / CHUNK));
+    }
+
+    public Optional<Entry> get(ByteArray digest) {
+        long ref = find(digest.getBytes());
+        if (ref < 0) {
+            return Optional.empty();
+        }
+        ByteBuffer chunk = chunk(ref);
+        int index = index(ref);
+        long signatureCount = (long) LONGS.getVolatile(chunk, index);
+        long stamp = (long) LONGS.getVolatile(chunk, index + 8);
+        index += HEAD;
+        byte[] handle = new byte[chunk.get(index) & 0xff];
+        chunk.get(index + 1, handle);
+        index += 1 + handle.length;
+        byte[] key = new byte[chunk.getShort(index) & 0xffff];
+        chunk.get(index + 2, key);
+        return Optional.of(new Entry(new ByteArray(handle), new ByteArray(key), signatureCount, stamp));
+    }
+
+    /**
+     * @return false if the digest is already in the index, the index is full or
+     *         the credential too large
+     */
+    public boolean put(ByteArray digest, ByteArray userHandle, ByteArray publicKeyCose, long signatureCount,
+            long stamp) {
+        byte[] bytes = digest.getBytes();
+        if (userHandle.size() > MAX_HANDLE || publicKeyCose.size() > MAX_KEY || find(bytes) >= 0) {
+            return false;
+        }
+        if (used.incrementAndGet() > capacity) {
+            used.decrementAndGet();
+            refused.incrementAndGet();
+            return false;
+        }
+        long ref = allocate(recordSize(userHandle.size(), publicKeyCose.size()));
+        if (ref < 0) {
+            used.decrementAndGet();
+            refused.incrementAndGet();
+            return false;
+        }
+        ByteBuffer chunk = chunk(ref);
+        int index = index(ref);
+        LONGS.set(chunk, index, signatureCount);
+        LONGS.set(chunk, index + 8, stamp);
+        chunk.put(index + 16, bytes);
+        index += HEAD;
+        chunk.put(index, (byte) userHandle.size());
+        chunk.put(index + 1, userHandle.getBytes());
+        index += 1 + userHandle.size();
+        chunk.putShort(index, (short) publicKeyCose.size());
+        chunk.put(index + 2, publicKeyCose.getBytes());
+
+        long value = tag(bytes) << 40 | (ref / 8 + 1);
+        long mask = slots - 1;
+        for (long slot = prefix(bytes) & mask;; slot = (slot + 1) & mask) {
+            ByteBuffer slotChunk = slotChunk(slot);
+            int slotIndex = slotIndex(slot);
+            long current = (long) LONGS.getAcquire(slotChunk, slotIndex);
+            if (current == 0) {
+                // publishes the record written above
+                if (LONGS.compareAndSet(slotChunk, slotIndex, 0L, value)) {
+                    live.incrementAndGet();
+                    return true;
+                }
+                current = (long) LONGS.getAcquire(slotChunk, slotIndex);
+            }
+            if (matches(current, bytes)) {
+                // a concurrent put of the same credential won, its record stays
+                used.decrementAndGet();
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Raises the counter, never lowers it.
+     *
+     * @return false if the digest is not in the index or its counter is
+     *         already as high
+     */
+    public boolean advance(ByteArray digest, long signatureCount) {
+        long ref = find(digest.getBytes());
+        if (ref < 0) {
+            return false;
+        }
+        ByteBuffer chunk = chunk(ref);
+        int index = index(ref);
+        long current;
+        do {
+            current = (long) LONGS.getVolatile(chunk, index);
+            if (current >= signatureCount) {
+                return false;
+            }
+        } while (!LONGS.compareAndSet(chunk, index, current, signatureCount));
+        return true;
+    }
+
+    /**
+     * @return false if the digest is not in the index
+     */
+    public boolean stamp(ByteArray digest, long stamp) {
+        long ref = find(digest.getBytes());
+        if (ref < 0) {
+            return false;
+        }
+        LONGS.setVolatile(chunk(ref), index(ref) + 8, stamp);
+        return true;
+    }
+
+    /**
+     * @return false if the digest is not in the index
+     */
+    public boolean remove(ByteArray digest) {
+        byte[] bytes = digest.getBytes();
+        long mask = slots - 1;
+        for (long slot = prefix(bytes) & mask;; slot = (slot + 1) & mask) {
+            ByteBuffer slotChunk = slotChunk(slot);
+            int slotIndex = slotIndex(slot);
+            long current = (long) LONGS.getAcquire(slotChunk, slotIndex);
+            if (current == 0) {
+                return false;
+            }
+            if (matches(current, bytes)) {
+                // a concurrent remove may have been first
+                if (!LONGS.compareAndSet(slotChunk, slotIndex, current, TOMBSTONE)) {
+                    return false;
+                }
+                live.decrementAndGet();
+                removedBytes.addAndGet(recordSize(((current & REF_MASK) - 1) * 8));
+                return true;
+            }
+        }
+    }
+
+    /**
+     * @return credentials in the index, removed ones not counted
+     */
+    public long size() {
+        return live.get();
+    }
+
+    /**
+     * @return slots left behind by removed credentials
+     */
+    public long tombstones() {
+        return used.get() - live.get();
+    }
+
+    /**
+     * @return puts refused as the slots or the records were used up
+     */
+    public long refused() {
+        return refused.get();
+    }
+
+    /**
+     * @return whether a quarter of the slots or of the record bytes are taken
+     *         by removed credentials, or puts are refused while some are
+     */
+    public boolean wasteful() {
+        return tombstones() > 0 && (tombstones() >= capacity / 4 || removedBytes.get() >= maxBytes / 4
+                || refused.get() > 0);
+    }
+
+    public long capacity() {
+        return capacity;
+    }
+
+    /**
+     * @return bytes of the slots and the records added so far
+     */
+    public long bytesUsed() {
+        return slots * 8 + next.get();
+    }
+
+    /**
+     * @return bytes of the slots and the chunks allocated so far
+     */
+    public long bytesAllocated() {
+        return slots * 8 + allocated.get();
+    }
+
+    // the offset of the record, -1 if the digest is not in the index
+    private long find(byte[] digest) {
+        long mask = slots - 1;
+        for (long slot = prefix(digest) & mask;; slot = (slot + 1) & mask) {
+            long current = (long) LONGS.getAcquire(slotChunk(slot), slotIndex(slot));
+            if (current == 0) {
+                return -1;
+            }
+            if (matches(current, digest)) {
+                return ((current & REF_MASK) - 1) * 8;
+            }
+        }
+    }
+
+    private boolean matches(long slotValue, byte[] digest) {
+        if (slotValue == TOMBSTONE || slotValue >>> 40 != tag(digest)) {
+            return false;
+        }
+        long ref = ((slotValue & REF_MASK) - 1) * 8;
+        ByteBuffer chunk = chunk(ref);
+        int index = index(ref) + 16;
+        for (int i = 0; i < DIGEST; i++) {
+            if (chunk.get(index + i) != digest[i]) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static int recordSize(int handleLength, int keyLength) {
+        return (HEAD + 1 + handleLength + 2 + keyLength + 7) & ~7;
+    }
+
+    private int recordSize(long ref) {
+        ByteBuffer chunk = chunk(ref);
+        int index = index(ref) + HEAD;
+        int handleLength = chunk.get(index) & 0xff;
+        return recordSize(handleLength, chunk.getShort(index + 1 + handleLength) & 0xffff);
+    }
+
+    // records never span two chunks, the rest of a chunk is skipped
+    private long allocate(int size) {
+        while (true) {
+            long start = next.get();
+            long chunkEnd = (start / CHUNK + 1) * CHUNK;
+            long position = start + size > chunkEnd ? chunkEnd : start;
+            if (position + size > maxBytes) {
+                return -1;
+            }
+            if (next.compareAndSet(start, position + size)) {
+                int chunk = (int) (position / CHUNK);
+                if (chunks.get(chunk) == null) {
+                    allocateChunk(chunk);
+                }
+                return position;
+            }
+        }
+    }
+
+    private synchronized void allocateChunk(int chunk) {
+        if (chunks.get(chunk) == null) {
+            int size = (int) Math.min(CHUNK, maxBytes - (long) chunk * CHUNK);
+            chunks.set(chunk, allocateDirect(size));
+            allocated.addAndGet(size);
+        }
+    }
+
+    private ByteBuffer chunk(long position) {
+        return chunks.get((int) (position / CHUNK));
+    }
+
+    private static int index(long position) {
+        return (int) (position % CHUNK);
+    }
+
+    private ByteBuffer slotChunk(long slot) {
+        return slotChunks[(int) (slot / SLOTS_PER_CHUNK)];
+    }
+
+    private static int slotIndex(long slot) {
+        return (int) (slot % SLOTS_PER_CHUNK) * 8;
+    }
+
+    private static long prefix(byte[] digest) {
+        return ByteBuffer.wrap(digest, 0, 8).getLong();
+    }
+
+    // other bytes than those of the slot
+    private static long tag(byte[] digest) {
+        return (digest[8] & 0xffL) << 16 | (digest[9] & 0xffL) << 8 | (digest[10] & 0xffL);
+    }
+
+    private static ByteBuffer allocateDirect(int size) {
+        return ByteBuffer.allocateDirect(size + 7).alignedSlice(8);
+    }
+}
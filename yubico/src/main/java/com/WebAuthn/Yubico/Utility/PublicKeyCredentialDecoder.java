@@ -0,0 +1,252 @@
+package com.WebAuthn.Yubico.Utility;
+
+import java.io.IOException;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.stereotype.Component;
+
+import com.fasterxml.jackson.core.Base64Variant;
+import com.fasterxml.jackson.core.Base64Variants;
+import com.fasterxml.jackson.core.JsonParseException;
+import com.fasterxml.jackson.core.JsonParser;
+import com.fasterxml.jackson.core.JsonToken;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.yubico.webauthn.data.AuthenticatorAssertionResponse;
+import com.yubico.webauthn.data.AuthenticatorAttachment;
+import com.yubico.webauthn.data.AuthenticatorAttestationResponse;
+import com.yubico.webauthn.data.AuthenticatorTransport;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.ClientAssertionExtensionOutputs;
+import com.yubico.webauthn.data.ClientExtensionOutputs;
+import com.yubico.webauthn.data.ClientRegistrationExtensionOutputs;
+import com.yubico.webauthn.data.PublicKeyCredential;
+import com.yubico.webauthn.data.PublicKeyCredentialType;
+import com.yubico.webauthn.data.exception.Base64UrlException;
+
+/**
+ * Decodes the request bodies of the result endpoints into a
+ * {@link PublicKeyCredential} in one pass over the body. Base64url values are
+ * decoded from the buffer of the parser straight into bytes.
+ */
+@Component
+public class PublicKeyCredentialDecoder {
+
+    private static final Base64Variant BASE64URL = Base64Variants.MODIFIED_FOR_URL;
+
+    private final ObjectMapper mapper;
+
+    @Autowired
+    public PublicKeyCredentialDecoder(ObjectMapper mapper) {
+        this.mapper = mapper;
+    }
+
+    public PublicKeyCredential<AuthenticatorAttestationResponse, ClientRegistrationExtensionOutputs> decodeRegistration(
+            byte[] body) throws IOException {
+        try (JsonParser parser = mapper.getFactory().createParser(body)) {
+            Fields<ClientRegistrationExtensionOutputs> fields = new Fields<>();
+            readCredential(parser, fields, ClientRegistrationExtensionOutputs.class);
+            AuthenticatorAttestationResponse response = AuthenticatorAttestationResponse.builder()
+                    .attestationObject(required(fields.attestationObject, "attestationObject"))
+                    .clientDataJSON(required(fields.clientDataJSON, "clientDataJSON"))
+                    .transports(fields.transports)
+                    .build();
+            return PublicKeyCredential.<AuthenticatorAttestationResponse, ClientRegistrationExtensionOutputs>builder()
+                    .id(fields.id())
+                    .response(response)
+                    .clientExtensionResults(fields.extensions != null ? fields.extensions
+                            : ClientRegistrationExtensionOutputs.builder().build())
+                    .authenticatorAttachment(fields.attachment)
+                    .build();
+        } catch (Base64UrlException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    public PublicKeyCredential<AuthenticatorAssertionResponse, ClientAssertionExtensionOutputs> decodeAssertion(
+            byte[] body) throws IOException {
+        try (JsonParser parser = mapper.getFactory().createParser(body)) {
+            Fields<ClientAssertionExtensionOutputs> fields = new Fields<>();
+            readCredential(parser, fields, ClientAssertionExtensionOutputs.class);
+            AuthenticatorAssertionResponse response = AuthenticatorAssertionResponse.builder()
+                    .authenticatorData(required(fields.authenticatorData, "authenticatorData"))
+                    .clientDataJSON(required(fields.clientDataJSON, "clientDataJSON"))
+                    .signature(required(fields.signature, "signature"))
+                    .userHandle(Optional.ofNullable(fields.userHandle))
+                    .build();
+            return PublicKeyCredential.<AuthenticatorAssertionResponse, ClientAssertionExtensionOutputs>builder()
+                    .id(fields.id())
+                    .response(response)
+                    .clientExtensionResults(fields.extensions != null ? fields.extensions
+                            : ClientAssertionExtensionOutputs.builder().build())
+                    .authenticatorAttachment(fields.attachment)
+                    .build();
+        } catch (Base64UrlException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    private <E extends ClientExtensionOutputs> void readCredential(JsonParser parser, Fields<E> fields,
+            Class<E> extensionType) throws IOException {
+        expect(parser, parser.nextToken(), JsonToken.START_OBJECT);
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if (value == JsonToken.VALUE_NULL) {
+                continue;
+            }
+            switch (name) {
+                case "id":
+                    fields.id = bytes(parser);
+                    break;
+                case "rawId":
+                    fields.rawId = bytes(parser);
+                    break;
+                case "type":
+                    if (!PublicKeyCredentialType.PUBLIC_KEY.getId().equals(parser.getText())) {
+                        throw new JsonParseException(parser, "Unsupported credential type.");
+                    }
+                    break;
+                case "authenticatorAttachment":
+                    fields.attachment = attachment(parser.getText());
+                    break;
+                case "response":
+                    readResponse(parser, fields);
+                    break;
+                case "clientExtensionResults":
+                    fields.extensions = mapper.readValue(parser, extensionType);
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+    }
+
+    private void readResponse(JsonParser parser, Fields<?> fields) throws IOException {
+        expect(parser, parser.currentToken(), JsonToken.START_OBJECT);
+        while (parser.nextToken() == JsonToken.FIELD_NAME) {
+            String name = parser.getCurrentName();
+            JsonToken value = parser.nextToken();
+            if (value == JsonToken.VALUE_NULL) {
+                continue;
+            }
+            switch (name) {
+                case "clientDataJSON":
+                    fields.clientDataJSON = bytes(parser);
+                    break;
+                case "attestationObject":
+                    fields.attestationObject = bytes(parser);
+                    break;
+                case "authenticatorData":
+                    fields.authenticatorData = bytes(parser);
+                    break;
+                case "signature":
+                    fields.signature = bytes(parser);
+                    break;
+                case "userHandle":
+                    fields.userHandle = bytes(parser);
+                    break;
+                case "transports":
+                    expect(parser, value, JsonToken.START_ARRAY);
+                    // elements other than strings are skipped, the parser stays in step
+                    for (JsonToken element = parser.nextToken(); element != JsonToken.END_ARRAY;
+                            element = parser.nextToken()) {
+                        if (element == JsonToken.VALUE_STRING) {
+                            fields.transports.add(AuthenticatorTransport.of(parser.getText()));
+                        } else {
+                            parser.skipChildren();
+                        }
+                    }
+                    break;
+                default:
+                    parser.skipChildren();
+            }
+        }
+    }
+
+    // decodes from the character buffer of the parser, jackson's own base64
+    // decoding insists on padding as soon as the variant has a padding character,
+    // but base64url is sent with and without it
+    private static ByteArray bytes(JsonParser parser) throws IOException {
+        expect(parser, parser.currentToken(), JsonToken.VALUE_STRING);
+        char[] text = parser.getTextCharacters();
+        int start = parser.getTextOffset();
+        int end = start + parser.getTextLength();
+        while (end > start && text[end - 1] == '=') {
+            end--;
+        }
+        if ((end - start) % 4 == 1) {
+            throw new JsonParseException(parser, "Invalid base64url value.");
+        }
+        byte[] decoded = new byte[(end - start) * 3 / 4];
+        int bits = 0;
+        int count = 0;
+        int position = 0;
+        for (int i = start; i < end; i++) {
+            int value = BASE64URL.decodeBase64Char(text[i]);
+            if (value < 0) {
+                throw new JsonParseException(parser, "Invalid base64url value.");
+            }
+            bits = bits << 6 | value;
+            if (++count == 4) {
+                decoded[position++] = (byte) (bits >> 16);
+                decoded[position++] = (byte) (bits >> 8);
+                decoded[position++] = (byte) bits;
+                bits = 0;
+                count = 0;
+            }
+        }
+        if (count == 2) {
+            decoded[position] = (byte) (bits >> 4);
+        } else if (count == 3) {
+            decoded[position++] = (byte) (bits >> 10);
+            decoded[position] = (byte) (bits >> 2);
+        }
+        return new ByteArray(decoded);
+    }
+
+    private static AuthenticatorAttachment attachment(String value) {
+        for (AuthenticatorAttachment attachment : AuthenticatorAttachment.values()) {
+            if (attachment.getValue().equals(value)) {
+                return attachment;
+            }
+        }
+        return null;
+    }
+
+    private static void expect(JsonParser parser, JsonToken actual, JsonToken expected) throws IOException {
+        if (actual != expected) {
+            throw new JsonParseException(parser, "Expected " + expected + " but got " + actual + ".");
+        }
+    }
+
+    private static ByteArray required(ByteArray value, String name) throws IOException {
+        if (value == null) {
+            throw new IOException("Missing " + name + ".");
+        }
+        return value;
+    }
+
+    private static final class Fields<E> {
+        ByteArray id;
+        ByteArray rawId;
+        AuthenticatorAttachment attachment;
+        E extensions;
+        ByteArray clientDataJSON;
+        ByteArray attestationObject;
+        ByteArray authenticatorData;
+        ByteArray signature;
+        ByteArray userHandle;
+        Set<AuthenticatorTransport> transports = new TreeSet<>();
+
+        // either of id and rawId may be sent, but they have to agree
+        ByteArray id() throws IOException {
+            if (id != null && rawId != null && !id.equals(rawId)) {
+                throw new IOException("id and rawId differ.");
+            }
+            return required(id != null ? id : rawId, "id");
+        }
+    }
+}
@@ -0,0 +1,136 @@
+package com.WebAuthn.Yubico.Utility;
+
+import java.time.Duration;
+import java.util.concurrent.locks.ReentrantLock;
+
+import com.yubico.webauthn.data.ByteArray;
+
+/**
+ * Remembers which challenges were already used within a time window, to reject
+ * replayed ceremony tokens.
+ * Challenges are stored as 64 bit fingerprints in open addressing tables that
+ * are rotated every window, so an entry costs 8 bytes and is forgotten after
+ * one to two windows.
+ */
+public class SeenChallengeSet {
+
+    private static final int INITIAL_CAPACITY = 1024;
+
+    private final long windowMs;
+    private final Stripe[] stripes;
+
+    /**
+     * @param window time a challenge has to be remembered, at least the lifetime
+     *               of a token
+     */
+    public SeenChallengeSet(Duration window) {
+        this.windowMs = Math.max(1, window.toMillis());
+        int count = Integer.highestOneBit(Runtime.getRuntime().availableProcessors() * 4 - 1) << 1;
+        this.stripes = new Stripe[count];
+        for (int i = 0; i < count; i++) {
+            stripes[i] = new Stripe();
+        }
+    }
+
+    /**
+     * Records the challenge.
+     *
+     * @return false if the challenge was already seen within the window
+     */
+    public boolean add(ByteArray challenge, long nowMs) {
+        long fingerprint = fingerprint(challenge.getBytes());
+        Stripe stripe = stripes[(int) (fingerprint >>> 32) & (stripes.length - 1)];
+        long epoch = nowMs / windowMs;
+        stripe.lock.lock();
+        try {
+            stripe.rotate(epoch);
+            if (stripe.previous.contains(fingerprint)) {
+                return false;
+            }
+            return stripe.current.add(fingerprint);
+        } finally {
+            stripe.lock.unlock();
+        }
+    }
+
+    // challenges are random, so their leading bytes are a uniform fingerprint
+    private static long fingerprint(byte[] challenge) {
+        long fingerprint = 0;
+        for (int i = 0; i < Math.min(Long.BYTES, challenge.length); i++) {
+            fingerprint = (fingerprint << 8) | (challenge[i] & 0xff);
+        }
+        if (challenge.length > Long.BYTES) {
+            for (int i = Long.BYTES; i < challenge.length; i++) {
+                fingerprint = fingerprint * 31 + challenge[i];
+            }
+        }
+        return fingerprint == 0 ? 1 : fingerprint;
+    }
+
+    private static final class Stripe {
+        final ReentrantLock lock = new ReentrantLock();
+        long epoch = Long.MIN_VALUE;
+        LongSet current = new LongSet();
+        LongSet previous = new LongSet();
+
+        void rotate(long now) {
+            if (now == epoch) {
+                return;
+            }
+            previous = now == epoch + 1 ? current : new LongSet();
+            current = new LongSet();
+            epoch = now;
+        }
+    }
+
+    // open addressing set of non-zero longs with linear probing
+    private static final class LongSet {
+        long[] table = new long[INITIAL_CAPACITY];
+        int size;
+
+        boolean contains(long value) {
+            int mask = table.length - 1;
+            for (int i = mix(value) & mask;; i = (i + 1) & mask) {
+                if (table[i] == value) {
+                    return true;
+                }
+                if (table[i] == 0) {
+                    return false;
+                }
+            }
+        }
+
+        boolean add(long value) {
+            if (size * 2 >= table.length) {
+                grow();
+            }
+            int mask = table.length - 1;
+            for (int i = mix(value) & mask;; i = (i + 1) & mask) {
+                if (table[i] == value) {
+                    return false;
+                }
+                if (table[i] == 0) {
+                    table[i] = value;
+                    size++;
+                    return true;
+                }
+            }
+        }
+
+        private void grow() {
+            long[] old = table;
+            table = new long[old.length * 2];
+            size = 0;
+            for (long value : old) {
+                if (value != 0) {
+                    add(value);
+                }
+            }
+        }
+
+        private static int mix(long value) {
+            long h = value * 0x9E3779B97F4A7C15L;
+            return (int) (h ^ (h >>> 32));
+        }
+    }
+}
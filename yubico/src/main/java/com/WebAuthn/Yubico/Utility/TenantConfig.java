@@ -0,0 +1,60 @@
+package com.WebAuthn.Yubico.Utility;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Properties;
+import java.util.Set;
+import java.util.stream.Collectors;
+
+import com.WebAuthn.Yubico.Model.UserModel;
+
+/**
+ * Settings of the relying party of one host, read from
+ * {@code <host>.properties} in the tenant directory:
+ *
+ * <pre>
+ * # default: the host
+ * rp.id=example.com
+ * # default: the rp id
+ * rp.name=Example
+ * # comma separated, default: https://[host]
+ * origins=https://example.com,https://login.example.com
+ * # users and credentials of the tenant, default: the rp id
+ * partition=example
+ * # attestation roots, relative to the tenant directory, default: the shared ones
+ * trust-store.dir=example-roots
+ * </pre>
+ *
+ * Hosts with the same partition share their users.
+ */
+public record TenantConfig(String rpId, String rpName, Set<String> origins, String partition, Path trustStoreDir) {
+
+    public static TenantConfig load(String host, Path file) throws IOException {
+        Properties properties = new Properties();
+        try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            properties.load(reader);
+        }
+        String rpId = value(properties, "rp.id", host);
+        String partition = value(properties, "partition", rpId);
+        if (partition.length() > UserModel.MAX_TENANT_LENGTH) {
+            throw new IllegalArgumentException("Partition of " + host + " longer than "
+                    + UserModel.MAX_TENANT_LENGTH + " characters");
+        }
+        Set<String> origins = Arrays.stream(value(properties, "origins", "https://" + host).split(","))
+                .map(String::trim)
+                .filter(origin -> !origin.isEmpty())
+                .collect(Collectors.toUnmodifiableSet());
+        String trustStoreDir = value(properties, "trust-store.dir", null);
+        return new TenantConfig(rpId, value(properties, "rp.name", rpId), origins, partition,
+                trustStoreDir == null ? null : file.resolveSibling(trustStoreDir));
+    }
+
+    private static String value(Properties properties, String key, String defaultValue) {
+        String value = properties.getProperty(key, "").trim();
+        return value.isEmpty() ? defaultValue : value;
+    }
+}
@@ -0,0 +1,74 @@
+package com.WebAuthn.Yubico.Utility;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import com.github.benmanes.caffeine.cache.Cache;
+import com.github.benmanes.caffeine.cache.Caffeine;
+import com.github.benmanes.caffeine.cache.Ticker;
+
+/**
+ * One token bucket per key, e.g. per client address.
+ * A bucket is a single long, the time at which it would be full again, and is
+ * refilled lazily by comparing that time with the clock on the next request.
+ * Taking a token is one compare-and-set on that long, the buckets are held in
+ * a Caffeine cache, a concurrent hash map striped by bin, so no request waits
+ * for a lock. A bucket not used for as long as it takes to fill up is the same
+ * as a new one and is evicted; beyond the maximum number of keys the least
+ * used buckets are dropped, which can only give a key a full bucket early.
+ */
+public class TokenBuckets {
+
+    private final long intervalNanos;
+    private final long capacityNanos;
+    private final Ticker ticker;
+    private final Cache<String, AtomicLong> buckets;
+
+    /**
+     * @param ratePerSecond tokens added per second
+     * @param burst         tokens a full bucket holds
+     * @param maxKeys       buckets kept at most
+     */
+    public TokenBuckets(double ratePerSecond, int burst, long maxKeys, Ticker ticker) {
+        if (ratePerSecond <= 0 || burst < 1) {
+            throw new IllegalArgumentException("Rate and burst must be positive.");
+        }
+        this.intervalNanos = Math.max(1, (long) (TimeUnit.SECONDS.toNanos(1) / ratePerSecond));
+        this.capacityNanos = intervalNanos * burst;
+        this.ticker = ticker;
+        this.buckets = Caffeine.newBuilder()
+                .maximumSize(maxKeys)
+                .expireAfterAccess(Duration.ofNanos(Math.max(capacityNanos, TimeUnit.SECONDS.toNanos(1))))
+                .ticker(ticker)
+                .build();
+    }
+
+    /**
+     * Takes a token from the bucket of the key.
+     *
+     * @return false if the bucket is empty
+     */
+    public boolean tryAcquire(String key) {
+        long now = ticker.read();
+        AtomicLong fullAt = buckets.getIfPresent(key);
+        if (fullAt == null) {
+            fullAt = buckets.get(key, k -> new AtomicLong(now));
+        }
+        while (true) {
+            long current = fullAt.get();
+            long next = Math.max(current, now) + intervalNanos;
+            if (next - now > capacityNanos) {
+                return false;
+            }
+            if (fullAt.compareAndSet(current, next)) {
+                return true;
+            }
+        }
+    }
+
+    public long size() {
+        buckets.cleanUp();
+        return buckets.estimatedSize();
+    }
+}
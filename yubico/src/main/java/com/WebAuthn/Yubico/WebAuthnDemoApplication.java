@@ -1,36 +1,79 @@
 package com.WebAuthn.Yubico;
 
+import com.WebAuthn.Yubico.Service.CeremonyMetrics;
 import com.WebAuthn.Yubico.Service.CredentialAccessService;
+import com.WebAuthn.Yubico.Utility.ChallengeSupplier;
 import com.WebAuthn.Yubico.Utility.CustomAttestationTrustSource;
 import com.yubico.webauthn.RelyingParty;
 import com.yubico.webauthn.data.RelyingPartyIdentity;
 import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.boot.SpringApplication;
 import org.springframework.boot.autoconfigure.SpringBootApplication;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnWebApplication;
+import org.springframework.boot.autoconfigure.r2dbc.R2dbcAutoConfiguration;
 import org.springframework.context.annotation.Bean;
 
+import reactor.core.scheduler.Scheduler;
+import reactor.core.scheduler.Schedulers;
+
+import java.nio.file.Path;
+import java.time.Duration;
 import java.util.Collections;
 
-@SpringBootApplication
+// a ConnectionFactory bean turns off the DataSource JPA needs, the reactive
+// store opens its own connections
+@SpringBootApplication(exclude = R2dbcAutoConfiguration.class)
 public class WebAuthnDemoApplication {
 
 	public static void main(String[] args) {
 		SpringApplication.run(WebAuthnDemoApplication.class, args);
 	}
 
+	/**
+	 * Runs the CPU bound ceremony steps of the reactive endpoints, so the event
+	 * loop never waits for signature checks.
+	 */
+	@Bean(destroyMethod = "dispose")
+	@ConditionalOnWebApplication(type = ConditionalOnWebApplication.Type.REACTIVE)
+	public Scheduler ceremonyScheduler(@Value("${reactive.ceremony-threads:0}") int threads) {
+		return Schedulers.newParallel("ceremony",
+				threads > 0 ? threads : Runtime.getRuntime().availableProcessors());
+	}
+
+	@Bean(destroyMethod = "close")
+	public CustomAttestationTrustSource attestationTrustSource(
+			@Value("${attestation.trust-store.dir:}") String trustStoreDir,
+			@Value("${attestation.trust-store.poll-interval:PT30S}") Duration pollInterval,
+			@Value("${attestation.chain-cache.max-size:10000}") long maxCachedChains) {
+		if (trustStoreDir.isBlank()) {
+			// only the root certificate on the classpath
+			return new CustomAttestationTrustSource(maxCachedChains);
+		}
+		return new CustomAttestationTrustSource(Path.of(trustStoreDir), pollInterval, maxCachedChains);
+	}
+
+	/**
+	 * Challenges for the options of both ceremonies, drawn in blocks so the
+	 * option calls do not queue for a shared SecureRandom.
+	 */
+	@Bean(destroyMethod = "close")
+	public ChallengeSupplier challengeSupplier(@Value("${challenges.per-block:256}") int challengesPerBlock) {
+		return new ChallengeSupplier(challengesPerBlock);
+	}
+
 	@Bean
 	@Autowired
-	public RelyingParty relyingParty(CredentialAccessService registrationRepository) {
+	public RelyingParty relyingParty(CredentialAccessService registrationRepository,
+			CustomAttestationTrustSource cats, CeremonyMetrics metrics) {
 		RelyingPartyIdentity rpIdentity = RelyingPartyIdentity.builder()
 				.id("localhost")
 				.name("localhost")
 				.build();
-		// set trust source
-		CustomAttestationTrustSource cats = new CustomAttestationTrustSource();
 		return RelyingParty.builder()
 				.identity(rpIdentity)
 				.credentialRepository(registrationRepository)
-				.attestationTrustSource(cats)
+				.attestationTrustSource(metrics.timed(cats))
 				.origins(Collections.singleton("http://localhost:8080"))
 				.build();
 	}
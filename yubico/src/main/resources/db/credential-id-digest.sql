@@ -0,0 +1,10 @@
+-- Migrates an authenticator_model table created with the former BLOB columns
+-- to inline VARBINARY columns plus the indexed sha-256 digest of the
+-- credential id. Run it once before starting the application on an existing
+-- database (H2 syntax).
+ALTER TABLE authenticator_model ALTER COLUMN public_key SET DATA TYPE VARBINARY(2048);
+ALTER TABLE authenticator_model ALTER COLUMN credential_id SET DATA TYPE VARBINARY(1023);
+ALTER TABLE authenticator_model ADD COLUMN credential_id_digest BINARY(32);
+UPDATE authenticator_model SET credential_id_digest = HASH('SHA-256', credential_id);
+ALTER TABLE authenticator_model ALTER COLUMN credential_id_digest SET NOT NULL;
+CREATE UNIQUE INDEX ux_authenticator_credential_id_digest ON authenticator_model (credential_id_digest);
@@ -0,0 +1,10 @@
+-- Pins the id sequences of user_model and authenticator_model to the
+-- allocation size of 50 the entities declare, for databases created with
+-- another id generation (older Hibernate versions used one hibernate_sequence).
+-- Both restart past the ids in use. Run it once before starting the
+-- application on an existing database (H2 syntax).
+CREATE SEQUENCE IF NOT EXISTS user_model_seq START WITH 1 INCREMENT BY 50;
+CREATE SEQUENCE IF NOT EXISTS authenticator_model_seq START WITH 1 INCREMENT BY 50;
+ALTER SEQUENCE user_model_seq RESTART WITH (SELECT COALESCE(MAX(id), 0) + 51 FROM user_model) INCREMENT BY 50;
+ALTER SEQUENCE authenticator_model_seq RESTART WITH (SELECT COALESCE(MAX(id), 0) + 51 FROM authenticator_model)
+    INCREMENT BY 50;
@@ -0,0 +1,8 @@
+-- Migrates a user_model table created before the tenants: the existing users
+-- join the default tenant and usernames become unique per tenant instead of
+-- globally. UK_ASI811MGONYF7P7AJ2TL97A91 is the name Hibernate generated for
+-- the former unique username. Run it once before starting the application on
+-- an existing database (H2 syntax).
+ALTER TABLE user_model ADD COLUMN tenant VARCHAR(64) DEFAULT 'default' NOT NULL;
+ALTER TABLE user_model DROP CONSTRAINT UK_ASI811MGONYF7P7AJ2TL97A91;
+ALTER TABLE user_model ADD CONSTRAINT ux_user_tenant_username UNIQUE (tenant, username);
@@ -0,0 +1,99 @@
+package com.WebAuthn.Yubico.Benchmark;
+
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.mock.web.MockHttpServletRequest;
+import org.springframework.mock.web.MockHttpServletResponse;
+
+import com.WebAuthn.Yubico.Controller.AdmissionFilter;
+import com.WebAuthn.Yubico.Service.AdmissionService;
+import com.WebAuthn.Yubico.Utility.TokenBuckets;
+import com.github.benmanes.caffeine.cache.Ticker;
+
+import jakarta.servlet.FilterChain;
+
+/**
+ * Cost of the admission check per request, on 4 threads sharing the buckets.
+ * With one key all threads update the same bucket, with many keys they are
+ * spread over the map. Admitted requests take a token, rejected ones find the
+ * bucket empty. The filter benchmark adds the servlet filter around it.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class AdmissionBenchmark {
+
+    @State(Scope.Benchmark)
+    public static class Buckets {
+
+        @Param({ "1", "100000" })
+        int keys;
+
+        String[] names;
+        // never runs empty
+        TokenBuckets admitting;
+        // empty after the first token
+        TokenBuckets rejecting;
+        AdmissionFilter filter;
+
+        @Setup
+        public void setUp() {
+            names = new String[keys];
+            for (int i = 0; i < keys; i++) {
+                names[i] = "10.0." + (i >> 8 & 0xff) + "." + (i & 0xff) + "-" + i;
+            }
+            admitting = new TokenBuckets(1e9, 1_000_000, keys * 2L, Ticker.systemTicker());
+            rejecting = new TokenBuckets(1e-3, 1, keys * 2L, Ticker.systemTicker());
+            for (String name : names) {
+                rejecting.tryAcquire(name);
+            }
+            filter = new AdmissionFilter(new AdmissionService(true, 1e9, 1_000_000, 1e9, 1_000_000, keys * 2L));
+        }
+
+        String next() {
+            return keys == 1 ? names[0] : names[ThreadLocalRandom.current().nextInt(keys)];
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Exchange {
+
+        final MockHttpServletRequest request = new MockHttpServletRequest("POST", "/assertion/result");
+        final MockHttpServletResponse response = new MockHttpServletResponse();
+        final FilterChain chain = (request, response) -> {
+        };
+    }
+
+    @Benchmark
+    public boolean admitted(Buckets buckets) {
+        return buckets.admitting.tryAcquire(buckets.next());
+    }
+
+    @Benchmark
+    public boolean rejected(Buckets buckets) {
+        return buckets.rejecting.tryAcquire(buckets.next());
+    }
+
+    @Benchmark
+    public Object filter(Buckets buckets, Exchange exchange) throws Exception {
+        exchange.request.setRemoteAddr(buckets.next());
+        buckets.filter.doFilter(exchange.request, exchange.response, exchange.chain);
+        return exchange.response;
+    }
+}
@@ -0,0 +1,155 @@
+package com.WebAuthn.Yubico.Benchmark;
+
+import java.security.cert.CertPath;
+import java.security.cert.CertPathValidator;
+import java.security.cert.CertificateFactory;
+import java.security.cert.PKIXParameters;
+import java.security.cert.TrustAnchor;
+import java.security.cert.X509Certificate;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.WebAuthn.Authenticator.AttestationCertificates;
+import com.WebAuthn.Yubico.InMemoryCredentialRepository;
+import com.WebAuthn.Yubico.VirtualAuthenticator;
+import com.WebAuthn.Yubico.Utility.CustomAttestationTrustSource;
+import com.yubico.webauthn.FinishRegistrationOptions;
+import com.yubico.webauthn.RegistrationResult;
+import com.yubico.webauthn.RelyingParty;
+import com.yubico.webauthn.StartRegistrationOptions;
+import com.yubico.webauthn.attestation.AttestationTrustSource;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.PublicKeyCredential;
+import com.yubico.webauthn.data.PublicKeyCredentialCreationOptions;
+import com.yubico.webauthn.data.UserIdentity;
+
+/**
+ * Throughput of attested registrations of one authenticator model, so every
+ * registration presents the same certificate chain. Compares the former trust
+ * source, which validated the chain on every call, with the cached one.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@Threads(4)
+public class AttestationRegistrationBenchmark {
+
+    private static final int REGISTRATIONS = 256;
+
+    private final PublicKeyCredentialCreationOptions[] options = new PublicKeyCredentialCreationOptions[REGISTRATIONS];
+    private final String[] responses = new String[REGISTRATIONS];
+    private List<X509Certificate> chain;
+    private AttestationTrustSource formerTrustSource;
+    private AttestationTrustSource cachedTrustSource;
+    private RelyingParty validatingEveryTime;
+    private RelyingParty cached;
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+    }
+
+    @Setup
+    public void setUp() {
+        AttestationCertificates certificates = new AttestationCertificates();
+        RelyingParty rp = InMemoryCredentialRepository.relyingParty(new InMemoryCredentialRepository());
+        chain = certificates.getChain();
+        formerTrustSource = new FormerTrustSource(certificates.getRoot());
+        cachedTrustSource = new CustomAttestationTrustSource(certificates.getRoot(), 10_000, System::nanoTime);
+        validatingEveryTime = rp.toBuilder().attestationTrustSource(formerTrustSource).build();
+        cached = rp.toBuilder().attestationTrustSource(cachedTrustSource).build();
+        for (int i = 0; i < REGISTRATIONS; i++) {
+            ByteArray handle = InMemoryCredentialRepository.handle("user" + i);
+            options[i] = rp.startRegistration(StartRegistrationOptions.builder()
+                    .user(UserIdentity.builder().name("user" + i).displayName("User " + i).id(handle).build())
+                    .build());
+            responses[i] = new VirtualAuthenticator(certificates).register(options[i].getChallenge());
+        }
+    }
+
+    @Benchmark
+    public RegistrationResult validatingEveryTime(Cursor cursor) throws Exception {
+        return register(validatingEveryTime, cursor);
+    }
+
+    @Benchmark
+    public RegistrationResult cachedVerdict(Cursor cursor) throws Exception {
+        return register(cached, cursor);
+    }
+
+    // the trust decision alone, without the signature checks of a registration
+    @Benchmark
+    public AttestationTrustSource.TrustRootsResult findTrustRootsValidatingEveryTime() {
+        return formerTrustSource.findTrustRoots(chain, Optional.empty());
+    }
+
+    @Benchmark
+    public AttestationTrustSource.TrustRootsResult findTrustRootsCached() {
+        return cachedTrustSource.findTrustRoots(chain, Optional.empty());
+    }
+
+    private RegistrationResult register(RelyingParty rp, Cursor cursor) throws Exception {
+        int i = cursor.next++ & (REGISTRATIONS - 1);
+        RegistrationResult result = rp.finishRegistration(FinishRegistrationOptions.builder()
+                .request(options[i])
+                .response(PublicKeyCredential.parseRegistrationResponseJson(responses[i]))
+                .build());
+        if (!result.isAttestationTrusted()) {
+            throw new IllegalStateException("attestation not trusted");
+        }
+        return result;
+    }
+
+    // findTrustRoots as it was before the verdict cache
+    private static final class FormerTrustSource implements AttestationTrustSource {
+
+        private final X509Certificate certificate;
+        private final PKIXParameters params;
+        private final CertificateFactory cf;
+
+        FormerTrustSource(X509Certificate certificate) {
+            try {
+                this.certificate = certificate;
+                this.cf = CertificateFactory.getInstance("X.509");
+                this.params = new PKIXParameters(Collections.singleton(new TrustAnchor(certificate, null)));
+                params.setRevocationEnabled(false);
+            } catch (Exception e) {
+                throw new IllegalStateException(e);
+            }
+        }
+
+        @Override
+        public TrustRootsResult findTrustRoots(List<X509Certificate> attestationCertificateChain,
+                Optional<ByteArray> aaguid) {
+            try {
+                CertPathValidator validator = CertPathValidator.getInstance(CertPathValidator.getDefaultType());
+                CertPath certPath = this.cf.generateCertPath(attestationCertificateChain);
+                validator.validate(certPath, params);
+            } catch (Exception e) {
+                return TrustRootsResult.builder().trustRoots(new HashSet<>()).build();
+            }
+            return TrustRootsResult.builder()
+                    .trustRoots(new HashSet<>(Collections.singletonList(this.certificate)))
+                    .enableRevocationChecking(false)
+                    .build();
+        }
+    }
+}
@@ -0,0 +1,288 @@
+package com.WebAuthn.Yubico.Benchmark;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.jdbc.core.JdbcTemplate;
+
+import com.WebAuthn.Authenticator.AttestationCertificates;
+import com.WebAuthn.Yubico.InMemoryCredentialRepository;
+import com.WebAuthn.Yubico.VirtualAuthenticator;
+import com.WebAuthn.Yubico.WebAuthnDemoApplication;
+import com.WebAuthn.Yubico.Model.AuthenticatorModel;
+import com.WebAuthn.Yubico.Model.UserModel;
+import com.WebAuthn.Yubico.Service.CredentialAccessService;
+import com.WebAuthn.Yubico.Service.CredentialCache;
+import com.WebAuthn.Yubico.Utility.CustomAttestationTrustSource;
+import com.yubico.webauthn.AssertionRequest;
+import com.yubico.webauthn.AssertionResult;
+import com.yubico.webauthn.FinishAssertionOptions;
+import com.yubico.webauthn.FinishRegistrationOptions;
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.RegistrationResult;
+import com.yubico.webauthn.RelyingParty;
+import com.yubico.webauthn.StartAssertionOptions;
+import com.yubico.webauthn.StartRegistrationOptions;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.COSEAlgorithmIdentifier;
+import com.yubico.webauthn.data.PublicKeyCredential;
+import com.yubico.webauthn.data.PublicKeyCredentialCreationOptions;
+import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
+import com.yubico.webauthn.data.UserIdentity;
+
+/**
+ * The ceremony hot path of the relying party: the four ceremony steps for
+ * ES256, RS256 and EdDSA credentials, registrations with none, self and x5c
+ * attestation, and the lookups of {@link CredentialAccessService} against H2
+ * with growing tables, served by the credential cache or missing it. The
+ * lookups run with the cache of application.properties. The responses
+ * are created in-process by {@link VirtualAuthenticator}. The benchmark profile
+ * adds the allocation rate (-prof gc) and writes the results as JSON to
+ * target/jmh-result-[timestamp].json.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class CeremonyBenchmark {
+
+    private static final int RESPONSES = 256;
+
+    @State(Scope.Benchmark)
+    public static class Start {
+
+        final InMemoryCredentialRepository repository = new InMemoryCredentialRepository();
+        final RelyingParty rp = InMemoryCredentialRepository.relyingParty(repository);
+        final UserIdentity user = user(0);
+
+        @Setup
+        public void setUp() throws Exception {
+            RegistrationResult result = new VirtualAuthenticator().registerWith(rp, user);
+            repository.add(credential(result, user));
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Registration {
+
+        @Param({ "ES256", "RS256", "EdDSA" })
+        public String algorithm;
+
+        @Param({ "none", "self", "x5c" })
+        public String attestation;
+
+        RelyingParty rp;
+        final PublicKeyCredentialCreationOptions[] options = new PublicKeyCredentialCreationOptions[RESPONSES];
+        final String[] responses = new String[RESPONSES];
+
+        @Setup
+        public void setUp() {
+            AttestationCertificates certificates = "x5c".equals(attestation) ? new AttestationCertificates() : null;
+            rp = InMemoryCredentialRepository.relyingParty(new InMemoryCredentialRepository());
+            if (certificates != null) {
+                rp = rp.toBuilder()
+                        .attestationTrustSource(
+                                new CustomAttestationTrustSource(certificates.getRoot(), 10_000, System::nanoTime))
+                        .build();
+            }
+            // one authenticator per response, key generation is not measured
+            for (int i = 0; i < RESPONSES; i++) {
+                options[i] = rp.startRegistration(StartRegistrationOptions.builder().user(user(i)).build());
+                responses[i] = new VirtualAuthenticator(COSEAlgorithmIdentifier.valueOf(algorithm),
+                        certificates, "self".equals(attestation)).register(options[i].getChallenge());
+            }
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Assertion {
+
+        @Param({ "ES256", "RS256", "EdDSA" })
+        public String algorithm;
+
+        RelyingParty rp;
+        final AssertionRequest[] requests = new AssertionRequest[RESPONSES];
+        final String[] responses = new String[RESPONSES];
+
+        @Setup
+        public void setUp() throws Exception {
+            InMemoryCredentialRepository repository = new InMemoryCredentialRepository();
+            rp = InMemoryCredentialRepository.relyingParty(repository);
+            UserIdentity user = user(0);
+            VirtualAuthenticator authenticator = new VirtualAuthenticator(
+                    COSEAlgorithmIdentifier.valueOf(algorithm), null, false);
+            repository.add(credential(authenticator.registerWith(rp, user), user));
+            // the stored counter stays at the registration's, every response is newer
+            for (int i = 0; i < RESPONSES; i++) {
+                requests[i] = rp.startAssertion(StartAssertionOptions.builder().username(user.getName()).build());
+                responses[i] = authenticator.authenticate(
+                        requests[i].getPublicKeyCredentialRequestOptions().getChallenge(), user.getId());
+            }
+        }
+    }
+
+    @State(Scope.Benchmark)
+    public static class Lookup {
+
+        @Param({ "1000", "10000", "100000" })
+        public int credentials;
+
+        // miss evicts the entry before every lookup, which then reads from the
+        // database as a cold or evicted entry would
+        @Param({ "hit", "miss" })
+        public String cache;
+
+        ConfigurableApplicationContext context;
+        CredentialAccessService accessService;
+        CredentialCache credentialCache;
+        final ByteArray[] credentialIds = new ByteArray[RESPONSES];
+        final ByteArray[] handles = new ByteArray[RESPONSES];
+        final String[] usernames = new String[RESPONSES];
+        final UserModel[] userModels = new UserModel[RESPONSES];
+
+        @Setup
+        public void setUp() {
+            context = new SpringApplicationBuilder(WebAuthnDemoApplication.class)
+                    .web(WebApplicationType.NONE)
+                    // as arguments, default properties would lose against application.properties
+                    .run("--spring.datasource.url=jdbc:h2:mem:ceremony-" + credentials + "-" + cache,
+                            "--logging.level.root=warn");
+            accessService = context.getBean(CredentialAccessService.class);
+            credentialCache = context.getBean(CredentialCache.class);
+            JdbcTemplate jdbc = context.getBean(JdbcTemplate.class);
+            // rows of one user with one credential each, inserted past the entities
+            byte[] publicKey = new VirtualAuthenticator().getPublicKeyCose().getBytes();
+            SplittableRandom random = new SplittableRandom(credentials);
+            int sampleEvery = credentials / RESPONSES;
+            List<Object[]> users = new ArrayList<>(credentials);
+            List<Object[]> authenticators = new ArrayList<>(credentials);
+            for (int i = 0; i < credentials; i++) {
+                byte[] id = new byte[16];
+                random.nextBytes(id);
+                ByteArray handle = InMemoryCredentialRepository.handle("lookup" + i);
+                users.add(new Object[] { i, "lookup" + i, "lookup" + i, handle.getBytes() });
+                authenticators.add(new Object[] { i, "lookup", publicKey, id,
+                        AuthenticatorModel.digestOf(new ByteArray(id)).getBytes(), i });
+                if (i % sampleEvery == 0 && i / sampleEvery < RESPONSES) {
+                    credentialIds[i / sampleEvery] = new ByteArray(id);
+                    handles[i / sampleEvery] = handle;
+                    usernames[i / sampleEvery] = "lookup" + i;
+                    userModels[i / sampleEvery] = new UserModel("lookup" + i, "lookup" + i, handle);
+                }
+            }
+            jdbc.batchUpdate("insert into user_model (id, username, display_name, handle) values (?, ?, ?, ?)",
+                    users);
+            jdbc.batchUpdate("insert into authenticator_model (id, name, public_key, credential_id,"
+                    + " credential_id_digest, usage_count, user_id) values (?, ?, ?, ?, ?, 0, ?)", authenticators);
+        }
+
+        boolean misses() {
+            return "miss".equals(cache);
+        }
+
+        @TearDown
+        public void tearDown() {
+            context.close();
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        int next;
+
+        int next() {
+            return next++ & (RESPONSES - 1);
+        }
+    }
+
+    @Benchmark
+    public PublicKeyCredentialCreationOptions startRegistration(Start start) {
+        return start.rp.startRegistration(StartRegistrationOptions.builder().user(start.user).build());
+    }
+
+    @Benchmark
+    public RegistrationResult finishRegistration(Registration registration, Cursor cursor) throws Exception {
+        int i = cursor.next();
+        RegistrationResult result = registration.rp.finishRegistration(FinishRegistrationOptions.builder()
+                .request(registration.options[i])
+                .response(PublicKeyCredential.parseRegistrationResponseJson(registration.responses[i]))
+                .build());
+        if ("x5c".equals(registration.attestation) && !result.isAttestationTrusted()) {
+            throw new IllegalStateException("attestation not trusted");
+        }
+        return result;
+    }
+
+    @Benchmark
+    public AssertionRequest startAssertion(Start start) {
+        return start.rp.startAssertion(StartAssertionOptions.builder().username(start.user.getName()).build());
+    }
+
+    @Benchmark
+    public AssertionResult finishAssertion(Assertion assertion, Cursor cursor) throws Exception {
+        int i = cursor.next();
+        AssertionResult result = assertion.rp.finishAssertion(FinishAssertionOptions.builder()
+                .request(assertion.requests[i])
+                .response(PublicKeyCredential.parseAssertionResponseJson(assertion.responses[i]))
+                .build());
+        if (!result.isSuccess()) {
+            throw new IllegalStateException("assertion failed");
+        }
+        return result;
+    }
+
+    @Benchmark
+    public RegisteredCredential lookupCredential(Lookup lookup, Cursor cursor) {
+        int i = cursor.next();
+        if (lookup.misses()) {
+            lookup.credentialCache.evictCredential(lookup.credentialIds[i]);
+        }
+        return lookup.accessService.lookup(lookup.credentialIds[i], lookup.handles[i])
+                .orElseThrow(() -> new IllegalStateException("credential not found"));
+    }
+
+    @Benchmark
+    public Set<PublicKeyCredentialDescriptor> credentialIdsForUsername(Lookup lookup, Cursor cursor) {
+        int i = cursor.next();
+        if (lookup.misses()) {
+            lookup.credentialCache.evict(lookup.userModels[i]);
+        }
+        return lookup.accessService.getCredentialIdsForUsername(lookup.usernames[i]);
+    }
+
+    private static UserIdentity user(int i) {
+        return UserIdentity.builder()
+                .name("user" + i)
+                .displayName("User " + i)
+                .id(InMemoryCredentialRepository.handle("user" + i))
+                .build();
+    }
+
+    private static RegisteredCredential credential(RegistrationResult result, UserIdentity user) {
+        return RegisteredCredential.builder()
+                .credentialId(result.getKeyId().getId())
+                .userHandle(user.getId())
+                .publicKeyCose(result.getPublicKeyCose())
+                .signatureCount(result.getSignatureCount())
+                .build();
+    }
+}
@@ -0,0 +1,157 @@
+package com.WebAuthn.Yubico.Benchmark;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+
+import com.WebAuthn.Yubico.InMemoryCredentialRepository;
+import com.WebAuthn.Yubico.VirtualAuthenticator;
+import com.WebAuthn.Yubico.WebAuthnDemoApplication;
+import com.WebAuthn.Yubico.Model.AuthenticatorModel;
+import com.WebAuthn.Yubico.Model.UserModel;
+import com.WebAuthn.Yubico.Service.CredentialAccessService;
+import com.WebAuthn.Yubico.Service.SignatureCounterUpdater;
+import com.yubico.webauthn.AssertionRequest;
+import com.yubico.webauthn.AssertionResult;
+import com.yubico.webauthn.FinishAssertionOptions;
+import com.yubico.webauthn.RelyingParty;
+import com.yubico.webauthn.StartAssertionOptions;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.PublicKeyCredential;
+import com.yubico.webauthn.data.UserIdentity;
+
+/**
+ * Concurrent authentication ceremonies against the application context, each
+ * with the JPA calls of the controller: the user lookup and the conditional
+ * signature counter update. Platform runs them on a pool of 200 threads, as
+ * many as Tomcat's default, virtual on one virtual thread each. A ceremony's
+ * latency includes waiting for a thread. Throughput is ceremonies divided by
+ * the batch time, the p99 latency of every batch is printed.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx3g")
+public class CeremonyLoadBenchmark {
+
+    private static final int USERS = 256;
+    private static final int PLATFORM_THREADS = 200;
+
+    @Param({ "1000", "10000", "50000" })
+    public int ceremonies;
+
+    @Param({ "platform", "virtual" })
+    public String threads;
+
+    private ConfigurableApplicationContext context;
+    private CredentialAccessService accessService;
+    private SignatureCounterUpdater counterUpdater;
+    private RelyingParty rp;
+    private final String[] usernames = new String[USERS];
+    private final VirtualAuthenticator[] authenticators = new VirtualAuthenticator[USERS];
+    private ExecutorService executor;
+    private long[] latencies;
+    private long batchNanos;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        executor = "virtual".equals(threads)
+                ? Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("ceremony-", 0).factory())
+                : Executors.newFixedThreadPool(PLATFORM_THREADS);
+        context = new SpringApplicationBuilder(WebAuthnDemoApplication.class)
+                .web(WebApplicationType.NONE)
+                // as arguments, default properties would lose against application.properties
+                .run("--spring.datasource.url=jdbc:h2:mem:load-" + ceremonies + "-" + threads,
+                        "--signature-counter.mode=direct",
+                        "--admission.enabled=false",
+                        "--logging.level.root=warn");
+        accessService = context.getBean(CredentialAccessService.class);
+        counterUpdater = context.getBean(SignatureCounterUpdater.class);
+        // concurrent ceremonies of one authenticator reach the server out of order
+        rp = context.getBean(RelyingParty.class).toBuilder().validateSignatureCounter(false).build();
+        for (int i = 0; i < USERS; i++) {
+            usernames[i] = "load" + i;
+            ByteArray handle = InMemoryCredentialRepository.handle(usernames[i]);
+            UserModel user = accessService.getUserRepo().save(new UserModel(usernames[i], usernames[i], handle));
+            authenticators[i] = new VirtualAuthenticator();
+            accessService.getAuthRepo().save(new AuthenticatorModel("load", user, authenticators[i].registerWith(rp,
+                    UserIdentity.builder().name(usernames[i]).displayName(usernames[i]).id(handle).build())));
+        }
+        latencies = new long[ceremonies];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdownNow();
+        context.close();
+    }
+
+    @TearDown(Level.Iteration)
+    public void report() {
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        System.out.printf("%n%s threads, %d ceremonies: %.0f ceremonies/s, p99 %.1f ms%n", threads, ceremonies,
+                ceremonies / (batchNanos / 1e9), sorted[(int) Math.ceil(sorted.length * 0.99) - 1] / 1e6);
+    }
+
+    @Benchmark
+    public int concurrentCeremonies() throws Exception {
+        long start = System.nanoTime();
+        List<Future<?>> futures = new ArrayList<>(ceremonies);
+        for (int i = 0; i < ceremonies; i++) {
+            int ceremony = i;
+            long submitted = System.nanoTime();
+            futures.add(executor.submit(() -> {
+                authenticate(ceremony % USERS);
+                latencies[ceremony] = System.nanoTime() - submitted;
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        batchNanos = System.nanoTime() - start;
+        return futures.size();
+    }
+
+    private void authenticate(int user) throws Exception {
+        // as the controller: options for a known user, then the signed result
+        UserModel existingUser = accessService.getUserRepo().findByUsername(usernames[user]);
+        AssertionRequest request = rp.startAssertion(StartAssertionOptions.builder()
+                .username(existingUser.getUsername())
+                .build());
+        String response = authenticators[user].authenticate(
+                request.getPublicKeyCredentialRequestOptions().getChallenge(), existingUser.getHandle());
+        AssertionResult result = rp.finishAssertion(FinishAssertionOptions.builder()
+                .request(request)
+                .response(PublicKeyCredential.parseAssertionResponseJson(response))
+                .build());
+        if (!result.isSuccess()) {
+            throw new IllegalStateException("assertion failed");
+        }
+        counterUpdater.record(result.getCredential().getCredentialId(), result.getSignatureCount());
+    }
+}
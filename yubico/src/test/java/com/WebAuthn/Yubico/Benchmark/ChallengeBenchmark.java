@@ -0,0 +1,87 @@
+package com.WebAuthn.Yubico.Benchmark;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.WebAuthn.Yubico.InMemoryCredentialRepository;
+import com.WebAuthn.Yubico.Utility.CeremonyOptions;
+import com.WebAuthn.Yubico.Utility.ChallengeSupplier;
+import com.yubico.webauthn.AssertionRequest;
+import com.yubico.webauthn.RelyingParty;
+import com.yubico.webauthn.StartAssertionOptions;
+import com.yubico.webauthn.StartRegistrationOptions;
+import com.yubico.webauthn.data.PublicKeyCredentialCreationOptions;
+import com.yubico.webauthn.data.UserIdentity;
+
+/**
+ * Latency of the options calls of both ceremonies on 64 threads, with the
+ * challenge from the relying party's shared SecureRandom (library) and from
+ * the {@link ChallengeSupplier} (buffered), against an empty in-memory
+ * credential repository so only the options are measured.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Threads(64)
+@Fork(value = 1, jvmArgsAppend = "-Xmx1g")
+public class ChallengeBenchmark {
+
+    private final RelyingParty rp = InMemoryCredentialRepository.relyingParty(new InMemoryCredentialRepository());
+    private final StartRegistrationOptions registration = StartRegistrationOptions.builder()
+            .user(UserIdentity.builder()
+                    .name("alice")
+                    .displayName("Alice")
+                    .id(InMemoryCredentialRepository.handle("alice"))
+                    .build())
+            .build();
+    private final StartAssertionOptions assertion = StartAssertionOptions.builder().username("alice").build();
+    private ChallengeSupplier challenges;
+    private CeremonyOptions ceremonyOptions;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        challenges = new ChallengeSupplier(256);
+        ceremonyOptions = new CeremonyOptions(challenges);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        challenges.close();
+        System.out.printf("%nblocks filled by callers: %d%n", challenges.filledByCallers());
+    }
+
+    @Benchmark
+    public PublicKeyCredentialCreationOptions libraryRegistration() {
+        return rp.startRegistration(registration);
+    }
+
+    @Benchmark
+    public PublicKeyCredentialCreationOptions bufferedRegistration() {
+        return ceremonyOptions.startRegistration(rp, registration);
+    }
+
+    @Benchmark
+    public AssertionRequest libraryAssertion() {
+        return rp.startAssertion(assertion);
+    }
+
+    @Benchmark
+    public AssertionRequest bufferedAssertion() {
+        return ceremonyOptions.startAssertion(rp, assertion);
+    }
+}
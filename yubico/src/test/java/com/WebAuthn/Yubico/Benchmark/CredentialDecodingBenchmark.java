@@ -0,0 +1,74 @@
+package com.WebAuthn.Yubico.Benchmark;
+
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.WebAuthn.Yubico.VirtualAuthenticator;
+import com.WebAuthn.Yubico.Utility.PublicKeyCredentialDecoder;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.PublicKeyCredential;
+
+/**
+ * Compares the former decoding of the result bodies (bound by Jackson,
+ * serialized again and parsed by the library) with the single pass decoder.
+ * The tree stands in for the removed request DTOs. Run with
+ * {@code -Djmh.args="-prof gc"} for the bytes allocated per request.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class CredentialDecodingBenchmark {
+
+    private final ObjectMapper mapper = new ObjectMapper().registerModule(new Jdk8Module());
+    private final PublicKeyCredentialDecoder decoder = new PublicKeyCredentialDecoder(mapper);
+    private byte[] registration;
+    private byte[] assertion;
+
+    @Setup
+    public void setUp() {
+        VirtualAuthenticator authenticator = new VirtualAuthenticator();
+        ByteArray challenge = new ByteArray(new byte[32]);
+        registration = authenticator.register(challenge).getBytes(StandardCharsets.UTF_8);
+        assertion = authenticator.authenticate(challenge, new ByteArray(new byte[16]))
+                .getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public Object registrationTriplePass() throws Exception {
+        JsonNode bound = mapper.readTree(registration);
+        return PublicKeyCredential.parseRegistrationResponseJson(mapper.writeValueAsString(bound));
+    }
+
+    @Benchmark
+    public Object registrationDecoder() throws Exception {
+        return decoder.decodeRegistration(registration);
+    }
+
+    @Benchmark
+    public Object assertionTriplePass() throws Exception {
+        JsonNode bound = mapper.readTree(assertion);
+        return PublicKeyCredential.parseAssertionResponseJson(mapper.writeValueAsString(bound));
+    }
+
+    @Benchmark
+    public Object assertionDecoder() throws Exception {
+        return decoder.decodeAssertion(assertion);
+    }
+}
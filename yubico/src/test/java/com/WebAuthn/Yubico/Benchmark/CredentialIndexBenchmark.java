@@ -0,0 +1,166 @@
+package com.WebAuthn.Yubico.Benchmark;
+
+import java.util.Map;
+import java.util.Optional;
+import java.util.SplittableRandom;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Group;
+import org.openjdk.jmh.annotations.GroupThreads;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.WebAuthn.Yubico.Model.AuthenticatorModel;
+import com.WebAuthn.Yubico.Utility.OffHeapCredentialIndex;
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.data.ByteArray;
+
+/**
+ * Lookups by three reader threads while a writer raises counters, in the
+ * off-heap index and in a heap map of {@link RegisteredCredential}s as the
+ * cache holds them. Both are keyed the way the application looks them up:
+ * the index by the digest, computed per lookup, the map by the credential id.
+ * The memory per credential is printed after the setup, for the map as the
+ * growth of the heap after a full collection. For 10M credentials run with
+ * {@code -Djmh.args="-p credentials=10000000 -jvmArgs -Xmx16g"}.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgsAppend = { "-Xmx4g", "-XX:MaxDirectMemorySize=4g" })
+public class CredentialIndexBenchmark {
+
+    private static final int SAMPLES = 1 << 16;
+
+    @Param({ "1000000" })
+    public int credentials;
+
+    private final ByteArray[] sampleIds = new ByteArray[SAMPLES];
+    private OffHeapCredentialIndex index;
+    private Map<ByteArray, RegisteredCredential> map;
+    private final long[] counters = new long[SAMPLES];
+
+    @State(Scope.Thread)
+    public static class Cursor {
+        final SplittableRandom random = new SplittableRandom();
+
+        int next() {
+            return random.nextInt(SAMPLES);
+        }
+    }
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        SplittableRandom random = new SplittableRandom(credentials);
+        byte[] key = new byte[77];
+        random.nextBytes(key);
+        ByteArray publicKeyCose = new ByteArray(key);
+        int sampleEvery = Math.max(1, credentials / SAMPLES);
+
+        long heapBefore = usedHeap();
+        map = new ConcurrentHashMap<>(credentials * 2);
+        for (int i = 0; i < credentials; i++) {
+            ByteArray credentialId = credentialId(random);
+            if (i % sampleEvery == 0 && i / sampleEvery < SAMPLES) {
+                sampleIds[i / sampleEvery] = credentialId;
+            }
+            // its own copy of every key, as loaded from the database
+            map.put(credentialId, RegisteredCredential.builder()
+                    .credentialId(credentialId)
+                    .userHandle(handle(random))
+                    .publicKeyCose(new ByteArray(publicKeyCose.getBytes()))
+                    .signatureCount(0)
+                    .build());
+        }
+        long mapBytes = usedHeap() - heapBefore;
+
+        index = new OffHeapCredentialIndex(credentials, credentials * 256L);
+        for (RegisteredCredential credential : map.values()) {
+            index.put(AuthenticatorModel.digestOf(credential.getCredentialId()), credential.getUserHandle(),
+                    credential.getPublicKeyCose(), 0, 0);
+        }
+        System.out.printf("%n%d credentials: off-heap index %d bytes each, heap map %d bytes each%n", credentials,
+                index.bytesUsed() / credentials, mapBytes / credentials);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        map = null;
+        index = null;
+    }
+
+    @Benchmark
+    @Group("offHeap")
+    @GroupThreads(3)
+    public Optional<OffHeapCredentialIndex.Entry> offHeapLookup(Cursor cursor) {
+        return index.get(AuthenticatorModel.digestOf(sampleIds[cursor.next()]));
+    }
+
+    @Benchmark
+    @Group("offHeap")
+    @GroupThreads(1)
+    public boolean offHeapAdvance(Cursor cursor) {
+        int sample = cursor.next();
+        return index.advance(AuthenticatorModel.digestOf(sampleIds[sample]), ++counters[sample]);
+    }
+
+    @Benchmark
+    @Group("heap")
+    @GroupThreads(3)
+    public RegisteredCredential heapLookup(Cursor cursor) {
+        return map.get(sampleIds[cursor.next()]);
+    }
+
+    @Benchmark
+    @Group("heap")
+    @GroupThreads(1)
+    public RegisteredCredential heapAdvance(Cursor cursor) {
+        int sample = cursor.next();
+        long count = ++counters[sample];
+        // a new immutable credential, as the cache replaces entries
+        return map.computeIfPresent(sampleIds[sample],
+                (id, credential) -> credential.toBuilder().signatureCount(count).build());
+    }
+
+    // the part of a lookup in the index spent on the digest
+    @Benchmark
+    @Group("digest")
+    @GroupThreads(4)
+    public ByteArray digest(Cursor cursor) {
+        return AuthenticatorModel.digestOf(sampleIds[cursor.next()]);
+    }
+
+    private static ByteArray credentialId(SplittableRandom random) {
+        byte[] id = new byte[16];
+        random.nextBytes(id);
+        return new ByteArray(id);
+    }
+
+    private static ByteArray handle(SplittableRandom random) {
+        byte[] handle = new byte[64];
+        random.nextBytes(handle);
+        return new ByteArray(handle);
+    }
+
+    private static long usedHeap() {
+        for (int i = 0; i < 3; i++) {
+            System.gc();
+        }
+        Runtime runtime = Runtime.getRuntime();
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
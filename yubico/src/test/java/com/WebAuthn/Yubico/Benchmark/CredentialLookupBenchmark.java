@@ -0,0 +1,127 @@
+package com.WebAuthn.Yubico.Benchmark;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.WebAuthn.Yubico.Model.AuthenticatorModel;
+import com.yubico.webauthn.data.ByteArray;
+
+/**
+ * Lookup of one credential by the indexed digest, as issued by
+ * {@code AuthenticatorModelRepository.findByCredentialIdDigest}, against tables
+ * of growing size. The unindexed comparison on the credential id column stands
+ * for the former BLOB lookup. For 10M credentials run with
+ * {@code -Djmh.args="-p credentials=10000000 -jvmArgs -Xmx8g"}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(value = 1, jvmArgs = "-Xmx4g")
+public class CredentialLookupBenchmark {
+
+    private static final int SAMPLES = 1024;
+
+    @Param({ "10000", "100000", "1000000" })
+    public int credentials;
+
+    private Connection connection;
+    private PreparedStatement byDigest;
+    private PreparedStatement byCredentialId;
+    private final byte[][] sampleIds = new byte[SAMPLES][];
+    private int next;
+
+    @Setup
+    public void setUp() throws Exception {
+        connection = DriverManager.getConnection("jdbc:h2:mem:lookup-" + credentials);
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("create table authenticator_model (id bigint not null,"
+                    + " credential_id VARBINARY(1023) not null, credential_id_digest BINARY(32) not null,"
+                    + " name varchar(255), public_key VARBINARY(2048) not null, usage_count bigint not null,"
+                    + " user_id bigint, primary key (id))");
+            statement.execute("create unique index ux_authenticator_credential_id_digest"
+                    + " on authenticator_model (credential_id_digest)");
+        }
+        SplittableRandom random = new SplittableRandom(credentials);
+        int sampleEvery = Math.max(1, credentials / SAMPLES);
+        byte[] publicKey = new byte[77];
+        connection.setAutoCommit(false);
+        try (PreparedStatement insert = connection.prepareStatement("insert into authenticator_model"
+                + " (id, credential_id, credential_id_digest, public_key, usage_count) values (?, ?, ?, ?, 0)")) {
+            for (int i = 0; i < credentials; i++) {
+                byte[] id = new byte[16];
+                random.nextBytes(id);
+                byte[] digest = AuthenticatorModel.digestOf(new ByteArray(id)).getBytes();
+                if (i % sampleEvery == 0 && i / sampleEvery < SAMPLES) {
+                    sampleIds[i / sampleEvery] = id;
+                }
+                insert.setLong(1, i);
+                insert.setBytes(2, id);
+                insert.setBytes(3, digest);
+                insert.setBytes(4, publicKey);
+                insert.addBatch();
+                if (i % 10_000 == 9_999) {
+                    insert.executeBatch();
+                    connection.commit();
+                }
+            }
+            insert.executeBatch();
+            connection.commit();
+        }
+        connection.setAutoCommit(true);
+        byDigest = connection.prepareStatement("select id, credential_id, public_key, usage_count"
+                + " from authenticator_model where credential_id_digest = ?");
+        byCredentialId = connection.prepareStatement("select id, credential_id, public_key, usage_count"
+                + " from authenticator_model where credential_id = ?");
+    }
+
+    @TearDown
+    public void tearDown() throws Exception {
+        try (Statement statement = connection.createStatement()) {
+            statement.execute("shutdown");
+        }
+        connection.close();
+    }
+
+    @Benchmark
+    public long digestIndex() throws Exception {
+        int sample = next++ & (SAMPLES - 1);
+        // the digest is computed per lookup, as the repository does
+        byDigest.setBytes(1, AuthenticatorModel.digestOf(new ByteArray(sampleIds[sample])).getBytes());
+        return firstId(byDigest);
+    }
+
+    @Benchmark
+    public long credentialIdScan() throws Exception {
+        byCredentialId.setBytes(1, sampleIds[next++ & (SAMPLES - 1)]);
+        return firstId(byCredentialId);
+    }
+
+    private static long firstId(PreparedStatement statement) throws Exception {
+        try (ResultSet rows = statement.executeQuery()) {
+            if (!rows.next()) {
+                throw new IllegalStateException("credential not found");
+            }
+            return rows.getLong(1);
+        }
+    }
+}
@@ -0,0 +1,82 @@
+package com.WebAuthn.Yubico.Benchmark;
+
+import java.io.ByteArrayOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.WebAuthn.Yubico.InMemoryCredentialRepository;
+import com.WebAuthn.Yubico.Utility.CreationOptionsTemplate;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.yubico.webauthn.RelyingParty;
+import com.yubico.webauthn.StartRegistrationOptions;
+import com.yubico.webauthn.data.AuthenticatorSelectionCriteria;
+import com.yubico.webauthn.data.PublicKeyCredentialCreationOptions;
+import com.yubico.webauthn.data.ResidentKeyRequirement;
+import com.yubico.webauthn.data.UserIdentity;
+import com.yubico.webauthn.data.UserVerificationRequirement;
+
+/**
+ * Compares the former rendering of the registration options (library json,
+ * parsed again by a new ObjectMapper, patched and serialized) with the
+ * pre-rendered template.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class OptionsRenderingBenchmark {
+
+    private PublicKeyCredentialCreationOptions options;
+    private CreationOptionsTemplate template;
+    private final ByteArrayOutputStream out = new ByteArrayOutputStream(1024);
+
+    @Setup
+    public void setUp() {
+        RelyingParty rp = InMemoryCredentialRepository.relyingParty(new InMemoryCredentialRepository());
+        options = rp.startRegistration(StartRegistrationOptions.builder()
+                .user(UserIdentity.builder()
+                        .name("alice")
+                        .displayName("Alice")
+                        .id(InMemoryCredentialRepository.handle("alice"))
+                        .build())
+                .authenticatorSelection(AuthenticatorSelectionCriteria.builder()
+                        .userVerification(UserVerificationRequirement.PREFERRED)
+                        .residentKey(ResidentKeyRequirement.DISCOURAGED)
+                        .build())
+                .build());
+        template = new CreationOptionsTemplate(new ObjectMapper());
+    }
+
+    @Benchmark
+    public byte[] triplePass() throws Exception {
+        ObjectMapper mapper = new ObjectMapper();
+        JsonNode jsonNode = mapper.readTree(options.toCredentialsCreateJson());
+        ObjectNode objectNode = (ObjectNode) jsonNode.get("publicKey");
+        objectNode.put("errorMessage", "");
+        objectNode.put("status", "ok");
+        ((ObjectNode) objectNode.get("authenticatorSelection")).put("requireResidentKey", false);
+        return mapper.writeValueAsString(objectNode).getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public int template() throws Exception {
+        out.reset();
+        template.write(options, false, out);
+        return out.size();
+    }
+}
@@ -0,0 +1,158 @@
+package com.WebAuthn.Yubico.Benchmark;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.env.Environment;
+
+import com.WebAuthn.Yubico.VirtualAuthenticator;
+import com.WebAuthn.Yubico.WebAuthnDemoApplication;
+import com.WebAuthn.Yubico.Service.CeremonyService;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.yubico.webauthn.data.ByteArray;
+
+/**
+ * A storm of sign-ups: concurrent clients register new users over HTTP, options
+ * and result, each client one after the other. Every registration writes a
+ * user and a credential. Throughput is registrations divided by the batch
+ * time, the p99 latency of a registration is printed for every batch. The
+ * database is a file so writes cost what they would in production.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class RegistrationStormBenchmark {
+
+    private static final int REGISTRATIONS_PER_CLIENT = 20;
+
+    @Param({ "32", "256" })
+    public int clients;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final AtomicInteger users = new AtomicInteger();
+    private String database;
+    private ConfigurableApplicationContext context;
+    private HttpClient http;
+    private String base;
+    private ExecutorService executor;
+    private long[] latencies;
+    private long batchNanos;
+
+    @Setup(Level.Trial)
+    public void setUp() {
+        database = System.getProperty("java.io.tmpdir") + "/storm-" + System.nanoTime();
+        context = new SpringApplicationBuilder(WebAuthnDemoApplication.class)
+                .web(WebApplicationType.SERVLET)
+                // as arguments, default properties would lose against application.properties
+                .run("--server.port=0",
+                        "--spring.datasource.url=jdbc:h2:file:" + database,
+                        "--spring.jpa.hibernate.ddl-auto=create",
+                        "--admission.enabled=false",
+                        "--logging.level.root=warn");
+        base = "http://localhost:" + context.getBean(Environment.class).getProperty("local.server.port");
+        executor = Executors.newFixedThreadPool(clients);
+        // own executor, the client threads block in send
+        http = HttpClient.newHttpClient();
+        latencies = new long[clients * REGISTRATIONS_PER_CLIENT];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        executor.shutdownNow();
+        context.close();
+        Files.deleteIfExists(Path.of(database + ".mv.db"));
+        Files.deleteIfExists(Path.of(database + ".trace.db"));
+    }
+
+    @TearDown(Level.Iteration)
+    public void report() {
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        System.out.printf("%n%d clients: %.0f registrations/s, p99 %.1f ms%n", clients,
+                latencies.length / (batchNanos / 1e9), sorted[(int) Math.ceil(sorted.length * 0.99) - 1] / 1e6);
+    }
+
+    @Benchmark
+    public int concurrentSignUps() throws Exception {
+        long start = System.nanoTime();
+        List<Future<?>> futures = new ArrayList<>(clients);
+        for (int i = 0; i < clients; i++) {
+            int client = i;
+            futures.add(executor.submit(() -> {
+                for (int j = 0; j < REGISTRATIONS_PER_CLIENT; j++) {
+                    // the key pair is made before the clock starts
+                    VirtualAuthenticator authenticator = new VirtualAuthenticator();
+                    long started = System.nanoTime();
+                    register("storm" + users.incrementAndGet(), authenticator);
+                    latencies[client * REGISTRATIONS_PER_CLIENT + j] = System.nanoTime() - started;
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        batchNanos = System.nanoTime() - start;
+        return futures.size();
+    }
+
+    private void register(String username, VirtualAuthenticator authenticator) throws Exception {
+        Exchange options = post("/attestation/options", "{\"username\":\"" + username + "\",\"displayName\":\""
+                + username + "\",\"authenticatorSelection\":{}}", null);
+        ByteArray challenge = ByteArray.fromBase64Url(options.body().get("challenge").asText());
+        Exchange result = post("/attestation/result", authenticator.register(challenge), options.token());
+        if (!"ok".equals(result.body().get("status").asText())) {
+            throw new IllegalStateException("registration failed: " + result.body());
+        }
+    }
+
+    private Exchange post(String path, String body, String token) throws Exception {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(base + path))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body));
+        if (token != null) {
+            request.header(CeremonyService.TOKEN_HEADER, token);
+        }
+        HttpResponse<byte[]> response = http.send(request.build(), HttpResponse.BodyHandlers.ofByteArray());
+        if (response.statusCode() >= 300) {
+            throw new IllegalStateException(path + ": " + response.statusCode() + " " + new String(response.body()));
+        }
+        return new Exchange(mapper.readTree(response.body()),
+                response.headers().firstValue(CeremonyService.TOKEN_HEADER).orElse(null));
+    }
+
+    private record Exchange(JsonNode body, String token) {
+    }
+}
@@ -0,0 +1,199 @@
+package com.WebAuthn.Yubico.Benchmark;
+
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.SplittableRandom;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.env.Environment;
+
+import com.WebAuthn.Yubico.InMemoryCredentialRepository;
+import com.WebAuthn.Yubico.VirtualAuthenticator;
+import com.WebAuthn.Yubico.WebAuthnDemoApplication;
+import com.WebAuthn.Yubico.Model.CredentialRecord;
+import com.WebAuthn.Yubico.Service.CeremonyService;
+import com.WebAuthn.Yubico.Service.CredentialAccessService;
+import com.WebAuthn.Yubico.Service.CredentialImportService;
+import com.WebAuthn.Yubico.Utility.CredentialRecordCodec;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.yubico.webauthn.data.ByteArray;
+
+/**
+ * A node starting with a cold cache on a file database, with and without a
+ * credential snapshot. Every iteration starts the application, signs in over
+ * HTTP and then looks up credentials of random users as the first sign-ins
+ * after a restart would. Printed per iteration: the time from the start to
+ * the first successful assertion, the time of the cold lookups and the
+ * resident set size of the process afterwards. For 10M credentials run with
+ * {@code -Djmh.args="-p credentials=10000000 -jvmArgs -Xmx8g"}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class WarmStartBenchmark {
+
+    private static final int COLD_LOOKUPS = 20_000;
+
+    @Param({ "database", "snapshot" })
+    public String start;
+
+    @Param({ "1000000" })
+    public int credentials;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final VirtualAuthenticator authenticator = new VirtualAuthenticator();
+    private final ByteArray handle = InMemoryCredentialRepository.handle("warm");
+    private final List<ByteArray> sampleIds = new ArrayList<>();
+    private String database;
+    private Path snapshot;
+    private ConfigurableApplicationContext context;
+    private HttpClient http;
+    private String base;
+    private long firstAssertionNanos;
+    private long lookupNanos;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        database = System.getProperty("java.io.tmpdir") + "/warm-" + System.nanoTime();
+        snapshot = Path.of(database + ".snapshot");
+        Path records = Path.of(database + ".ndjson");
+        SplittableRandom random = new SplittableRandom(credentials);
+        int sampleEvery = Math.max(1, credentials / COLD_LOOKUPS);
+        try (OutputStream out = Files.newOutputStream(records);
+                CredentialRecordCodec.Writer writer = CredentialRecordCodec.writer(out,
+                        CredentialRecordCodec.Format.NDJSON)) {
+            writer.write(new CredentialRecord("warm", "warm", handle, authenticator.getCredentialId(),
+                    authenticator.getPublicKeyCose(), 0, null));
+            for (int i = 1; i < credentials; i++) {
+                byte[] id = new byte[16];
+                random.nextBytes(id);
+                if (i % sampleEvery == 0) {
+                    sampleIds.add(new ByteArray(id));
+                }
+                // one key for all, only the lookup is measured
+                writer.write(new CredentialRecord("user" + i, null, InMemoryCredentialRepository.handle("user" + i),
+                        new ByteArray(id), authenticator.getPublicKeyCose(), 0, null));
+            }
+        }
+        try (ConfigurableApplicationContext loading = start("create");
+                InputStream in = Files.newInputStream(records);
+                CredentialRecordCodec.Reader reader = CredentialRecordCodec.reader(in,
+                        CredentialRecordCodec.Format.NDJSON)) {
+            loading.getBean(CredentialImportService.class).importRecords(reader, 0, null);
+        }
+        Files.delete(records);
+        // a node without a snapshot writes one right away
+        try (ConfigurableApplicationContext writing = start("none", "--credential-snapshot.file=" + snapshot)) {
+            while (!Files.exists(snapshot)) {
+                Thread.sleep(100);
+            }
+        }
+        http = HttpClient.newHttpClient();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() throws Exception {
+        Files.deleteIfExists(snapshot);
+        Files.deleteIfExists(Path.of(database + ".mv.db"));
+        Files.deleteIfExists(Path.of(database + ".trace.db"));
+    }
+
+    @TearDown(Level.Iteration)
+    public void report() throws Exception {
+        String rss = Files.readAllLines(Path.of("/proc/self/status")).stream()
+                .filter(line -> line.startsWith("VmRSS")).findFirst().orElse("VmRSS: unknown");
+        System.out.printf("%n%s: first assertion after %.0f ms, %d cold lookups in %.0f ms, %s%n", start,
+                firstAssertionNanos / 1e6, sampleIds.size(), lookupNanos / 1e6, rss.replaceAll("\\s+", " "));
+        context.close();
+    }
+
+    @Benchmark
+    public int coldStart() throws Exception {
+        long started = System.nanoTime();
+        context = "snapshot".equals(start) ? start("none", "--credential-snapshot.file=" + snapshot) : start("none");
+        base = "http://localhost:" + context.getBean(Environment.class).getProperty("local.server.port");
+        authenticate();
+        firstAssertionNanos = System.nanoTime() - started;
+
+        started = System.nanoTime();
+        CredentialAccessService credentials = context.getBean(CredentialAccessService.class);
+        int found = 0;
+        for (ByteArray credentialId : sampleIds) {
+            found += credentials.lookup(credentialId, null).isPresent() ? 1 : 0;
+        }
+        lookupNanos = System.nanoTime() - started;
+        if (found != sampleIds.size()) {
+            throw new IllegalStateException(found + " of " + sampleIds.size() + " credentials found");
+        }
+        return found;
+    }
+
+    private ConfigurableApplicationContext start(String ddlAuto, String... arguments) {
+        List<String> args = new ArrayList<>(List.of("--server.port=0",
+                "--spring.datasource.url=jdbc:h2:file:" + database,
+                "--spring.jpa.hibernate.ddl-auto=" + ddlAuto,
+                "--admission.enabled=false",
+                "--logging.level.root=warn"));
+        args.addAll(List.of(arguments));
+        return new SpringApplicationBuilder(WebAuthnDemoApplication.class)
+                .web(WebApplicationType.SERVLET)
+                // as arguments, default properties would lose against application.properties
+                .run(args.toArray(String[]::new));
+    }
+
+    private void authenticate() throws Exception {
+        Exchange options = post("/assertion/options", "{\"username\":\"warm\",\"userVerification\":\"discouraged\"}",
+                null);
+        ByteArray challenge = ByteArray.fromBase64Url(options.body().get("publicKey").get("challenge").asText());
+        Exchange result = post("/assertion/result", authenticator.authenticate(challenge, handle), options.token());
+        if (!"ok".equals(result.body().get("status").asText())) {
+            throw new IllegalStateException("assertion failed: " + result.body());
+        }
+    }
+
+    private Exchange post(String path, String body, String token) throws Exception {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(base + path))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body));
+        if (token != null) {
+            request.header(CeremonyService.TOKEN_HEADER, token);
+        }
+        HttpResponse<byte[]> response = http.send(request.build(), HttpResponse.BodyHandlers.ofByteArray());
+        if (response.statusCode() >= 300) {
+            throw new IllegalStateException(path + ": " + response.statusCode() + " " + new String(response.body()));
+        }
+        return new Exchange(mapper.readTree(response.body()),
+                response.headers().firstValue(CeremonyService.TOKEN_HEADER).orElse(null));
+    }
+
+    private record Exchange(JsonNode body, String token) {
+    }
+}
@@ -0,0 +1,166 @@
+package com.WebAuthn.Yubico.Benchmark;
+
+import java.net.URI;
+import java.net.http.HttpClient;
+import java.net.http.HttpRequest;
+import java.net.http.HttpResponse;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+import org.springframework.boot.WebApplicationType;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.core.env.Environment;
+
+import com.WebAuthn.Yubico.VirtualAuthenticator;
+import com.WebAuthn.Yubico.WebAuthnDemoApplication;
+import com.WebAuthn.Yubico.Service.CeremonyService;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.yubico.webauthn.data.ByteArray;
+
+/**
+ * The servlet and the reactive build side by side: concurrent clients run
+ * authentication ceremonies over HTTP against the application on a random
+ * port, each client one after the other, as a browser would. Throughput is
+ * ceremonies divided by the batch time, the p99 latency of a ceremony, options
+ * and result, is printed for every batch.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 1)
+@Measurement(iterations = 3)
+@Fork(value = 1, jvmArgsAppend = "-Xmx2g")
+public class WebStackLoadBenchmark {
+
+    private static final int CEREMONIES_PER_CLIENT = 20;
+
+    @Param({ "servlet", "reactive" })
+    public String stack;
+
+    @Param({ "32", "256" })
+    public int clients;
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private ConfigurableApplicationContext context;
+    private HttpClient http;
+    private String base;
+    private ExecutorService executor;
+    private VirtualAuthenticator[] authenticators;
+    private ByteArray[] handles;
+    private long[] latencies;
+    private long batchNanos;
+
+    @Setup(Level.Trial)
+    public void setUp() throws Exception {
+        context = new SpringApplicationBuilder(WebAuthnDemoApplication.class)
+                .web("reactive".equals(stack) ? WebApplicationType.REACTIVE : WebApplicationType.SERVLET)
+                // as arguments, default properties would lose against application.properties
+                .run("--server.port=0",
+                        "--spring.datasource.url=jdbc:h2:mem:web-" + stack + "-" + clients,
+                        "--reactive.r2dbc.url=r2dbc:h2:mem:///web-" + stack + "-" + clients,
+                        "--signature-counter.mode=direct",
+                        "--admission.enabled=false",
+                        "--logging.level.root=warn");
+        base = "http://localhost:" + context.getBean(Environment.class).getProperty("local.server.port");
+        executor = Executors.newFixedThreadPool(clients);
+        // own executor, the client threads block in send
+        http = HttpClient.newHttpClient();
+        authenticators = new VirtualAuthenticator[clients];
+        handles = new ByteArray[clients];
+        for (int i = 0; i < clients; i++) {
+            authenticators[i] = new VirtualAuthenticator();
+            String username = "web" + i;
+            Exchange options = post("/attestation/options", "{\"username\":\"" + username + "\",\"displayName\":\""
+                    + username + "\",\"authenticatorSelection\":{}}", null);
+            handles[i] = ByteArray.fromBase64Url(options.body().get("user").get("id").asText());
+            post("/attestation/result", authenticators[i].register(
+                    ByteArray.fromBase64Url(options.body().get("challenge").asText())), options.token());
+        }
+        latencies = new long[clients * CEREMONIES_PER_CLIENT];
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown() {
+        executor.shutdownNow();
+        context.close();
+    }
+
+    @TearDown(Level.Iteration)
+    public void report() {
+        long[] sorted = latencies.clone();
+        Arrays.sort(sorted);
+        System.out.printf("%n%s, %d clients: %.0f ceremonies/s, p99 %.1f ms%n", stack, clients,
+                latencies.length / (batchNanos / 1e9), sorted[(int) Math.ceil(sorted.length * 0.99) - 1] / 1e6);
+    }
+
+    @Benchmark
+    public int concurrentClients() throws Exception {
+        long start = System.nanoTime();
+        List<Future<?>> futures = new ArrayList<>(clients);
+        for (int i = 0; i < clients; i++) {
+            int client = i;
+            futures.add(executor.submit(() -> {
+                for (int j = 0; j < CEREMONIES_PER_CLIENT; j++) {
+                    long started = System.nanoTime();
+                    authenticate(client);
+                    latencies[client * CEREMONIES_PER_CLIENT + j] = System.nanoTime() - started;
+                }
+                return null;
+            }));
+        }
+        for (Future<?> future : futures) {
+            future.get();
+        }
+        batchNanos = System.nanoTime() - start;
+        return futures.size();
+    }
+
+    private void authenticate(int client) throws Exception {
+        Exchange options = post("/assertion/options",
+                "{\"username\":\"web" + client + "\",\"userVerification\":\"discouraged\"}", null);
+        ByteArray challenge = ByteArray.fromBase64Url(options.body().get("publicKey").get("challenge").asText());
+        Exchange result = post("/assertion/result", authenticators[client].authenticate(challenge, handles[client]),
+                options.token());
+        if (!"ok".equals(result.body().get("status").asText())) {
+            throw new IllegalStateException("assertion failed: " + result.body());
+        }
+    }
+
+    private Exchange post(String path, String body, String token) throws Exception {
+        HttpRequest.Builder request = HttpRequest.newBuilder(URI.create(base + path))
+                .header("Content-Type", "application/json")
+                .POST(HttpRequest.BodyPublishers.ofString(body));
+        if (token != null) {
+            request.header(CeremonyService.TOKEN_HEADER, token);
+        }
+        HttpResponse<byte[]> response = http.send(request.build(), HttpResponse.BodyHandlers.ofByteArray());
+        if (response.statusCode() >= 300) {
+            throw new IllegalStateException(path + ": " + response.statusCode() + " " + new String(response.body()));
+        }
+        return new Exchange(mapper.readTree(response.body()),
+                response.headers().firstValue(CeremonyService.TOKEN_HEADER).orElse(null));
+    }
+
+    private record Exchange(JsonNode body, String token) {
+    }
+}
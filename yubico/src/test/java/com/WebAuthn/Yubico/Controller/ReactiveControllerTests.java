@@ -0,0 +1,66 @@
+package com.WebAuthn.Yubico.Controller;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.web.reactive.AutoConfigureWebTestClient;
+import org.springframework.boot.test.context.SpringBootTest;
+import org.springframework.http.MediaType;
+import org.springframework.test.web.reactive.server.WebTestClient;
+
+import com.WebAuthn.Yubico.VirtualAuthenticator;
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.yubico.webauthn.data.ByteArray;
+
+@SpringBootTest(properties = { "spring.main.web-application-type=reactive",
+        "spring.datasource.url=jdbc:h2:mem:reactive", "reactive.r2dbc.url=r2dbc:h2:mem:///reactive",
+        "signature-counter.mode=direct" })
+@AutoConfigureWebTestClient
+class ReactiveControllerTests {
+
+    @Autowired
+    private WebTestClient client;
+
+    @Autowired
+    private ObjectMapper mapper;
+
+    @Test
+    void registersAndAuthenticates() throws Exception {
+        VirtualAuthenticator authenticator = new VirtualAuthenticator();
+        JsonNode creationOptions = post("/attestation/options",
+                "{\"username\":\"reactive\",\"displayName\":\"Reactive\",\"authenticatorSelection\":{}}");
+        ByteArray challenge = ByteArray.fromBase64Url(creationOptions.get("challenge").asText());
+        ByteArray handle = ByteArray.fromBase64Url(creationOptions.get("user").get("id").asText());
+        assertEquals("ok", post("/attestation/result", authenticator.register(challenge)).get("status").asText());
+
+        for (int i = 0; i < 2; i++) {
+            JsonNode requestOptions = post("/assertion/options", "{\"username\":\"reactive\"}");
+            challenge = ByteArray.fromBase64Url(requestOptions.get("publicKey").get("challenge").asText());
+            assertEquals("ok", post("/assertion/result", authenticator.authenticate(challenge, handle))
+                    .get("status").asText());
+        }
+    }
+
+    @Test
+    void unknownUserGetsNoOptions() throws Exception {
+        JsonNode response = mapper.readTree(client.post().uri("/assertion/options")
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue("{\"username\":\"nobody\"}")
+                .exchange()
+                .expectStatus().is5xxServerError()
+                .expectBody().returnResult().getResponseBody());
+
+        assertEquals("error", response.get("status").asText());
+    }
+
+    private JsonNode post(String uri, String body) throws Exception {
+        return mapper.readTree(client.post().uri(uri)
+                .contentType(MediaType.APPLICATION_JSON)
+                .bodyValue(body)
+                .exchange()
+                .expectStatus().is2xxSuccessful()
+                .expectBody().returnResult().getResponseBody());
+    }
+}
@@ -0,0 +1,70 @@
+package com.WebAuthn.Yubico;
+
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+import com.yubico.webauthn.CredentialRepository;
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.RelyingParty;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
+import com.yubico.webauthn.data.RelyingPartyIdentity;
+
+// credential repository for tests and benchmarks that do not need the database,
+// the user handle of a user is the utf-8 encoding of the username
+public class InMemoryCredentialRepository implements CredentialRepository {
+
+    private final Map<ByteArray, RegisteredCredential> credentials = new ConcurrentHashMap<>();
+
+    public static RelyingParty relyingParty(CredentialRepository repository) {
+        return RelyingParty.builder()
+                .identity(RelyingPartyIdentity.builder().id("localhost").name("localhost").build())
+                .credentialRepository(repository)
+                .origins(Collections.singleton("http://localhost:8080"))
+                .build();
+    }
+
+    public static ByteArray handle(String username) {
+        return new ByteArray(username.getBytes(StandardCharsets.UTF_8));
+    }
+
+    public void add(RegisteredCredential credential) {
+        credentials.put(credential.getCredentialId(), credential);
+    }
+
+    @Override
+    public Set<PublicKeyCredentialDescriptor> getCredentialIdsForUsername(String username) {
+        ByteArray handle = handle(username);
+        return credentials.values().stream()
+                .filter(credential -> credential.getUserHandle().equals(handle))
+                .map(credential -> PublicKeyCredentialDescriptor.builder().id(credential.getCredentialId()).build())
+                .collect(Collectors.toSet());
+    }
+
+    @Override
+    public Optional<ByteArray> getUserHandleForUsername(String username) {
+        return Optional.of(handle(username));
+    }
+
+    @Override
+    public Optional<String> getUsernameForUserHandle(ByteArray userHandle) {
+        return Optional.of(new String(userHandle.getBytes(), StandardCharsets.UTF_8));
+    }
+
+    @Override
+    public Optional<RegisteredCredential> lookup(ByteArray credentialId, ByteArray userHandle) {
+        return Optional.ofNullable(credentials.get(credentialId))
+                .filter(credential -> credential.getUserHandle().equals(userHandle));
+    }
+
+    @Override
+    public Set<RegisteredCredential> lookupAll(ByteArray credentialId) {
+        RegisteredCredential credential = credentials.get(credentialId);
+        return credential == null ? Collections.emptySet() : Collections.singleton(credential);
+    }
+}
@@ -0,0 +1,143 @@
+package com.WebAuthn.Yubico.Repository;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.datasource.init.ScriptUtils;
+
+import com.WebAuthn.Yubico.InMemoryCredentialRepository;
+import com.WebAuthn.Yubico.VirtualAuthenticator;
+import com.WebAuthn.Yubico.Model.AuthenticatorModel;
+import com.WebAuthn.Yubico.Model.UserModel;
+import com.WebAuthn.Yubico.Service.CeremonyMetrics;
+import com.WebAuthn.Yubico.Service.CredentialAccessService;
+import com.WebAuthn.Yubico.Service.CredentialCache;
+import com.WebAuthn.Yubico.Service.SignatureCounterUpdater;
+import com.yubico.webauthn.RelyingParty;
+import com.yubico.webauthn.data.ByteArray;
+
+// the relying party bean of the application needs the credential access service
+@DataJpaTest
+@Import({ CredentialAccessService.class, CredentialCache.class, SignatureCounterUpdater.class, CeremonyMetrics.class })
+class AuthenticatorModelRepositoryTests {
+
+    @Autowired
+    private AuthenticatorModelRepository authRepo;
+    @Autowired
+    private UserModelRepository userRepo;
+
+    @Test
+    void findsByCredentialIdThroughDigest() throws Exception {
+        UserModel user = userRepo.save(new UserModel("alice", "Alice", InMemoryCredentialRepository.handle("alice")));
+        VirtualAuthenticator authenticator = new VirtualAuthenticator();
+        RelyingParty rp = InMemoryCredentialRepository.relyingParty(new InMemoryCredentialRepository());
+        authRepo.save(new AuthenticatorModel("key", user, authenticator.registerWith(rp, user.toUserIdentity())));
+
+        AuthenticatorModel found = authRepo.findByCredentialId(authenticator.getCredentialId()).orElseThrow();
+        assertEquals(authenticator.getCredentialId(), found.getCredentialId());
+        assertEquals(AuthenticatorModel.digestOf(authenticator.getCredentialId()), found.getCredentialIdDigest());
+        assertEquals(1, authRepo.findAllByCredentialId(authenticator.getCredentialId()).size());
+        assertTrue(authRepo.findByCredentialId(new VirtualAuthenticator().getCredentialId()).isEmpty());
+    }
+
+    @Test
+    void usageCountOnlyAdvances() throws Exception {
+        UserModel user = userRepo.save(new UserModel("bob", "Bob", InMemoryCredentialRepository.handle("bob")));
+        VirtualAuthenticator authenticator = new VirtualAuthenticator();
+        RelyingParty rp = InMemoryCredentialRepository.relyingParty(new InMemoryCredentialRepository());
+        AuthenticatorModel saved = authRepo.save(new AuthenticatorModel("key", user,
+                authenticator.registerWith(rp, user.toUserIdentity())));
+        ByteArray digest = saved.getCredentialIdDigest();
+
+        assertEquals(1, authRepo.advanceUsageCount(digest, 10));
+        assertEquals(0, authRepo.advanceUsageCount(digest, 10));
+        assertEquals(0, authRepo.advanceUsageCount(digest, 3));
+        assertEquals(1, authRepo.advanceUsageCount(digest, 11));
+        assertEquals(0, authRepo.advanceUsageCount(AuthenticatorModel.digestOf(new ByteArray(new byte[] { 1 })), 99));
+        assertEquals(11, authRepo.findRegisteredCredential(authenticator.getCredentialId()).orElseThrow()
+                .getUsageCount());
+    }
+
+    @Test
+    void migratesLegacyBlobColumns() throws Exception {
+        try (Connection connection = DriverManager.getConnection("jdbc:h2:mem:legacy-authenticators")) {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("create table authenticator_model (id bigint not null, credential_id BLOB not null,"
+                        + " name varchar(255), public_key BLOB not null, usage_count bigint not null,"
+                        + " user_id bigint, primary key (id))");
+            }
+            byte[] credentialId = new VirtualAuthenticator().getCredentialId().getBytes();
+            insertLegacy(connection, 1, credentialId);
+            insertLegacy(connection, 2, new byte[] { 1, 2, 3 });
+
+            ScriptUtils.executeSqlScript(connection, new ClassPathResource("db/credential-id-digest.sql"));
+
+            try (PreparedStatement select = connection.prepareStatement(
+                    "select id from authenticator_model where credential_id_digest = ?")) {
+                select.setBytes(1, AuthenticatorModel.digestOf(new ByteArray(credentialId)).getBytes());
+                try (ResultSet rows = select.executeQuery()) {
+                    assertTrue(rows.next());
+                    assertEquals(1, rows.getLong(1));
+                }
+            }
+            try (Statement statement = connection.createStatement();
+                    ResultSet rows = statement.executeQuery("select credential_id from authenticator_model where id = 1")) {
+                rows.next();
+                assertArrayEquals(credentialId, rows.getBytes(1));
+            }
+            assertThrows(SQLException.class, () -> insertLegacy(connection, 3, credentialId));
+        }
+    }
+
+    @Test
+    void pinsPooledSequencesPastTheIdsInUse() throws Exception {
+        try (Connection connection = DriverManager.getConnection("jdbc:h2:mem:legacy-sequences")) {
+            try (Statement statement = connection.createStatement()) {
+                statement.execute("create sequence hibernate_sequence start with 1 increment by 1");
+                statement.execute("create table user_model (id bigint not null, primary key (id))");
+                statement.execute("create table authenticator_model (id bigint not null, primary key (id))");
+                statement.execute("insert into user_model values (77)");
+            }
+
+            ScriptUtils.executeSqlScript(connection, new ClassPathResource("db/pooled-sequences.sql"));
+
+            try (Statement statement = connection.createStatement();
+                    ResultSet rows = statement.executeQuery("select sequence_name, base_value, increment"
+                            + " from information_schema.sequences where sequence_name like '%MODEL_SEQ'"
+                            + " order by sequence_name")) {
+                assertTrue(rows.next());
+                assertEquals("AUTHENTICATOR_MODEL_SEQ", rows.getString(1));
+                assertEquals(51, rows.getLong(2));
+                assertEquals(50, rows.getLong(3));
+                assertTrue(rows.next());
+                // the first block of 50 ids starts past 77
+                assertEquals(128, rows.getLong(2));
+                assertEquals(50, rows.getLong(3));
+            }
+        }
+    }
+
+    private static void insertLegacy(Connection connection, long id, byte[] credentialId) throws SQLException {
+        try (PreparedStatement insert = connection.prepareStatement(
+                "insert into authenticator_model (id, credential_id, public_key, usage_count) values (?, ?, ?, 0)")) {
+            insert.setLong(1, id);
+            insert.setBytes(2, credentialId);
+            insert.setBytes(3, new byte[] { 9 });
+            insert.executeUpdate();
+        }
+    }
+}
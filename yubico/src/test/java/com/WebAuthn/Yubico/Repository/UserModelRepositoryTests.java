@@ -0,0 +1,46 @@
+package com.WebAuthn.Yubico.Repository;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.core.io.ClassPathResource;
+import org.springframework.jdbc.datasource.init.ScriptUtils;
+
+import com.WebAuthn.Yubico.Model.UserModel;
+
+class UserModelRepositoryTests {
+
+    @Test
+    void migratesUsersIntoTheDefaultTenant() throws Exception {
+        try (Connection connection = DriverManager.getConnection("jdbc:h2:mem:legacy-users")) {
+            try (Statement statement = connection.createStatement()) {
+                // as Hibernate created it before the tenants
+                statement.execute("create table user_model (id bigint not null, display_name varchar(255),"
+                        + " handle BLOB not null, username varchar(255) not null, primary key (id))");
+                statement.execute("alter table if exists user_model"
+                        + " add constraint UK_ASI811MGONYF7P7AJ2TL97A91 unique (username)");
+                statement.execute("insert into user_model (id, handle, username) values (1, X'01', 'alice')");
+            }
+
+            ScriptUtils.executeSqlScript(connection, new ClassPathResource("db/user-tenant.sql"));
+
+            try (Statement statement = connection.createStatement()) {
+                try (ResultSet rows = statement.executeQuery("select tenant from user_model where id = 1")) {
+                    rows.next();
+                    assertEquals(UserModel.DEFAULT_TENANT, rows.getString(1));
+                }
+                statement.execute("insert into user_model (id, tenant, handle, username)"
+                        + " values (2, 'example', X'02', 'alice')");
+                assertThrows(SQLException.class, () -> statement.execute(
+                        "insert into user_model (id, handle, username) values (3, X'03', 'alice')"));
+            }
+        }
+    }
+}
@@ -0,0 +1,95 @@
+package com.WebAuthn.Yubico.Service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.List;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+import org.junit.jupiter.api.Test;
+
+import com.yubico.webauthn.attestation.AttestationTrustSource;
+import com.yubico.webauthn.attestation.AttestationTrustSource.TrustRootsResult;
+import com.yubico.webauthn.data.AttestationType;
+
+import io.micrometer.core.instrument.Timer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+class CeremonyMetricsTests {
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final CeremonyMetrics metrics = new CeremonyMetrics();
+
+    @Test
+    void phasesAreRecordedWithOutcomeAndAttestationType() {
+        metrics.bindTo(registry);
+
+        try (CeremonyMetrics.Ceremony ceremony = metrics.start("registration.finish")) {
+            ceremony.phase(CeremonyMetrics.DECODE);
+            ceremony.phase(CeremonyMetrics.VERIFICATION);
+            ceremony.attestation(AttestationType.BASIC);
+            ceremony.succeeded();
+        }
+        try (CeremonyMetrics.Ceremony ceremony = metrics.start("registration.finish")) {
+            ceremony.phase(CeremonyMetrics.DECODE);
+        }
+
+        assertEquals(1, phase("registration.finish", CeremonyMetrics.VERIFICATION, "success", "basic").count());
+        assertEquals(1, phase("registration.finish", CeremonyMetrics.DECODE, "success", "basic").count());
+        assertEquals(1, phase("registration.finish", CeremonyMetrics.DECODE, "failure", "n/a").count());
+        assertEquals(1, registry.get("webauthn.ceremony").tag("outcome", "failure").timer().count());
+    }
+
+    @Test
+    void trustChainValidationIsTakenOutOfTheVerification() {
+        metrics.bindTo(registry);
+        AttestationTrustSource slow = metrics.timed((chain, aaguid) -> {
+            sleep(30);
+            return TrustRootsResult.builder().trustRoots(Set.of()).build();
+        });
+
+        try (CeremonyMetrics.Ceremony ceremony = metrics.start("registration.finish")) {
+            slow.findTrustRoots(List.of(), Optional.empty());
+            ceremony.phase(CeremonyMetrics.VERIFICATION);
+            ceremony.succeeded();
+        }
+
+        Timer trustChain = phase("registration.finish", CeremonyMetrics.TRUST_CHAIN, "success", "n/a");
+        Timer verification = phase("registration.finish", CeremonyMetrics.VERIFICATION, "success", "n/a");
+        assertTrue(trustChain.totalTime(TimeUnit.MILLISECONDS) >= 30);
+        assertTrue(verification.totalTime(TimeUnit.MILLISECONDS) < 30);
+        // outside a ceremony the trust source is only passed through
+        assertNotNull(slow.findTrustRoots(List.of(), Optional.empty()));
+        assertEquals(1, trustChain.count());
+    }
+
+    @Test
+    void nothingIsRecordedWithoutRegistry() {
+        try (CeremonyMetrics.Ceremony ceremony = metrics.start("authentication.start")) {
+            ceremony.phase(CeremonyMetrics.USER_LOOKUP);
+        }
+
+        assertNull(registry.find("webauthn.ceremony.phase").timer());
+    }
+
+    private Timer phase(String ceremony, String phase, String outcome, String attestation) {
+        return registry.get("webauthn.ceremony.phase")
+                .tag("ceremony", ceremony)
+                .tag("phase", phase)
+                .tag("outcome", outcome)
+                .tag("attestation", attestation)
+                .timer();
+    }
+
+    private static void sleep(long ms) {
+        try {
+            Thread.sleep(ms);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
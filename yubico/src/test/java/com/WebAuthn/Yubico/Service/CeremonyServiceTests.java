@@ -0,0 +1,252 @@
+package com.WebAuthn.Yubico.Service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import com.WebAuthn.Yubico.InMemoryCredentialRepository;
+import com.WebAuthn.Yubico.VirtualAuthenticator;
+import com.yubico.webauthn.AssertionRequest;
+import com.yubico.webauthn.FinishAssertionOptions;
+import com.yubico.webauthn.FinishRegistrationOptions;
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.RegistrationResult;
+import com.yubico.webauthn.RelyingParty;
+import com.yubico.webauthn.StartAssertionOptions;
+import com.yubico.webauthn.StartRegistrationOptions;
+import com.yubico.webauthn.data.AuthenticatorAssertionResponse;
+import com.yubico.webauthn.data.AuthenticatorAttestationResponse;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.ClientAssertionExtensionOutputs;
+import com.yubico.webauthn.data.ClientRegistrationExtensionOutputs;
+import com.yubico.webauthn.data.PublicKeyCredential;
+import com.yubico.webauthn.data.PublicKeyCredentialCreationOptions;
+import com.yubico.webauthn.data.UserIdentity;
+
+class CeremonyServiceTests {
+
+    private static final int FLOWS = 500;
+    // each with the signatures of a registration and a login
+    private static final int CEREMONIES = 50;
+    private static final String SEALING_KEY = "AAECAwQFBgcICQoLDA0ODxAREhMUFRYXGBkaGxwdHh8=";
+
+    private RelyingParty rp;
+    private CeremonyService ceremonies;
+
+    @BeforeEach
+    void setUp() {
+        rp = InMemoryCredentialRepository.relyingParty(new InMemoryCredentialRepository());
+        ceremonies = new CeremonyService(Duration.ofMinutes(5), 10_000, "store", "");
+    }
+
+    @AfterEach
+    void tearDown() {
+        ceremonies.close();
+    }
+
+    @Test
+    void parallelFlowsFinishWithTheirOwnCeremony() throws Exception {
+        runParallelFlows();
+    }
+
+    @Test
+    void parallelSealedFlowsFinishWithTheirOwnCeremony() throws Exception {
+        ceremonies.close();
+        ceremonies = new CeremonyService(Duration.ofMinutes(5), 10_000, "sealed", SEALING_KEY);
+        runParallelFlows();
+    }
+
+    @Test
+    void registrationAndLoginCompleteAgainstOneInstance() throws Exception {
+        runParallelCeremonies();
+    }
+
+    @Test
+    void sealedRegistrationAndLoginCompleteAgainstOneInstance() throws Exception {
+        ceremonies.close();
+        ceremonies = new CeremonyService(Duration.ofMinutes(5), 10_000, "sealed", SEALING_KEY);
+        runParallelCeremonies();
+    }
+
+    @Test
+    void sealedTokenCanOnlyBeUsedOnce() throws Exception {
+        CeremonyService node = new CeremonyService(Duration.ofMinutes(5), 10_000, "sealed", SEALING_KEY);
+        CeremonyService otherNode = new CeremonyService(Duration.ofMinutes(5), 10_000, "sealed", SEALING_KEY);
+        PublicKeyCredentialCreationOptions options = startRegistration("carol");
+        String token = node.saveRegistration(options);
+        assertEquals(options, otherNode.takeRegistration(options.getChallenge(), token).orElseThrow());
+        assertFalse(otherNode.takeRegistration(options.getChallenge(), token).isPresent());
+    }
+
+    @Test
+    void sealedTokenIsBoundToChallengeAndType() throws Exception {
+        CeremonyService node = new CeremonyService(Duration.ofMinutes(5), 10_000, "sealed", SEALING_KEY);
+        PublicKeyCredentialCreationOptions options = startRegistration("dave");
+        String token = node.saveRegistration(options);
+        ByteArray otherChallenge = startRegistration("dave").getChallenge();
+        assertFalse(node.takeRegistration(otherChallenge, token).isPresent());
+        assertFalse(node.takeAssertion(options.getChallenge(), token).isPresent());
+        String forged = token.substring(0, token.length() - 2) + (token.endsWith("A") ? "BB" : "AA");
+        assertFalse(node.takeRegistration(options.getChallenge(), forged).isPresent());
+        assertTrue(node.takeRegistration(options.getChallenge(), token).isPresent());
+    }
+
+    @Test
+    void ceremonyCanOnlyBeTakenOnce() throws Exception {
+        PublicKeyCredentialCreationOptions options = startRegistration("alice");
+        ceremonies.saveRegistration(options);
+        assertTrue(ceremonies.takeRegistration(options.getChallenge(), null).isPresent());
+        assertFalse(ceremonies.takeRegistration(options.getChallenge(), null).isPresent());
+    }
+
+    @Test
+    void expiredCeremoniesAreDropped() throws Exception {
+        CeremonyService shortLived = new CeremonyService(Duration.ofMillis(100), 10, "store", "");
+        try {
+            PublicKeyCredentialCreationOptions options = startRegistration("bob");
+            shortLived.saveRegistration(options);
+            Thread.sleep(400);
+            assertFalse(shortLived.takeRegistration(options.getChallenge(), null).isPresent());
+        } finally {
+            shortLived.close();
+        }
+    }
+
+    private void runParallelFlows() throws Exception {
+        ExecutorService pool = Executors.newFixedThreadPool(64);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<Boolean>> flows = new ArrayList<>();
+            for (int i = 0; i < FLOWS; i++) {
+                String username = "user" + i;
+                flows.add(pool.submit(flow(start, username)));
+            }
+            start.countDown();
+            for (Future<Boolean> flow : flows) {
+                assertTrue(flow.get());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // registers and logs in one user, interleaved with all other flows
+    private Callable<Boolean> flow(CountDownLatch start, String username) {
+        return () -> {
+            start.await();
+            PublicKeyCredentialCreationOptions options = startRegistration(username);
+            String token = ceremonies.saveRegistration(options);
+            Thread.yield();
+            Optional<PublicKeyCredentialCreationOptions> pending = ceremonies
+                    .takeRegistration(options.getChallenge(), token);
+            if (pending.isEmpty() || !pending.get().getUser().getName().equals(username)) {
+                return false;
+            }
+            AssertionRequest request = rp.startAssertion(StartAssertionOptions.builder()
+                    .username(username)
+                    .build());
+            String assertionToken = ceremonies.saveAssertion(request);
+            Thread.yield();
+            Optional<AssertionRequest> pendingAssertion = ceremonies
+                    .takeAssertion(request.getPublicKeyCredentialRequestOptions().getChallenge(), assertionToken);
+            return pendingAssertion.isPresent()
+                    && pendingAssertion.get().getUsername().equals(Optional.of(username));
+        };
+    }
+
+    private void runParallelCeremonies() throws Exception {
+        InMemoryCredentialRepository credentials = new InMemoryCredentialRepository();
+        RelyingParty verifying = InMemoryCredentialRepository.relyingParty(credentials);
+        ExecutorService pool = Executors.newFixedThreadPool(16);
+        CountDownLatch start = new CountDownLatch(1);
+        try {
+            List<Future<Boolean>> ceremonyPairs = new ArrayList<>();
+            for (int i = 0; i < CEREMONIES; i++) {
+                String username = "member" + i;
+                ceremonyPairs.add(pool.submit(() -> {
+                    start.await();
+                    return registerAndLogIn(verifying, credentials, username);
+                }));
+            }
+            start.countDown();
+            for (Future<Boolean> ceremonyPair : ceremonyPairs) {
+                assertTrue(ceremonyPair.get());
+            }
+        } finally {
+            pool.shutdownNow();
+        }
+    }
+
+    // as the controllers: the pending ceremony is found by the challenge in the
+    // client data of the signed response
+    private boolean registerAndLogIn(RelyingParty verifying, InMemoryCredentialRepository credentials,
+            String username) throws Exception {
+        VirtualAuthenticator authenticator = new VirtualAuthenticator();
+        UserIdentity user = UserIdentity.builder()
+                .name(username)
+                .displayName(username)
+                .id(InMemoryCredentialRepository.handle(username))
+                .build();
+        PublicKeyCredentialCreationOptions options = verifying.startRegistration(
+                StartRegistrationOptions.builder().user(user).build());
+        String registrationToken = ceremonies.saveRegistration(options);
+        Thread.yield();
+        PublicKeyCredential<AuthenticatorAttestationResponse, ClientRegistrationExtensionOutputs> attestation =
+                PublicKeyCredential.parseRegistrationResponseJson(authenticator.register(options.getChallenge()));
+        Optional<PublicKeyCredentialCreationOptions> registration = ceremonies
+                .takeRegistration(attestation.getResponse().getClientData().getChallenge(), registrationToken);
+        if (registration.isEmpty()) {
+            return false;
+        }
+        RegistrationResult registered = verifying.finishRegistration(FinishRegistrationOptions.builder()
+                .request(registration.get())
+                .response(attestation)
+                .build());
+        credentials.add(RegisteredCredential.builder()
+                .credentialId(registered.getKeyId().getId())
+                .userHandle(user.getId())
+                .publicKeyCose(registered.getPublicKeyCose())
+                .signatureCount(registered.getSignatureCount())
+                .build());
+
+        AssertionRequest request = verifying.startAssertion(StartAssertionOptions.builder()
+                .username(username)
+                .build());
+        String assertionToken = ceremonies.saveAssertion(request);
+        Thread.yield();
+        PublicKeyCredential<AuthenticatorAssertionResponse, ClientAssertionExtensionOutputs> assertion =
+                PublicKeyCredential.parseAssertionResponseJson(authenticator.authenticate(
+                        request.getPublicKeyCredentialRequestOptions().getChallenge(), user.getId()));
+        Optional<AssertionRequest> pending = ceremonies
+                .takeAssertion(assertion.getResponse().getClientData().getChallenge(), assertionToken);
+        return pending.isPresent() && verifying.finishAssertion(FinishAssertionOptions.builder()
+                .request(pending.get())
+                .response(assertion)
+                .build())
+                .isSuccess();
+    }
+
+    private PublicKeyCredentialCreationOptions startRegistration(String username) {
+        return rp.startRegistration(StartRegistrationOptions.builder()
+                .user(UserIdentity.builder()
+                        .name(username)
+                        .displayName(username)
+                        .id(InMemoryCredentialRepository.handle(username))
+                        .build())
+                .build());
+    }
+}
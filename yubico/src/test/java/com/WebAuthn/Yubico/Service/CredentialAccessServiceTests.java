@@ -0,0 +1,249 @@
+package com.WebAuthn.Yubico.Service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.sql.DataSource;
+
+import org.hibernate.SessionFactory;
+import org.hibernate.stat.Statistics;
+
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.beans.factory.config.BeanPostProcessor;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.boot.test.autoconfigure.orm.jpa.TestEntityManager;
+import org.springframework.boot.test.context.TestConfiguration;
+import org.springframework.context.annotation.Bean;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.jdbc.datasource.DelegatingDataSource;
+
+import com.WebAuthn.Yubico.InMemoryCredentialRepository;
+import com.WebAuthn.Yubico.VirtualAuthenticator;
+import com.WebAuthn.Yubico.Model.AuthenticatorModel;
+import com.WebAuthn.Yubico.Model.UserModel;
+import com.WebAuthn.Yubico.Repository.AuthenticatorModelRepository;
+import com.WebAuthn.Yubico.Repository.UserModelRepository;
+import com.yubico.webauthn.AssertionRequest;
+import com.yubico.webauthn.AssertionResult;
+import com.yubico.webauthn.FinishAssertionOptions;
+import com.yubico.webauthn.RelyingParty;
+import com.yubico.webauthn.StartAssertionOptions;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.PublicKeyCredential;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+// the cache outlives the rolled back test transactions, so every test uses its
+// own user
+@DataJpaTest(properties = { "spring.jpa.properties.hibernate.generate_statistics=true",
+        "signature-counter.flush-interval=PT1H" })
+@Import({ CredentialAccessService.class, CredentialCache.class, SignatureCounterUpdater.class, CeremonyMetrics.class,
+        CredentialAccessServiceTests.StatementCounting.class })
+class CredentialAccessServiceTests {
+
+    @Autowired
+    private CredentialAccessService accessService;
+    @Autowired
+    private CredentialCache cache;
+    @Autowired
+    private AuthenticatorModelRepository authRepo;
+    @Autowired
+    private UserModelRepository userRepo;
+    @Autowired
+    private SignatureCounterUpdater counterUpdater;
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+    @Autowired
+    private TestEntityManager entityManager;
+
+    private final SimpleMeterRegistry registry = new SimpleMeterRegistry();
+    private final VirtualAuthenticator authenticator = new VirtualAuthenticator();
+    private UserModel user;
+    private String username;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        cache.bindTo(registry);
+        username = "alice-" + System.nanoTime();
+        user = userRepo.save(new UserModel(username, "Alice", InMemoryCredentialRepository.handle(username)));
+        RelyingParty rp = InMemoryCredentialRepository.relyingParty(new InMemoryCredentialRepository());
+        authRepo.save(new AuthenticatorModel("key", user, authenticator.registerWith(rp, user.toUserIdentity())));
+        entityManager.flush();
+    }
+
+    @Test
+    void repeatedLookupsAreServedFromTheCache() {
+        ByteArray credentialId = authenticator.getCredentialId();
+        double misses = gets("miss");
+        double hits = gets("hit");
+        for (int i = 0; i < 3; i++) {
+            assertEquals(1, accessService.lookupAll(credentialId).size());
+            assertEquals(1, accessService.getCredentialIdsForUsername(username).size());
+            assertEquals(username, accessService.getUsernameForUserHandle(user.getHandle()).orElseThrow());
+            assertEquals(user.getHandle(), accessService.getUserHandleForUsername(username).orElseThrow());
+        }
+        assertEquals(4, gets("miss") - misses);
+        assertEquals(8, gets("hit") - hits);
+    }
+
+    @Test
+    void loginIssuesOneStatementPerLookupAndOneCounterUpdate() throws Exception {
+        SignatureCounterUpdater direct = new SignatureCounterUpdater(jdbcTemplate, authRepo, cache, "direct",
+                Duration.ofHours(1), 500);
+        entityManager.clear();
+        StatementCounting.PREPARED.set(0);
+
+        assertTrue(login(direct));
+        // credential ids and handle for the options, the credential for the
+        // result, the handle is then served from the cache; the counter update
+        assertEquals(4, StatementCounting.PREPARED.get());
+
+        // the update evicted the credential with the old counter
+        assertTrue(login(direct));
+        assertEquals(6, StatementCounting.PREPARED.get());
+        direct.close();
+    }
+
+    @Test
+    void writeBehindLoginsShareOneCounterBatch() throws Exception {
+        entityManager.clear();
+        StatementCounting.PREPARED.set(0);
+
+        assertTrue(login(counterUpdater));
+        assertEquals(3, StatementCounting.PREPARED.get());
+        // the pending counter is laid over the cached credential
+        assertTrue(login(counterUpdater));
+        assertEquals(3, StatementCounting.PREPARED.get());
+
+        counterUpdater.flush();
+        assertEquals(4, StatementCounting.PREPARED.get());
+    }
+
+    @Test
+    void registrationsTakeTheirIdsFromPooledBlocks() throws Exception {
+        Statistics statistics = entityManager.getEntityManager().getEntityManagerFactory()
+                .unwrap(SessionFactory.class).getStatistics();
+        statistics.clear();
+        RelyingParty rp = InMemoryCredentialRepository.relyingParty(new InMemoryCredentialRepository());
+
+        for (int i = 0; i < 10; i++) {
+            String name = username + "-" + i;
+            UserModel added = new UserModel(name, "Alice", InMemoryCredentialRepository.handle(name));
+            assertTrue(accessService.addUser(added));
+            assertTrue(accessService.addAuthenticator(name, "key",
+                    new VirtualAuthenticator().registerWith(rp, added.toUserIdentity())).isPresent());
+        }
+        entityManager.flush();
+
+        // the user lookup and two inserts per registration, at most one
+        // sequence call per entity for the 20 ids
+        assertTrue(statistics.getPrepareStatementCount() >= 30);
+        assertTrue(statistics.getPrepareStatementCount() <= 32);
+        assertEquals(1, authRepo.findAllByUser(userRepo.findByUsername(username + "-9")).size());
+    }
+
+    @Test
+    void savedSignatureCounterIsSeenByTheNextLookup() {
+        ByteArray credentialId = authenticator.getCredentialId();
+        long counter = accessService.lookup(credentialId, user.getHandle()).orElseThrow().getSignatureCount();
+
+        AuthenticatorModel auth = authRepo.findByCredentialId(credentialId).orElseThrow();
+        auth.setUsageCount(counter + 5);
+        authRepo.save(auth);
+        entityManager.flush();
+
+        assertEquals(counter + 5, accessService.lookup(credentialId, user.getHandle()).orElseThrow().getSignatureCount());
+    }
+
+    @Test
+    void newAuthenticatorIsListedForTheUser() throws Exception {
+        assertEquals(1, accessService.getCredentialIdsForUsername(username).size());
+
+        RelyingParty rp = InMemoryCredentialRepository.relyingParty(new InMemoryCredentialRepository());
+        authRepo.save(new AuthenticatorModel("second", user,
+                new VirtualAuthenticator().registerWith(rp, user.toUserIdentity())));
+        entityManager.flush();
+
+        assertEquals(2, accessService.getCredentialIdsForUsername(username).size());
+    }
+
+    @Test
+    void renameDropsTheOldMappings() {
+        assertEquals(username, accessService.getUsernameForUserHandle(user.getHandle()).orElseThrow());
+        assertEquals(user.getHandle(), accessService.getUserHandleForUsername(username).orElseThrow());
+
+        user.setUsername(username + "-renamed");
+        userRepo.save(user);
+        entityManager.flush();
+
+        assertEquals(username + "-renamed", accessService.getUsernameForUserHandle(user.getHandle()).orElseThrow());
+        assertEquals(0, accessService.getCredentialIdsForUsername(username).size());
+    }
+
+    // as the controller: options, the signed result and the counter update
+    private boolean login(SignatureCounterUpdater updater) throws Exception {
+        RelyingParty rp = InMemoryCredentialRepository.relyingParty(accessService);
+        AssertionRequest request = rp.startAssertion(StartAssertionOptions.builder().username(username).build());
+        String response = authenticator.authenticate(
+                request.getPublicKeyCredentialRequestOptions().getChallenge(), user.getHandle());
+        AssertionResult result = rp.finishAssertion(FinishAssertionOptions.builder()
+                .request(request)
+                .response(PublicKeyCredential.parseAssertionResponseJson(response))
+                .build());
+        return result.isSuccess()
+                && updater.record(result.getCredential().getCredentialId(), result.getSignatureCount());
+    }
+
+    private double gets(String result) {
+        return registry.get("cache.gets").tag("cache", "credentials").tag("result", result).functionCounter().count();
+    }
+
+    /**
+     * Counts the statements prepared on the connections of the data source,
+     * those of Hibernate and of the JdbcTemplate alike.
+     */
+    @TestConfiguration
+    static class StatementCounting {
+
+        static final AtomicInteger PREPARED = new AtomicInteger();
+
+        @Bean
+        static BeanPostProcessor countingDataSource() {
+            return new BeanPostProcessor() {
+                @Override
+                public Object postProcessAfterInitialization(Object bean, String beanName) {
+                    return bean instanceof DataSource dataSource ? new DelegatingDataSource(dataSource) {
+                        @Override
+                        public Connection getConnection() throws SQLException {
+                            return counting(super.getConnection());
+                        }
+                    } : bean;
+                }
+            };
+        }
+
+        private static Connection counting(Connection connection) {
+            return (Connection) Proxy.newProxyInstance(Connection.class.getClassLoader(),
+                    new Class<?>[] { Connection.class }, (proxy, method, args) -> {
+                        if (method.getName().startsWith("prepare")) {
+                            PREPARED.incrementAndGet();
+                        }
+                        try {
+                            return method.invoke(connection, args);
+                        } catch (InvocationTargetException e) {
+                            throw e.getCause();
+                        }
+                    });
+        }
+    }
+}
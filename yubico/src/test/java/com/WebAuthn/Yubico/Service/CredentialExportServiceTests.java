@@ -0,0 +1,175 @@
+package com.WebAuthn.Yubico.Service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import com.WebAuthn.Yubico.InMemoryCredentialRepository;
+import com.WebAuthn.Yubico.VirtualAuthenticator;
+import com.WebAuthn.Yubico.Model.CredentialRecord;
+import com.WebAuthn.Yubico.Model.UserModel;
+import com.WebAuthn.Yubico.Utility.CredentialRecordCodec;
+import com.yubico.webauthn.data.ByteArray;
+
+// the records are imported in committed batches, so every test uses its own
+// usernames and only looks at those in the export
+@DataJpaTest(properties = { "credentials.export.fetch-size=2", "credentials.import.batch-size=2" })
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+@Import({ CredentialExportService.class, CredentialImportService.class, CredentialAccessService.class,
+        CredentialCache.class, SignatureCounterUpdater.class, CeremonyMetrics.class })
+class CredentialExportServiceTests {
+
+    @Autowired
+    private CredentialExportService exportService;
+    @Autowired
+    private CredentialImportService importService;
+    @Autowired
+    private CredentialAccessService accessService;
+    @Autowired
+    private SignatureCounterUpdater counterUpdater;
+
+    private final String prefix = "export-" + System.nanoTime() + "-";
+
+    @Test
+    void exportReadsBackAsImported() throws Exception {
+        List<CredentialRecord> records = records();
+        importRecords(records);
+
+        assertEquals(records, exported(CredentialRecordCodec.Format.NDJSON));
+        assertEquals(records, exported(CredentialRecordCodec.Format.CBOR));
+    }
+
+    @Test
+    void exportedRecordsImportAsExisting() throws Exception {
+        List<CredentialRecord> records = records();
+        importRecords(records);
+
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (CredentialRecordCodec.Writer writer = CredentialRecordCodec.writer(bytes,
+                CredentialRecordCodec.Format.CBOR)) {
+            exportService.export(writer);
+        }
+        try (CredentialRecordCodec.Reader reader = CredentialRecordCodec.reader(
+                new ByteArrayInputStream(bytes.toByteArray()), CredentialRecordCodec.Format.CBOR)) {
+            CredentialImportService.Progress progress = importService.importRecords(reader, 0, null);
+            assertEquals(0, progress.users() + progress.credentials() + progress.invalid());
+        }
+    }
+
+    @Test
+    void pendingCountersAreExported() throws Exception {
+        List<CredentialRecord> records = records();
+        importRecords(records);
+        CredentialRecord used = records.get(1);
+        counterUpdater.record(used.credentialId(), used.signatureCount() + 5);
+
+        List<CredentialRecord> exported = exported(CredentialRecordCodec.Format.NDJSON);
+
+        assertEquals(used.signatureCount() + 5, exported.get(1).signatureCount());
+        assertEquals(records.get(3).signatureCount(), exported.get(3).signatureCount());
+    }
+
+    @Test
+    void exportHoldsTheUsersOfOneTenant() throws Exception {
+        importRecords(records());
+        UserModel other = accessService.getUserRepo()
+                .save(new UserModel("other", prefix + "dave", "dave", handle("dave")));
+
+        List<CredentialRecord> exported = exported("other", CredentialRecordCodec.Format.NDJSON);
+
+        assertEquals(List.of(new CredentialRecord(other.getUsername(), "dave", handle("dave"), null, null, 0, null)),
+                exported);
+        assertTrue(exported(CredentialRecordCodec.Format.NDJSON).stream()
+                .noneMatch(record -> record.username().equals(other.getUsername())));
+    }
+
+    @Test
+    void exportsAtATimeAreLimited() throws Exception {
+        importRecords(records());
+        List<Exception> second = new ArrayList<>();
+        CredentialRecordCodec.Writer writer = new CredentialRecordCodec.Writer() {
+            @Override
+            protected void append(CredentialRecord record) throws IOException {
+                if (second.isEmpty()) {
+                    second.add(assertThrows(IllegalStateException.class, () -> exportService.export(this)));
+                }
+            }
+
+            @Override
+            public void close() {
+            }
+        };
+
+        exportService.export(writer);
+
+        assertEquals(1, second.size());
+        // the first export gave its permit back
+        exportService.export(writer);
+    }
+
+    private List<CredentialRecord> records() {
+        List<CredentialRecord> records = new ArrayList<>();
+        for (String user : List.of("alice", "bob")) {
+            for (int i = 0; i < 2; i++) {
+                VirtualAuthenticator authenticator = new VirtualAuthenticator();
+                records.add(new CredentialRecord(prefix + user, user, handle(user), authenticator.getCredentialId(),
+                        authenticator.getPublicKeyCose(), i * 3L, i == 0 ? "key" : null));
+            }
+        }
+        records.add(new CredentialRecord(prefix + "carol", null, handle("carol"), null, null, 0, null));
+        return records;
+    }
+
+    private void importRecords(List<CredentialRecord> records) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (CredentialRecordCodec.Writer writer = CredentialRecordCodec.writer(bytes,
+                CredentialRecordCodec.Format.NDJSON)) {
+            for (CredentialRecord record : records) {
+                writer.write(record);
+            }
+        }
+        try (CredentialRecordCodec.Reader reader = CredentialRecordCodec.reader(
+                new ByteArrayInputStream(bytes.toByteArray()), CredentialRecordCodec.Format.NDJSON)) {
+            assertEquals(records.size(), importService.importRecords(reader, 0, null).credentials() + 1);
+        }
+    }
+
+    private List<CredentialRecord> exported(CredentialRecordCodec.Format format) throws IOException {
+        return exported(UserModel.DEFAULT_TENANT, format);
+    }
+
+    private List<CredentialRecord> exported(String tenant, CredentialRecordCodec.Format format) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (CredentialRecordCodec.Writer writer = CredentialRecordCodec.writer(bytes, format)) {
+            exportService.export(tenant, writer);
+        }
+        List<CredentialRecord> records = new ArrayList<>();
+        try (CredentialRecordCodec.Reader reader = CredentialRecordCodec.reader(
+                new ByteArrayInputStream(bytes.toByteArray()), format)) {
+            CredentialRecord record;
+            while ((record = reader.next()) != null) {
+                if (record.username().startsWith(prefix)) {
+                    records.add(record);
+                }
+            }
+        }
+        return records;
+    }
+
+    private ByteArray handle(String user) {
+        return InMemoryCredentialRepository.handle(prefix + user);
+    }
+}
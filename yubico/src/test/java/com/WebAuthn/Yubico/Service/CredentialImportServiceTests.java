@@ -0,0 +1,157 @@
+package com.WebAuthn.Yubico.Service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.List;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import com.WebAuthn.Yubico.InMemoryCredentialRepository;
+import com.WebAuthn.Yubico.VirtualAuthenticator;
+import com.WebAuthn.Yubico.Model.UserModel;
+import com.WebAuthn.Yubico.Repository.UserModelRepository;
+import com.WebAuthn.Yubico.Utility.CredentialRecordCodec;
+import com.fasterxml.jackson.core.JsonGenerator;
+import com.fasterxml.jackson.dataformat.cbor.CBORFactory;
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.data.ByteArray;
+
+// the import commits its own batches, so every test uses its own usernames
+@DataJpaTest(properties = { "credentials.import.batch-size=2", "credentials.import.threads=2" })
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+@Import({ CredentialImportService.class, CredentialAccessService.class, CredentialCache.class,
+        SignatureCounterUpdater.class, CeremonyMetrics.class })
+class CredentialImportServiceTests {
+
+    @Autowired
+    private CredentialImportService importService;
+    @Autowired
+    private CredentialAccessService accessService;
+    @Autowired
+    private UserModelRepository userRepo;
+
+    private final String prefix = "import-" + System.nanoTime() + "-";
+
+    @Test
+    void importedCredentialsCanBeLookedUp() throws Exception {
+        VirtualAuthenticator first = new VirtualAuthenticator();
+        VirtualAuthenticator second = new VirtualAuthenticator();
+        VirtualAuthenticator other = new VirtualAuthenticator();
+        String records = line("alice", first, 7) + line("alice", second, 0) + line("bob", other, 3)
+                + "{\"username\":\"" + prefix + "carol\",\"handle\":\"" + handle("carol").getBase64Url() + "\"}\n";
+        // a lookup before the import must not hide the imported credential
+        assertTrue(accessService.lookup(first.getCredentialId(), handle("alice")).isEmpty());
+
+        CredentialImportService.Progress progress = importNdjson(records, 0);
+
+        assertEquals(new CredentialImportService.Progress(4, 3, 3, 0, 0), progress);
+        RegisteredCredential credential = accessService.lookup(first.getCredentialId(), handle("alice")).orElseThrow();
+        assertEquals(first.getPublicKeyCose(), credential.getPublicKeyCose());
+        assertEquals(7, credential.getSignatureCount());
+        assertEquals(2, accessService.getCredentialIdsForUsername(prefix + "alice").size());
+        assertEquals(prefix + "carol", accessService.getUsernameForUserHandle(handle("carol")).orElseThrow());
+        // ids handed out by Hibernate afterwards do not collide with the imported ones
+        userRepo.save(new UserModel(prefix + "dave", "Dave", handle("dave")));
+    }
+
+    @Test
+    void repeatedImportSkipsExistingRecords() throws Exception {
+        String records = line("alice", new VirtualAuthenticator(), 0) + line("bob", new VirtualAuthenticator(), 0)
+                + line("carol", new VirtualAuthenticator(), 0);
+        importNdjson(records, 0);
+
+        assertEquals(new CredentialImportService.Progress(3, 0, 0, 3, 0), importNdjson(records, 0));
+        // resumed after the first record
+        assertEquals(new CredentialImportService.Progress(3, 0, 0, 2, 0), importNdjson(records, 1));
+    }
+
+    @Test
+    void invalidRecordsAreSkipped() throws Exception {
+        VirtualAuthenticator authenticator = new VirtualAuthenticator();
+        String records = line("alice", authenticator, 0)
+                // no COSE key
+                + line("bob", authenticator.getCredentialId(), new ByteArray(new byte[] { 1, 2, 3 }), handle("bob"))
+                // alice with another handle
+                + line("alice", new VirtualAuthenticator().getCredentialId(), authenticator.getPublicKeyCose(),
+                        handle("mallory"))
+                + "{\"username\":\"" + prefix + "erin\"}\n";
+
+        CredentialImportService.Progress progress = importNdjson(records, 0);
+
+        assertEquals(new CredentialImportService.Progress(4, 1, 1, 0, 3), progress);
+        assertTrue(userRepo.findByUsername(prefix + "bob") == null);
+    }
+
+    @Test
+    void cborRecordsAreImported() throws Exception {
+        List<VirtualAuthenticator> authenticators = new ArrayList<>();
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        CBORFactory cbor = new CBORFactory();
+        for (int i = 0; i < 5; i++) {
+            VirtualAuthenticator authenticator = new VirtualAuthenticator();
+            authenticators.add(authenticator);
+            ByteArrayOutputStream record = new ByteArrayOutputStream();
+            try (JsonGenerator generator = cbor.createGenerator(record)) {
+                generator.writeStartObject();
+                generator.writeStringField("username", prefix + "user" + i);
+                generator.writeBinaryField("handle", handle("user" + i).getBytes());
+                generator.writeBinaryField("credentialId", authenticator.getCredentialId().getBytes());
+                generator.writeBinaryField("publicKey", authenticator.getPublicKeyCose().getBytes());
+                generator.writeNumberField("signatureCount", i);
+                generator.writeEndObject();
+            }
+            out.writeInt(record.size());
+            record.writeTo(out);
+        }
+
+        try (CredentialRecordCodec.Reader reader = CredentialRecordCodec.reader(
+                new ByteArrayInputStream(bytes.toByteArray()), CredentialRecordCodec.Format.CBOR)) {
+            assertEquals(new CredentialImportService.Progress(5, 5, 5, 0, 0),
+                    importService.importRecords(reader, 0, null));
+        }
+        assertEquals(4, accessService.lookup(authenticators.get(4).getCredentialId(), null).orElseThrow()
+                .getSignatureCount());
+    }
+
+    private CredentialImportService.Progress importNdjson(String records, long skip) throws Exception {
+        List<CredentialImportService.Progress> committed = new ArrayList<>();
+        try (CredentialRecordCodec.Reader reader = CredentialRecordCodec.reader(
+                new ByteArrayInputStream(records.getBytes(StandardCharsets.UTF_8)),
+                CredentialRecordCodec.Format.NDJSON)) {
+            CredentialImportService.Progress progress = importService.importRecords(reader, skip, committed::add);
+            // one checkpoint per batch of two
+            assertEquals((records.lines().count() - skip + 1) / 2, committed.size());
+            return progress;
+        }
+    }
+
+    private String line(String user, VirtualAuthenticator authenticator, long signatureCount) {
+        return "{\"username\":\"" + prefix + user + "\",\"displayName\":\"" + user + "\",\"handle\":\""
+                + handle(user).getBase64Url() + "\",\"credentialId\":\"" + authenticator.getCredentialId().getBase64Url()
+                + "\",\"publicKey\":\"" + authenticator.getPublicKeyCose().getBase64Url() + "\",\"signatureCount\":"
+                + signatureCount + ",\"name\":\"key\"}\n";
+    }
+
+    private String line(String user, ByteArray credentialId, ByteArray publicKey, ByteArray handle) {
+        return "{\"username\":\"" + prefix + user + "\",\"handle\":\"" + handle.getBase64Url()
+                + "\",\"credentialId\":\"" + credentialId.getBase64Url() + "\",\"publicKey\":\""
+                + Base64.getUrlEncoder().withoutPadding().encodeToString(publicKey.getBytes()) + "\"}\n";
+    }
+
+    private ByteArray handle(String user) {
+        return InMemoryCredentialRepository.handle(prefix + user);
+    }
+}
@@ -0,0 +1,112 @@
+package com.WebAuthn.Yubico.Service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import com.WebAuthn.Yubico.InMemoryCredentialRepository;
+import com.WebAuthn.Yubico.VirtualAuthenticator;
+import com.WebAuthn.Yubico.Model.AuthenticatorModel;
+import com.WebAuthn.Yubico.Model.UserModel;
+import com.WebAuthn.Yubico.Repository.AuthenticatorModelRepository;
+import com.WebAuthn.Yubico.Repository.UserModelRepository;
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.RelyingParty;
+import com.yubico.webauthn.data.ByteArray;
+
+// the flush runs on its own connection, so the rows are committed and every test
+// registers its own credentials
+@DataJpaTest(properties = { "credential-index.enabled=true", "credential-index.capacity=1000",
+        "credential-index.max-size=1MB", "signature-counter.flush-interval=PT1H" })
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+@Import({ CredentialIndexService.class, CredentialAccessService.class, CredentialCache.class,
+        SignatureCounterUpdater.class, CeremonyMetrics.class })
+class CredentialIndexServiceTests {
+
+    @Autowired
+    private CredentialAccessService accessService;
+    @Autowired
+    private CredentialCache cache;
+    @Autowired
+    private CredentialIndexService index;
+    @Autowired
+    private SignatureCounterUpdater updater;
+    @Autowired
+    private AuthenticatorModelRepository authRepo;
+    @Autowired
+    private UserModelRepository userRepo;
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Test
+    void lookupsAreServedFromTheIndex() throws Exception {
+        VirtualAuthenticator authenticator = new VirtualAuthenticator();
+        ByteArray credentialId = register(authenticator);
+        long cached = cache.size();
+
+        RegisteredCredential loaded = accessService.lookup(credentialId, null).orElseThrow();
+        // a change behind the back of the application is not seen before the ttl
+        setStoredCount(credentialId, 99);
+        RegisteredCredential indexed = accessService.lookup(credentialId, null).orElseThrow();
+
+        assertEquals(authenticator.getPublicKeyCose(), indexed.getPublicKeyCose());
+        assertEquals(loaded.getUserHandle(), indexed.getUserHandle());
+        assertEquals(loaded.getSignatureCount(), indexed.getSignatureCount());
+        // the credential is not in the cache
+        assertEquals(cached, cache.size());
+    }
+
+    @Test
+    void flushedCountersAreReadAgain() throws Exception {
+        ByteArray credentialId = register(new VirtualAuthenticator());
+        accessService.lookup(credentialId, null);
+
+        updater.record(credentialId, 40);
+        assertEquals(40, accessService.lookup(credentialId, null).orElseThrow().getSignatureCount());
+        updater.flush();
+
+        assertEquals(40, accessService.lookup(credentialId, null).orElseThrow().getSignatureCount());
+    }
+
+    @Test
+    void removedCredentialsAreDropped() throws Exception {
+        ByteArray credentialId = register(new VirtualAuthenticator());
+        accessService.lookup(credentialId, null).orElseThrow();
+
+        authRepo.delete(authRepo.findByCredentialIdDigest(AuthenticatorModel.digestOf(credentialId)).orElseThrow());
+
+        assertTrue(accessService.lookup(credentialId, null).isEmpty());
+    }
+
+    @Test
+    void tenantsOnlySeeTheirOwnCredentials() throws Exception {
+        ByteArray credentialId = register(new VirtualAuthenticator());
+        accessService.lookup(credentialId, null).orElseThrow();
+
+        assertTrue(accessService.forTenant("other.test").lookupAll(credentialId).isEmpty());
+
+        assertTrue(index.contains(UserModel.DEFAULT_TENANT, credentialId));
+        assertFalse(index.contains("other.test", credentialId));
+    }
+
+    private ByteArray register(VirtualAuthenticator authenticator) throws Exception {
+        String username = "index-" + System.nanoTime();
+        UserModel user = userRepo.save(new UserModel(username, username, InMemoryCredentialRepository.handle(username)));
+        RelyingParty rp = InMemoryCredentialRepository.relyingParty(new InMemoryCredentialRepository());
+        authRepo.save(new AuthenticatorModel("key", user, authenticator.registerWith(rp, user.toUserIdentity())));
+        return authenticator.getCredentialId();
+    }
+
+    private void setStoredCount(ByteArray credentialId, long count) {
+        jdbcTemplate.update("update authenticator_model set usage_count = ? where credential_id_digest = ?", count,
+                AuthenticatorModel.digestOf(credentialId).getBytes());
+    }
+}
@@ -0,0 +1,162 @@
+package com.WebAuthn.Yubico.Service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import com.WebAuthn.Yubico.InMemoryCredentialRepository;
+import com.WebAuthn.Yubico.VirtualAuthenticator;
+import com.WebAuthn.Yubico.Model.CredentialRecord;
+import com.WebAuthn.Yubico.Model.UserModel;
+import com.WebAuthn.Yubico.Utility.CredentialRecordCodec;
+import com.yubico.webauthn.RegisteredCredential;
+
+// the records are imported in committed batches, so every test uses its own
+// usernames
+@DataJpaTest
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+@Import({ CredentialImportService.class, CredentialAccessService.class, CredentialCache.class,
+        SignatureCounterUpdater.class, CeremonyMetrics.class })
+class CredentialSnapshotServiceTests {
+
+    private static final String TENANT = UserModel.DEFAULT_TENANT;
+
+    @Autowired
+    private CredentialImportService importService;
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @TempDir
+    Path directory;
+
+    private final String prefix = "snapshot-" + System.nanoTime() + "-";
+    private final List<VirtualAuthenticator> authenticators = new ArrayList<>();
+    private CredentialSnapshotService started;
+
+    @BeforeEach
+    void writeSnapshot() throws Exception {
+        importRecords();
+        CredentialSnapshotService writing = service();
+        writing.write();
+        writing.close();
+        // a restart maps the snapshot just written
+        started = service();
+    }
+
+    @AfterEach
+    void close() throws InterruptedException {
+        started.close();
+    }
+
+    @Test
+    void snapshotServesAfterStart() {
+        started.replay();
+
+        assertTrue(started.isServing());
+        for (int i = 0; i < authenticators.size(); i++) {
+            VirtualAuthenticator authenticator = authenticators.get(i);
+            RegisteredCredential credential = started.lookup(TENANT, authenticator.getCredentialId()).orElseThrow();
+            assertEquals(authenticator.getPublicKeyCose(), credential.getPublicKeyCose());
+            assertEquals(InMemoryCredentialRepository.handle(prefix + "user" + i), credential.getUserHandle());
+            assertEquals(i, credential.getSignatureCount());
+        }
+        assertTrue(started.lookup(TENANT, new VirtualAuthenticator().getCredentialId()).isEmpty());
+    }
+
+    @Test
+    void replayLeavesChangedCredentialsToTheDatabase() {
+        jdbcTemplate.update("update authenticator_model set usage_count = 10 where credential_id = ?",
+                (Object) authenticators.get(1).getCredentialId().getBytes());
+
+        started.replay();
+
+        assertTrue(started.lookup(TENANT, authenticators.get(0).getCredentialId()).isPresent());
+        assertTrue(started.lookup(TENANT, authenticators.get(1).getCredentialId()).isEmpty());
+    }
+
+    @Test
+    void removedCredentialsAreNeverServed() throws Exception {
+        started.close();
+        jdbcTemplate.update("delete from authenticator_model where credential_id = ?",
+                (Object) authenticators.get(2).getCredentialId().getBytes());
+        // before or after the replay of the start has passed it
+        started = service();
+        assertTrue(started.lookup(TENANT, authenticators.get(2).getCredentialId()).isEmpty());
+
+        started.replay();
+
+        assertTrue(started.lookup(TENANT, authenticators.get(2).getCredentialId()).isEmpty());
+        assertTrue(started.lookup(TENANT, authenticators.get(0).getCredentialId()).isPresent());
+    }
+
+    @Test
+    void credentialsAreServedToTheirTenantOnly() {
+        started.replay();
+
+        assertTrue(started.lookup("other", authenticators.get(0).getCredentialId()).isEmpty());
+        assertTrue(started.lookup(TENANT, authenticators.get(0).getCredentialId()).isPresent());
+    }
+
+    @Test
+    void invalidatedCredentialsAreLeftToTheDatabase() {
+        started.replay();
+        started.invalidate(authenticators.get(0).getCredentialId());
+
+        assertTrue(started.lookup(TENANT, authenticators.get(0).getCredentialId()).isEmpty());
+        assertTrue(started.lookup(TENANT, authenticators.get(1).getCredentialId()).isPresent());
+    }
+
+    @Test
+    void snapshotServesOnlyForAWhile() throws Exception {
+        CredentialSnapshotService expired = new CredentialSnapshotService(jdbcTemplate,
+                directory.resolve("credentials.snapshot"), Duration.ofHours(1), Duration.ZERO, 2);
+        try {
+            assertFalse(expired.isServing());
+            assertTrue(expired.lookup(TENANT, authenticators.get(0).getCredentialId()).isEmpty());
+        } finally {
+            expired.close();
+        }
+    }
+
+    private CredentialSnapshotService service() {
+        return new CredentialSnapshotService(jdbcTemplate, directory.resolve("credentials.snapshot"),
+                Duration.ofHours(1), Duration.ofMinutes(10), 2);
+    }
+
+    private void importRecords() throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        try (CredentialRecordCodec.Writer writer = CredentialRecordCodec.writer(bytes,
+                CredentialRecordCodec.Format.NDJSON)) {
+            for (int i = 0; i < 3; i++) {
+                VirtualAuthenticator authenticator = new VirtualAuthenticator();
+                authenticators.add(authenticator);
+                writer.write(new CredentialRecord(prefix + "user" + i, null,
+                        InMemoryCredentialRepository.handle(prefix + "user" + i), authenticator.getCredentialId(),
+                        authenticator.getPublicKeyCose(), i, null));
+            }
+        }
+        try (CredentialRecordCodec.Reader reader = CredentialRecordCodec.reader(
+                new ByteArrayInputStream(bytes.toByteArray()), CredentialRecordCodec.Format.NDJSON)) {
+            assertEquals(3, importService.importRecords(reader, 0, null).credentials());
+        }
+    }
+}
@@ -0,0 +1,85 @@
+package com.WebAuthn.Yubico.Service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.File;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Optional;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.yubico.fido.metadata.MetadataBLOBPayload;
+import com.yubico.internal.util.JacksonCodecs;
+import com.yubico.webauthn.data.ByteArray;
+
+class MetadataServiceTests {
+
+    private static final String AAGUID = "cb69481e8ff7403993ec0a2729a154a8";
+
+    @Test
+    void servesBeforeTheBlobIsLoaded(@TempDir Path dir) throws Exception {
+        MetadataService metadata = new MetadataService(new File(dir.toFile(), "fido-mds-blob"),
+                new File(dir.toFile(), "fido-mds-trust-root"), Duration.ofHours(1));
+        try {
+            assertFalse(metadata.isLoaded());
+            assertEquals(Optional.empty(), metadata.find(ByteArray.fromHex(AAGUID)));
+            // nothing to load without a blob file
+            assertFalse(metadata.refresh());
+        } finally {
+            metadata.close();
+        }
+    }
+
+    @Test
+    void publishedEntriesAreFoundByAaguid(@TempDir Path dir) throws Exception {
+        MetadataService metadata = new MetadataService(new File(dir.toFile(), "fido-mds-blob"),
+                new File(dir.toFile(), "fido-mds-trust-root"), Duration.ofHours(1));
+        try {
+            metadata.publish(payload(), 0, 0);
+
+            assertTrue(metadata.isLoaded());
+            assertEquals(1, metadata.size());
+            assertEquals(Optional.of("Test Authenticator"), metadata.description(ByteArray.fromHex(AAGUID)));
+            assertEquals(Optional.empty(), metadata.find(ByteArray.fromHex("00".repeat(16))));
+        } finally {
+            metadata.close();
+        }
+    }
+
+    private static MetadataBLOBPayload payload() throws Exception {
+        String json = """
+                {
+                  "legalHeader": "test",
+                  "no": 1,
+                  "nextUpdate": "2099-01-01",
+                  "entries": [{
+                    "aaguid": "cb69481e-8ff7-4039-93ec-0a2729a154a8",
+                    "statusReports": [{ "status": "FIDO_CERTIFIED" }],
+                    "timeOfLastStatusChange": "2023-01-01",
+                    "metadataStatement": {
+                      "legalHeader": "test",
+                      "aaguid": "cb69481e-8ff7-4039-93ec-0a2729a154a8",
+                      "description": "Test Authenticator",
+                      "authenticatorVersion": 1,
+                      "protocolFamily": "fido2",
+                      "schema": 3,
+                      "upv": [{ "major": 1, "minor": 0 }],
+                      "authenticationAlgorithms": ["secp256r1_ecdsa_sha256_raw"],
+                      "publicKeyAlgAndEncodings": ["cose"],
+                      "attestationTypes": ["basic_full"],
+                      "userVerificationDetails": [[{ "userVerificationMethod": "presence_internal" }]],
+                      "keyProtection": ["hardware"],
+                      "matcherProtection": ["on_chip"],
+                      "tcDisplay": [],
+                      "attestationRootCertificates": []
+                    }
+                  }]
+                }
+                """;
+        return JacksonCodecs.json().readValue(json, MetadataBLOBPayload.class);
+    }
+}
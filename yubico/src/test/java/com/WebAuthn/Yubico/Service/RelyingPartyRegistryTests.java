@@ -0,0 +1,150 @@
+package com.WebAuthn.Yubico.Service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotSame;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.Set;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+import org.springframework.beans.factory.ObjectProvider;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Import;
+
+import com.WebAuthn.Yubico.InMemoryCredentialRepository;
+import com.WebAuthn.Yubico.VirtualAuthenticator;
+import com.WebAuthn.Yubico.Model.AuthenticatorModel;
+import com.WebAuthn.Yubico.Model.UserModel;
+import com.WebAuthn.Yubico.Repository.AuthenticatorModelRepository;
+import com.WebAuthn.Yubico.Repository.UserModelRepository;
+import com.WebAuthn.Yubico.Utility.CustomAttestationTrustSource;
+import com.yubico.webauthn.CredentialRepository;
+import com.yubico.webauthn.RelyingParty;
+import com.yubico.webauthn.data.ByteArray;
+
+// the cache outlives the rolled back test transactions, so every test uses its
+// own users
+@DataJpaTest
+@Import({ CredentialAccessService.class, CredentialCache.class, SignatureCounterUpdater.class, CeremonyMetrics.class })
+class RelyingPartyRegistryTests {
+
+    @Autowired
+    private CredentialAccessService accessService;
+    @Autowired
+    private ObjectProvider<ReactiveCredentialAccessService> reactiveAccess;
+    @Autowired
+    private CeremonyMetrics metrics;
+    @Autowired
+    private UserModelRepository userRepo;
+    @Autowired
+    private AuthenticatorModelRepository authRepo;
+
+    @TempDir
+    Path directory;
+
+    private final RelyingParty defaultRp = InMemoryCredentialRepository
+            .relyingParty(new InMemoryCredentialRepository()).toBuilder()
+            .attestationTrustSource(new CustomAttestationTrustSource())
+            .allowOriginPort(true)
+            .build();
+    private final String username = "carol-" + System.nanoTime();
+    private RelyingPartyRegistry registry;
+
+    @BeforeEach
+    void setUp() throws Exception {
+        Files.writeString(directory.resolve("login.example.com.properties"),
+                "rp.id=example.com\norigins=https://login.example.com, https://example.com\npartition=example\n");
+        Files.writeString(directory.resolve("other.test.properties"), "");
+        // polled by the tests themselves
+        registry = new RelyingPartyRegistry(defaultRp, accessService, reactiveAccess, metrics, directory.toString(),
+                Duration.ZERO, 100);
+    }
+
+    @AfterEach
+    void close() {
+        registry.destroy();
+    }
+
+    @Test
+    void hostsGetTheRelyingPartyOfTheirConfig() {
+        assertEquals(0, registry.loadedTenants());
+        RelyingPartyRegistry.Tenant tenant = registry.forHost("Login.Example.com");
+
+        assertEquals("example", tenant.partition());
+        assertEquals("example.com", tenant.relyingParty().getIdentity().getId());
+        assertEquals(Set.of("https://login.example.com", "https://example.com"), tenant.relyingParty().getOrigins());
+        assertSame(tenant, registry.forHost("login.example.com"));
+        assertEquals(1, registry.loadedTenants());
+        // everything else comes from the default relying party
+        assertTrue(tenant.relyingParty().isAllowOriginPort());
+        assertSame(defaultRp.getAttestationTrustSource().orElseThrow(),
+                tenant.relyingParty().getAttestationTrustSource().orElseThrow());
+
+        // an empty config defaults to the host
+        RelyingPartyRegistry.Tenant other = registry.forHost("other.test");
+        assertEquals("other.test", other.partition());
+        assertEquals(Set.of("https://other.test"), other.relyingParty().getOrigins());
+
+        assertSame(registry.defaultTenant(), registry.forHost("localhost"));
+        assertSame(defaultRp, registry.forHost("unknown.example.com").relyingParty());
+    }
+
+    @Test
+    void changedConfigsAreReloaded() throws Exception {
+        RelyingPartyRegistry.Tenant before = registry.forHost("login.example.com");
+        registry.reload();
+        assertSame(before, registry.forHost("login.example.com"));
+
+        Files.writeString(directory.resolve("login.example.com.properties"),
+                "rp.id=example.com\nrp.name=Example\npartition=example\n");
+        Files.writeString(directory.resolve("new.test.properties"), "rp.id=new.test\n");
+        registry.reload();
+
+        RelyingPartyRegistry.Tenant after = registry.forHost("login.example.com");
+        assertNotSame(before, after);
+        assertEquals("Example", after.relyingParty().getIdentity().getName());
+        assertEquals("new.test", registry.forHost("new.test").relyingParty().getIdentity().getId());
+
+        Files.delete(directory.resolve("login.example.com.properties"));
+        registry.reload();
+        assertSame(registry.defaultTenant(), registry.forHost("login.example.com"));
+    }
+
+    @Test
+    void tenantsOnlySeeTheirOwnUsers() throws Exception {
+        ByteArray exampleHandle = new ByteArray(new byte[] { 1, 2, 3 });
+        ByteArray otherHandle = new ByteArray(new byte[] { 4, 5, 6 });
+        UserModel exampleUser = userRepo.save(new UserModel("example", username, "Carol", exampleHandle));
+        userRepo.save(new UserModel("other.test", username, "Carol", otherHandle));
+        // the virtual authenticator only knows the localhost origin
+        VirtualAuthenticator authenticator = new VirtualAuthenticator();
+        authRepo.save(new AuthenticatorModel("key", exampleUser,
+                authenticator.registerWith(defaultRp, exampleUser.toUserIdentity())));
+
+        CredentialRepository example = registry.forHost("login.example.com").relyingParty().getCredentialRepository();
+        CredentialRepository other = registry.forHost("other.test").relyingParty().getCredentialRepository();
+        assertEquals(Optional.of(exampleHandle), example.getUserHandleForUsername(username));
+        assertEquals(Optional.of(otherHandle), other.getUserHandleForUsername(username));
+        assertEquals(Optional.of(username), other.getUsernameForUserHandle(otherHandle));
+        assertTrue(other.getUsernameForUserHandle(exampleHandle).isEmpty());
+        assertEquals(1, example.getCredentialIdsForUsername(username).size());
+        assertTrue(other.getCredentialIdsForUsername(username).isEmpty());
+        assertTrue(accessService.getUserHandleForUsername(username).isEmpty());
+
+        // credentials are looked up and cached within the tenant as well, the
+        // miss of the other tenants is not served to the owner
+        ByteArray credentialId = authenticator.getCredentialId();
+        assertTrue(other.lookupAll(credentialId).isEmpty());
+        assertTrue(accessService.lookupAll(credentialId).isEmpty());
+        assertEquals(exampleHandle, example.lookup(credentialId, exampleHandle).orElseThrow().getUserHandle());
+    }
+}
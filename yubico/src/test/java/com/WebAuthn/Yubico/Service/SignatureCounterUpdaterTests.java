@@ -0,0 +1,121 @@
+package com.WebAuthn.Yubico.Service;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.time.Duration;
+
+import org.junit.jupiter.api.Test;
+import org.springframework.beans.factory.annotation.Autowired;
+import org.springframework.boot.test.autoconfigure.orm.jpa.DataJpaTest;
+import org.springframework.context.annotation.Import;
+import org.springframework.jdbc.core.JdbcTemplate;
+import org.springframework.transaction.annotation.Propagation;
+import org.springframework.transaction.annotation.Transactional;
+
+import com.WebAuthn.Yubico.InMemoryCredentialRepository;
+import com.WebAuthn.Yubico.VirtualAuthenticator;
+import com.WebAuthn.Yubico.Model.AuthenticatorModel;
+import com.WebAuthn.Yubico.Model.UserModel;
+import com.WebAuthn.Yubico.Repository.AuthenticatorModelRepository;
+import com.WebAuthn.Yubico.Repository.UserModelRepository;
+import com.yubico.webauthn.RelyingParty;
+import com.yubico.webauthn.data.ByteArray;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+
+// the flush runs on its own connection, so the rows are committed and every test
+// registers its own credentials
+@DataJpaTest(properties = { "signature-counter.flush-interval=PT1H", "signature-counter.batch-size=3" })
+@Transactional(propagation = Propagation.NOT_SUPPORTED)
+@Import({ CredentialAccessService.class, CredentialCache.class, SignatureCounterUpdater.class, CeremonyMetrics.class })
+class SignatureCounterUpdaterTests {
+
+    @Autowired
+    private SignatureCounterUpdater updater;
+    @Autowired
+    private CredentialAccessService accessService;
+    @Autowired
+    private AuthenticatorModelRepository authRepo;
+    @Autowired
+    private UserModelRepository userRepo;
+    @Autowired
+    private JdbcTemplate jdbcTemplate;
+
+    @Test
+    void newCounterIsVisibleBeforeTheFlush() throws Exception {
+        ByteArray credentialId = register();
+        long stored = storedCount(credentialId);
+
+        updater.record(credentialId, stored + 5);
+        updater.record(credentialId, stored + 3);
+        updater.record(credentialId, stored + 9);
+
+        assertEquals(stored + 9, updater.pendingCount(credentialId).getAsLong());
+        assertEquals(stored + 9, accessService.lookup(credentialId, null).orElseThrow().getSignatureCount());
+        assertEquals(stored, storedCount(credentialId));
+    }
+
+    @Test
+    void counterThatDoesNotAdvanceIsFlagged() throws Exception {
+        ByteArray credentialId = register();
+
+        assertTrue(updater.record(credentialId, 50));
+        assertFalse(updater.record(credentialId, 50));
+        assertFalse(updater.record(credentialId, 49));
+        assertTrue(updater.record(credentialId, 51));
+    }
+
+    @Test
+    void flushWritesTheCountersAndNeverLowersThem() throws Exception {
+        ByteArray first = register();
+        ByteArray second = register();
+        SimpleMeterRegistry registry = new SimpleMeterRegistry();
+        updater.bindTo(registry);
+        accessService.lookup(first, null);
+
+        updater.record(first, 40);
+        updater.record(second, 7);
+        updater.flush();
+
+        assertEquals(40, storedCount(first));
+        assertEquals(7, storedCount(second));
+        assertTrue(updater.pendingCount(first).isEmpty());
+        assertEquals(40, accessService.lookup(first, null).orElseThrow().getSignatureCount());
+        assertEquals(1, registry.get("signature.counter.flush").timer().count());
+
+        updater.record(first, 30);
+        updater.flush();
+        assertEquals(40, storedCount(first));
+    }
+
+    @Test
+    void fullBatchIsFlushedWithoutWaitingForTheInterval() throws Exception {
+        ByteArray[] credentialIds = { register(), register(), register() };
+        for (ByteArray credentialId : credentialIds) {
+            updater.record(credentialId, 100);
+        }
+        long deadline = System.nanoTime() + Duration.ofSeconds(10).toNanos();
+        while (updater.pendingSize() > 0 && System.nanoTime() < deadline) {
+            Thread.sleep(10);
+        }
+        for (ByteArray credentialId : credentialIds) {
+            assertEquals(100, storedCount(credentialId));
+        }
+    }
+
+    private ByteArray register() throws Exception {
+        String username = "user-" + System.nanoTime();
+        UserModel user = userRepo.save(new UserModel(username, username, InMemoryCredentialRepository.handle(username)));
+        VirtualAuthenticator authenticator = new VirtualAuthenticator();
+        RelyingParty rp = InMemoryCredentialRepository.relyingParty(new InMemoryCredentialRepository());
+        authRepo.save(new AuthenticatorModel("key", user, authenticator.registerWith(rp, user.toUserIdentity())));
+        return authenticator.getCredentialId();
+    }
+
+    private long storedCount(ByteArray credentialId) {
+        return jdbcTemplate.queryForObject("select usage_count from authenticator_model where credential_id_digest = ?",
+                Long.class, AuthenticatorModel.digestOf(credentialId).getBytes());
+    }
+}
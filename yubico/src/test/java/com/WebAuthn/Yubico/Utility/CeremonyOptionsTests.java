@@ -0,0 +1,88 @@
+package com.WebAuthn.Yubico.Utility;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertNotEquals;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import com.WebAuthn.Yubico.InMemoryCredentialRepository;
+import com.yubico.webauthn.AssertionRequest;
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.RelyingParty;
+import com.yubico.webauthn.StartAssertionOptions;
+import com.yubico.webauthn.StartRegistrationOptions;
+import com.yubico.webauthn.data.AttestationConveyancePreference;
+import com.yubico.webauthn.data.AuthenticatorSelectionCriteria;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.PublicKeyCredentialCreationOptions;
+import com.yubico.webauthn.data.ResidentKeyRequirement;
+import com.yubico.webauthn.data.UserIdentity;
+import com.yubico.webauthn.data.UserVerificationRequirement;
+
+class CeremonyOptionsTests {
+
+    private final ChallengeSupplier challenges = new ChallengeSupplier(16);
+    private final CeremonyOptions ceremonyOptions = new CeremonyOptions(challenges);
+    private final InMemoryCredentialRepository credentials = new InMemoryCredentialRepository();
+    private final RelyingParty rp = InMemoryCredentialRepository.relyingParty(credentials).toBuilder()
+            .attestationConveyancePreference(AttestationConveyancePreference.DIRECT)
+            .build();
+
+    @AfterEach
+    void close() throws Exception {
+        challenges.close();
+    }
+
+    @Test
+    void registrationOptionsMatchTheLibrary() {
+        credentials.add(credential("alice", 1));
+        credentials.add(credential("alice", 2));
+        StartRegistrationOptions options = StartRegistrationOptions.builder()
+                .user(UserIdentity.builder()
+                        .name("alice")
+                        .displayName("Alice")
+                        .id(InMemoryCredentialRepository.handle("alice"))
+                        .build())
+                .authenticatorSelection(AuthenticatorSelectionCriteria.builder()
+                        .residentKey(ResidentKeyRequirement.REQUIRED)
+                        .userVerification(UserVerificationRequirement.PREFERRED)
+                        .build())
+                .timeout(60000)
+                .build();
+
+        PublicKeyCredentialCreationOptions expected = rp.startRegistration(options);
+        PublicKeyCredentialCreationOptions actual = ceremonyOptions.startRegistration(rp, options);
+
+        assertNotEquals(expected.getChallenge(), actual.getChallenge());
+        assertEquals(expected.toBuilder().challenge(actual.getChallenge()).build(), actual);
+    }
+
+    @Test
+    void assertionRequestsMatchTheLibrary() {
+        credentials.add(credential("bob", 3));
+        for (StartAssertionOptions options : new StartAssertionOptions[] {
+                StartAssertionOptions.builder().username("bob").timeout(30000).build(),
+                StartAssertionOptions.builder().userHandle(InMemoryCredentialRepository.handle("bob"))
+                        .userVerification(UserVerificationRequirement.REQUIRED).build(),
+                StartAssertionOptions.builder().build() }) {
+            AssertionRequest expected = rp.startAssertion(options);
+            AssertionRequest actual = ceremonyOptions.startAssertion(rp, options);
+
+            ByteArray challenge = actual.getPublicKeyCredentialRequestOptions().getChallenge();
+            assertEquals(expected.toBuilder()
+                    .publicKeyCredentialRequestOptions(expected.getPublicKeyCredentialRequestOptions().toBuilder()
+                            .challenge(challenge)
+                            .build())
+                    .build(), actual);
+        }
+    }
+
+    private static RegisteredCredential credential(String username, int id) {
+        return RegisteredCredential.builder()
+                .credentialId(new ByteArray(new byte[] { (byte) id }))
+                .userHandle(InMemoryCredentialRepository.handle(username))
+                .publicKeyCose(new ByteArray(new byte[] { 0 }))
+                .build();
+    }
+}
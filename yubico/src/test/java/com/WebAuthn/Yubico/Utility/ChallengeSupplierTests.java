@@ -0,0 +1,66 @@
+package com.WebAuthn.Yubico.Utility;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import com.yubico.webauthn.data.ByteArray;
+
+class ChallengeSupplierTests {
+
+    // small blocks, so they are replaced many times
+    private final ChallengeSupplier challenges = new ChallengeSupplier(4);
+
+    @AfterEach
+    void close() throws Exception {
+        challenges.close();
+    }
+
+    @Test
+    void challengesAreNeverHandedOutTwice() throws Exception {
+        Set<ByteArray> seen = ConcurrentHashMap.newKeySet();
+        ExecutorService executor = Executors.newFixedThreadPool(16);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < 16; thread++) {
+                futures.add(executor.submit(() -> {
+                    for (int i = 0; i < 5000; i++) {
+                        ByteArray challenge = challenges.get();
+                        assertEquals(ChallengeSupplier.CHALLENGE_LENGTH, challenge.size());
+                        assertTrue(seen.add(challenge));
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        assertEquals(16 * 5000, seen.size());
+    }
+
+    @Test
+    void exhaustedBlocksAreReplacedByPreparedOnes() throws Exception {
+        // give the refill thread time to prepare the spare blocks
+        Thread.sleep(200);
+        for (int i = 0; i < 4; i++) {
+            challenges.get();
+        }
+        ByteArray first = challenges.get();
+
+        assertEquals(0, challenges.filledByCallers());
+        assertEquals(ChallengeSupplier.CHALLENGE_LENGTH, first.size());
+    }
+}
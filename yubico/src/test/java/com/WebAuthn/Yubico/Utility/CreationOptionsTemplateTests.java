@@ -0,0 +1,141 @@
+package com.WebAuthn.Yubico.Utility;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+import java.io.ByteArrayOutputStream;
+import java.util.Collections;
+import java.util.Optional;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.junit.jupiter.api.Test;
+
+import com.fasterxml.jackson.databind.JsonNode;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.yubico.webauthn.CredentialRepository;
+import com.yubico.webauthn.RegisteredCredential;
+import com.yubico.webauthn.RelyingParty;
+import com.yubico.webauthn.StartRegistrationOptions;
+import com.yubico.webauthn.data.AuthenticatorSelectionCriteria;
+import com.yubico.webauthn.data.AuthenticatorTransport;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.PublicKeyCredentialCreationOptions;
+import com.yubico.webauthn.data.PublicKeyCredentialDescriptor;
+import com.yubico.webauthn.data.RelyingPartyIdentity;
+import com.yubico.webauthn.data.ResidentKeyRequirement;
+import com.yubico.webauthn.data.UserIdentity;
+import com.yubico.webauthn.data.UserVerificationRequirement;
+
+class CreationOptionsTemplateTests {
+
+    private final ObjectMapper mapper = new ObjectMapper();
+    private final CreationOptionsTemplate template = new CreationOptionsTemplate(mapper);
+
+    @Test
+    void matchesLibraryRendering() throws Exception {
+        RelyingParty rp = relyingParty(Collections.emptySet());
+        for (UserVerificationRequirement uv : UserVerificationRequirement.values()) {
+            for (ResidentKeyRequirement rk : ResidentKeyRequirement.values()) {
+                for (boolean discoverable : new boolean[] { true, false }) {
+                    PublicKeyCredentialCreationOptions options = start(rp, "user \"" + uv + rk,
+                            AuthenticatorSelectionCriteria.builder().userVerification(uv).residentKey(rk).build());
+                    assertEquals(legacy(options, discoverable).toString(), render(options, discoverable).toString());
+                }
+            }
+        }
+    }
+
+    @Test
+    void rendersExcludedCredentialsAndEmptySelection() throws Exception {
+        Set<PublicKeyCredentialDescriptor> registered = new TreeSet<>();
+        registered.add(PublicKeyCredentialDescriptor.builder().id(new ByteArray(new byte[] { 1, 2, 3 })).build());
+        registered.add(PublicKeyCredentialDescriptor.builder()
+                .id(new ByteArray(new byte[] { 4, 5 }))
+                .transports(new TreeSet<>(Set.of(AuthenticatorTransport.USB, AuthenticatorTransport.NFC)))
+                .build());
+        RelyingParty rp = relyingParty(registered);
+        PublicKeyCredentialCreationOptions options = start(rp, "bob",
+                AuthenticatorSelectionCriteria.builder().build());
+        assertEquals(legacy(options, false).toString(), render(options, false).toString());
+    }
+
+    @Test
+    void keepsThePartsOfEveryRelyingParty() throws Exception {
+        RelyingParty first = relyingParty("first.example", Collections.emptySet());
+        RelyingParty second = relyingParty("second.example", Collections.emptySet());
+        AuthenticatorSelectionCriteria selection = AuthenticatorSelectionCriteria.builder().build();
+        for (int i = 0; i < 3; i++) {
+            for (RelyingParty rp : new RelyingParty[] { first, second }) {
+                PublicKeyCredentialCreationOptions options = start(rp, "carol" + i, selection);
+                JsonNode rendered = render(options, false);
+                assertEquals(legacy(options, false).toString(), rendered.toString());
+                assertEquals(rp.getIdentity().getId(), rendered.get("rp").get("id").asText());
+            }
+        }
+    }
+
+    private JsonNode render(PublicKeyCredentialCreationOptions options, boolean discoverable) throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        template.write(options, discoverable, out);
+        return mapper.readTree(out.toByteArray());
+    }
+
+    // the rendering the registration controller used before the template
+    private JsonNode legacy(PublicKeyCredentialCreationOptions options, boolean discoverable) throws Exception {
+        ObjectNode publicKey = (ObjectNode) mapper.readTree(options.toCredentialsCreateJson()).get("publicKey");
+        publicKey.put("errorMessage", "");
+        publicKey.put("status", "ok");
+        ((ObjectNode) publicKey.get("authenticatorSelection")).put("requireResidentKey", discoverable);
+        return mapper.readTree(mapper.writeValueAsString(publicKey));
+    }
+
+    private static PublicKeyCredentialCreationOptions start(RelyingParty rp, String username,
+            AuthenticatorSelectionCriteria selection) {
+        return rp.startRegistration(StartRegistrationOptions.builder()
+                .user(UserIdentity.builder()
+                        .name(username)
+                        .displayName(username)
+                        .id(new ByteArray(username.getBytes()))
+                        .build())
+                .authenticatorSelection(selection)
+                .build());
+    }
+
+    private static RelyingParty relyingParty(Set<PublicKeyCredentialDescriptor> registered) {
+        return relyingParty("localhost", registered);
+    }
+
+    private static RelyingParty relyingParty(String id, Set<PublicKeyCredentialDescriptor> registered) {
+        return RelyingParty.builder()
+                .identity(RelyingPartyIdentity.builder().id(id).name(id).build())
+                .credentialRepository(new CredentialRepository() {
+                    @Override
+                    public Set<PublicKeyCredentialDescriptor> getCredentialIdsForUsername(String username) {
+                        return registered;
+                    }
+
+                    @Override
+                    public Optional<ByteArray> getUserHandleForUsername(String username) {
+                        return Optional.empty();
+                    }
+
+                    @Override
+                    public Optional<String> getUsernameForUserHandle(ByteArray userHandle) {
+                        return Optional.empty();
+                    }
+
+                    @Override
+                    public Optional<RegisteredCredential> lookup(ByteArray credentialId, ByteArray userHandle) {
+                        return Optional.empty();
+                    }
+
+                    @Override
+                    public Set<RegisteredCredential> lookupAll(ByteArray credentialId) {
+                        return Collections.emptySet();
+                    }
+                })
+                .origins(Collections.singleton("http://localhost:8080"))
+                .build();
+    }
+}
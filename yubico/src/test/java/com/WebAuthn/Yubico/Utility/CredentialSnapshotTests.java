@@ -0,0 +1,147 @@
+package com.WebAuthn.Yubico.Utility;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.WebAuthn.Yubico.Model.AuthenticatorModel;
+import com.WebAuthn.Yubico.Model.UserModel;
+import com.yubico.webauthn.data.ByteArray;
+
+class CredentialSnapshotTests {
+
+    private static final String TENANT = UserModel.DEFAULT_TENANT;
+
+    @TempDir
+    Path directory;
+
+    @Test
+    void everyAddedCredentialIsFound() throws IOException {
+        Path file = directory.resolve("snapshot");
+        List<ByteArray> digests = new ArrayList<>();
+        try (CredentialSnapshot.Writer writer = CredentialSnapshot.writer(file, 100)) {
+            for (int i = 0; i < 100; i++) {
+                ByteArray digest = digest(i);
+                digests.add(digest);
+                assertTrue(writer.add(digest, "tenant" + i % 3, bytes(i, 64), bytes(i, 77), i));
+            }
+        }
+
+        CredentialSnapshot snapshot = CredentialSnapshot.open(file);
+
+        assertEquals(100, snapshot.records());
+        for (int i = 0; i < 100; i++) {
+            CredentialSnapshot.Entry entry = snapshot.find(digests.get(i)).orElseThrow();
+            assertEquals("tenant" + i % 3, entry.tenant());
+            assertEquals(bytes(i, 64), entry.userHandle());
+            assertEquals(bytes(i, 77), entry.publicKeyCose());
+            assertEquals(i, entry.signatureCount());
+            assertEquals(i, snapshot.signatureCount(snapshot.slotOf(digests.get(i))));
+        }
+        assertEquals(Optional.empty(), snapshot.find(digest(100)));
+    }
+
+    @Test
+    void equalPrefixesProbeTheNextSlots() throws IOException {
+        Path file = directory.resolve("snapshot");
+        byte[] first = new byte[32];
+        byte[] second = new byte[32];
+        second[31] = 1;
+        byte[] missing = new byte[32];
+        missing[31] = 2;
+        try (CredentialSnapshot.Writer writer = CredentialSnapshot.writer(file, 2)) {
+            writer.add(new ByteArray(first), TENANT, bytes(1, 1), bytes(1, 1), 1);
+            writer.add(new ByteArray(second), TENANT, bytes(2, 1), bytes(2, 1), 2);
+        }
+
+        CredentialSnapshot snapshot = CredentialSnapshot.open(file);
+
+        assertEquals(1, snapshot.find(new ByteArray(first)).orElseThrow().signatureCount());
+        assertEquals(2, snapshot.find(new ByteArray(second)).orElseThrow().signatureCount());
+        assertEquals(-1, snapshot.slotOf(new ByteArray(missing)));
+    }
+
+    @Test
+    void writerStopsAtHalfTheSlots() throws IOException {
+        Path file = directory.resolve("snapshot");
+        try (CredentialSnapshot.Writer writer = CredentialSnapshot.writer(file, 10)) {
+            int added = 0;
+            while (writer.add(digest(added), TENANT, bytes(added, 16), bytes(added, 16), 0)) {
+                added++;
+            }
+            // 30 rounded up to 32 slots
+            assertEquals(16, added);
+            assertFalse(writer.add(digest(added), TENANT, bytes(added, 16), bytes(added, 16), 0));
+        }
+    }
+
+    @Test
+    void tooLargeCredentialsAreLeftOut() throws IOException {
+        try (CredentialSnapshot.Writer writer = CredentialSnapshot.writer(directory.resolve("snapshot"), 10)) {
+            assertFalse(writer.add(digest(0), TENANT, bytes(0, UserModel.MAX_HANDLE_LENGTH + 1), bytes(0, 16), 0));
+            assertFalse(writer.add(digest(0), TENANT, bytes(0, 16),
+                    bytes(0, AuthenticatorModel.MAX_PUBLIC_KEY_LENGTH + 1), 0));
+            assertFalse(writer.add(digest(0), "t".repeat(256), bytes(0, 16), bytes(0, 16), 0));
+            assertEquals(0, writer.count());
+            assertTrue(writer.add(digest(0), TENANT, bytes(0, UserModel.MAX_HANDLE_LENGTH),
+                    bytes(0, AuthenticatorModel.MAX_PUBLIC_KEY_LENGTH), 0));
+        }
+    }
+
+    @Test
+    void otherFilesAreNotOpened() throws IOException {
+        Path file = directory.resolve("snapshot");
+        try (CredentialSnapshot.Writer writer = CredentialSnapshot.writer(file, 1)) {
+            writer.add(digest(0), TENANT, bytes(0, 16), bytes(0, 16), 0);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4).putInt(0, CredentialSnapshot.VERSION + 1), 4);
+        }
+
+        assertThrows(IOException.class, () -> CredentialSnapshot.open(file));
+
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.write(ByteBuffer.allocate(4), 0);
+        }
+
+        assertThrows(IOException.class, () -> CredentialSnapshot.open(file));
+    }
+
+    @Test
+    void truncatedFilesAreNotOpened() throws IOException {
+        Path file = directory.resolve("snapshot");
+        try (CredentialSnapshot.Writer writer = CredentialSnapshot.writer(file, 10)) {
+            writer.add(digest(0), TENANT, bytes(0, 16), bytes(0, 16), 0);
+            writer.add(digest(1), TENANT, bytes(1, 16), bytes(1, 16), 1);
+        }
+        try (FileChannel channel = FileChannel.open(file, StandardOpenOption.WRITE)) {
+            channel.truncate(channel.size() - 1);
+        }
+
+        assertThrows(IOException.class, () -> CredentialSnapshot.open(file));
+    }
+
+    private static ByteArray digest(int i) {
+        return AuthenticatorModel.digestOf(new ByteArray(ByteBuffer.allocate(4).putInt(i).array()));
+    }
+
+    private static ByteArray bytes(int value, int length) {
+        byte[] bytes = new byte[length];
+        bytes[0] = (byte) value;
+        bytes[length - 1] = (byte) (value >> 8);
+        return new ByteArray(bytes);
+    }
+}
@@ -0,0 +1,142 @@
+package com.WebAuthn.Yubico.Utility;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.Duration;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import com.WebAuthn.Authenticator.AttestationCertificates;
+import com.WebAuthn.Yubico.InMemoryCredentialRepository;
+import com.WebAuthn.Yubico.VirtualAuthenticator;
+import com.github.benmanes.caffeine.cache.Ticker;
+import com.yubico.webauthn.RelyingParty;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.UserIdentity;
+
+class CustomAttestationTrustSourceTests {
+
+    private final AtomicLong nanos = new AtomicLong();
+    private final Ticker ticker = nanos::get;
+
+    @Test
+    void trustedChainIsCachedUntilTheFirstCertificateExpires() {
+        AttestationCertificates certificates = new AttestationCertificates(Duration.ofHours(1));
+        CustomAttestationTrustSource trustSource = new CustomAttestationTrustSource(certificates.getRoot(), 100,
+                ticker);
+
+        assertEquals(Set.of(certificates.getRoot()),
+                trustSource.findTrustRoots(certificates.getChain(), Optional.empty()).getTrustRoots());
+        assertEquals(1, trustSource.cachedChains());
+
+        advance(Duration.ofMinutes(59));
+        assertEquals(1, trustSource.cachedChains());
+        advance(Duration.ofMinutes(2));
+        assertEquals(0, trustSource.cachedChains());
+    }
+
+    @Test
+    void expiryFollowsTheTickerNotTheWallClock() {
+        AttestationCertificates certificates = new AttestationCertificates(Duration.ofHours(1));
+        CustomAttestationTrustSource trustSource = new CustomAttestationTrustSource(certificates.getRoot(), 100,
+                ticker);
+
+        // half of the certificate's lifetime passes before the first registration
+        advance(Duration.ofMinutes(30));
+        assertEquals(Set.of(certificates.getRoot()),
+                trustSource.findTrustRoots(certificates.getChain(), Optional.empty()).getTrustRoots());
+
+        advance(Duration.ofMinutes(29));
+        assertEquals(1, trustSource.cachedChains());
+        advance(Duration.ofMinutes(2));
+        assertEquals(0, trustSource.cachedChains());
+    }
+
+    @Test
+    void untrustedChainIsCachedForAWhile() {
+        AttestationCertificates trusted = new AttestationCertificates();
+        AttestationCertificates other = new AttestationCertificates();
+        CustomAttestationTrustSource trustSource = new CustomAttestationTrustSource(trusted.getRoot(), 100, ticker);
+
+        assertTrue(trustSource.findTrustRoots(other.getChain(), Optional.empty()).getTrustRoots().isEmpty());
+        assertTrue(trustSource.findTrustRoots(other.getChain(), Optional.empty()).getTrustRoots().isEmpty());
+        assertEquals(1, trustSource.cachedChains());
+
+        advance(Duration.ofMinutes(11));
+        assertEquals(0, trustSource.cachedChains());
+    }
+
+    @Test
+    void registrationsOfOneModelShareTheVerdict() throws Exception {
+        AttestationCertificates certificates = new AttestationCertificates();
+        CustomAttestationTrustSource trustSource = new CustomAttestationTrustSource(certificates.getRoot(), 100,
+                ticker);
+        RelyingParty rp = InMemoryCredentialRepository.relyingParty(new InMemoryCredentialRepository())
+                .toBuilder()
+                .attestationTrustSource(trustSource)
+                .build();
+
+        for (int i = 0; i < 3; i++) {
+            UserIdentity user = UserIdentity.builder()
+                    .name("user" + i)
+                    .displayName("User " + i)
+                    .id(InMemoryCredentialRepository.handle("user" + i))
+                    .build();
+            assertTrue(new VirtualAuthenticator(certificates).registerWith(rp, user).isAttestationTrusted());
+        }
+        assertEquals(1, trustSource.cachedChains());
+    }
+
+    @Test
+    void aaguidRootsAreTrustedOnlyForTheirModel(@TempDir Path trustDir) throws Exception {
+        AttestationCertificates model = new AttestationCertificates();
+        AttestationCertificates global = new AttestationCertificates();
+        ByteArray modelAaguid = new ByteArray(model.getAaguid());
+        ByteArray globalAaguid = new ByteArray(global.getAaguid());
+        Path modelDir = Files.createDirectory(trustDir.resolve(modelAaguid.getHex()));
+        model.writeRootPem(modelDir.resolve("root.pem"));
+        global.writeRootPem(trustDir.resolve("global.pem"));
+
+        try (CustomAttestationTrustSource trustSource = new CustomAttestationTrustSource(trustDir, Duration.ZERO,
+                100)) {
+            assertEquals(Set.of(model.getRoot()), trustSource
+                    .findTrustRoots(model.getChain(), Optional.of(modelAaguid)).getTrustRoots());
+            assertTrue(trustSource.findTrustRoots(model.getChain(), Optional.of(globalAaguid))
+                    .getTrustRoots().isEmpty());
+            assertTrue(trustSource.findTrustRoots(model.getChain(), Optional.empty()).getTrustRoots().isEmpty());
+            // roots outside an aaguid directory are found by the issuer's key identifier
+            assertEquals(Set.of(global.getRoot()), trustSource
+                    .findTrustRoots(global.getChain(), Optional.of(globalAaguid)).getTrustRoots());
+        }
+    }
+
+    @Test
+    void changedDirectoryIsSwappedInOnReload(@TempDir Path trustDir) throws Exception {
+        AttestationCertificates certificates = new AttestationCertificates();
+        try (CustomAttestationTrustSource trustSource = new CustomAttestationTrustSource(trustDir, Duration.ZERO,
+                100)) {
+            assertTrue(trustSource.findTrustRoots(certificates.getChain(), Optional.empty()).getTrustRoots()
+                    .isEmpty());
+            assertFalse(trustSource.reload());
+
+            certificates.writeRootPem(trustDir.resolve("root.pem"));
+            assertTrue(trustSource.reload());
+            // the cached negative verdict went with the old roots
+            assertEquals(0, trustSource.cachedChains());
+            assertEquals(Set.of(certificates.getRoot()),
+                    trustSource.findTrustRoots(certificates.getChain(), Optional.empty()).getTrustRoots());
+        }
+    }
+
+    private void advance(Duration duration) {
+        nanos.addAndGet(duration.toNanos());
+    }
+}
@@ -0,0 +1,203 @@
+package com.WebAuthn.Yubico.Utility;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.junit.jupiter.api.Test;
+
+import com.WebAuthn.Yubico.Model.AuthenticatorModel;
+import com.WebAuthn.Yubico.Model.UserModel;
+import com.yubico.webauthn.data.ByteArray;
+
+class OffHeapCredentialIndexTests {
+
+    private final OffHeapCredentialIndex index = new OffHeapCredentialIndex(1000, 1024 * 1024);
+
+    @Test
+    void addedCredentialsAreFound() {
+        for (int i = 0; i < 1000; i++) {
+            assertTrue(index.put(digest(i), bytes(i, 64), bytes(i, 77), i, 100 + i));
+        }
+
+        for (int i = 0; i < 1000; i++) {
+            OffHeapCredentialIndex.Entry entry = index.get(digest(i)).orElseThrow();
+            assertEquals(bytes(i, 64), entry.userHandle());
+            assertEquals(bytes(i, 77), entry.publicKeyCose());
+            assertEquals(i, entry.signatureCount());
+            assertEquals(100 + i, entry.stamp());
+        }
+        assertEquals(Optional.empty(), index.get(digest(1000)));
+        assertEquals(1000, index.size());
+        // a second put of the same digest is ignored
+        assertFalse(index.put(digest(0), bytes(1, 64), bytes(1, 77), 5, 0));
+        assertEquals(0, index.get(digest(0)).orElseThrow().signatureCount());
+    }
+
+    @Test
+    void equalPrefixesProbeTheNextSlots() {
+        byte[] first = new byte[32];
+        byte[] second = new byte[32];
+        second[31] = 1;
+        byte[] sameTag = new byte[32];
+        sameTag[8] = 1;
+
+        index.put(new ByteArray(first), bytes(1, 1), bytes(1, 1), 1, 0);
+        index.put(new ByteArray(second), bytes(2, 1), bytes(2, 1), 2, 0);
+
+        assertEquals(1, index.get(new ByteArray(first)).orElseThrow().signatureCount());
+        assertEquals(2, index.get(new ByteArray(second)).orElseThrow().signatureCount());
+        assertEquals(Optional.empty(), index.get(new ByteArray(sameTag)));
+    }
+
+    @Test
+    void countersOnlyAdvance() {
+        index.put(digest(0), bytes(0, 16), bytes(0, 16), 5, 0);
+
+        assertTrue(index.advance(digest(0), 7));
+        assertFalse(index.advance(digest(0), 6));
+        assertFalse(index.advance(digest(1), 9));
+        assertEquals(7, index.get(digest(0)).orElseThrow().signatureCount());
+
+        assertTrue(index.stamp(digest(0), 42));
+        assertEquals(42, index.get(digest(0)).orElseThrow().stamp());
+    }
+
+    @Test
+    void removedCredentialsAreGoneButKeepTheProbing() {
+        byte[] first = new byte[32];
+        byte[] second = new byte[32];
+        second[31] = 1;
+        index.put(new ByteArray(first), bytes(1, 1), bytes(1, 1), 1, 0);
+        index.put(new ByteArray(second), bytes(2, 1), bytes(2, 1), 2, 0);
+
+        assertTrue(index.remove(new ByteArray(first)));
+        assertFalse(index.remove(new ByteArray(first)));
+
+        assertEquals(Optional.empty(), index.get(new ByteArray(first)));
+        assertEquals(2, index.get(new ByteArray(second)).orElseThrow().signatureCount());
+        assertTrue(index.put(new ByteArray(first), bytes(3, 1), bytes(3, 1), 3, 0));
+        assertEquals(3, index.get(new ByteArray(first)).orElseThrow().signatureCount());
+    }
+
+    @Test
+    void nothingIsAddedOnceFull() {
+        OffHeapCredentialIndex small = new OffHeapCredentialIndex(4, 1024);
+        int added = 0;
+        while (small.put(digest(added), bytes(added, 16), bytes(added, 16), 0, 0)) {
+            added++;
+        }
+        // 16 slots, half of them used
+        assertEquals(8, added);
+        assertEquals(8, small.size());
+
+        OffHeapCredentialIndex tight = new OffHeapCredentialIndex(100, 200);
+        // 48 + 1 + 64 + 2 + 77 bytes, padded to 192
+        assertTrue(tight.put(digest(0), bytes(0, 64), bytes(0, 77), 0, 0));
+        assertFalse(tight.put(digest(1), bytes(1, 64), bytes(1, 77), 0, 0));
+        assertFalse(tight.put(digest(2), bytes(2, 256), bytes(2, 1), 0, 0));
+        assertEquals(1, tight.size());
+        assertEquals(256 * 8 + 192, tight.bytesUsed());
+    }
+
+    @Test
+    void removedCredentialsAreCountedUntilTheIndexIsWasteful() {
+        OffHeapCredentialIndex small = new OffHeapCredentialIndex(4, 1024 * 1024);
+        for (int i = 0; i < 8; i++) {
+            assertTrue(small.put(digest(i), bytes(i, 16), bytes(i, 16), 0, 0));
+        }
+        assertTrue(small.remove(digest(0)));
+
+        // the slot is not reused, so the index stays full
+        assertEquals(7, small.size());
+        assertEquals(1, small.tombstones());
+        assertFalse(small.wasteful());
+        assertFalse(small.put(digest(0), bytes(0, 16), bytes(0, 16), 0, 0));
+        assertEquals(1, small.refused());
+        assertTrue(small.wasteful());
+
+        OffHeapCredentialIndex churned = new OffHeapCredentialIndex(1000, 1024 * 1024);
+        for (int i = 0; i < 255; i++) {
+            churned.put(digest(i), bytes(i, 16), bytes(i, 16), 0, 0);
+            churned.remove(digest(i));
+        }
+        assertFalse(churned.wasteful());
+        churned.put(digest(255), bytes(255, 16), bytes(255, 16), 0, 0);
+        churned.remove(digest(255));
+        // a quarter of the 1024 usable slots
+        assertTrue(churned.wasteful());
+        assertEquals(0, churned.size());
+    }
+
+    @Test
+    void credentialsBeyondTheSchemaLimitsAreNotAdded() {
+        assertFalse(index.put(digest(0), bytes(0, UserModel.MAX_HANDLE_LENGTH + 1), bytes(0, 16), 0, 0));
+        assertFalse(index.put(digest(1), bytes(1, 16), bytes(1, AuthenticatorModel.MAX_PUBLIC_KEY_LENGTH + 1), 0, 0));
+        assertEquals(0, index.size());
+
+        assertTrue(index.put(digest(2), bytes(2, UserModel.MAX_HANDLE_LENGTH),
+                bytes(2, AuthenticatorModel.MAX_PUBLIC_KEY_LENGTH), 0, 0));
+        assertEquals(AuthenticatorModel.MAX_PUBLIC_KEY_LENGTH,
+                index.get(digest(2)).orElseThrow().publicKeyCose().size());
+    }
+
+    @Test
+    void concurrentAdvancesKeepTheHighestCounter() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            index.put(digest(i), bytes(i, 16), bytes(i, 16), 0, 0);
+        }
+        ExecutorService executor = Executors.newFixedThreadPool(4);
+        try {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int thread = 0; thread < 4; thread++) {
+                int offset = thread;
+                futures.add(executor.submit(() -> {
+                    for (int count = 1; count <= 1000; count++) {
+                        for (int i = 0; i < 100; i++) {
+                            index.advance(digest(i), count * 4 + offset);
+                        }
+                    }
+                }));
+                futures.add(executor.submit(() -> {
+                    for (int i = 100; i < 600; i++) {
+                        index.put(digest(i), bytes(i, 16), bytes(i, 16), i, 0);
+                        index.get(digest(i - 100)).orElseThrow();
+                    }
+                }));
+            }
+            for (Future<?> future : futures) {
+                future.get();
+            }
+        } finally {
+            executor.shutdown();
+        }
+
+        for (int i = 0; i < 100; i++) {
+            assertEquals(4003, index.get(digest(i)).orElseThrow().signatureCount());
+        }
+        // the same 500 credentials were put by four threads
+        assertEquals(600, index.size());
+        for (int i = 100; i < 600; i++) {
+            assertEquals(i, index.get(digest(i)).orElseThrow().signatureCount());
+        }
+    }
+
+    private static ByteArray digest(int i) {
+        return AuthenticatorModel.digestOf(new ByteArray(ByteBuffer.allocate(4).putInt(i).array()));
+    }
+
+    private static ByteArray bytes(int value, int length) {
+        byte[] bytes = new byte[length];
+        bytes[0] = (byte) value;
+        bytes[length - 1] = (byte) (value >> 8);
+        return new ByteArray(bytes);
+    }
+}
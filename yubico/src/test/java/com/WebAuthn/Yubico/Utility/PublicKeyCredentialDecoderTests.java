@@ -0,0 +1,88 @@
+package com.WebAuthn.Yubico.Utility;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+
+import org.junit.jupiter.api.Test;
+
+import com.WebAuthn.Yubico.VirtualAuthenticator;
+import com.fasterxml.jackson.databind.ObjectMapper;
+import com.fasterxml.jackson.databind.node.ObjectNode;
+import com.fasterxml.jackson.datatype.jdk8.Jdk8Module;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.PublicKeyCredential;
+
+class PublicKeyCredentialDecoderTests {
+
+    private final ObjectMapper mapper = new ObjectMapper().registerModule(new Jdk8Module());
+    private final PublicKeyCredentialDecoder decoder = new PublicKeyCredentialDecoder(mapper);
+    private final VirtualAuthenticator authenticator = new VirtualAuthenticator();
+    private final ByteArray challenge = new ByteArray(new byte[] { 1, 2, 3, 4, 5, 6, 7, 8 });
+
+    @Test
+    void decodesRegistrationLikeTheLibrary() throws Exception {
+        String body = authenticator.register(challenge);
+        assertEquals(PublicKeyCredential.parseRegistrationResponseJson(body),
+                decoder.decodeRegistration(bytes(body)));
+    }
+
+    @Test
+    void decodesAssertionLikeTheLibrary() throws Exception {
+        authenticator.register(challenge);
+        String body = authenticator.authenticate(challenge, new ByteArray(new byte[] { 9 }));
+        assertEquals(PublicKeyCredential.parseAssertionResponseJson(body),
+                decoder.decodeAssertion(bytes(body)));
+    }
+
+    @Test
+    void decodesExtensionsAndUnknownFields() throws Exception {
+        ObjectNode body = (ObjectNode) mapper.readTree(authenticator.register(challenge));
+        body.putObject("clientExtensionResults").putObject("credProps").put("rk", true);
+        body.putObject("getClientExtensionResults");
+        body.remove("id");
+        assertTrue(decoder.decodeRegistration(bytes(body.toString()))
+                .getClientExtensionResults().getCredProps().orElseThrow().getRk().orElseThrow());
+    }
+
+    @Test
+    void acceptsPaddedBase64Url() throws Exception {
+        authenticator.register(challenge);
+        ObjectNode body = (ObjectNode) mapper.readTree(authenticator.authenticate(challenge, null));
+        ObjectNode response = (ObjectNode) body.get("response");
+        String signature = response.get("signature").asText();
+        response.put("signature", signature + "=".repeat((4 - signature.length() % 4) % 4));
+        assertEquals(PublicKeyCredential.parseAssertionResponseJson(body.toString()),
+                decoder.decodeAssertion(bytes(body.toString())));
+    }
+
+    @Test
+    void skipsTransportsThatAreNotStrings() throws Exception {
+        ObjectNode body = (ObjectNode) mapper.readTree(authenticator.register(challenge));
+        ObjectNode signed = (ObjectNode) body.get("response");
+        // the transports come first, so a misaligned parser would miss the rest
+        ObjectNode response = body.putObject("response");
+        response.putArray("transports").add("usb").addNull().add(mapper.createObjectNode().put("usb", "nfc"))
+                .add("nfc");
+        response.setAll(signed);
+        ObjectNode expected = body.deepCopy();
+        ((ObjectNode) expected.get("response")).putArray("transports").add("usb").add("nfc");
+
+        assertEquals(PublicKeyCredential.parseRegistrationResponseJson(expected.toString()),
+                decoder.decodeRegistration(bytes(body.toString())));
+    }
+
+    @Test
+    void rejectsDifferentIdAndRawId() throws Exception {
+        ObjectNode body = (ObjectNode) mapper.readTree(authenticator.register(challenge));
+        body.put("rawId", "AAAA");
+        assertThrows(IOException.class, () -> decoder.decodeRegistration(bytes(body.toString())));
+    }
+
+    private static byte[] bytes(String body) {
+        return body.getBytes(StandardCharsets.UTF_8);
+    }
+}
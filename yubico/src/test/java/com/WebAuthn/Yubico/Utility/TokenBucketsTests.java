@@ -0,0 +1,62 @@
+package com.WebAuthn.Yubico.Utility;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.junit.jupiter.api.Test;
+
+class TokenBucketsTests {
+
+    private final AtomicLong nanos = new AtomicLong(TimeUnit.DAYS.toNanos(1));
+    // 10 tokens per second, 3 in a full bucket
+    private final TokenBuckets buckets = new TokenBuckets(10, 3, 1000, nanos::get);
+
+    @Test
+    void fullBucketAdmitsTheBurst() {
+        assertTrue(buckets.tryAcquire("a"));
+        assertTrue(buckets.tryAcquire("a"));
+        assertTrue(buckets.tryAcquire("a"));
+        assertFalse(buckets.tryAcquire("a"));
+        // every key has its own bucket
+        assertTrue(buckets.tryAcquire("b"));
+    }
+
+    @Test
+    void tokensAreAddedAtTheRate() {
+        for (int i = 0; i < 3; i++) {
+            buckets.tryAcquire("a");
+        }
+
+        advance(50);
+        assertFalse(buckets.tryAcquire("a"));
+        advance(50);
+        assertTrue(buckets.tryAcquire("a"));
+        assertFalse(buckets.tryAcquire("a"));
+        // never more than a full bucket
+        advance(10_000);
+        assertTrue(buckets.tryAcquire("a"));
+        assertTrue(buckets.tryAcquire("a"));
+        assertTrue(buckets.tryAcquire("a"));
+        assertFalse(buckets.tryAcquire("a"));
+    }
+
+    @Test
+    void idleBucketsAreEvicted() {
+        buckets.tryAcquire("a");
+        buckets.tryAcquire("b");
+        assertEquals(2, buckets.size());
+
+        advance(1500);
+        buckets.tryAcquire("c");
+
+        assertEquals(1, buckets.size());
+    }
+
+    private void advance(long ms) {
+        nanos.addAndGet(TimeUnit.MILLISECONDS.toNanos(ms));
+    }
+}
@@ -0,0 +1,83 @@
+package com.WebAuthn.Yubico;
+
+import com.WebAuthn.Authenticator.AttestationCertificates;
+import com.yubico.webauthn.FinishRegistrationOptions;
+import com.yubico.webauthn.RegistrationResult;
+import com.yubico.webauthn.RelyingParty;
+import com.yubico.webauthn.StartRegistrationOptions;
+import com.yubico.webauthn.data.ByteArray;
+import com.yubico.webauthn.data.COSEAlgorithmIdentifier;
+import com.yubico.webauthn.data.PublicKeyCredential;
+import com.yubico.webauthn.data.PublicKeyCredentialCreationOptions;
+import com.yubico.webauthn.data.UserIdentity;
+
+// the authenticator of the VirtualAuthenticator module for the localhost
+// relying party, in the types of the yubico library; the keys, attestation
+// and signatures are all made there
+public class VirtualAuthenticator {
+
+    public static final String ORIGIN = "http://localhost:8080";
+    public static final String RP_ID = "localhost";
+
+    private final com.WebAuthn.Authenticator.VirtualAuthenticator authenticator;
+
+    public VirtualAuthenticator() {
+        this(null);
+    }
+
+    /**
+     * @param attestation certificates for packed attestation, none attestation
+     *                    if null
+     */
+    public VirtualAuthenticator(AttestationCertificates attestation) {
+        this(COSEAlgorithmIdentifier.ES256, attestation, false);
+    }
+
+    /**
+     * @param algorithm       ES256, RS256 or EdDSA
+     * @param attestation     certificates for packed attestation, may be null
+     * @param selfAttestation packed attestation signed by the credential itself,
+     *                        if there are no certificates
+     */
+    public VirtualAuthenticator(COSEAlgorithmIdentifier algorithm, AttestationCertificates attestation,
+            boolean selfAttestation) {
+        this.authenticator = new com.WebAuthn.Authenticator.VirtualAuthenticator(ORIGIN,
+                com.WebAuthn.Authenticator.VirtualAuthenticator.Algorithm.valueOf(algorithm.name()), attestation,
+                selfAttestation);
+    }
+
+    public ByteArray getCredentialId() {
+        return new ByteArray(authenticator.getRawCredentialId());
+    }
+
+    public ByteArray getPublicKeyCose() {
+        return new ByteArray(authenticator.getPublicKeyCose());
+    }
+
+    /**
+     * @return body for /attestation/result
+     */
+    public String register(ByteArray challenge) {
+        return authenticator.register(RP_ID, challenge.getBase64Url());
+    }
+
+    /**
+     * Runs a whole registration ceremony against the relying party.
+     */
+    public RegistrationResult registerWith(RelyingParty rp, UserIdentity user) throws Exception {
+        PublicKeyCredentialCreationOptions options = rp.startRegistration(StartRegistrationOptions.builder()
+                .user(user)
+                .build());
+        return rp.finishRegistration(FinishRegistrationOptions.builder()
+                .request(options)
+                .response(PublicKeyCredential.parseRegistrationResponseJson(register(options.getChallenge())))
+                .build());
+    }
+
+    /**
+     * @return body for /assertion/result
+     */
+    public String authenticate(ByteArray challenge, ByteArray userHandle) {
+        return authenticator.authenticate(challenge.getBase64Url(), userHandle == null ? null : userHandle.getBase64Url());
+    }
+}